@@ -0,0 +1,397 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package android.os;
+
+import static android.os.StatsDimensionsValue.BOOLEAN_VALUE_TYPE;
+import static android.os.StatsDimensionsValue.FLOAT_VALUE_TYPE;
+import static android.os.StatsDimensionsValue.INT_VALUE_TYPE;
+import static android.os.StatsDimensionsValue.LONG_VALUE_TYPE;
+import static android.os.StatsDimensionsValue.STRING_VALUE_TYPE;
+import static android.os.StatsDimensionsValue.TUPLE_VALUE_TYPE;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.SystemApi;
+
+import java.util.Arrays;
+
+/**
+ * Flattened, immutable form of a {@link StatsDimensionsValue}, suitable for use as a map key.
+ *
+ * <p>
+ * The dimension tree is stored depth first in a handful of arrays, so a key holds a constant number
+ * of objects regardless of the number of dimension fields. {@link #hashCode()} is computed once
+ * at construction and {@link #equals(Object)} compares the flattened arrays.
+ *
+ * <p>
+ * Each value of the tree is addressed by a node index; the root is node 0. The children of a
+ * {@link StatsDimensionsValue#TUPLE_VALUE_TYPE} node are reached with
+ * {@link #getTupleSize(int)} and {@link #getTupleChild(int, int)}, neither of which allocates.
+ *
+ * @hide
+ */
+@SystemApi
+public final class StatsDimensionsKey implements Parcelable {
+    // Smallest encoding of a node in a parcel: its field and its value type.
+    private static final int MIN_PARCELED_NODE_BYTES = 2 * Integer.BYTES;
+
+    // Node i's subtree spans nodes [i, i + mSubtreeSizes[i]).
+    private final int[] mFields;
+    private final int[] mValueTypes;
+    private final int[] mSubtreeSizes;
+    // Int, long, boolean and float bits of each node. Unused for strings and tuples.
+    private final long[] mNumericValues;
+    // String value of each node, or null if the node is not a string.
+    private final String[] mStringValues;
+    private final int mHashCode;
+
+    /**
+     * Flattens the given dimensions value.
+     */
+    public StatsDimensionsKey(@NonNull StatsDimensionsValue value) {
+        this(value.getParcel());
+    }
+
+    /**
+     * Flattens the given dimensions value parcel.
+     *
+     * @hide
+     */
+    public StatsDimensionsKey(@NonNull StatsDimensionsValueParcel parcel) {
+        final int nodeCount = countNodes(parcel);
+        mFields = new int[nodeCount];
+        mValueTypes = new int[nodeCount];
+        mSubtreeSizes = new int[nodeCount];
+        mNumericValues = new long[nodeCount];
+        mStringValues = new String[nodeCount];
+        flatten(parcel, 0);
+        mHashCode = computeHashCode();
+    }
+
+    private StatsDimensionsKey(Parcel in) {
+        final int nodeCount = in.readInt();
+        if (nodeCount < 1 || nodeCount > in.dataAvail() / MIN_PARCELED_NODE_BYTES) {
+            throw new BadParcelableException("Invalid StatsDimensionsKey node count " + nodeCount);
+        }
+        mFields = new int[nodeCount];
+        mValueTypes = new int[nodeCount];
+        mSubtreeSizes = new int[nodeCount];
+        mNumericValues = new long[nodeCount];
+        mStringValues = new String[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            mFields[i] = in.readInt();
+            mValueTypes[i] = in.readInt();
+            switch (mValueTypes[i]) {
+                case STRING_VALUE_TYPE:
+                    mStringValues[i] = in.readString();
+                    mSubtreeSizes[i] = 1;
+                    break;
+                case TUPLE_VALUE_TYPE:
+                    mSubtreeSizes[i] = in.readInt();
+                    break;
+                default:
+                    mNumericValues[i] = in.readLong();
+                    mSubtreeSizes[i] = 1;
+                    break;
+            }
+        }
+        checkSubtreeSizes();
+        mHashCode = computeHashCode();
+    }
+
+    // The tree walks rely on each subtree being non-empty and nested in its parent's range, so
+    // that they terminate and stay within the arrays.
+    private void checkSubtreeSizes() {
+        final int nodeCount = mSubtreeSizes.length;
+        if (mSubtreeSizes[0] != nodeCount) {
+            throw new BadParcelableException("StatsDimensionsKey root spans " + mSubtreeSizes[0]
+                    + " of " + nodeCount + " nodes");
+        }
+        // Ends of the subtrees enclosing the current node, innermost last.
+        final int[] ends = new int[nodeCount];
+        int depth = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            while (depth > 0 && ends[depth - 1] <= i) {
+                depth--;
+            }
+            final int parentEnd = depth > 0 ? ends[depth - 1] : nodeCount;
+            final int size = mSubtreeSizes[i];
+            if (size < 1 || size > parentEnd - i) {
+                throw new BadParcelableException(
+                        "Invalid StatsDimensionsKey subtree size " + size + " at node " + i);
+            }
+            ends[depth++] = i + size;
+        }
+    }
+
+    private static int countNodes(StatsDimensionsValueParcel parcel) {
+        int count = 1;
+        if (parcel.valueType == TUPLE_VALUE_TYPE && parcel.tupleValue != null) {
+            for (StatsDimensionsValueParcel child : parcel.tupleValue) {
+                count += countNodes(child);
+            }
+        }
+        return count;
+    }
+
+    // Writes the subtree rooted at parcel starting at node index, and returns its size.
+    private int flatten(StatsDimensionsValueParcel parcel, int index) {
+        mFields[index] = parcel.field;
+        mValueTypes[index] = parcel.valueType;
+        int size = 1;
+        switch (parcel.valueType) {
+            case STRING_VALUE_TYPE:
+                mStringValues[index] = parcel.stringValue;
+                break;
+            case INT_VALUE_TYPE:
+                mNumericValues[index] = parcel.intValue;
+                break;
+            case LONG_VALUE_TYPE:
+                mNumericValues[index] = parcel.longValue;
+                break;
+            case BOOLEAN_VALUE_TYPE:
+                mNumericValues[index] = parcel.boolValue ? 1 : 0;
+                break;
+            case FLOAT_VALUE_TYPE:
+                mNumericValues[index] = Float.floatToIntBits(parcel.floatValue);
+                break;
+            case TUPLE_VALUE_TYPE:
+                if (parcel.tupleValue != null) {
+                    for (StatsDimensionsValueParcel child : parcel.tupleValue) {
+                        size += flatten(child, index + size);
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        mSubtreeSizes[index] = size;
+        return size;
+    }
+
+    private int computeHashCode() {
+        int result = Arrays.hashCode(mFields);
+        result = 31 * result + Arrays.hashCode(mValueTypes);
+        result = 31 * result + Arrays.hashCode(mSubtreeSizes);
+        result = 31 * result + Arrays.hashCode(mNumericValues);
+        result = 31 * result + Arrays.hashCode(mStringValues);
+        return result;
+    }
+
+    /**
+     * Returns the number of nodes in the flattened dimension tree, including the root.
+     */
+    public int getNodeCount() {
+        return mFields.length;
+    }
+
+    /**
+     * Returns the field of the given node, i.e. the atom tag for the root node.
+     */
+    public int getField(int node) {
+        return mFields[node];
+    }
+
+    /**
+     * Returns the type of value held by the given node, one of the value type constants of
+     * {@link StatsDimensionsValue}.
+     */
+    public int getValueType(int node) {
+        return mValueTypes[node];
+    }
+
+    /**
+     * Returns the String held by the given node if it is a
+     * {@link StatsDimensionsValue#STRING_VALUE_TYPE}, null otherwise.
+     */
+    @Nullable
+    public String getStringValue(int node) {
+        return mStringValues[node];
+    }
+
+    /**
+     * Returns the int held by the given node if it is a
+     * {@link StatsDimensionsValue#INT_VALUE_TYPE}, 0 otherwise.
+     */
+    public int getIntValue(int node) {
+        return mValueTypes[node] == INT_VALUE_TYPE ? (int) mNumericValues[node] : 0;
+    }
+
+    /**
+     * Returns the long held by the given node if it is a
+     * {@link StatsDimensionsValue#LONG_VALUE_TYPE}, 0 otherwise.
+     */
+    public long getLongValue(int node) {
+        return mValueTypes[node] == LONG_VALUE_TYPE ? mNumericValues[node] : 0;
+    }
+
+    /**
+     * Returns the boolean held by the given node if it is a
+     * {@link StatsDimensionsValue#BOOLEAN_VALUE_TYPE}, false otherwise.
+     */
+    public boolean getBooleanValue(int node) {
+        return mValueTypes[node] == BOOLEAN_VALUE_TYPE && mNumericValues[node] != 0;
+    }
+
+    /**
+     * Returns the float held by the given node if it is a
+     * {@link StatsDimensionsValue#FLOAT_VALUE_TYPE}, 0 otherwise.
+     */
+    public float getFloatValue(int node) {
+        return mValueTypes[node] == FLOAT_VALUE_TYPE
+                ? Float.intBitsToFloat((int) mNumericValues[node]) : 0;
+    }
+
+    /**
+     * Returns the number of direct children of the given node, or 0 if it is not a
+     * {@link StatsDimensionsValue#TUPLE_VALUE_TYPE}.
+     */
+    public int getTupleSize(int node) {
+        int count = 0;
+        final int end = node + mSubtreeSizes[node];
+        for (int child = node + 1; child < end; child += mSubtreeSizes[child]) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Returns the node index of the {@code childIndex}-th direct child of the given tuple node.
+     *
+     * @throws IndexOutOfBoundsException if the node has no such child
+     */
+    public int getTupleChild(int node, int childIndex) {
+        final int end = node + mSubtreeSizes[node];
+        int child = node + 1;
+        for (int i = 0; i < childIndex && child < end; i++) {
+            child += mSubtreeSizes[child];
+        }
+        if (childIndex < 0 || child >= end) {
+            throw new IndexOutOfBoundsException(
+                    "Node " + node + " has no tuple child " + childIndex);
+        }
+        return child;
+    }
+
+    @Override
+    public boolean equals(@Nullable Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof StatsDimensionsKey)) {
+            return false;
+        }
+        final StatsDimensionsKey other = (StatsDimensionsKey) obj;
+        return mHashCode == other.mHashCode
+                && Arrays.equals(mFields, other.mFields)
+                && Arrays.equals(mValueTypes, other.mValueTypes)
+                && Arrays.equals(mSubtreeSizes, other.mSubtreeSizes)
+                && Arrays.equals(mNumericValues, other.mNumericValues)
+                && Arrays.equals(mStringValues, other.mStringValues);
+    }
+
+    @Override
+    public int hashCode() {
+        return mHashCode;
+    }
+
+    /**
+     * Returns a String representing the information in this key, in the same format as
+     * {@link StatsDimensionsValue#toString()}.
+     *
+     * @hide
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        appendNode(sb, 0);
+        return sb.toString();
+    }
+
+    private void appendNode(StringBuilder sb, int node) {
+        sb.append(mFields[node]);
+        sb.append(":");
+        switch (mValueTypes[node]) {
+            case STRING_VALUE_TYPE:
+                sb.append(mStringValues[node]);
+                break;
+            case INT_VALUE_TYPE:
+                sb.append(getIntValue(node));
+                break;
+            case LONG_VALUE_TYPE:
+                sb.append(getLongValue(node));
+                break;
+            case BOOLEAN_VALUE_TYPE:
+                sb.append(getBooleanValue(node));
+                break;
+            case FLOAT_VALUE_TYPE:
+                sb.append(getFloatValue(node));
+                break;
+            case TUPLE_VALUE_TYPE:
+                sb.append("{");
+                final int end = node + mSubtreeSizes[node];
+                for (int child = node + 1; child < end; child += mSubtreeSizes[child]) {
+                    appendNode(sb, child);
+                    sb.append("|");
+                }
+                sb.append("}");
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Parcelable Creator for StatsDimensionsKey.
+     */
+    public static final @NonNull Parcelable.Creator<StatsDimensionsKey> CREATOR =
+            new Parcelable.Creator<StatsDimensionsKey>() {
+                public StatsDimensionsKey createFromParcel(Parcel in) {
+                    return new StatsDimensionsKey(in);
+                }
+
+                public StatsDimensionsKey[] newArray(int size) {
+                    return new StatsDimensionsKey[size];
+                }
+            };
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    // Compact encoding: node count, then field, type and only the value slot the type uses.
+    @Override
+    public void writeToParcel(@NonNull Parcel out, int flags) {
+        final int nodeCount = mFields.length;
+        out.writeInt(nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            out.writeInt(mFields[i]);
+            out.writeInt(mValueTypes[i]);
+            switch (mValueTypes[i]) {
+                case STRING_VALUE_TYPE:
+                    out.writeString(mStringValues[i]);
+                    break;
+                case TUPLE_VALUE_TYPE:
+                    out.writeInt(mSubtreeSizes[i]);
+                    break;
+                default:
+                    out.writeLong(mNumericValues[i]);
+                    break;
+            }
+        }
+    }
+}
@@ -92,6 +92,10 @@ public final class StatsDimensionsValue implements Parcelable {
         mInner = parcel;
     }
 
+    StatsDimensionsValueParcel getParcel() {
+        return mInner;
+    }
+
     /**
      * Return the field, i.e. the tag of a statsd atom.
      *
@@ -0,0 +1,299 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.annotation.SystemApi;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Counts occurrences of an atom in process and logs them to statsd in aggregated form.
+ *
+ * <p>Each call to {@link #increment(int[])} only bumps a lock-free striped counter keyed by the
+ * dimension values. The counts are periodically written to statsd as one {@link StatsEvent} per
+ * distinct set of dimension values, carrying the number of occurrences in an atom-level
+ * {@link StatsLog#ANNOTATION_ID_AGGREGATED_COUNT} annotation. Count metrics in statsd add that
+ * number instead of one, so a high-frequency atom costs one socket write per flush instead of one
+ * per occurrence.</p>
+ *
+ * <p>The dimension values are written as the int fields of the atom, in order. Counts are flushed
+ * every flush interval and as soon as the number of distinct dimension values reaches the
+ * configured threshold. Call {@link #close()} to flush the remaining counts and stop the timer.</p>
+ *
+ * @hide
+ */
+@SystemApi
+public final class StatsCounter implements AutoCloseable {
+    private static final String TAG = "StatsCounter";
+
+    /** Default interval at which aggregated counts are written to statsd. */
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 60_000;
+
+    /** Default number of distinct dimension values that triggers an early flush. */
+    public static final int DEFAULT_MAX_PENDING_KEYS = 100;
+
+    // Reused by each thread to look up its dimension values without allocating a key.
+    private static final ThreadLocal<Key> sLookupKey = ThreadLocal.withInitial(Key::new);
+
+    private static final Object sExecutorLock = new Object();
+    @GuardedBy("sExecutorLock")
+    private static ScheduledExecutorService sFlushExecutor;
+
+    private final int mAtomId;
+    private final int mMaxPendingKeys;
+    private final Consumer<StatsEvent> mWriter;
+
+    private final ConcurrentHashMap<Key, Cell> mCells = new ConcurrentHashMap<>();
+    private final AtomicBoolean mEarlyFlushScheduled = new AtomicBoolean(false);
+    @Nullable
+    private final ScheduledFuture<?> mPeriodicFlush;
+
+    /**
+     * Creates a counter for the given atom that flushes with the default interval and threshold.
+     */
+    public StatsCounter(int atomId) {
+        this(atomId, DEFAULT_FLUSH_INTERVAL_MILLIS, DEFAULT_MAX_PENDING_KEYS);
+    }
+
+    /**
+     * Creates a counter for the given atom.
+     *
+     * @param atomId              the atom to log
+     * @param flushIntervalMillis interval at which counts are written to statsd
+     * @param maxPendingKeys      number of distinct dimension values that triggers a flush
+     *                            before the interval elapses
+     */
+    public StatsCounter(int atomId, long flushIntervalMillis, int maxPendingKeys) {
+        this(atomId, flushIntervalMillis, maxPendingKeys, StatsLog::write);
+    }
+
+    @VisibleForTesting
+    StatsCounter(int atomId, long flushIntervalMillis, int maxPendingKeys,
+            @NonNull Consumer<StatsEvent> writer) {
+        if (flushIntervalMillis < 0) {
+            throw new IllegalArgumentException("Negative flush interval: " + flushIntervalMillis);
+        }
+        mAtomId = atomId;
+        mMaxPendingKeys = Math.max(1, maxPendingKeys);
+        mWriter = writer;
+        mPeriodicFlush = flushIntervalMillis == 0 ? null
+                : getFlushExecutor().scheduleWithFixedDelay(this::flush, flushIntervalMillis,
+                        flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private static ScheduledExecutorService getFlushExecutor() {
+        synchronized (sExecutorLock) {
+            if (sFlushExecutor == null) {
+                ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                        runnable -> {
+                            Thread thread = new Thread(runnable, "StatsCounterFlush");
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+                executor.setRemoveOnCancelPolicy(true);
+                sFlushExecutor = executor;
+            }
+            return sFlushExecutor;
+        }
+    }
+
+    /**
+     * Counts one occurrence of the atom with the given dimension values. The array is not
+     * retained, so callers on hot paths may reuse one instead of passing varargs.
+     */
+    public void increment(@NonNull int... dimensionValues) {
+        add(1, dimensionValues);
+    }
+
+    /**
+     * Counts {@code count} occurrences of the atom with the given dimension values. The array is
+     * not retained, so callers on hot paths may reuse one instead of passing varargs.
+     */
+    public void add(long count, @NonNull int... dimensionValues) {
+        if (count <= 0) {
+            return;
+        }
+        final Key lookupKey = sLookupKey.get();
+        lookupKey.set(dimensionValues);
+        Cell cell = mCells.get(lookupKey);
+        lookupKey.set(null);
+        if (cell == null || cell.mRetired) {
+            cell = getOrCreateCell(dimensionValues);
+        }
+        cell.mCount.add(count);
+        if (cell.mRetired) {
+            // A flush retired the cell while this add was using it. It may or may not have seen
+            // the count, so move whatever it has not accounted for to a live cell.
+            transferUnaccounted(cell);
+        }
+    }
+
+    private Cell getOrCreateCell(int[] dimensionValues) {
+        final Key key = new Key(dimensionValues.clone());
+        final Cell cell = mCells.compute(key,
+                (k, current) -> current == null || current.mRetired ? new Cell(k) : current);
+        maybeScheduleEarlyFlush();
+        return cell;
+    }
+
+    private void maybeScheduleEarlyFlush() {
+        if (mCells.size() >= mMaxPendingKeys && mEarlyFlushScheduled.compareAndSet(false, true)) {
+            getFlushExecutor().execute(() -> {
+                mEarlyFlushScheduled.set(false);
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Writes all pending counts to statsd.
+     */
+    public void flush() {
+        for (Cell cell : mCells.values()) {
+            long accounted;
+            long total;
+            do {
+                accounted = cell.mAccounted.get();
+                total = cell.mCount.sum();
+                if (total == accounted) {
+                    break;
+                }
+            } while (!cell.mAccounted.compareAndSet(accounted, total));
+
+            if (total == accounted) {
+                // Idle since the last flush. Forget the key so the map only holds active keys.
+                // Adds that raced with the retirement are handed to a new cell.
+                cell.mRetired = true;
+                mCells.remove(cell.mKey, cell);
+                transferUnaccounted(cell);
+                continue;
+            }
+            writeEvents(cell.mKey.mValues, total - accounted);
+        }
+    }
+
+    /**
+     * Moves the part of a retired cell's count that was neither written nor moved yet to a live
+     * cell. Both the flush that retires the cell and every add that finds it retired call this, so
+     * that each count ends up exactly once in a live cell or in statsd.
+     */
+    private void transferUnaccounted(Cell cell) {
+        while (true) {
+            final long accounted = cell.mAccounted.get();
+            final long total = cell.mCount.sum();
+            if (total == accounted) {
+                return;
+            }
+            if (cell.mAccounted.compareAndSet(accounted, total)) {
+                add(total - accounted, cell.mKey.mValues);
+                return;
+            }
+        }
+    }
+
+    private void writeEvents(int[] dimensionValues, long count) {
+        while (count > 0) {
+            final int eventCount = (int) Math.min(count, Integer.MAX_VALUE);
+            writeEvent(dimensionValues, eventCount);
+            count -= eventCount;
+        }
+    }
+
+    private void writeEvent(int[] dimensionValues, int count) {
+        final StatsEvent.Builder builder = StatsEvent.newBuilder()
+                .setAtomId(mAtomId)
+                .addIntAnnotation(StatsLog.ANNOTATION_ID_AGGREGATED_COUNT, count);
+        for (int value : dimensionValues) {
+            builder.writeInt(value);
+        }
+        try {
+            mWriter.accept(builder.usePooledBuffer().build());
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Failed to write aggregated counts of atom " + mAtomId, e);
+        }
+    }
+
+    /**
+     * Flushes the pending counts and stops the periodic flush.
+     */
+    @Override
+    public void close() {
+        if (mPeriodicFlush != null) {
+            mPeriodicFlush.cancel(false);
+        }
+        flush();
+    }
+
+    /**
+     * Counts of one set of dimension values. The counts only grow: a flush writes the part that
+     * is not accounted for yet instead of resetting them, so that adds stay on the striped cells
+     * of the {@link LongAdder} and none is lost to a concurrent reset.
+     */
+    private static final class Cell {
+        final Key mKey;
+        final LongAdder mCount = new LongAdder();
+        // Part of mCount already written to statsd or moved to a newer cell.
+        final AtomicLong mAccounted = new AtomicLong();
+        // Set once a flush has found the cell idle and removes it from mCells.
+        volatile boolean mRetired = false;
+
+        Cell(Key key) {
+            mKey = key;
+        }
+    }
+
+    private static final class Key {
+        int[] mValues;
+        int mHashCode;
+
+        Key() {
+        }
+
+        Key(int[] values) {
+            set(values);
+        }
+
+        void set(int[] values) {
+            mValues = values;
+            mHashCode = values == null ? 0 : Arrays.hashCode(values);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            return obj instanceof Key && Arrays.equals(mValues, ((Key) obj).mValues);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+    }
+}
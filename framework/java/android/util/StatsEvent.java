@@ -298,6 +298,68 @@ public final class StatsEvent {
         }
     }
 
+    /**
+     * Returns a StatsEvent with the same payload whose atom stands for {@code weight} times as
+     * many occurrences, recorded in an atom-level
+     * {@link StatsLog#ANNOTATION_ID_AGGREGATED_COUNT} annotation. An existing aggregated count is
+     * multiplied by {@code weight}. Returns this StatsEvent if the annotation cannot be added.
+     * The caller still owns this StatsEvent and must release it.
+     */
+    @NonNull
+    StatsEvent withAggregatedCount(final int weight) {
+        final int atomIdTypePos = Builder.POS_ATOM_ID;
+        final int annotationsPos = atomIdTypePos + Byte.BYTES + Integer.BYTES;
+        if (weight <= 1 || mNumBytes < annotationsPos
+                || (mPayload[atomIdTypePos] & 0x0F) != TYPE_INT) {
+            return this;
+        }
+        final int annotationCount = (mPayload[atomIdTypePos] >> 4) & 0x0F;
+        int pos = annotationsPos;
+        for (int i = 0; i < annotationCount; i++) {
+            final byte annotationId = mPayload[pos];
+            final byte annotationType = mPayload[pos + Byte.BYTES];
+            pos += 2 * Byte.BYTES;
+            if (annotationId == StatsLog.ANNOTATION_ID_AGGREGATED_COUNT
+                    && annotationType == TYPE_INT) {
+                final long count = (long) getIntLittleEndian(mPayload, pos) * weight;
+                final byte[] payload = Arrays.copyOf(mPayload, mNumBytes);
+                putIntLittleEndian(payload, pos, (int) Math.min(count, Integer.MAX_VALUE));
+                return new StatsEvent(mAtomId, null, payload, mNumBytes);
+            }
+            pos += annotationType == TYPE_INT ? Integer.BYTES : Byte.BYTES;
+        }
+
+        final int annotationSize = 2 * Byte.BYTES + Integer.BYTES;
+        if (annotationCount >= MAX_ANNOTATION_COUNT
+                || mNumBytes + annotationSize > MAX_PUSH_PAYLOAD_SIZE
+                || (pos < mNumBytes && (mPayload[pos] & 0x0F) == TYPE_ERRORS)) {
+            // Events with errors are dropped by statsd regardless of their annotations.
+            return this;
+        }
+        final byte[] payload = new byte[mNumBytes + annotationSize];
+        System.arraycopy(mPayload, 0, payload, 0, pos);
+        payload[atomIdTypePos] = (byte) (((annotationCount + 1) << 4) | TYPE_INT);
+        payload[pos] = StatsLog.ANNOTATION_ID_AGGREGATED_COUNT;
+        payload[pos + Byte.BYTES] = TYPE_INT;
+        putIntLittleEndian(payload, pos + 2 * Byte.BYTES, weight);
+        System.arraycopy(mPayload, pos, payload, pos + annotationSize, mNumBytes - pos);
+        return new StatsEvent(mAtomId, null, payload, payload.length);
+    }
+
+    private static int getIntLittleEndian(final byte[] bytes, final int pos) {
+        return (bytes[pos] & 0xFF)
+                | (bytes[pos + 1] & 0xFF) << 8
+                | (bytes[pos + 2] & 0xFF) << 16
+                | (bytes[pos + 3] & 0xFF) << 24;
+    }
+
+    private static void putIntLittleEndian(final byte[] bytes, final int pos, final int value) {
+        bytes[pos] = (byte) value;
+        bytes[pos + 1] = (byte) (value >> 8);
+        bytes[pos + 2] = (byte) (value >> 16);
+        bytes[pos + 3] = (byte) (value >> 24);
+    }
+
     /**
      * Builder for constructing a StatsEvent object.
      *
@@ -27,10 +27,15 @@ import android.annotation.SystemApi;
 import android.content.Context;
 import android.os.IStatsd;
 import android.os.Process;
+import android.system.OsConstants;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.statsd.StatsdStatsLog;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * StatsLog provides an API for developers to send events to statsd. The events can be used to
  * define custom metrics inside statsd.
@@ -120,6 +125,52 @@ public final class StatsLog {
     @SystemApi
     public static final byte ANNOTATION_ID_STATE_NESTED = 8;
 
+    /**
+    * Annotation ID constant to indicate that the atom stands for this many occurrences that were
+    * aggregated in the logging process. This should only be used as an atom-level annotation.
+    * Only count metrics use it: other metrics drop the events that carry it.
+    *
+    * @hide
+    */
+    @SuppressLint("NoByteOrShort")
+    @SystemApi
+    public static final byte ANNOTATION_ID_AGGREGATED_COUNT = 9;
+
+    /**
+     * Drop reason for events that were not written because the statsd socket was full, i.e.
+     * statsd is not keeping up with the events logged.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final int DROP_REASON_SOCKET_BUSY = 0;
+
+    /**
+     * Drop reason for events that were not written because the statsd socket was closed or
+     * could not be opened, e.g. while statsd is restarting.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final int DROP_REASON_SOCKET_CLOSED = 1;
+
+    /**
+     * Drop reason for events that were not written for any other reason, e.g. an invalid buffer.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static final int DROP_REASON_OTHER = 2;
+
+    private static final int NUM_DROP_REASONS = 3;
+
+    // Drop counters are only updated when a write fails, so successful writes stay cheap.
+    private static final AtomicLong sTotalDropCount = new AtomicLong();
+    private static final Object sDropCountsLock = new Object();
+    // Atom id mapped to its drop counts, indexed by drop reason.
+    @GuardedBy("sDropCountsLock")
+    private static final SparseArray<long[]> sDropCounts = new SparseArray<>();
+
     private StatsLog() {
     }
 
@@ -225,7 +276,10 @@ public final class StatsLog {
     @Deprecated
     @SystemApi
     public static void writeRaw(@NonNull byte[] buffer, int size) {
-        writeImpl(buffer, size, 0);
+        final int result = writeImpl(buffer, size, 0);
+        if (result < 0) {
+            noteDrop(0, result);
+        }
     }
 
     /**
@@ -234,12 +288,15 @@ public final class StatsLog {
      * @param buffer    The encoded buffer of data to write.
      * @param size      The number of bytes from the buffer to write.
      * @param atomId    The id of the atom to which the event belongs.
+     * @return The number of bytes written, or a negative errno if the event was dropped.
      */
-    private static native void writeImpl(@NonNull byte[] buffer, int size, int atomId);
+    private static native int writeImpl(@NonNull byte[] buffer, int size, int atomId);
 
     /**
      * Write an event to stats log using the raw format encapsulated in StatsEvent.
      * After writing to stats log, release() is called on the StatsEvent object.
+     * The event may be dropped or annotated with an aggregated count if its atom is sampled
+     * in this process.
      * No further action should be taken on the StatsEvent object following this call.
      *
      * @param statsEvent    The StatsEvent object containing the encoded buffer of data to write.
@@ -247,7 +304,113 @@ public final class StatsLog {
      */
     @SystemApi
     public static void write(@NonNull final StatsEvent statsEvent) {
-        writeImpl(statsEvent.getBytes(), statsEvent.getNumBytes(), statsEvent.getAtomId());
+        final int weight = StatsSampler.sample(statsEvent.getAtomId());
+        if (weight != StatsSampler.WEIGHT_DROP) {
+            final StatsEvent sampledEvent =
+                    weight == 1 ? statsEvent : statsEvent.withAggregatedCount(weight);
+            final int result = writeImpl(sampledEvent.getBytes(), sampledEvent.getNumBytes(),
+                    sampledEvent.getAtomId());
+            if (result < 0) {
+                noteDrop(sampledEvent.getAtomId(), result);
+            }
+        }
         statsEvent.release();
     }
+
+    @VisibleForTesting
+    static void noteDrop(int atomId, int negativeErrno) {
+        final int reason = getDropReason(-negativeErrno);
+        sTotalDropCount.incrementAndGet();
+        synchronized (sDropCountsLock) {
+            long[] counts = sDropCounts.get(atomId);
+            if (counts == null) {
+                counts = new long[NUM_DROP_REASONS];
+                sDropCounts.put(atomId, counts);
+            }
+            counts[reason]++;
+        }
+    }
+
+    private static int getDropReason(int errno) {
+        if (errno == OsConstants.EAGAIN) {
+            return DROP_REASON_SOCKET_BUSY;
+        }
+        if (errno == OsConstants.EBADF || errno == OsConstants.ENODEV
+                || errno == OsConstants.ENOENT || errno == OsConstants.ECONNREFUSED
+                || errno == OsConstants.ENOTCONN || errno == OsConstants.EPIPE) {
+            return DROP_REASON_SOCKET_CLOSED;
+        }
+        return DROP_REASON_OTHER;
+    }
+
+    /**
+     * Returns the number of events this process failed to write to statsd since it started,
+     * across all atoms. Cheap enough to be polled to detect that statsd is falling behind.
+     *
+     * @hide
+     */
+    @SystemApi
+    public static long getTotalDropCount() {
+        return sTotalDropCount.get();
+    }
+
+    /**
+     * Returns the number of events of the given atom this process failed to write to statsd
+     * since it started.
+     *
+     * @param atomId The atom id, or 0 for events written with {@link #writeRaw(byte[], int)}.
+     * @hide
+     */
+    @SystemApi
+    public static long getDropCount(int atomId) {
+        synchronized (sDropCountsLock) {
+            final long[] counts = sDropCounts.get(atomId);
+            if (counts == null) {
+                return 0;
+            }
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Returns the number of events of the given atom this process failed to write to statsd
+     * for the given reason since it started.
+     *
+     * @param atomId The atom id, or 0 for events written with {@link #writeRaw(byte[], int)}.
+     * @param reason One of {@link #DROP_REASON_SOCKET_BUSY}, {@link #DROP_REASON_SOCKET_CLOSED}
+     *               and {@link #DROP_REASON_OTHER}.
+     * @hide
+     */
+    @SystemApi
+    public static long getDropCount(int atomId, int reason) {
+        if (reason < 0 || reason >= NUM_DROP_REASONS) {
+            throw new IllegalArgumentException("Invalid drop reason: " + reason);
+        }
+        synchronized (sDropCountsLock) {
+            final long[] counts = sDropCounts.get(atomId);
+            return counts == null ? 0 : counts[reason];
+        }
+    }
+
+    /**
+     * Returns the ids of the atoms this process failed to write to statsd at least once since it
+     * started.
+     *
+     * @hide
+     */
+    @SystemApi
+    @NonNull
+    public static int[] getDroppedAtomIds() {
+        synchronized (sDropCountsLock) {
+            final int[] atomIds = new int[sDropCounts.size()];
+            for (int i = 0; i < atomIds.length; i++) {
+                atomIds[i] = sDropCounts.keyAt(i);
+            }
+            return atomIds;
+        }
+    }
 }
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-atom sampling of the atoms pushed by this process through {@link StatsLog#write}.
+ *
+ * <p>A policy either keeps one in every N occurrences of an atom, or keeps at most a given
+ * number of occurrences per second (token bucket). Each kept event records how many occurrences
+ * it stands for in an atom-level {@link StatsLog#ANNOTATION_ID_AGGREGATED_COUNT} annotation, so
+ * count metrics in statsd remain unbiased. Occurrences suppressed by a rate limit are carried over
+ * to the next event that is kept; they are lost if no further event of the atom is logged.</p>
+ *
+ * <p>Policies are given as a comma separated list of {@code <atomId>:sample:<N>} and
+ * {@code <atomId>:limit:<eventsPerSecond>} entries. Atoms without a policy are not affected.
+ * Neither are the atoms that statsd reports as unsampled, i.e. used by configs other than as the
+ * what of count metrics, since the other metrics do not weigh the events they receive.</p>
+ *
+ * @hide
+ */
+public final class StatsSampler {
+    private static final String TAG = "StatsSampler";
+
+    /** Weight returned for an occurrence that must not be logged. */
+    static final int WEIGHT_DROP = 0;
+
+    private static final String MODE_SAMPLE = "sample";
+    private static final String MODE_LIMIT = "limit";
+
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private static final Object sLock = new Object();
+
+    // The policies that were set, including the ones of unsampled atoms.
+    @GuardedBy("sLock")
+    @Nullable
+    private static SparseArray<Policy> sConfiguredPolicies;
+
+    @GuardedBy("sLock")
+    @NonNull
+    private static int[] sUnsampledAtoms = new int[0];
+
+    // The policies in effect, i.e. sConfiguredPolicies without sUnsampledAtoms. Immutable once
+    // published. Null when no atom is sampled, which keeps the logging fast path to a single
+    // volatile read.
+    @Nullable
+    private static volatile SparseArray<Policy> sPolicies;
+
+    private StatsSampler() {
+    }
+
+    /**
+     * Replaces the sampling policies of this process. A null or empty spec disables sampling.
+     * Invalid entries are logged and ignored.
+     */
+    public static void setPolicies(@Nullable String spec) {
+        synchronized (sLock) {
+            sConfiguredPolicies = parsePolicies(spec);
+            publishPoliciesLocked();
+        }
+    }
+
+    /**
+     * Sets the atoms that must not be sampled, whatever their policies.
+     */
+    public static void setUnsampledAtoms(@NonNull int[] atomIds) {
+        synchronized (sLock) {
+            sUnsampledAtoms = atomIds.clone();
+            publishPoliciesLocked();
+        }
+    }
+
+    @GuardedBy("sLock")
+    private static void publishPoliciesLocked() {
+        if (sConfiguredPolicies == null) {
+            sPolicies = null;
+            return;
+        }
+        final SparseArray<Policy> policies = sConfiguredPolicies.clone();
+        for (int atomId : sUnsampledAtoms) {
+            policies.remove(atomId);
+        }
+        sPolicies = policies.size() == 0 ? null : policies;
+    }
+
+    /**
+     * Returns the number of occurrences an event of the given atom logged now stands for, or
+     * {@link #WEIGHT_DROP} if it must not be logged.
+     */
+    static int sample(int atomId) {
+        final SparseArray<Policy> policies = sPolicies;
+        if (policies == null) {
+            return 1;
+        }
+        final Policy policy = policies.get(atomId);
+        return policy == null ? 1 : policy.sample(SystemClock.elapsedRealtimeNanos());
+    }
+
+    @VisibleForTesting
+    @Nullable
+    static SparseArray<Policy> parsePolicies(@Nullable String spec) {
+        if (spec == null || spec.isEmpty()) {
+            return null;
+        }
+        final SparseArray<Policy> policies = new SparseArray<>();
+        for (String entry : spec.split(",")) {
+            final String[] parts = entry.trim().split(":");
+            try {
+                if (parts.length != 3) {
+                    throw new IllegalArgumentException("expected <atomId>:<mode>:<value>");
+                }
+                final int atomId = Integer.parseInt(parts[0]);
+                final long value = Long.parseLong(parts[2]);
+                if (value <= 0) {
+                    throw new IllegalArgumentException("value must be positive");
+                }
+                if (MODE_SAMPLE.equals(parts[1])) {
+                    policies.put(atomId, new OneInNPolicy(value));
+                } else if (MODE_LIMIT.equals(parts[1])) {
+                    policies.put(atomId, new TokenBucketPolicy(value));
+                } else {
+                    throw new IllegalArgumentException("unknown mode " + parts[1]);
+                }
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Ignoring invalid sampling policy \"" + entry + "\": " + e.getMessage());
+            }
+        }
+        return policies.size() == 0 ? null : policies;
+    }
+
+    /**
+     * Prints the policies in effect and the number of occurrences each one dropped.
+     */
+    public static void dump(@NonNull PrintWriter writer) {
+        final int[] unsampledAtoms;
+        synchronized (sLock) {
+            unsampledAtoms = sUnsampledAtoms;
+        }
+        writer.println("Atoms not sampled: " + Arrays.toString(unsampledAtoms));
+        final SparseArray<Policy> policies = sPolicies;
+        if (policies == null) {
+            writer.println("Atom sampling: none");
+            return;
+        }
+        writer.println("Atom sampling (atom, policy, seen, dropped):");
+        for (int i = 0; i < policies.size(); i++) {
+            final Policy policy = policies.valueAt(i);
+            writer.println("  " + policies.keyAt(i) + ", " + policy + ", " + policy.mSeen.get()
+                    + ", " + policy.mDropped.get());
+        }
+    }
+
+    @VisibleForTesting
+    abstract static class Policy {
+        final AtomicLong mSeen = new AtomicLong();
+        final AtomicLong mDropped = new AtomicLong();
+
+        final int sample(long nowNanos) {
+            mSeen.incrementAndGet();
+            final int weight = sampleInternal(nowNanos);
+            if (weight == WEIGHT_DROP) {
+                mDropped.incrementAndGet();
+            }
+            return weight;
+        }
+
+        abstract int sampleInternal(long nowNanos);
+    }
+
+    /** Keeps every N-th occurrence, each standing for N occurrences. */
+    @VisibleForTesting
+    static final class OneInNPolicy extends Policy {
+        private final int mN;
+        private final AtomicLong mCounter = new AtomicLong();
+
+        OneInNPolicy(long n) {
+            mN = (int) Math.min(n, Integer.MAX_VALUE);
+        }
+
+        @Override
+        int sampleInternal(long nowNanos) {
+            return mCounter.getAndIncrement() % mN == 0 ? mN : WEIGHT_DROP;
+        }
+
+        @Override
+        public String toString() {
+            return MODE_SAMPLE + ":" + mN;
+        }
+    }
+
+    /**
+     * Keeps at most a fixed number of occurrences per second, with bursts of up to one second's
+     * worth. Suppressed occurrences are added to the weight of the next kept one.
+     */
+    @VisibleForTesting
+    static final class TokenBucketPolicy extends Policy {
+        private final long mEventsPerSecond;
+
+        @GuardedBy("this")
+        private long mTokenNanos;
+        @GuardedBy("this")
+        private long mLastRefillNanos = -1;
+        @GuardedBy("this")
+        private long mSuppressed = 0;
+
+        TokenBucketPolicy(long eventsPerSecond) {
+            mEventsPerSecond = eventsPerSecond;
+        }
+
+        // Tokens are kept in units of nanos * events per second, so one token is NANOS_PER_SECOND
+        // and a full bucket holds one second's worth of events.
+        @Override
+        synchronized int sampleInternal(long nowNanos) {
+            final long capacityNanos = capacity();
+            if (mLastRefillNanos < 0) {
+                mTokenNanos = capacityNanos;
+            } else {
+                final long elapsedNanos = Math.max(0, nowNanos - mLastRefillNanos);
+                final long refill = elapsedNanos > capacityNanos / mEventsPerSecond
+                        ? capacityNanos : elapsedNanos * mEventsPerSecond;
+                mTokenNanos = Math.min(capacityNanos, mTokenNanos + refill);
+            }
+            mLastRefillNanos = nowNanos;
+
+            if (mTokenNanos < NANOS_PER_SECOND) {
+                mSuppressed++;
+                return WEIGHT_DROP;
+            }
+            mTokenNanos -= NANOS_PER_SECOND;
+            final long weight = 1 + mSuppressed;
+            mSuppressed = 0;
+            return (int) Math.min(weight, Integer.MAX_VALUE);
+        }
+
+        private long capacity() {
+            // Guard against overflow for absurdly large rates.
+            return mEventsPerSecond > Long.MAX_VALUE / NANOS_PER_SECOND
+                    ? Long.MAX_VALUE : mEventsPerSecond * NANOS_PER_SECOND;
+        }
+
+        @Override
+        public String toString() {
+            return MODE_LIMIT + ":" + mEventsPerSecond;
+        }
+    }
+}
@@ -17,6 +17,7 @@
 #define LOG_NAMESPACE "StatsLog.tag."
 #define LOG_TAG "StatsLog_println"
 
+#include <errno.h>
 #include <jni.h>
 #include <log/log.h>
 #include <nativehelper/scoped_local_ref.h>
@@ -24,24 +25,27 @@
 
 namespace android {
 
-static void android_util_StatsLog_write(JNIEnv* env, jobject clazz, jbyteArray buf, jint size,
+static jint android_util_StatsLog_write(JNIEnv* env, jobject clazz, jbyteArray buf, jint size,
         jint atomId) {
     if (buf == NULL) {
-        return;
+        return -EINVAL;
     }
     jint actualSize = env->GetArrayLength(buf);
     if (actualSize < size) {
-        return;
+        return -EINVAL;
     }
 
     jbyte* bufferArray = env->GetByteArrayElements(buf, NULL);
     if (bufferArray == NULL) {
-        return;
+        return -ENOMEM;
     }
 
-    write_buffer_to_statsd((void*) bufferArray, size, atomId);
+    // Returns the number of bytes written, or a negative errno if the event was dropped.
+    const int ret = write_buffer_to_statsd((void*) bufferArray, size, atomId);
 
-    env->ReleaseByteArrayElements(buf, bufferArray, 0);
+    // The buffer was only read, so there is nothing to copy back.
+    env->ReleaseByteArrayElements(buf, bufferArray, JNI_ABORT);
+    return ret;
 }
 
 /*
@@ -49,7 +53,7 @@ static void android_util_StatsLog_write(JNIEnv* env, jobject clazz, jbyteArray b
  */
 static const JNINativeMethod gMethods[] = {
     /* name, signature, funcPtr */
-    { "writeImpl", "([BII)V", (void*) android_util_StatsLog_write },
+    { "writeImpl", "([BII)I", (void*) android_util_StatsLog_write },
 };
 
 int register_android_util_StatsLog(JNIEnv* env)
@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class StatsDimensionsKeyTest {
+
+    private static StatsDimensionsValueParcel createLeaf(int field, int valueType) {
+        StatsDimensionsValueParcel parcel = new StatsDimensionsValueParcel();
+        parcel.field = field;
+        parcel.valueType = valueType;
+        return parcel;
+    }
+
+    // Builds 10:{1:{1:1000|2:"tag"|}|2:12345|3:true|}
+    private static StatsDimensionsValueParcel createNestedParcel(String tag) {
+        StatsDimensionsValueParcel uid = createLeaf(1, StatsDimensionsValue.INT_VALUE_TYPE);
+        uid.intValue = 1000;
+        StatsDimensionsValueParcel tagValue =
+                createLeaf(2, StatsDimensionsValue.STRING_VALUE_TYPE);
+        tagValue.stringValue = tag;
+        StatsDimensionsValueParcel chain = createLeaf(1, StatsDimensionsValue.TUPLE_VALUE_TYPE);
+        chain.tupleValue = new StatsDimensionsValueParcel[] {uid, tagValue};
+
+        StatsDimensionsValueParcel longValue =
+                createLeaf(2, StatsDimensionsValue.LONG_VALUE_TYPE);
+        longValue.longValue = 12345L;
+        StatsDimensionsValueParcel boolValue =
+                createLeaf(3, StatsDimensionsValue.BOOLEAN_VALUE_TYPE);
+        boolValue.boolValue = true;
+
+        StatsDimensionsValueParcel root = createLeaf(10, StatsDimensionsValue.TUPLE_VALUE_TYPE);
+        root.tupleValue = new StatsDimensionsValueParcel[] {chain, longValue, boolValue};
+        return root;
+    }
+
+    @Test
+    public void testTupleAccessors() {
+        StatsDimensionsKey key =
+                new StatsDimensionsKey(new StatsDimensionsValue(createNestedParcel("tag")));
+
+        assertThat(key.getNodeCount()).isEqualTo(6);
+        assertThat(key.getField(0)).isEqualTo(10);
+        assertThat(key.getValueType(0)).isEqualTo(StatsDimensionsValue.TUPLE_VALUE_TYPE);
+        assertThat(key.getTupleSize(0)).isEqualTo(3);
+
+        int chain = key.getTupleChild(0, 0);
+        assertThat(key.getValueType(chain)).isEqualTo(StatsDimensionsValue.TUPLE_VALUE_TYPE);
+        assertThat(key.getTupleSize(chain)).isEqualTo(2);
+        assertThat(key.getIntValue(key.getTupleChild(chain, 0))).isEqualTo(1000);
+        assertThat(key.getStringValue(key.getTupleChild(chain, 1))).isEqualTo("tag");
+
+        int longNode = key.getTupleChild(0, 1);
+        assertThat(key.getField(longNode)).isEqualTo(2);
+        assertThat(key.getLongValue(longNode)).isEqualTo(12345L);
+        assertThat(key.getIntValue(longNode)).isEqualTo(0);
+        assertThat(key.getBooleanValue(key.getTupleChild(0, 2))).isTrue();
+        assertThat(key.getTupleSize(longNode)).isEqualTo(0);
+
+        assertThat(key.toString())
+                .isEqualTo(new StatsDimensionsValue(createNestedParcel("tag")).toString());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testTupleChildOutOfBounds() {
+        StatsDimensionsKey key = new StatsDimensionsKey(createNestedParcel("tag"));
+        key.getTupleChild(0, 3);
+    }
+
+    @Test
+    public void testEqualsAndHashCode() {
+        StatsDimensionsKey key1 = new StatsDimensionsKey(createNestedParcel("tag"));
+        StatsDimensionsKey key2 = new StatsDimensionsKey(createNestedParcel("tag"));
+        StatsDimensionsKey key3 = new StatsDimensionsKey(createNestedParcel("other"));
+
+        assertThat(key1).isEqualTo(key2);
+        assertThat(key1.hashCode()).isEqualTo(key2.hashCode());
+        assertThat(key1).isNotEqualTo(key3);
+    }
+
+    @Test
+    public void testParcelRoundTrip() {
+        StatsDimensionsKey key = new StatsDimensionsKey(createNestedParcel("tag"));
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            key.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            StatsDimensionsKey copy = StatsDimensionsKey.CREATOR.createFromParcel(parcel);
+            assertThat(copy).isEqualTo(key);
+            assertThat(copy.hashCode()).isEqualTo(key.hashCode());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    // Writes the nodes as field, type and value, with the subtree size as the value of tuples.
+    private static StatsDimensionsKey readFromParcel(int nodeCount, int[]... nodes) {
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeInt(nodeCount);
+            for (int[] node : nodes) {
+                parcel.writeInt(node[0]);
+                parcel.writeInt(node[1]);
+                if (node[1] == StatsDimensionsValue.TUPLE_VALUE_TYPE) {
+                    parcel.writeInt(node[2]);
+                } else {
+                    parcel.writeLong(node[2]);
+                }
+            }
+            parcel.setDataPosition(0);
+            return StatsDimensionsKey.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static int[] tuple(int field, int subtreeSize) {
+        return new int[] {field, StatsDimensionsValue.TUPLE_VALUE_TYPE, subtreeSize};
+    }
+
+    private static int[] intLeaf(int field, int value) {
+        return new int[] {field, StatsDimensionsValue.INT_VALUE_TYPE, value};
+    }
+
+    @Test
+    public void testReadFromParcel() {
+        StatsDimensionsKey key = readFromParcel(3, tuple(10, 3), intLeaf(1, 1000), intLeaf(2, 7));
+
+        assertThat(key.getTupleSize(0)).isEqualTo(2);
+        assertThat(key.getIntValue(key.getTupleChild(0, 1))).isEqualTo(7);
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelNegativeNodeCount() {
+        readFromParcel(-1, intLeaf(1, 1000));
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelZeroNodeCount() {
+        readFromParcel(0);
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelNodeCountPastData() {
+        readFromParcel(Integer.MAX_VALUE, intLeaf(1, 1000));
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelEmptySubtree() {
+        readFromParcel(3, tuple(10, 3), tuple(1, 0), intLeaf(2, 7));
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelNegativeSubtree() {
+        readFromParcel(3, tuple(10, 3), tuple(1, -5), intLeaf(2, 7));
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelSubtreePastParent() {
+        readFromParcel(4, tuple(10, 4), tuple(1, 2), intLeaf(2, 7), tuple(3, 2));
+    }
+
+    @Test(expected = BadParcelableException.class)
+    public void testReadFromParcelRootNotSpanningNodes() {
+        readFromParcel(3, tuple(10, 2), intLeaf(1, 1000), intLeaf(2, 7));
+    }
+}
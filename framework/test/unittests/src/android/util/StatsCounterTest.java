@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.common.truth.Truth.assertWithMessage;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Internal tests for {@link StatsCounter}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StatsCounterTest {
+    private static final int ATOM_ID = 109;
+
+    /** Decoded form of an aggregated StatsEvent. */
+    private static final class AggregatedEvent {
+        int mAtomId;
+        int mCount;
+        final List<Integer> mDimensions = new ArrayList<>();
+    }
+
+    private static AggregatedEvent decode(StatsEvent statsEvent) {
+        final ByteBuffer buffer =
+                ByteBuffer.wrap(statsEvent.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        final AggregatedEvent event = new AggregatedEvent();
+
+        assertWithMessage("Root element in buffer is not TYPE_OBJECT")
+                .that(buffer.get()).isEqualTo(StatsEvent.TYPE_OBJECT);
+        final int numElements = buffer.get();
+
+        assertWithMessage("First element is not timestamp")
+                .that(buffer.get()).isEqualTo(StatsEvent.TYPE_LONG);
+        buffer.getLong();
+
+        assertWithMessage("Atom id should have one annotation")
+                .that(buffer.get()).isEqualTo((byte) ((1 << 4) | StatsEvent.TYPE_INT));
+        event.mAtomId = buffer.getInt();
+
+        assertWithMessage("Atom annotation is not aggregated count")
+                .that(buffer.get()).isEqualTo(StatsLog.ANNOTATION_ID_AGGREGATED_COUNT);
+        assertWithMessage("Aggregated count is not an int")
+                .that(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+        event.mCount = buffer.getInt();
+
+        for (int i = 2; i < numElements; i++) {
+            assertWithMessage("Dimension is not an int")
+                    .that(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+            event.mDimensions.add(buffer.getInt());
+        }
+        assertThat(statsEvent.getNumBytes()).isEqualTo(buffer.position());
+        statsEvent.release();
+        return event;
+    }
+
+    private static StatsCounter newCounter(List<AggregatedEvent> out, int maxPendingKeys) {
+        return new StatsCounter(ATOM_ID, 0, maxPendingKeys, event -> out.add(decode(event)));
+    }
+
+    @Test
+    public void testFlushAggregatesByDimensions() {
+        final List<AggregatedEvent> events = new ArrayList<>();
+        final StatsCounter counter = newCounter(events, 100);
+
+        counter.increment(1, 2);
+        counter.increment(1, 2);
+        counter.increment(1, 3);
+        counter.add(5, 1, 2);
+        counter.flush();
+
+        assertThat(events).hasSize(2);
+        int total = 0;
+        for (AggregatedEvent event : events) {
+            assertThat(event.mAtomId).isEqualTo(ATOM_ID);
+            if (event.mDimensions.get(1) == 2) {
+                assertThat(event.mDimensions).containsExactly(1, 2).inOrder();
+                assertThat(event.mCount).isEqualTo(7);
+            } else {
+                assertThat(event.mDimensions).containsExactly(1, 3).inOrder();
+                assertThat(event.mCount).isEqualTo(1);
+            }
+            total += event.mCount;
+        }
+        assertThat(total).isEqualTo(8);
+    }
+
+    @Test
+    public void testFlushResetsCounts() {
+        final List<AggregatedEvent> events = new ArrayList<>();
+        final StatsCounter counter = newCounter(events, 100);
+
+        counter.increment(4);
+        counter.flush();
+        assertThat(events).hasSize(1);
+
+        // Nothing counted since the last flush, so nothing is written.
+        events.clear();
+        counter.flush();
+        counter.flush();
+        assertThat(events).isEmpty();
+
+        counter.increment(4);
+        counter.flush();
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).mCount).isEqualTo(1);
+    }
+
+    @Test
+    public void testNoDimensions() {
+        final List<AggregatedEvent> events = new ArrayList<>();
+        final StatsCounter counter = newCounter(events, 100);
+
+        counter.increment();
+        counter.increment();
+        counter.close();
+
+        assertThat(events).hasSize(1);
+        assertThat(events.get(0).mCount).isEqualTo(2);
+        assertThat(events.get(0).mDimensions).isEmpty();
+    }
+
+    @Test
+    public void testCallerArrayIsCopied() {
+        final List<AggregatedEvent> events = new ArrayList<>();
+        final StatsCounter counter = newCounter(events, 100);
+
+        final int[] dimensions = {7};
+        counter.increment(dimensions);
+        dimensions[0] = 8;
+        counter.increment(dimensions);
+        counter.flush();
+
+        assertThat(events).hasSize(2);
+    }
+
+    @Test
+    public void testCountLargerThanIntIsSplit() {
+        final List<AggregatedEvent> events = new ArrayList<>();
+        final StatsCounter counter = newCounter(events, 100);
+
+        counter.add(Integer.MAX_VALUE + 10L, 1);
+        counter.flush();
+
+        assertThat(events).hasSize(2);
+        assertThat(events.get(0).mCount).isEqualTo(Integer.MAX_VALUE);
+        assertThat(events.get(1).mCount).isEqualTo(10);
+    }
+
+    @Test
+    public void testNonPositiveCountIgnored() {
+        final List<AggregatedEvent> events = new ArrayList<>();
+        final StatsCounter counter = newCounter(events, 100);
+
+        counter.add(0, 1);
+        counter.add(-3, 1);
+        counter.flush();
+
+        assertThat(events).isEmpty();
+    }
+
+    @Test
+    public void testMaxPendingKeysTriggersFlush() throws Exception {
+        final CountDownLatch flushed = new CountDownLatch(1);
+        final StatsCounter counter = new StatsCounter(ATOM_ID, 0, 2, event -> {
+            event.release();
+            flushed.countDown();
+        });
+
+        counter.increment(1);
+        assertThat(flushed.await(100, TimeUnit.MILLISECONDS)).isFalse();
+        counter.increment(2);
+        assertThat(flushed.await(5, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testConcurrentAddAndFlushKeepsTotal() throws Exception {
+        final AtomicLong written = new AtomicLong();
+        final StatsCounter counter = new StatsCounter(ATOM_ID, 0, Integer.MAX_VALUE, event -> {
+            written.addAndGet(decode(event).mCount);
+        });
+        final int numThreads = 4;
+        final int addsPerThread = 100_000;
+
+        // Each thread moves between keys, so that flushes keep retiring idle ones while other
+        // threads are about to add to them.
+        final Thread[] threads = new Thread[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            final int thread = t;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < addsPerThread; i++) {
+                    counter.increment((i / 100 + thread) % 8);
+                }
+            });
+            threads[t].start();
+        }
+        final AtomicBoolean adding = new AtomicBoolean(true);
+        final Thread flusher = new Thread(() -> {
+            while (adding.get()) {
+                counter.flush();
+            }
+        });
+        flusher.start();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        adding.set(false);
+        flusher.join();
+        counter.flush();
+
+        assertThat(written.get()).isEqualTo((long) numThreads * addsPerThread);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.junit.Assert.assertThrows;
+
+import android.system.OsConstants;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Internal tests for the drop counters of {@link StatsLog}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StatsLogTest {
+    // Counters are process wide, so each test uses its own atom id and compares deltas.
+
+    @Test
+    public void testNoteDrop_reasons() {
+        final int atomId = 900001;
+        final long totalBefore = StatsLog.getTotalDropCount();
+
+        StatsLog.noteDrop(atomId, -OsConstants.EAGAIN);
+        StatsLog.noteDrop(atomId, -OsConstants.EAGAIN);
+        StatsLog.noteDrop(atomId, -OsConstants.EBADF);
+        StatsLog.noteDrop(atomId, -OsConstants.ENODEV);
+        StatsLog.noteDrop(atomId, -OsConstants.EMSGSIZE);
+
+        assertThat(StatsLog.getDropCount(atomId, StatsLog.DROP_REASON_SOCKET_BUSY)).isEqualTo(2);
+        assertThat(StatsLog.getDropCount(atomId, StatsLog.DROP_REASON_SOCKET_CLOSED)).isEqualTo(2);
+        assertThat(StatsLog.getDropCount(atomId, StatsLog.DROP_REASON_OTHER)).isEqualTo(1);
+        assertThat(StatsLog.getDropCount(atomId)).isEqualTo(5);
+        assertThat(StatsLog.getTotalDropCount() - totalBefore).isAtLeast(5);
+        assertThat(StatsLog.getDroppedAtomIds()).asList().contains(atomId);
+    }
+
+    @Test
+    public void testGetDropCount_unknownAtom() {
+        assertThat(StatsLog.getDropCount(900002)).isEqualTo(0);
+        assertThat(StatsLog.getDropCount(900002, StatsLog.DROP_REASON_OTHER)).isEqualTo(0);
+        assertThat(StatsLog.getDroppedAtomIds()).asList().doesNotContain(900002);
+    }
+
+    @Test
+    public void testGetDropCount_invalidReason() {
+        assertThrows(IllegalArgumentException.class, () -> StatsLog.getDropCount(900003, -1));
+        assertThrows(IllegalArgumentException.class, () -> StatsLog.getDropCount(900003, 3));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Internal tests for {@link StatsSampler}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StatsSamplerTest {
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    @After
+    public void tearDown() {
+        StatsSampler.setPolicies(null);
+        StatsSampler.setUnsampledAtoms(new int[0]);
+    }
+
+    @Test
+    public void testParsePolicies() {
+        final SparseArray<StatsSampler.Policy> policies =
+                StatsSampler.parsePolicies("10:sample:100, 11:limit:5");
+        assertThat(policies.size()).isEqualTo(2);
+        assertThat(policies.get(10)).isInstanceOf(StatsSampler.OneInNPolicy.class);
+        assertThat(policies.get(10).toString()).isEqualTo("sample:100");
+        assertThat(policies.get(11)).isInstanceOf(StatsSampler.TokenBucketPolicy.class);
+        assertThat(policies.get(11).toString()).isEqualTo("limit:5");
+    }
+
+    @Test
+    public void testParsePolicies_invalidEntriesIgnored() {
+        final SparseArray<StatsSampler.Policy> policies = StatsSampler.parsePolicies(
+                "10:sample:0,11:drop:5,abc:sample:2,12:limit,13:sample:4");
+        assertThat(policies.size()).isEqualTo(1);
+        assertThat(policies.get(13)).isNotNull();
+
+        assertThat(StatsSampler.parsePolicies(null)).isNull();
+        assertThat(StatsSampler.parsePolicies("")).isNull();
+        assertThat(StatsSampler.parsePolicies("10:sample:-1")).isNull();
+    }
+
+    @Test
+    public void testSample_noPolicy() {
+        StatsSampler.setPolicies("10:sample:3");
+        assertThat(StatsSampler.sample(11)).isEqualTo(1);
+    }
+
+    @Test
+    public void testSample_unsampledAtom() {
+        StatsSampler.setPolicies("10:sample:3,11:sample:3");
+        StatsSampler.setUnsampledAtoms(new int[] {10});
+        for (int i = 0; i < 3; i++) {
+            assertThat(StatsSampler.sample(10)).isEqualTo(1);
+        }
+        assertThat(StatsSampler.sample(11)).isEqualTo(3);
+        assertThat(StatsSampler.sample(11)).isEqualTo(StatsSampler.WEIGHT_DROP);
+
+        // The policy applies again once statsd no longer needs every event.
+        StatsSampler.setUnsampledAtoms(new int[0]);
+        assertThat(StatsSampler.sample(10)).isEqualTo(3);
+        assertThat(StatsSampler.sample(10)).isEqualTo(StatsSampler.WEIGHT_DROP);
+    }
+
+    @Test
+    public void testOneInNPolicy() {
+        final StatsSampler.Policy policy = new StatsSampler.OneInNPolicy(3);
+        int kept = 0;
+        long total = 0;
+        for (int i = 0; i < 30; i++) {
+            final int weight = policy.sample(0);
+            if (weight != StatsSampler.WEIGHT_DROP) {
+                assertThat(weight).isEqualTo(3);
+                kept++;
+                total += weight;
+            }
+        }
+        assertThat(kept).isEqualTo(10);
+        assertThat(total).isEqualTo(30);
+        assertThat(policy.mSeen.get()).isEqualTo(30);
+        assertThat(policy.mDropped.get()).isEqualTo(20);
+    }
+
+    @Test
+    public void testTokenBucketPolicy() {
+        final StatsSampler.Policy policy = new StatsSampler.TokenBucketPolicy(2);
+        final long start = 5 * NANOS_PER_SECOND;
+
+        // A full bucket allows a burst of one second's worth of events.
+        assertThat(policy.sample(start)).isEqualTo(1);
+        assertThat(policy.sample(start)).isEqualTo(1);
+        assertThat(policy.sample(start)).isEqualTo(StatsSampler.WEIGHT_DROP);
+        assertThat(policy.sample(start)).isEqualTo(StatsSampler.WEIGHT_DROP);
+
+        // Half a second later one token has been refilled. The suppressed occurrences are carried
+        // over to the kept event.
+        assertThat(policy.sample(start + NANOS_PER_SECOND / 2)).isEqualTo(3);
+        assertThat(policy.sample(start + NANOS_PER_SECOND / 2)).isEqualTo(StatsSampler.WEIGHT_DROP);
+
+        // The bucket never holds more than one second's worth of events.
+        final long later = start + 100 * NANOS_PER_SECOND;
+        assertThat(policy.sample(later)).isEqualTo(2);
+        assertThat(policy.sample(later)).isEqualTo(1);
+        assertThat(policy.sample(later)).isEqualTo(StatsSampler.WEIGHT_DROP);
+    }
+
+    @Test
+    public void testWithAggregatedCount_addsAnnotation() {
+        final StatsEvent statsEvent = StatsEvent.newBuilder()
+                .setAtomId(10)
+                .writeInt(42)
+                .usePooledBuffer()
+                .build();
+        final StatsEvent sampledEvent = statsEvent.withAggregatedCount(5);
+
+        final ByteBuffer buffer =
+                ByteBuffer.wrap(sampledEvent.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        assertThat(buffer.get()).isEqualTo(StatsEvent.TYPE_OBJECT);
+        assertThat(buffer.get()).isEqualTo(3);
+        assertThat(buffer.get()).isEqualTo(StatsEvent.TYPE_LONG);
+        buffer.getLong();
+        assertThat(buffer.get()).isEqualTo((byte) ((1 << 4) | StatsEvent.TYPE_INT));
+        assertThat(buffer.getInt()).isEqualTo(10);
+        assertThat(buffer.get()).isEqualTo(StatsLog.ANNOTATION_ID_AGGREGATED_COUNT);
+        assertThat(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+        assertThat(buffer.getInt()).isEqualTo(5);
+        assertThat(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+        assertThat(buffer.getInt()).isEqualTo(42);
+        assertThat(sampledEvent.getNumBytes()).isEqualTo(buffer.position());
+        assertThat(sampledEvent.getAtomId()).isEqualTo(10);
+
+        statsEvent.release();
+    }
+
+    @Test
+    public void testWithAggregatedCount_multipliesExistingCount() {
+        final StatsEvent statsEvent = StatsEvent.newBuilder()
+                .setAtomId(10)
+                .addIntAnnotation(StatsLog.ANNOTATION_ID_AGGREGATED_COUNT, 7)
+                .writeInt(42)
+                .usePooledBuffer()
+                .build();
+        final StatsEvent sampledEvent = statsEvent.withAggregatedCount(3);
+        assertThat(sampledEvent.getNumBytes()).isEqualTo(statsEvent.getNumBytes());
+
+        final ByteBuffer buffer =
+                ByteBuffer.wrap(sampledEvent.getBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.position(1 + 1 + 1 + Long.BYTES + 1 + Integer.BYTES);
+        assertThat(buffer.get()).isEqualTo(StatsLog.ANNOTATION_ID_AGGREGATED_COUNT);
+        assertThat(buffer.get()).isEqualTo(StatsEvent.TYPE_INT);
+        assertThat(buffer.getInt()).isEqualTo(21);
+
+        statsEvent.release();
+    }
+
+    @Test
+    public void testWithAggregatedCount_errorEventUnchanged() {
+        final StatsEvent statsEvent = StatsEvent.newBuilder().usePooledBuffer().build();
+        assertThat(statsEvent.withAggregatedCount(3)).isSameInstanceAs(statsEvent);
+        statsEvent.release();
+    }
+}
@@ -80,6 +80,16 @@ enum AnnotationIds : uint8_t {
      * Introduced in API 31.
      */
     ASTATSLOG_ANNOTATION_ID_STATE_NESTED = 8,
+
+    /**
+     * Annotation ID constant to indicate that the event stands for the given number of
+     * occurrences that were aggregated by the client before logging.
+     * This should only be used as an atom-level int32 annotation with a positive value.
+     * Only count metrics use it: other metrics drop the events that carry it.
+     *
+     * Introduced in API 34.
+     */
+    ASTATSLOG_ANNOTATION_ID_AGGREGATED_COUNT = 9,
 };
 
 __END_DECLS
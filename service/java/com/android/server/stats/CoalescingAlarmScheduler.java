@@ -0,0 +1,194 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats;
+
+import android.app.AlarmManager;
+import android.app.AlarmManager.OnAlarmListener;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Multiplexes the alarms that statsd asks StatsCompanionService to set onto a single
+ * {@link AlarmManager} alarm.
+ *
+ * Deadlines that fall within the coalescing tolerance of the earliest pending deadline are
+ * merged into one wakeup at the latest of those deadlines. Alarms are never delivered early
+ * because statsd ignores alarms that fire before the work is due. All work that is due when the
+ * alarm fires is handed to a {@link WakelockExecutor}, so it runs under a single wakelock.
+ *
+ * @hide
+ */
+final class CoalescingAlarmScheduler implements OnAlarmListener {
+    private static final String TAG = "CoalescingAlarmScheduler";
+    private static final boolean DEBUG = false;
+
+    static final int ALARM_PULLING = 0;
+    static final int ALARM_SUBSCRIBER_TRIGGERING = 1;
+    private static final int NUM_ALARMS = 2;
+
+    private static final String[] ALARM_NAMES = {"pull", "periodic"};
+
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    private final AlarmManager mAlarmManager;
+    private final Handler mAlarmHandler;
+    private final WakelockExecutor mExecutor;
+    private final Runnable[] mAlarmWork = new Runnable[NUM_ALARMS];
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final long[] mDeadlinesMillis = new long[NUM_ALARMS];
+    @GuardedBy("mLock")
+    private long mScheduledWakeupMillis = NO_DEADLINE;
+    @GuardedBy("mLock")
+    private long mToleranceMillis;
+
+    // Number of alarms delivered to statsd and number of wakeups used to deliver them.
+    @GuardedBy("mLock")
+    private long mAlarmsDispatched = 0;
+    @GuardedBy("mLock")
+    private long mWakeups = 0;
+
+    CoalescingAlarmScheduler(AlarmManager alarmManager, Handler alarmHandler,
+            WakelockExecutor executor, long toleranceMillis) {
+        mAlarmManager = alarmManager;
+        mAlarmHandler = alarmHandler;
+        mToleranceMillis = Math.max(0, toleranceMillis);
+        mExecutor = executor;
+        Arrays.fill(mDeadlinesMillis, NO_DEADLINE);
+    }
+
+    /**
+     * Sets the work to run when the alarm of the given type fires. Must be called before the
+     * first call to {@link #schedule(int, long)} for that type.
+     */
+    void setAlarmWork(int alarmType, Runnable work) {
+        mAlarmWork[alarmType] = work;
+    }
+
+    /**
+     * Sets the maximum amount of time an alarm may be deferred so that it can share a wakeup
+     * with a later alarm.
+     */
+    void setToleranceMillis(long toleranceMillis) {
+        synchronized (mLock) {
+            mToleranceMillis = Math.max(0, toleranceMillis);
+            rescheduleLocked();
+        }
+    }
+
+    /**
+     * Replaces the pending deadline of the given alarm type, in elapsed realtime millis.
+     */
+    void schedule(int alarmType, long elapsedRealtimeMillis) {
+        synchronized (mLock) {
+            mDeadlinesMillis[alarmType] = elapsedRealtimeMillis;
+            rescheduleLocked();
+        }
+    }
+
+    void cancel(int alarmType) {
+        synchronized (mLock) {
+            mDeadlinesMillis[alarmType] = NO_DEADLINE;
+            rescheduleLocked();
+        }
+    }
+
+    @Override
+    public void onAlarm() {
+        final List<Integer> dueAlarms = new ArrayList<>(NUM_ALARMS);
+        synchronized (mLock) {
+            mScheduledWakeupMillis = NO_DEADLINE;
+            final long nowMillis = SystemClock.elapsedRealtime();
+            for (int i = 0; i < NUM_ALARMS; i++) {
+                if (mDeadlinesMillis[i] <= nowMillis) {
+                    mDeadlinesMillis[i] = NO_DEADLINE;
+                    if (mAlarmWork[i] != null) {
+                        dueAlarms.add(i);
+                    }
+                    if (DEBUG) {
+                        Log.d(TAG, "Dispatching " + ALARM_NAMES[i] + " alarm");
+                    }
+                }
+            }
+            if (!dueAlarms.isEmpty()) {
+                mWakeups++;
+                mAlarmsDispatched += dueAlarms.size();
+            }
+            rescheduleLocked();
+        }
+
+        // Wakelock needs to be retained while calling statsd.
+        for (int alarmType : dueAlarms) {
+            mExecutor.execute(ALARM_NAMES[alarmType], mAlarmWork[alarmType]);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void rescheduleLocked() {
+        long earliestMillis = NO_DEADLINE;
+        for (long deadlineMillis : mDeadlinesMillis) {
+            earliestMillis = Math.min(earliestMillis, deadlineMillis);
+        }
+
+        // Defer the wakeup to the latest deadline that is within tolerance of the earliest one.
+        long wakeupMillis = earliestMillis;
+        if (earliestMillis != NO_DEADLINE) {
+            for (long deadlineMillis : mDeadlinesMillis) {
+                if (deadlineMillis != NO_DEADLINE
+                        && deadlineMillis - earliestMillis <= mToleranceMillis) {
+                    wakeupMillis = Math.max(wakeupMillis, deadlineMillis);
+                }
+            }
+        }
+
+        if (wakeupMillis == mScheduledWakeupMillis) {
+            return;
+        }
+        mScheduledWakeupMillis = wakeupMillis;
+        if (wakeupMillis == NO_DEADLINE) {
+            if (DEBUG) {
+                Log.d(TAG, "Cancelling alarm");
+            }
+            mAlarmManager.cancel(this);
+            return;
+        }
+        if (DEBUG) {
+            Log.d(TAG, "Setting alarm in about " + (wakeupMillis - SystemClock.elapsedRealtime()));
+        }
+        // using ELAPSED_REALTIME, not ELAPSED_REALTIME_WAKEUP, so if device is asleep, will
+        // only fire when it awakens.
+        mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, wakeupMillis,
+                StatsCompanionService.TAG + ".alarm", this, mAlarmHandler);
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Alarm coalescing tolerance millis: " + mToleranceMillis);
+            writer.println("Alarms dispatched: " + mAlarmsDispatched + ", wakeups: " + mWakeups
+                    + ", wakeups saved: " + (mAlarmsDispatched - mWakeups));
+        }
+    }
+}
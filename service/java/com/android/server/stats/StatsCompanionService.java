@@ -20,7 +20,6 @@ import static android.provider.DeviceConfig.NAMESPACE_STATSD_JAVA;
 import static android.provider.DeviceConfig.Properties;
 
 import android.app.AlarmManager;
-import android.app.AlarmManager.OnAlarmListener;
 import android.app.StatsManager;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
@@ -43,7 +42,6 @@ import android.os.IStatsCompanionService;
 import android.os.IStatsd;
 import android.os.Looper;
 import android.os.ParcelFileDescriptor;
-import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.StatsFrameworkInitializer;
 import android.os.SystemClock;
@@ -52,8 +50,10 @@ import android.os.UserManager;
 import android.provider.DeviceConfig;
 import android.util.Log;
 import android.util.PropertyParcel;
+import android.util.StatsSampler;
 import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.build.SdkLevel;
 import com.android.server.stats.StatsHelper;
 import java.io.File;
@@ -70,7 +70,10 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
@@ -104,6 +107,14 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     public static final int DEATH_THRESHOLD = 10;
 
     private static final String INCLUDE_CERTIFICATE_HASH = "include_certificate_hash";
+    private static final String ALARM_COALESCING_TOLERANCE_MILLIS =
+            "alarm_coalescing_tolerance_millis";
+    private static final long DEFAULT_ALARM_COALESCING_TOLERANCE_MILLIS = 1000;
+    // Client-side sampling of the atoms pushed by system_server, see StatsSampler.
+    private static final String SAMPLING_POLICIES = "sampling_policies";
+
+    // Window during which rapid statsd_java property changes are batched into one update.
+    private static final long PROPERTY_BATCH_WINDOW_MILLIS = 500;
 
     private final Context mContext;
     private final AlarmManager mAlarmManager;
@@ -111,8 +122,9 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     private static IStatsd sStatsd;
     private static final Object sStatsdLock = new Object();
 
-    private final OnAlarmListener mPullingAlarmListener;
-    private final OnAlarmListener mPeriodicAlarmListener;
+    private final WakelockExecutor mAlarmExecutor;
+    private final CoalescingAlarmScheduler mAlarmScheduler;
+    private final StatsdRecoveryPipeline mRecoveryPipeline = new StatsdRecoveryPipeline();
 
     private StatsManagerService mStatsManagerService;
 
@@ -122,6 +134,12 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     private final HashMap<Long, String> mDeletedFiles = new HashMap<>();
     private final Handler mHandler;
 
+    // statsd_java properties last delivered to statsd, and the properties changed since then
+    // that are waiting for the batching window to close. Only accessed on mHandler.
+    private final HashMap<String, String> mDeliveredProperties = new HashMap<>();
+    private final HashMap<String, String> mPendingProperties = new HashMap<>();
+    private boolean mPropertiesFlushScheduled = false;
+
     // Flag that is set when PHASE_BOOT_COMPLETED is triggered in the StatsCompanion lifecycle.
     private AtomicBoolean mBootCompleted = new AtomicBoolean(false);
 
@@ -134,8 +152,13 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         handlerThread.start();
         mHandler = new Handler(handlerThread.getLooper());
 
-        mPullingAlarmListener = new PullingAlarmListener(context);
-        mPeriodicAlarmListener = new PeriodicAlarmListener(context);
+        mAlarmExecutor = new WakelockExecutor(context, "statsCompanionService.alarm");
+        mAlarmScheduler = new CoalescingAlarmScheduler(mAlarmManager, mHandler, mAlarmExecutor,
+                DEFAULT_ALARM_COALESCING_TOLERANCE_MILLIS);
+        mAlarmScheduler.setAlarmWork(CoalescingAlarmScheduler.ALARM_PULLING,
+                StatsCompanionService::informPullAlarmFired);
+        mAlarmScheduler.setAlarmWork(CoalescingAlarmScheduler.ALARM_SUBSCRIBER_TRIGGERING,
+                StatsCompanionService::informPeriodicAlarmFired);
     }
 
     /**
@@ -195,11 +218,23 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     }
 
     private static void informAllUids(Context context) {
+        informAllUids(context, null);
+    }
+
+    /**
+     * Sends the full uid map to statsd on a background thread.
+     *
+     * @param onComplete if non-null, run once the uid map has been sent or sending has failed.
+     */
+    private static void informAllUids(Context context, Runnable onComplete) {
         ParcelFileDescriptor[] fds;
         try {
             fds = ParcelFileDescriptor.createPipe();
         } catch (IOException e) {
             Log.e(TAG, "Failed to create a pipe to send uid map data.", e);
+            if (onComplete != null) {
+                onComplete.run();
+            }
             return;
         }
         HandlerThread backgroundThread = new HandlerThread(
@@ -215,6 +250,9 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             }
             IStatsd statsd = getStatsdNonblocking();
             if (statsd == null) {
+                if (onComplete != null) {
+                    onComplete.run();
+                }
                 return;
             }
             try {
@@ -286,6 +324,9 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
                 FileUtils.closeQuietly(fout);
                 backgroundThread.quit();
                 backgroundThread.interrupt();
+                if (onComplete != null) {
+                    onComplete.run();
+                }
             }
         });
     }
@@ -311,31 +352,6 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         return allPackages;
     }
 
-    private static class WakelockThread extends Thread {
-        private final PowerManager.WakeLock mWl;
-        private final Runnable mRunnable;
-
-        WakelockThread(Context context, String wakelockName, Runnable runnable) {
-            PowerManager powerManager = (PowerManager)
-                    context.getSystemService(Context.POWER_SERVICE);
-            mWl = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, wakelockName);
-            mRunnable = runnable;
-        }
-        @Override
-        public void run() {
-            try {
-                mRunnable.run();
-            } finally {
-                mWl.release();
-            }
-        }
-        @Override
-        public void start() {
-            mWl.acquire();
-            super.start();
-        }
-    }
-
     private final static class AppUpdateReceiver extends BroadcastReceiver {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -406,71 +422,35 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         }
     }
 
-    public final static class PullingAlarmListener implements OnAlarmListener {
-        private final Context mContext;
-
-        PullingAlarmListener(Context context) {
-            mContext = context;
+    private static void informPullAlarmFired() {
+        if (DEBUG) {
+            Log.d(TAG, "Time to poll something.");
         }
-
-        @Override
-        public void onAlarm() {
-            if (DEBUG) {
-                Log.d(TAG, "Time to poll something.");
-            }
-            IStatsd statsd = getStatsdNonblocking();
-            if (statsd == null) {
-                Log.w(TAG, "Could not access statsd to inform it of pulling alarm firing.");
-                return;
-            }
-
-            // Wakelock needs to be retained while calling statsd.
-            Thread thread = new WakelockThread(mContext,
-                    PullingAlarmListener.class.getCanonicalName(), new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                statsd.informPollAlarmFired();
-                            } catch (RemoteException e) {
-                                Log.w(TAG, "Failed to inform statsd of pulling alarm firing.", e);
-                            }
-                        }
-                    });
-            thread.start();
+        IStatsd statsd = getStatsdNonblocking();
+        if (statsd == null) {
+            Log.w(TAG, "Could not access statsd to inform it of pulling alarm firing.");
+            return;
+        }
+        try {
+            statsd.informPollAlarmFired();
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to inform statsd of pulling alarm firing.", e);
         }
     }
 
-    public final static class PeriodicAlarmListener implements OnAlarmListener {
-        private final Context mContext;
-
-        PeriodicAlarmListener(Context context) {
-            mContext = context;
+    private static void informPeriodicAlarmFired() {
+        if (DEBUG) {
+            Log.d(TAG, "Time to trigger periodic alarm.");
         }
-
-        @Override
-        public void onAlarm() {
-            if (DEBUG) {
-                Log.d(TAG, "Time to trigger periodic alarm.");
-            }
-            IStatsd statsd = getStatsdNonblocking();
-            if (statsd == null) {
-                Log.w(TAG, "Could not access statsd to inform it of periodic alarm firing.");
-                return;
-            }
-
-            // Wakelock needs to be retained while calling statsd.
-            Thread thread = new WakelockThread(mContext,
-                    PeriodicAlarmListener.class.getCanonicalName(), new Runnable() {
-                        @Override
-                        public void run() {
-                            try {
-                                statsd.informAlarmForSubscriberTriggeringFired();
-                            } catch (RemoteException e) {
-                                Log.w(TAG, "Failed to inform statsd of periodic alarm firing.", e);
-                            }
-                        }
-                    });
-            thread.start();
+        IStatsd statsd = getStatsdNonblocking();
+        if (statsd == null) {
+            Log.w(TAG, "Could not access statsd to inform it of periodic alarm firing.");
+            return;
+        }
+        try {
+            statsd.informAlarmForSubscriberTriggeringFired();
+        } catch (RemoteException e) {
+            Log.w(TAG, "Failed to inform statsd of periodic alarm firing.", e);
         }
     }
 
@@ -521,10 +501,8 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         }
         final long callingToken = Binder.clearCallingIdentity();
         try {
-            // using ELAPSED_REALTIME, not ELAPSED_REALTIME_WAKEUP, so if device is asleep, will
-            // only fire when it awakens.
-            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, timestampMs, TAG + ".periodic",
-                    mPeriodicAlarmListener, mHandler);
+            mAlarmScheduler.schedule(
+                    CoalescingAlarmScheduler.ALARM_SUBSCRIBER_TRIGGERING, timestampMs);
         } finally {
             Binder.restoreCallingIdentity(callingToken);
         }
@@ -538,7 +516,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         }
         final long callingToken = Binder.clearCallingIdentity();
         try {
-            mAlarmManager.cancel(mPeriodicAlarmListener);
+            mAlarmScheduler.cancel(CoalescingAlarmScheduler.ALARM_SUBSCRIBER_TRIGGERING);
         } finally {
             Binder.restoreCallingIdentity(callingToken);
         }
@@ -553,10 +531,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         }
         final long callingToken = Binder.clearCallingIdentity();
         try {
-            // using ELAPSED_REALTIME, not ELAPSED_REALTIME_WAKEUP, so if device is asleep, will
-            // only fire when it awakens.
-            mAlarmManager.setExact(AlarmManager.ELAPSED_REALTIME, nextPullTimeMs, TAG + ".pull",
-                    mPullingAlarmListener, mHandler);
+            mAlarmScheduler.schedule(CoalescingAlarmScheduler.ALARM_PULLING, nextPullTimeMs);
         } finally {
             Binder.restoreCallingIdentity(callingToken);
         }
@@ -570,7 +545,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         }
         final long callingToken = Binder.clearCallingIdentity();
         try {
-            mAlarmManager.cancel(mPullingAlarmListener);
+            mAlarmScheduler.cancel(CoalescingAlarmScheduler.ALARM_PULLING);
         } finally {
             Binder.restoreCallingIdentity(callingToken);
         }
@@ -624,6 +599,12 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         return mContext.checkPermission(permission, pid, uid) == PackageManager.PERMISSION_GRANTED;
     }
 
+    @Override // Binder call
+    public void setUnsampledAtoms(int[] atomIds) {
+        StatsCompanion.enforceStatsdCallingUid();
+        StatsSampler.setUnsampledAtoms(atomIds);
+    }
+
     // Statsd related code
 
     /**
@@ -672,33 +653,89 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
     }
 
     private void onPropertiesChanged(final Properties properties) {
-        updateProperties(properties);
+        // Batch rapid flag flips: collect the latest value of each property and deliver them
+        // together once the batching window has elapsed.
+        mHandler.post(() -> {
+            for (final String propertyName : properties.getKeyset()) {
+                mPendingProperties.put(propertyName, properties.getString(propertyName, null));
+            }
+            if (!mPropertiesFlushScheduled) {
+                mPropertiesFlushScheduled = true;
+                mHandler.postDelayed(() -> flushPendingProperties(false),
+                        PROPERTY_BATCH_WINDOW_MILLIS);
+            }
+        });
+    }
 
-        // Re-fetch package information with package certificates if include_certificate_hash
-        // property changed.
-        final Set<String> propertyNames = properties.getKeyset();
-        if (propertyNames.contains(INCLUDE_CERTIFICATE_HASH)) {
-            informAllUids(mContext);
-        }
+    /**
+     * Sends every statsd_java property to statsd, e.g. after statsd has restarted and lost all
+     * previously delivered values.
+     */
+    private void resendAllProperties(final Properties properties, final Runnable onComplete) {
+        mHandler.post(() -> {
+            try {
+                mDeliveredProperties.clear();
+                for (final String propertyName : properties.getKeyset()) {
+                    mPendingProperties.put(
+                            propertyName, properties.getString(propertyName, null));
+                }
+                // sayHiToStatsd sends the full uid map right after this.
+                flushPendingProperties(true);
+            } finally {
+                onComplete.run();
+            }
+        });
     }
 
-    private void updateProperties(final Properties properties) {
+    /**
+     * Sends the pending properties whose value differs from the value last delivered to statsd.
+     * Must be called on {@link #mHandler}.
+     *
+     * @param uidMapFollows whether the caller sends the full uid map after this, so that a change
+     *        of include_certificate_hash does not need to resend it.
+     */
+    private void flushPendingProperties(boolean uidMapFollows) {
+        mPropertiesFlushScheduled = false;
+        if (mPendingProperties.isEmpty()) {
+            return;
+        }
         if (DEBUG) {
             Log.d(TAG, "statsd_java properties updated");
         }
 
-        final Set<String> propertyNames = properties.getKeyset();
-        if (propertyNames.isEmpty()) {
+        final List<PropertyParcel> propertyParcels = new ArrayList<>(mPendingProperties.size());
+        for (final Map.Entry<String, String> entry : mPendingProperties.entrySet()) {
+            final String propertyName = entry.getKey();
+            final String value = entry.getValue();
+            if (mDeliveredProperties.containsKey(propertyName)
+                    && Objects.equals(mDeliveredProperties.get(propertyName), value)) {
+                continue;
+            }
+            final PropertyParcel propertyParcel = new PropertyParcel();
+            propertyParcel.property = propertyName;
+            propertyParcel.value = value;
+            propertyParcels.add(propertyParcel);
+        }
+        mPendingProperties.clear();
+        if (propertyParcels.isEmpty()) {
             return;
         }
 
-        final PropertyParcel[] propertyParcels = new PropertyParcel[propertyNames.size()];
-        int index = 0;
-        for (final String propertyName : propertyNames) {
-            propertyParcels[index] = new PropertyParcel();
-            propertyParcels[index].property = propertyName;
-            propertyParcels[index].value = properties.getString(propertyName, null);
-            index++;
+        for (final PropertyParcel propertyParcel : propertyParcels) {
+            if (ALARM_COALESCING_TOLERANCE_MILLIS.equals(propertyParcel.property)) {
+                long toleranceMillis = DEFAULT_ALARM_COALESCING_TOLERANCE_MILLIS;
+                try {
+                    if (propertyParcel.value != null) {
+                        toleranceMillis = Long.parseLong(propertyParcel.value);
+                    }
+                } catch (NumberFormatException e) {
+                    Log.w(TAG, "Invalid " + ALARM_COALESCING_TOLERANCE_MILLIS + " value: "
+                            + propertyParcel.value);
+                }
+                mAlarmScheduler.setToleranceMillis(toleranceMillis);
+            } else if (SAMPLING_POLICIES.equals(propertyParcel.property)) {
+                StatsSampler.setPolicies(propertyParcel.value);
+            }
         }
 
         final IStatsd statsd = getStatsdNonblocking();
@@ -708,12 +745,42 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         }
 
         try {
-            statsd.updateProperties(propertyParcels);
+            statsd.updateProperties(propertyParcels.toArray(new PropertyParcel[0]));
         } catch (RemoteException e) {
             Log.w(TAG, "Failed to inform statsd of an include app certificate flag update", e);
+            return;
+        }
+
+        final boolean includeCertificateHashChanged =
+                includeCertificateHashChanged(mDeliveredProperties, propertyParcels);
+        for (final PropertyParcel propertyParcel : propertyParcels) {
+            mDeliveredProperties.put(propertyParcel.property, propertyParcel.value);
+        }
+
+        // Re-fetch package information with package certificates if include_certificate_hash
+        // property changed.
+        if (includeCertificateHashChanged && !uidMapFollows) {
+            informAllUids(mContext);
         }
     }
 
+    /**
+     * Returns whether {@code propertyParcels} change the value of include_certificate_hash from
+     * the one in {@code deliveredProperties}. A property that is absent counts as false, its
+     * default, so the first time the flag is turned on also counts as a change.
+     */
+    @VisibleForTesting
+    static boolean includeCertificateHashChanged(Map<String, String> deliveredProperties,
+            List<PropertyParcel> propertyParcels) {
+        for (final PropertyParcel propertyParcel : propertyParcels) {
+            if (INCLUDE_CERTIFICATE_HASH.equals(propertyParcel.property)) {
+                return Boolean.parseBoolean(deliveredProperties.get(INCLUDE_CERTIFICATE_HASH))
+                        != Boolean.parseBoolean(propertyParcel.value);
+            }
+        }
+        return false;
+    }
+
     /**
      * Tells statsd that statscompanion is ready. If the binder call returns, link to
      * statsd.
@@ -743,9 +810,24 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         cancelAlarmForSubscriberTriggering();
 
         if (DEBUG) Log.d(TAG, "Saying hi to statsd");
-        mStatsManagerService.statsdReady(statsd);
+        // Replay the state statsd lost, running independent streams concurrently.
+        final StatsdRecoveryPipeline.Recovery recovery = mRecoveryPipeline.beginRecovery(statsd);
+        final Future<?> pullersRegistered = mStatsManagerService.statsdReady(statsd, recovery);
         try {
-            statsd.statsCompanionReady();
+            // statsd expects the pullers to be registered before statscompanion is ready.
+            try {
+                pullersRegistered.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "Failed to register the pullers with statsd", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            final Runnable companionReadyDone = recovery.startPhase("statscompanion_ready");
+            try {
+                statsd.statsCompanionReady();
+            } finally {
+                companionReadyDone.run();
+            }
 
             BroadcastReceiver appUpdateReceiver = new AppUpdateReceiver();
             BroadcastReceiver userUpdateReceiver = new UserUpdateReceiver();
@@ -776,7 +858,8 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             // Get current statsd_java properties.
             final long token = Binder.clearCallingIdentity();
             try {
-                updateProperties(DeviceConfig.getProperties(NAMESPACE_STATSD_JAVA));
+                resendAllProperties(DeviceConfig.getProperties(NAMESPACE_STATSD_JAVA),
+                        recovery.startPhase("properties"));
             } finally {
                 Binder.restoreCallingIdentity(token);
             }
@@ -793,11 +876,13 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
             }
 
             // Pull the latest state of UID->app name, version mapping when statsd starts.
-            informAllUids(mContext);
+            informAllUids(mContext, recovery.startPhase("uid_map"));
 
             Log.i(TAG, "Told statsd that StatsCompanionService is alive.");
         } catch (RemoteException e) {
             Log.e(TAG, "Failed to inform statsd that statscompanion is ready", e);
+        } finally {
+            recovery.seal();
         }
     }
 
@@ -816,6 +901,7 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
         @Override
         public void binderDied() {
             Log.i(TAG, "Statsd is dead - erase all my knowledge, except pullers");
+            mRecoveryPipeline.noteStatsdDied();
             synchronized (sStatsdLock) {
                 long now = SystemClock.elapsedRealtime();
                 for (Long timeMillis : mDeathTimeMillis) {
@@ -897,5 +983,9 @@ public class StatsCompanionService extends IStatsCompanionService.Stub {
                 writer.println("  " + deletionMillis + ", " + mDeletedFiles.get(elapsedMillis));
             }
         }
+        mAlarmScheduler.dump(writer);
+        mAlarmExecutor.dump(writer);
+        mRecoveryPipeline.dump(writer);
+        StatsSampler.dump(writer);
     }
 }
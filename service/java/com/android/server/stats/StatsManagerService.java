@@ -37,6 +37,7 @@ import com.android.internal.annotations.GuardedBy;
 
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.Future;
 
 /**
  * Service for {@link android.app.StatsManager}.
@@ -557,13 +558,41 @@ public class StatsManagerService extends IStatsManagerService.Stub {
      *
      * Tells StatsManagerService that Statsd is ready and updates
      * Statsd with the contents of our local cache.
+     *
+     * @return the registration of the pullers, which must be done before statsd is told that
+     * statscompanion is ready.
      */
-    void statsdReady(IStatsd statsd) {
+    Future<?> statsdReady(IStatsd statsd, StatsdRecoveryPipeline.Recovery recovery) {
+        // Snapshot the local cache in the same critical section as publishing statsd: what is
+        // registered afterwards is sent to statsd by the registering binder call.
+        final ArrayMap<PullerKey, PullerValue> pullers;
+        final ArrayMap<ConfigKey, PendingIntentRef> dataFetchOperations;
+        final ArrayMap<Integer, PendingIntentRef> activeConfigsChangedOperations;
+        final ArrayMap<ConfigKey, ArrayMap<Long, PendingIntentRef>> broadcastSubscribers =
+                new ArrayMap<>();
         synchronized (mLock) {
             mStatsd = statsd;
             mLock.notify();
+            pullers = new ArrayMap<>(mPullers);
+            dataFetchOperations = new ArrayMap<>(mDataFetchPirMap);
+            activeConfigsChangedOperations = new ArrayMap<>(mActiveConfigsPirMap);
+            for (Map.Entry<ConfigKey, ArrayMap<Long, PendingIntentRef>> entry :
+                    mBroadcastSubscriberPirMap.entrySet()) {
+                broadcastSubscribers.put(entry.getKey(), new ArrayMap<>(entry.getValue()));
+            }
         }
-        sayHiToStatsd(statsd);
+
+        // The replay streams do not depend on each other, so (re-)register them concurrently.
+        final Future<?> pullersRegistered =
+                recovery.submit("pullers", () -> registerAllPullers(statsd, pullers));
+        recovery.submit("data_fetch_operations",
+                () -> registerAllDataFetchOperations(statsd, dataFetchOperations));
+        recovery.submit("active_configs_changed_operations",
+                () -> registerAllActiveConfigsChangedOperations(statsd,
+                        activeConfigsChangedOperations));
+        recovery.submit("broadcast_subscribers",
+                () -> registerAllBroadcastSubscribers(statsd, broadcastSubscribers));
+        return pullersRegistered;
     }
 
     /**
@@ -578,34 +607,10 @@ public class StatsManagerService extends IStatsManagerService.Stub {
         }
     }
 
-    private void sayHiToStatsd(IStatsd statsd) {
-        if (statsd == null) {
-            return;
-        }
-
-        final long token = Binder.clearCallingIdentity();
-        try {
-            registerAllPullers(statsd);
-            registerAllDataFetchOperations(statsd);
-            registerAllActiveConfigsChangedOperations(statsd);
-            registerAllBroadcastSubscribers(statsd);
-        } catch (RemoteException e) {
-            Log.e(TAG, "StatsManager failed to (re-)register data with statsd");
-        } finally {
-            Binder.restoreCallingIdentity(token);
-        }
-    }
-
     // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllPullers(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a copy of the
-        // data with the lock held before iterating through the map.
-        ArrayMap<PullerKey, PullerValue> pullersCopy;
-        synchronized (mLock) {
-            pullersCopy = new ArrayMap<>(mPullers);
-        }
-
-        for (Map.Entry<PullerKey, PullerValue> entry : pullersCopy.entrySet()) {
+    private void registerAllPullers(IStatsd statsd, ArrayMap<PullerKey, PullerValue> pullers)
+            throws RemoteException {
+        for (Map.Entry<PullerKey, PullerValue> entry : pullers.entrySet()) {
             PullerKey key = entry.getKey();
             PullerValue value = entry.getValue();
             statsd.registerPullAtomCallback(key.getUid(), key.getAtom(), value.getCoolDownMillis(),
@@ -615,49 +620,30 @@ public class StatsManagerService extends IStatsManagerService.Stub {
     }
 
     // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllDataFetchOperations(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a copy of the
-        // data with the lock held before iterating through the map.
-        ArrayMap<ConfigKey, PendingIntentRef> dataFetchCopy;
-        synchronized (mLock) {
-            dataFetchCopy = new ArrayMap<>(mDataFetchPirMap);
-        }
-
-        for (Map.Entry<ConfigKey, PendingIntentRef> entry : dataFetchCopy.entrySet()) {
+    private void registerAllDataFetchOperations(IStatsd statsd,
+            ArrayMap<ConfigKey, PendingIntentRef> dataFetchOperations) throws RemoteException {
+        for (Map.Entry<ConfigKey, PendingIntentRef> entry : dataFetchOperations.entrySet()) {
             ConfigKey key = entry.getKey();
             statsd.setDataFetchOperation(key.getConfigId(), entry.getValue(), key.getUid());
         }
     }
 
     // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllActiveConfigsChangedOperations(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a copy of the
-        // data with the lock held before iterating through the map.
-        ArrayMap<Integer, PendingIntentRef> activeConfigsChangedCopy;
-        synchronized (mLock) {
-            activeConfigsChangedCopy = new ArrayMap<>(mActiveConfigsPirMap);
-        }
-
-        for (Map.Entry<Integer, PendingIntentRef> entry : activeConfigsChangedCopy.entrySet()) {
+    private void registerAllActiveConfigsChangedOperations(IStatsd statsd,
+            ArrayMap<Integer, PendingIntentRef> activeConfigsChangedOperations)
+            throws RemoteException {
+        for (Map.Entry<Integer, PendingIntentRef> entry :
+                activeConfigsChangedOperations.entrySet()) {
             statsd.setActiveConfigsChangedOperation(entry.getValue(), entry.getKey());
         }
     }
 
     // Pre-condition: the Binder calling identity has already been cleared
-    private void registerAllBroadcastSubscribers(IStatsd statsd) throws RemoteException {
-        // Since we do not want to make an IPC with the lock held, we first create a deep copy of
-        // the data with the lock held before iterating through the map.
-        ArrayMap<ConfigKey, ArrayMap<Long, PendingIntentRef>> broadcastSubscriberCopy =
-                new ArrayMap<>();
-        synchronized (mLock) {
-            for (Map.Entry<ConfigKey, ArrayMap<Long, PendingIntentRef>> entry :
-                    mBroadcastSubscriberPirMap.entrySet()) {
-                broadcastSubscriberCopy.put(entry.getKey(), new ArrayMap(entry.getValue()));
-            }
-        }
-
+    private void registerAllBroadcastSubscribers(IStatsd statsd,
+            ArrayMap<ConfigKey, ArrayMap<Long, PendingIntentRef>> broadcastSubscribers)
+            throws RemoteException {
         for (Map.Entry<ConfigKey, ArrayMap<Long, PendingIntentRef>> entry :
-                mBroadcastSubscriberPirMap.entrySet()) {
+                broadcastSubscribers.entrySet()) {
             ConfigKey configKey = entry.getKey();
             for (Map.Entry<Long, PendingIntentRef> subscriberEntry : entry.getValue().entrySet()) {
                 statsd.setBroadcastSubscriber(configKey.getConfigId(), subscriberEntry.getKey(),
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats;
+
+import android.os.Binder;
+import android.os.IStatsd;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays the state that statsd lost when it restarted and records how long each phase of the
+ * recovery took.
+ *
+ * Independent replay streams (pullers, pending intents, properties, uid map) are run concurrently
+ * on a small thread pool. A recovery is complete once every phase started for it has finished; the
+ * per-phase timings and the time from statsd death to full recovery are logged, kept for dumpsys
+ * and reported to statsd, which records them in its StatsdStats.
+ *
+ * @hide
+ */
+final class StatsdRecoveryPipeline {
+    private static final String TAG = "StatsdRecoveryPipeline";
+
+    private static final int MAX_REPLAY_THREADS = 3;
+    private static final long REPLAY_THREAD_KEEP_ALIVE_SECONDS = 10;
+
+    static final String PHASE_STATSD_DOWN = "statsd_down";
+
+    /** A replay phase that makes binder calls to statsd. */
+    interface ReplayTask {
+        void run() throws RemoteException;
+    }
+
+    private final ExecutorService mExecutor;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private long mDeathElapsedMillis = -1;
+    @GuardedBy("mLock")
+    private long mRecoveryCount = 0;
+    @GuardedBy("mLock")
+    private Recovery mLastCompletedRecovery;
+
+    StatsdRecoveryPipeline() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_REPLAY_THREADS,
+                MAX_REPLAY_THREADS, REPLAY_THREAD_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                runnable -> new Thread(runnable, "statsCompanionService.recovery"));
+        // Replay threads are only needed right after a restart.
+        executor.allowCoreThreadTimeOut(true);
+        mExecutor = executor;
+    }
+
+    void noteStatsdDied() {
+        synchronized (mLock) {
+            mDeathElapsedMillis = SystemClock.elapsedRealtime();
+        }
+    }
+
+    /**
+     * Starts tracking a recovery of the given statsd. Phases may be added until
+     * {@link Recovery#seal()} is called.
+     */
+    Recovery beginRecovery(IStatsd statsd) {
+        synchronized (mLock) {
+            Recovery recovery = new Recovery(statsd, mDeathElapsedMillis);
+            mDeathElapsedMillis = -1;
+            return recovery;
+        }
+    }
+
+    private void onRecoveryCompleted(Recovery recovery) {
+        synchronized (mLock) {
+            mRecoveryCount++;
+            mLastCompletedRecovery = recovery;
+        }
+        Log.i(TAG, "statsd recovery completed: " + recovery);
+        recovery.reportToStatsd();
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Statsd recoveries: " + mRecoveryCount);
+            if (mLastCompletedRecovery != null) {
+                writer.println("  last recovery: " + mLastCompletedRecovery);
+            }
+        }
+    }
+
+    /** Timings of a single restart-to-fully-operational recovery. */
+    final class Recovery {
+        private final IStatsd mStatsd;
+        private final long mDeathElapsedMillis;
+        private final long mStartElapsedMillis;
+
+        @GuardedBy("this")
+        private final ArrayMap<String, Long> mPhaseMillis = new ArrayMap<>();
+        @GuardedBy("this")
+        private int mPendingPhases = 0;
+        @GuardedBy("this")
+        private boolean mSealed = false;
+        @GuardedBy("this")
+        private long mEndElapsedMillis = -1;
+
+        private Recovery(IStatsd statsd, long deathElapsedMillis) {
+            mStatsd = statsd;
+            mDeathElapsedMillis = deathElapsedMillis;
+            mStartElapsedMillis = SystemClock.elapsedRealtime();
+            if (deathElapsedMillis >= 0) {
+                mPhaseMillis.put(PHASE_STATSD_DOWN, mStartElapsedMillis - deathElapsedMillis);
+            }
+        }
+
+        /**
+         * Marks the start of a phase that finishes asynchronously. The returned runnable must be
+         * run exactly once when the phase is done.
+         */
+        Runnable startPhase(String phase) {
+            final long phaseStartMillis = SystemClock.elapsedRealtime();
+            synchronized (this) {
+                mPendingPhases++;
+            }
+            return () -> finishPhase(phase, SystemClock.elapsedRealtime() - phaseStartMillis);
+        }
+
+        /**
+         * Runs {@code task} on the replay thread pool, concurrently with other phases. The
+         * returned future completes when the phase is done.
+         */
+        Future<?> submit(String phase, ReplayTask task) {
+            final Runnable finish = startPhase(phase);
+            return mExecutor.submit(() -> {
+                try {
+                    runReplayTask(phase, task);
+                } finally {
+                    finish.run();
+                }
+            });
+        }
+
+        /** Indicates that no more phases will be added to this recovery. */
+        void seal() {
+            synchronized (this) {
+                mSealed = true;
+                if (mPendingPhases > 0) {
+                    return;
+                }
+                mEndElapsedMillis = SystemClock.elapsedRealtime();
+            }
+            onRecoveryCompleted(this);
+        }
+
+        private void runReplayTask(String phase, ReplayTask task) {
+            final long token = Binder.clearCallingIdentity();
+            try {
+                task.run();
+            } catch (RemoteException e) {
+                Log.e(TAG, "Failed to replay " + phase + " to statsd", e);
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+
+        private void finishPhase(String phase, long durationMillis) {
+            synchronized (this) {
+                mPhaseMillis.put(phase, durationMillis);
+                if (--mPendingPhases > 0 || !mSealed) {
+                    return;
+                }
+                mEndElapsedMillis = SystemClock.elapsedRealtime();
+            }
+            onRecoveryCompleted(this);
+        }
+
+        private void reportToStatsd() {
+            final long replayMillis;
+            final long totalMillis;
+            final String[] phaseNames;
+            final long[] phaseMillis;
+            synchronized (this) {
+                replayMillis = mEndElapsedMillis - mStartElapsedMillis;
+                totalMillis = mDeathElapsedMillis >= 0 ? mEndElapsedMillis - mDeathElapsedMillis
+                        : -1;
+                phaseNames = new String[mPhaseMillis.size()];
+                phaseMillis = new long[mPhaseMillis.size()];
+                for (int i = 0; i < mPhaseMillis.size(); i++) {
+                    phaseNames[i] = mPhaseMillis.keyAt(i);
+                    phaseMillis[i] = mPhaseMillis.valueAt(i);
+                }
+            }
+            try {
+                mStatsd.noteStatsdRecovery(replayMillis, totalMillis, phaseNames, phaseMillis);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Failed to report the recovery timings to statsd", e);
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append("replay_millis=").append(mEndElapsedMillis - mStartElapsedMillis);
+            if (mDeathElapsedMillis >= 0) {
+                sb.append(", total_millis=").append(mEndElapsedMillis - mDeathElapsedMillis);
+            }
+            for (int i = 0; i < mPhaseMillis.size(); i++) {
+                sb.append(", ").append(mPhaseMillis.keyAt(i)).append("_millis=")
+                        .append(mPhaseMillis.valueAt(i));
+            }
+            return sb.toString();
+        }
+    }
+}
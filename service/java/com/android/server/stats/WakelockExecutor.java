@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats;
+
+import static android.os.Process.THREAD_PRIORITY_BACKGROUND;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.PrintWriter;
+
+/**
+ * Runs work on a single long-lived background thread while holding a partial wakelock.
+ *
+ * The wakelock is acquired when the first task is queued and released once the queue has been
+ * drained, so back to back signals share one wakelock. Tasks are identified by a key; a task
+ * whose key is already waiting in the queue is dropped, since the queued task will observe the
+ * same state when it runs. The time each task spent waiting in the queue is recorded per key.
+ *
+ * @hide
+ */
+final class WakelockExecutor {
+    private static final String TAG = "WakelockExecutor";
+    private static final boolean DEBUG = false;
+
+    private final Handler mHandler;
+    private final PowerManager.WakeLock mWakeLock;
+
+    private final Object mLock = new Object();
+    // Key of each queued task mapped to the elapsed realtime at which it was queued.
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Long> mQueuedTimeMillis = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, TaskStats> mTaskStats = new ArrayMap<>();
+    @GuardedBy("mLock")
+    private int mOutstandingTasks = 0;
+
+    private static final class TaskStats {
+        long mExecuted = 0;
+        long mMerged = 0;
+        long mTotalQueueMillis = 0;
+        long mMaxQueueMillis = 0;
+    }
+
+    WakelockExecutor(Context context, String name) {
+        this(startHandlerThread(name),
+                ((PowerManager) context.getSystemService(Context.POWER_SERVICE))
+                        .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, name));
+    }
+
+    @VisibleForTesting
+    WakelockExecutor(Handler handler, PowerManager.WakeLock wakeLock) {
+        mHandler = handler;
+        mWakeLock = wakeLock;
+        mWakeLock.setReferenceCounted(false);
+    }
+
+    private static Handler startHandlerThread(String name) {
+        HandlerThread thread = new HandlerThread(name, THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        return new Handler(thread.getLooper());
+    }
+
+    /**
+     * Queues {@code task} to run under the wakelock.
+     *
+     * @return false if a task with the same key was already queued and this one was merged into
+     *         it, true otherwise.
+     */
+    boolean execute(String key, Runnable task) {
+        synchronized (mLock) {
+            final TaskStats stats = getTaskStatsLocked(key);
+            if (mQueuedTimeMillis.containsKey(key)) {
+                stats.mMerged++;
+                if (DEBUG) {
+                    Log.d(TAG, "Merged duplicate " + key + " task");
+                }
+                return false;
+            }
+            mQueuedTimeMillis.put(key, SystemClock.elapsedRealtime());
+            if (mOutstandingTasks++ == 0) {
+                mWakeLock.acquire();
+            }
+        }
+        mHandler.post(() -> runTask(key, task));
+        return true;
+    }
+
+    private void runTask(String key, Runnable task) {
+        synchronized (mLock) {
+            // Remove the key before running so that a signal arriving while the task runs is
+            // queued again rather than merged into a task that may have already read its state.
+            final Long queuedTimeMillis = mQueuedTimeMillis.remove(key);
+            if (queuedTimeMillis != null) {
+                final long queueMillis = SystemClock.elapsedRealtime() - queuedTimeMillis;
+                final TaskStats stats = getTaskStatsLocked(key);
+                stats.mExecuted++;
+                stats.mTotalQueueMillis += queueMillis;
+                stats.mMaxQueueMillis = Math.max(stats.mMaxQueueMillis, queueMillis);
+            }
+        }
+        try {
+            task.run();
+        } finally {
+            synchronized (mLock) {
+                if (--mOutstandingTasks == 0) {
+                    mWakeLock.release();
+                }
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private TaskStats getTaskStatsLocked(String key) {
+        TaskStats stats = mTaskStats.get(key);
+        if (stats == null) {
+            stats = new TaskStats();
+            mTaskStats.put(key, stats);
+        }
+        return stats;
+    }
+
+    void dump(PrintWriter writer) {
+        synchronized (mLock) {
+            writer.println("Wakelock executor tasks (key, executed, merged, avg/max queue millis):");
+            for (int i = 0; i < mTaskStats.size(); i++) {
+                final TaskStats stats = mTaskStats.valueAt(i);
+                final long avgQueueMillis =
+                        stats.mExecuted == 0 ? 0 : stats.mTotalQueueMillis / stats.mExecuted;
+                writer.println("  " + mTaskStats.keyAt(i) + ", " + stats.mExecuted + ", "
+                        + stats.mMerged + ", " + avgQueueMillis + "/" + stats.mMaxQueueMillis);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats;
+
+import static com.android.server.stats.CoalescingAlarmScheduler.ALARM_PULLING;
+import static com.android.server.stats.CoalescingAlarmScheduler.ALARM_SUBSCRIBER_TRIGGERING;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import android.app.AlarmManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Internal tests for {@link CoalescingAlarmScheduler}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class CoalescingAlarmSchedulerTest {
+    private static final long TIMEOUT_SECONDS = 5;
+    private static final long TOLERANCE_MILLIS = 1000;
+
+    private AlarmManager mAlarmManager;
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private PowerManager.WakeLock mWakeLock;
+    private CoalescingAlarmScheduler mScheduler;
+    private long mBaseMillis;
+
+    @Before
+    public void setUp() {
+        mAlarmManager = mock(AlarmManager.class);
+        mThread = new HandlerThread("CoalescingAlarmSchedulerTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        mWakeLock = context.getSystemService(PowerManager.class)
+                .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, "CoalescingAlarmSchedulerTest");
+        mScheduler = new CoalescingAlarmScheduler(mAlarmManager, mHandler,
+                new WakelockExecutor(mHandler, mWakeLock), TOLERANCE_MILLIS);
+        // Far enough in the future that no deadline is due while the test runs.
+        mBaseMillis = SystemClock.elapsedRealtime() + TimeUnit.HOURS.toMillis(1);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    private void verifyWakeupSet(long wakeupMillis, int times) {
+        verify(mAlarmManager, times(times)).setExact(eq(AlarmManager.ELAPSED_REALTIME),
+                eq(wakeupMillis), anyString(), eq(mScheduler), eq(mHandler));
+    }
+
+    @Test
+    public void testDeadlinesWithinToleranceShareOneWakeup() {
+        mScheduler.schedule(ALARM_PULLING, mBaseMillis);
+        verifyWakeupSet(mBaseMillis, 1);
+
+        // Deferred to the later deadline, which is within tolerance of the earlier one.
+        mScheduler.schedule(ALARM_SUBSCRIBER_TRIGGERING, mBaseMillis + TOLERANCE_MILLIS);
+        verifyWakeupSet(mBaseMillis + TOLERANCE_MILLIS, 1);
+    }
+
+    @Test
+    public void testDeadlinesBeyondToleranceAreNotCoalesced() {
+        mScheduler.schedule(ALARM_PULLING, mBaseMillis);
+        mScheduler.schedule(ALARM_SUBSCRIBER_TRIGGERING, mBaseMillis + TOLERANCE_MILLIS + 1);
+
+        verifyWakeupSet(mBaseMillis, 1);
+        verifyWakeupSet(mBaseMillis + TOLERANCE_MILLIS + 1, 0);
+    }
+
+    @Test
+    public void testEarlierDeadlineJoinsPendingWakeup() {
+        mScheduler.schedule(ALARM_PULLING, mBaseMillis + 500);
+        mScheduler.schedule(ALARM_SUBSCRIBER_TRIGGERING, mBaseMillis);
+
+        // The pending wakeup is within tolerance of the new earlier deadline, so it is kept.
+        verifyWakeupSet(mBaseMillis + 500, 1);
+        verify(mAlarmManager, times(1)).setExact(anyInt(), anyLong(), anyString(), any(), any());
+    }
+
+    @Test
+    public void testToleranceChangeWhileAlarmPending() {
+        mScheduler.schedule(ALARM_PULLING, mBaseMillis);
+        mScheduler.schedule(ALARM_SUBSCRIBER_TRIGGERING, mBaseMillis + 3 * TOLERANCE_MILLIS);
+        verifyWakeupSet(mBaseMillis, 1);
+
+        // A wider tolerance defers the pending wakeup to the later deadline.
+        mScheduler.setToleranceMillis(5 * TOLERANCE_MILLIS);
+        verifyWakeupSet(mBaseMillis + 3 * TOLERANCE_MILLIS, 1);
+
+        // A narrower one moves it back so that the earlier alarm is not delivered late.
+        mScheduler.setToleranceMillis(0);
+        verifyWakeupSet(mBaseMillis, 2);
+        verify(mAlarmManager, never()).cancel(any(AlarmManager.OnAlarmListener.class));
+    }
+
+    @Test
+    public void testCancelLastAlarmCancelsWakeup() {
+        mScheduler.schedule(ALARM_PULLING, mBaseMillis);
+        mScheduler.schedule(ALARM_SUBSCRIBER_TRIGGERING, mBaseMillis + 2 * TOLERANCE_MILLIS);
+
+        mScheduler.cancel(ALARM_PULLING);
+        verifyWakeupSet(mBaseMillis + 2 * TOLERANCE_MILLIS, 1);
+
+        mScheduler.cancel(ALARM_SUBSCRIBER_TRIGGERING);
+        verify(mAlarmManager).cancel(mScheduler);
+    }
+
+    @Test
+    public void testOnAlarmRunsOnlyDueWork() throws Exception {
+        final CountDownLatch pullRan = new CountDownLatch(1);
+        final CountDownLatch periodicRan = new CountDownLatch(1);
+        mScheduler.setAlarmWork(ALARM_PULLING, pullRan::countDown);
+        mScheduler.setAlarmWork(ALARM_SUBSCRIBER_TRIGGERING, periodicRan::countDown);
+
+        mScheduler.schedule(ALARM_PULLING, SystemClock.elapsedRealtime() - 1);
+        mScheduler.schedule(ALARM_SUBSCRIBER_TRIGGERING, mBaseMillis);
+        mScheduler.onAlarm();
+
+        assertThat(pullRan.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(periodicRan.getCount()).isEqualTo(1);
+        // The alarm that was not due is scheduled again on its own.
+        verifyWakeupSet(mBaseMillis, 1);
+    }
+}
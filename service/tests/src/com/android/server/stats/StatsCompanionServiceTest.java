@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.util.PropertyParcel;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Internal tests for {@link StatsCompanionService}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class StatsCompanionServiceTest {
+    private static final String INCLUDE_CERTIFICATE_HASH = "include_certificate_hash";
+
+    private static PropertyParcel createProperty(String property, String value) {
+        PropertyParcel propertyParcel = new PropertyParcel();
+        propertyParcel.property = property;
+        propertyParcel.value = value;
+        return propertyParcel;
+    }
+
+    private static boolean deliver(Map<String, String> deliveredProperties,
+            PropertyParcel... propertyParcels) {
+        final boolean changed = StatsCompanionService.includeCertificateHashChanged(
+                deliveredProperties, List.of(propertyParcels));
+        for (PropertyParcel propertyParcel : propertyParcels) {
+            deliveredProperties.put(propertyParcel.property, propertyParcel.value);
+        }
+        return changed;
+    }
+
+    @Test
+    public void testIncludeCertificateHashFlippedAtRuntime() {
+        final Map<String, String> deliveredProperties = new HashMap<>();
+
+        // First rollout of the flag after statsd already has the other properties.
+        assertThat(deliver(deliveredProperties, createProperty("sampling_policies", "")))
+                .isFalse();
+        assertThat(deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, "true")))
+                .isTrue();
+
+        assertThat(deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, "false")))
+                .isTrue();
+        assertThat(deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, "true")))
+                .isTrue();
+    }
+
+    @Test
+    public void testIncludeCertificateHashValueUnchanged() {
+        final Map<String, String> deliveredProperties = new HashMap<>();
+
+        // Absent and false are the same value.
+        assertThat(deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, "false")))
+                .isFalse();
+        assertThat(deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, null)))
+                .isFalse();
+
+        deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, "true"));
+        assertThat(deliver(deliveredProperties, createProperty(INCLUDE_CERTIFICATE_HASH, "TRUE")))
+                .isFalse();
+        assertThat(deliver(deliveredProperties,
+                createProperty("alarm_coalescing_tolerance_millis", "2000"))).isFalse();
+    }
+}
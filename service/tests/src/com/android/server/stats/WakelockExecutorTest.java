@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.stats;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.PowerManager;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Internal tests for {@link WakelockExecutor}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class WakelockExecutorTest {
+    private static final long TIMEOUT_SECONDS = 5;
+
+    private final AtomicReference<Throwable> mUncaughtException = new AtomicReference<>();
+    private final CountDownLatch mThreadDied = new CountDownLatch(1);
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+    private PowerManager.WakeLock mWakeLock;
+    private WakelockExecutor mExecutor;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("WakelockExecutorTest");
+        mThread.setUncaughtExceptionHandler((thread, e) -> {
+            mUncaughtException.set(e);
+            mThreadDied.countDown();
+        });
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        Context context = InstrumentationRegistry.getTargetContext();
+        PowerManager powerManager = context.getSystemService(PowerManager.class);
+        mWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK,
+                "WakelockExecutorTest");
+        mExecutor = new WakelockExecutor(mHandler, mWakeLock);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+        if (mWakeLock.isHeld()) {
+            mWakeLock.release();
+        }
+    }
+
+    /** Blocks the executor thread until the returned latch is counted down. */
+    private CountDownLatch blockExecutorThread() throws InterruptedException {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch unblock = new CountDownLatch(1);
+        mHandler.post(() -> {
+            blocked.countDown();
+            try {
+                unblock.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        assertThat(blocked.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        return unblock;
+    }
+
+    /** Waits until every message posted to the executor thread so far has run. */
+    private void drainExecutorThread() throws InterruptedException {
+        final CountDownLatch drained = new CountDownLatch(1);
+        mHandler.post(drained::countDown);
+        assertThat(drained.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void testDuplicateTaskIsMerged() throws Exception {
+        final AtomicInteger firstRuns = new AtomicInteger();
+        final AtomicInteger duplicateRuns = new AtomicInteger();
+        final AtomicInteger otherRuns = new AtomicInteger();
+
+        final CountDownLatch unblock = blockExecutorThread();
+        assertThat(mExecutor.execute("pull", firstRuns::incrementAndGet)).isTrue();
+        assertThat(mExecutor.execute("pull", duplicateRuns::incrementAndGet)).isFalse();
+        assertThat(mExecutor.execute("periodic", otherRuns::incrementAndGet)).isTrue();
+        unblock.countDown();
+        drainExecutorThread();
+
+        assertThat(firstRuns.get()).isEqualTo(1);
+        assertThat(duplicateRuns.get()).isEqualTo(0);
+        assertThat(otherRuns.get()).isEqualTo(1);
+    }
+
+    @Test
+    public void testTaskQueuedWhileRunningIsNotMerged() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final AtomicReference<Boolean> queuedWhileRunning = new AtomicReference<>();
+
+        mExecutor.execute("pull", () -> {
+            runs.incrementAndGet();
+            queuedWhileRunning.set(mExecutor.execute("pull", runs::incrementAndGet));
+        });
+        drainExecutorThread();
+        drainExecutorThread();
+
+        assertThat(queuedWhileRunning.get()).isTrue();
+        assertThat(runs.get()).isEqualTo(2);
+    }
+
+    @Test
+    public void testWakeLockHeldUntilQueueDrained() throws Exception {
+        assertThat(mWakeLock.isHeld()).isFalse();
+
+        final CountDownLatch unblock = blockExecutorThread();
+        mExecutor.execute("pull", () -> {});
+        mExecutor.execute("periodic", () -> {});
+        assertThat(mWakeLock.isHeld()).isTrue();
+
+        unblock.countDown();
+        drainExecutorThread();
+        assertThat(mWakeLock.isHeld()).isFalse();
+    }
+
+    @Test
+    public void testWakeLockReleasedWhenTaskThrows() throws Exception {
+        final RuntimeException failure = new RuntimeException("task failed");
+
+        mExecutor.execute("pull", () -> {
+            throw failure;
+        });
+
+        assertThat(mThreadDied.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+        assertThat(mUncaughtException.get()).isSameInstanceAs(failure);
+        assertThat(mWakeLock.isHeld()).isFalse();
+    }
+}
@@ -13,6 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+#include <string>
 #include <vector>
 #include "benchmark/benchmark.h"
 #include "FieldValue.h"
@@ -309,6 +310,80 @@ static void BM_DurationMetricLink(benchmark::State& state) {
 
 BENCHMARK(BM_DurationMetricLink);
 
+// Slices by uid, with each job of a uid tracked separately within the uid's duration.
+static StatsdConfig CreateDurationMetricConfig_PerUidJobs(
+        DurationMetric::AggregationType aggregationType) {
+    StatsdConfig config;
+    *config.add_atom_matcher() = CreateStartScheduledJobAtomMatcher();
+    *config.add_atom_matcher() = CreateFinishScheduledJobAtomMatcher();
+
+    auto scheduledJobPredicate = CreateScheduledJobPredicate();
+    auto dimensions = scheduledJobPredicate.mutable_simple_predicate()->mutable_dimensions();
+    *dimensions = CreateAttributionUidDimensions(
+            android::util::SCHEDULED_JOB_STATE_CHANGED, {Position::FIRST});
+    dimensions->add_child()->set_field(2);  // job name field.
+    *config.add_predicate() = scheduledJobPredicate;
+
+    auto metric = config.add_duration_metric();
+    metric->set_bucket(FIVE_MINUTES);
+    metric->set_id(StringToId("scheduledJob"));
+    metric->set_what(scheduledJobPredicate.id());
+    metric->set_aggregation_type(aggregationType);
+    *metric->mutable_dimensions_in_what() = CreateAttributionUidDimensions(
+            android::util::SCHEDULED_JOB_STATE_CHANGED, {Position::FIRST});
+    return config;
+}
+
+// Starts and stops state.range(0) jobs spread over 500 uids, three times, the last time in
+// the next bucket. Half of the jobs stay started over the bucket boundary.
+static void BM_DurationMetricStartStopChurn(benchmark::State& state) {
+    const int numJobs = state.range(0);
+    const int numUids = 500;
+    ConfigKey cfgKey;
+    auto config = CreateDurationMetricConfig_PerUidJobs(
+            (DurationMetric::AggregationType)state.range(1));
+    int64_t bucketStartTimeNs = 10000000000;
+    int64_t bucketSizeNs =
+            TimeUnitToBucketSizeInMillis(config.duration_metric(0).bucket()) * 1000000LL;
+
+    std::vector<std::unique_ptr<LogEvent>> events;
+    const vector<string> attributionTags = {""};
+    const vector<int64_t> roundStartTimesNs = {bucketStartTimeNs + 1,
+                                               bucketStartTimeNs + bucketSizeNs / 2,
+                                               bucketStartTimeNs + bucketSizeNs + 1};
+    for (size_t round = 0; round < roundStartTimesNs.size(); round++) {
+        int64_t timeNs = roundStartTimesNs[round];
+        for (int i = 0; i < numJobs; i++) {
+            events.push_back(CreateStartScheduledJobEvent(timeNs++, {10000 + i % numUids},
+                                                          attributionTags,
+                                                          "job" + std::to_string(i / numUids)));
+        }
+        for (int i = 0; i < numJobs; i++) {
+            if (round == 1 && i % 2 == 1) {
+                continue;
+            }
+            events.push_back(CreateFinishScheduledJobEvent(timeNs++, {10000 + i % numUids},
+                                                           attributionTags,
+                                                           "job" + std::to_string(i / numUids)));
+        }
+    }
+
+    while (state.KeepRunning()) {
+        auto processor = CreateStatsLogProcessor(
+                bucketStartTimeNs / NS_PER_SEC, config, cfgKey);
+        for (const auto& event : events) {
+            processor->OnLogEvent(event.get());
+        }
+    }
+    state.SetItemsProcessed(state.iterations() * events.size());
+}
+
+BENCHMARK(BM_DurationMetricStartStopChurn)
+        ->Args({2000, DurationMetric::SUM})
+        ->Args({2000, DurationMetric::MAX_SPARSE})
+        ->Args({20000, DurationMetric::SUM})
+        ->Args({20000, DurationMetric::MAX_SPARSE});
+
 }  //  namespace statsd
 }  //  namespace os
 }  //  namespace android
@@ -13,6 +13,7 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+#include <unordered_map>
 #include <vector>
 
 #include "FieldValue.h"
@@ -71,6 +72,41 @@ static void BM_GetDimensionInCondition(benchmark::State& state) {
 
 BENCHMARK(BM_GetDimensionInCondition);
 
+// Builds the dimension key of an event and looks it up in three maps of 1000 keys, as a metric
+// does with its sliced buckets, its condition and its anomaly trackers. The key is only hashed
+// once.
+static void BM_DimensionKeyLookup(benchmark::State& state) {
+    Metric2Condition link;
+    LogEvent event(/*uid=*/0, /*pid=*/0);
+    createLogEventAndLink(&event, &link);
+
+    HashableDimensionKey eventKey;
+    getDimensionForCondition(event.getValues(), link, &eventKey);
+    std::unordered_map<MetricDimensionKey, int> maps[3];
+    for (int i = 0; i < 1000; i++) {
+        HashableDimensionKey key = eventKey;
+        key.mutableValue(0)->mValue = Value((int32_t)i);
+        key.addValue(FieldValue(Field(1, getSimpleField(3)), Value(string("LOCATION"))));
+        for (auto& map : maps) {
+            map[MetricDimensionKey(key, DEFAULT_DIMENSION_KEY)] = i;
+        }
+    }
+
+    int i = 0;
+    while (state.KeepRunning()) {
+        HashableDimensionKey key;
+        getDimensionForCondition(event.getValues(), link, &key);
+        key.mutableValue(0)->mValue = Value((int32_t)(i++ % 1000));
+        key.addValue(FieldValue(Field(1, getSimpleField(3)), Value(string("LOCATION"))));
+        const MetricDimensionKey metricKey(key, DEFAULT_DIMENSION_KEY);
+        for (const auto& map : maps) {
+            benchmark::DoNotOptimize(map.find(metricKey));
+        }
+    }
+}
+
+BENCHMARK(BM_DimensionKeyLookup);
+
 
 }  //  namespace statsd
 }  //  namespace os
@@ -13,9 +13,11 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
+#include <memory>
 #include <vector>
 #include "benchmark/benchmark.h"
 #include "logd/LogEvent.h"
+#include "logd/LogEventPool.h"
 #include "stats_event.h"
 
 namespace android {
@@ -45,6 +47,29 @@ static void BM_LogEventCreation(benchmark::State& state) {
 }
 BENCHMARK(BM_LogEventCreation);
 
+// As the socket listener did before pooling: one heap event per atom.
+static void BM_LogEventHeapCreation(benchmark::State& state) {
+    uint8_t msg[LOGGER_ENTRY_MAX_PAYLOAD];
+    size_t size = createAndParseStatsEvent(msg);
+    while (state.KeepRunning()) {
+        std::unique_ptr<LogEvent> event = std::make_unique<LogEvent>(/*uid=*/1000, /*pid=*/1001);
+        benchmark::DoNotOptimize(event->parseBuffer(msg, size));
+    }
+}
+BENCHMARK(BM_LogEventHeapCreation);
+
+static void BM_LogEventPooledCreation(benchmark::State& state) {
+    uint8_t msg[LOGGER_ENTRY_MAX_PAYLOAD];
+    size_t size = createAndParseStatsEvent(msg);
+    LogEventPool pool(16);
+    while (state.KeepRunning()) {
+        std::unique_ptr<LogEvent> event = pool.obtain(/*uid=*/1000, /*pid=*/1001);
+        benchmark::DoNotOptimize(event->parseBuffer(msg, size));
+        pool.recycle(std::move(event));
+    }
+}
+BENCHMARK(BM_LogEventPooledCreation);
+
 }  //  namespace statsd
 }  //  namespace os
 }  //  namespace android
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <thread>
+#include <vector>
+
+#include "benchmark/benchmark.h"
+#include "logd/LogEventQueue.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+static const int kEventsPerProducer = 10000;
+
+// Pushes kEventsPerProducer events from each of state.range(0) producer threads while the
+// benchmark thread pops them, like StatsSocketListener and StatsService::readLogs. Producers
+// retry when the queue is full so that every event is counted. The allocation of the events
+// is included, as in StatsSocketListener.
+static void BM_LogEventQueuePushPop(benchmark::State& state) {
+    const int numProducers = state.range(0);
+    while (state.KeepRunning()) {
+        LogEventQueue queue(4000);
+        std::vector<std::thread> producers;
+        for (int p = 0; p < numProducers; p++) {
+            producers.emplace_back([&queue] {
+                int64_t oldestTimestampNs;
+                for (int i = 0; i < kEventsPerProducer; i++) {
+                    // A failed push drops the event, so allocate a new one for each attempt.
+                    while (!queue.push(std::make_unique<LogEvent>(/*uid=*/0, /*pid=*/0),
+                                       &oldestTimestampNs)) {
+                        std::this_thread::yield();
+                    }
+                }
+            });
+        }
+        for (int i = 0; i < numProducers * kEventsPerProducer; i++) {
+            benchmark::DoNotOptimize(queue.waitPop());
+        }
+        for (std::thread& producer : producers) {
+            producer.join();
+        }
+    }
+    state.SetItemsProcessed(state.iterations() * numProducers * kEventsPerProducer);
+}
+BENCHMARK(BM_LogEventQueuePushPop)->Arg(1)->Arg(4)->UseRealTime();
+
+}  //  namespace statsd
+}  //  namespace os
+}  //  namespace android
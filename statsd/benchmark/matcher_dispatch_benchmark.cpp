@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <string>
+
+#include "benchmark/benchmark.h"
+#include "metric_util.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+static const int kFirstAtomId = 100000;
+static const int kNumMetrics = 100;
+
+// A config with numMatchers matchers, each on its own atom, and count metrics on the first
+// kNumMetrics of them, half of them with a condition.
+static StatsdConfig CreateManyMatchersConfig(int numMatchers) {
+    StatsdConfig config;
+    config.set_id(12345);
+    config.add_allowed_log_source("AID_ROOT");
+    for (int i = 0; i < numMatchers; i++) {
+        *config.add_atom_matcher() =
+                CreateSimpleAtomMatcher("Matcher" + std::to_string(i), kFirstAtomId + i);
+    }
+    for (int i = 0; i + 1 < kNumMetrics; i += 2) {
+        Predicate* predicate = config.add_predicate();
+        predicate->set_id(StringToId("Predicate" + std::to_string(i)));
+        predicate->mutable_simple_predicate()->set_start(StringToId("Matcher" + std::to_string(i)));
+        predicate->mutable_simple_predicate()->set_stop(
+                StringToId("Matcher" + std::to_string(i + 1)));
+    }
+    for (int i = 0; i < kNumMetrics && i < numMatchers; i++) {
+        CountMetric* metric = config.add_count_metric();
+        metric->set_id(StringToId("Metric" + std::to_string(i)));
+        metric->set_what(StringToId("Matcher" + std::to_string(i)));
+        metric->set_bucket(FIVE_MINUTES);
+        if (i % 2 == 1) {
+            metric->set_condition(StringToId("Predicate" + std::to_string(i - 1)));
+        }
+    }
+    return config;
+}
+
+// Logs an event of the first atom, which is counted by a metric and starts a condition, to a
+// config with state.range(0) matchers.
+static void BM_MatcherDispatch(benchmark::State& state) {
+    const int numMatchers = state.range(0);
+    const ConfigKey key(0, 12345);
+    const int64_t timeBaseSec = 10;
+    auto processor = CreateStatsLogProcessor(timeBaseSec, CreateManyMatchersConfig(numMatchers),
+                                             key);
+
+    AStatsEvent* statsEvent = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(statsEvent, kFirstAtomId);
+    AStatsEvent_overwriteTimestamp(statsEvent, (timeBaseSec + 1) * NS_PER_SEC);
+    AStatsEvent_writeInt32(statsEvent, 1);
+    LogEvent event(/*uid=*/0, /*pid=*/0);
+    parseStatsEventToLogEvent(statsEvent, &event);
+
+    while (state.KeepRunning()) {
+        processor->OnLogEvent(&event);
+    }
+}
+BENCHMARK(BM_MatcherDispatch)->Arg(100)->Arg(1000)->Arg(2500);
+
+}  //  namespace statsd
+}  //  namespace os
+}  //  namespace android
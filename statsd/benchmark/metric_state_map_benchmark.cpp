@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <malloc.h>
+
+#include <algorithm>
+#include <random>
+#include <string>
+#include <unordered_map>
+#include <vector>
+
+#include "HashableDimensionKey.h"
+#include "benchmark/benchmark.h"
+#include "stats_util.h"
+#include "utils/FlatHashMap.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+using std::vector;
+
+namespace {
+
+// Keys sliced by uid and package name, as many count metrics are.
+vector<MetricDimensionKey> createDimensionKeys(int count) {
+    vector<MetricDimensionKey> keys;
+    keys.reserve(count);
+    for (int i = 0; i < count; i++) {
+        int pos[] = {1, 0, 0};
+        HashableDimensionKey whatKey;
+        whatKey.addValue(FieldValue(Field(10000, pos, 0), Value(10000 + i)));
+        pos[0] = 2;
+        whatKey.addValue(FieldValue(Field(10000, pos, 0),
+                                    Value(std::string("com.example.package") + std::to_string(i))));
+        keys.emplace_back(whatKey, DEFAULT_DIMENSION_KEY);
+    }
+    return keys;
+}
+
+// Visits each key once, in an order unrelated to the insertion order.
+vector<int> createUpdateOrder(int count) {
+    vector<int> order(count);
+    for (int i = 0; i < count; i++) {
+        order[i] = i;
+    }
+    std::shuffle(order.begin(), order.end(), std::mt19937(count));
+    return order;
+}
+
+}  // namespace
+
+template <typename Map>
+static void BM_MetricStateMapUpdate(benchmark::State& state) {
+    const vector<MetricDimensionKey> keys = createDimensionKeys(state.range(0));
+    const vector<int> order = createUpdateOrder(keys.size());
+
+    const size_t heapBytesBefore = mallinfo().uordblks;
+    Map map;
+    for (const MetricDimensionKey& key : keys) {
+        map[key] = 0;
+    }
+    const size_t heapBytesAfter = mallinfo().uordblks;
+
+    size_t i = 0;
+    while (state.KeepRunning()) {
+        map[keys[order[i]]]++;
+        if (++i == order.size()) {
+            i = 0;
+        }
+    }
+    // Includes the copies of the keys, which both maps keep.
+    state.counters["bytes_per_dimension"] =
+            (double)(heapBytesAfter - heapBytesBefore) / keys.size();
+}
+BENCHMARK_TEMPLATE(BM_MetricStateMapUpdate, std::unordered_map<MetricDimensionKey, int64_t>)
+        ->Arg(10000)
+        ->Arg(100000);
+BENCHMARK_TEMPLATE(BM_MetricStateMapUpdate, FlatHashMap<MetricDimensionKey, int64_t>)
+        ->Arg(10000)
+        ->Arg(100000);
+
+// Fills the map for a bucket, then clears it at the bucket boundary.
+template <typename Map>
+static void BM_MetricStateMapBucketReset(benchmark::State& state) {
+    const vector<MetricDimensionKey> keys = createDimensionKeys(state.range(0));
+    Map map;
+    while (state.KeepRunning()) {
+        for (const MetricDimensionKey& key : keys) {
+            map[key]++;
+        }
+        map.clear();
+    }
+}
+BENCHMARK_TEMPLATE(BM_MetricStateMapBucketReset, std::unordered_map<MetricDimensionKey, int64_t>)
+        ->Arg(10000)
+        ->Arg(100000);
+BENCHMARK_TEMPLATE(BM_MetricStateMapBucketReset, FlatHashMap<MetricDimensionKey, int64_t>)
+        ->Arg(10000)
+        ->Arg(100000);
+
+}  //  namespace statsd
+}  //  namespace os
+}  //  namespace android
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <string>
+#include <vector>
+
+#include "benchmark/benchmark.h"
+#include "metric_util.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+static const int kAtomId = 100000;
+static const int kNumConfigs = 16;
+static const int kMetricsPerConfig = 20;
+static const int kNumUids = 50;
+
+// A config with kMetricsPerConfig count metrics on kAtomId, each matching one value of field 1
+// and sliced by the uid in field 2.
+static StatsdConfig CreateSlicedCountConfig(int64_t configId) {
+    StatsdConfig config;
+    config.set_id(configId);
+    config.add_allowed_log_source("AID_ROOT");
+    for (int i = 0; i < kMetricsPerConfig; i++) {
+        AtomMatcher matcher = CreateSimpleAtomMatcher("Matcher" + std::to_string(i), kAtomId);
+        FieldValueMatcher* fieldValueMatcher =
+                matcher.mutable_simple_atom_matcher()->add_field_value_matcher();
+        fieldValueMatcher->set_field(1);
+        fieldValueMatcher->set_eq_int(i);
+        *config.add_atom_matcher() = matcher;
+
+        CountMetric* metric = config.add_count_metric();
+        metric->set_id(StringToId("Metric" + std::to_string(i)));
+        metric->set_what(matcher.id());
+        metric->set_bucket(FIVE_MINUTES);
+        *metric->mutable_dimensions_in_what() = CreateDimensions(kAtomId, {2});
+    }
+    return config;
+}
+
+// Logs events of kAtomId, which every one of kNumConfigs configs counts, with state.range(0)
+// processing workers.
+static void BM_ProcessingWorkers(benchmark::State& state) {
+    const int64_t timeBaseSec = 10;
+    auto processor = CreateStatsLogProcessor(timeBaseSec, CreateSlicedCountConfig(1),
+                                             ConfigKey(0, 1));
+    for (int i = 2; i <= kNumConfigs; i++) {
+        processor->OnConfigUpdated(timeBaseSec * NS_PER_SEC, ConfigKey(0, i),
+                                   CreateSlicedCountConfig(i));
+    }
+    processor->setProcessingWorkers(state.range(0));
+
+    std::vector<std::unique_ptr<LogEvent>> events;
+    for (int i = 0; i < kMetricsPerConfig * kNumUids; i++) {
+        AStatsEvent* statsEvent = AStatsEvent_obtain();
+        AStatsEvent_setAtomId(statsEvent, kAtomId);
+        AStatsEvent_overwriteTimestamp(statsEvent, (timeBaseSec + 1) * NS_PER_SEC);
+        AStatsEvent_writeInt32(statsEvent, i % kMetricsPerConfig);
+        AStatsEvent_writeInt32(statsEvent, 10000 + i / kMetricsPerConfig);
+        events.push_back(std::make_unique<LogEvent>(/*uid=*/0, /*pid=*/0));
+        parseStatsEventToLogEvent(statsEvent, events.back().get());
+    }
+
+    size_t next = 0;
+    while (state.KeepRunning()) {
+        processor->OnLogEvent(events[next].get());
+        next = (next + 1) % events.size();
+    }
+    state.SetItemsProcessed(state.iterations());
+}
+BENCHMARK(BM_ProcessingWorkers)->Arg(1)->Arg(2)->Arg(4)->UseRealTime();
+
+}  //  namespace statsd
+}  //  namespace os
+}  //  namespace android
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include <poll.h>
+#include <sys/socket.h>
+#include <unistd.h>
+
+#include <atomic>
+#include <thread>
+#include <vector>
+
+#include "benchmark/benchmark.h"
+#include "socket/StatsSocketListener.h"
+#include "stats_event.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+static const int kFloodEvents = 10000;
+
+// Builds a datagram as libstatssocket sends it: |android_log_header_t|StatsEventTag|event|.
+static std::vector<uint8_t> makeDatagram() {
+    AStatsEvent* event = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(event, 100);
+    AStatsEvent_writeInt32(event, 2);
+    AStatsEvent_writeFloat(event, 2.0);
+    AStatsEvent_build(event);
+    size_t size;
+    uint8_t* buf = AStatsEvent_getBuffer(event, &size);
+
+    std::vector<uint8_t> datagram(sizeof(android_log_header_t) + sizeof(uint32_t) + size, 0);
+    memcpy(datagram.data() + sizeof(android_log_header_t) + sizeof(uint32_t), buf, size);
+    AStatsEvent_release(event);
+    return datagram;
+}
+
+// Floods a datagram socket with kFloodEvents events, without blocking the writer, while the
+// benchmark thread reads them with up to state.range(0) datagrams per recvmmsg. Writes that fail
+// because the socket buffer is full are dropped, as libstatssocket does, and reported in the
+// drop_rate counter.
+static void BM_SocketListenerFlood(benchmark::State& state) {
+    const int maxBatchSize = state.range(0);
+    const std::vector<uint8_t> datagram = makeDatagram();
+    StatsSocketListener::ReceiveBuffers buffers;
+    int64_t sent = 0;
+    int64_t dropped = 0;
+    while (state.KeepRunning()) {
+        int fds[2];
+        if (socketpair(AF_UNIX, SOCK_DGRAM, 0, fds) != 0) {
+            state.SkipWithError("socketpair failed");
+            return;
+        }
+        // Large enough that no event is dropped by the queue, so only socket drops count.
+        LogEventQueue queue(kFloodEvents);
+
+        std::atomic<bool> writerDone(false);
+        std::thread writer([&] {
+            for (int i = 0; i < kFloodEvents; i++) {
+                if (send(fds[1], datagram.data(), datagram.size(), MSG_DONTWAIT) < 0) {
+                    dropped++;
+                }
+            }
+            writerDone = true;
+        });
+
+        while (true) {
+            const bool done = writerDone;
+            if (StatsSocketListener::readBatch(fds[0], maxBatchSize, &buffers, &queue) > 0) {
+                continue;
+            }
+            if (done) {
+                break;
+            }
+            struct pollfd pfd = {fds[0], POLLIN, 0};
+            poll(&pfd, 1, /*timeout=*/10);
+        }
+
+        writer.join();
+        sent += kFloodEvents;
+        close(fds[0]);
+        close(fds[1]);
+    }
+    state.SetItemsProcessed(sent - dropped);
+    state.counters["drop_rate"] = sent > 0 ? (double)dropped / sent : 0;
+}
+BENCHMARK(BM_SocketListenerFlood)
+        ->Arg(1)
+        ->Arg(StatsSocketListener::kMaxBatchSize)
+        ->UseRealTime();
+
+}  //  namespace statsd
+}  //  namespace os
+}  //  namespace android
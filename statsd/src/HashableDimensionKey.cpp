@@ -19,6 +19,9 @@
 #include "HashableDimensionKey.h"
 #include "FieldValue.h"
 
+#include <mutex>
+#include <unordered_map>
+
 namespace android {
 namespace os {
 namespace statsd {
@@ -95,25 +98,29 @@ static void populateStatsDimensionsValueParcelChildren(StatsDimensionsValueParce
 
 StatsDimensionsValueParcel HashableDimensionKey::toStatsDimensionsValueParcel() const {
     StatsDimensionsValueParcel root;
-    if (mValues.size() == 0) {
+    if (getValues().size() == 0) {
         return root;
     }
 
-    root.field = mValues[0].mField.getTag();
+    root.field = getValues()[0].mField.getTag();
     root.valueType = STATS_DIMENSIONS_VALUE_TUPLE_TYPE;
 
     // Children of the root correspond to top-level (depth = 0) FieldValues.
     int childDepth = 0;
     int childPrefix = 0;
     size_t index = 0;
-    populateStatsDimensionsValueParcelChildren(root, childDepth, childPrefix, mValues, index);
+    populateStatsDimensionsValueParcelChildren(root, childDepth, childPrefix, getValues(), index);
 
     return root;
 }
 
 android::hash_t hashDimension(const HashableDimensionKey& value) {
+    return value.getHash();
+}
+
+android::hash_t HashableDimensionKey::computeHash() const {
     android::hash_t hash = 0;
-    for (const auto& fieldValue : value.getValues()) {
+    for (const auto& fieldValue : getValues()) {
         hash = android::JenkinsHashMix(hash, android::hash_type((int)fieldValue.mField.getField()));
         hash = android::JenkinsHashMix(hash, android::hash_type((int)fieldValue.mField.getTag()));
         hash = android::JenkinsHashMix(hash, android::hash_type((int)fieldValue.mValue.getType()));
@@ -324,12 +331,20 @@ bool HashableDimensionKey::operator!=(const HashableDimensionKey& that) const {
 }
 
 bool HashableDimensionKey::operator==(const HashableDimensionKey& that) const {
-    if (mValues.size() != that.getValues().size()) {
+    // Equal interned keys always share their values.
+    if (mInterned != nullptr && that.mInterned != nullptr) {
+        return mInterned == that.mInterned;
+    }
+    if (getValues().size() != that.getValues().size()) {
         return false;
     }
-    size_t count = mValues.size();
+    // Keys in the same hash bucket usually differ, and have their hash already.
+    if (mHashValid && that.mHashValid && mHash != that.mHash) {
+        return false;
+    }
+    size_t count = getValues().size();
     for (size_t i = 0; i < count; i++) {
-        if (mValues[i] != (that.getValues())[i]) {
+        if (getValues()[i] != (that.getValues())[i]) {
             return false;
         }
     }
@@ -341,17 +356,17 @@ bool HashableDimensionKey::operator<(const HashableDimensionKey& that) const {
 };
 
 bool HashableDimensionKey::contains(const HashableDimensionKey& that) const {
-    if (mValues.size() < that.getValues().size()) {
+    if (getValues().size() < that.getValues().size()) {
         return false;
     }
 
-    if (mValues.size() == that.getValues().size()) {
+    if (getValues().size() == that.getValues().size()) {
         return (*this) == that;
     }
 
     for (const auto& value : that.getValues()) {
         bool found = false;
-        for (const auto& myValue : mValues) {
+        for (const auto& myValue : getValues()) {
             if (value.mField == myValue.mField && value.mValue == myValue.mValue) {
                 found = true;
                 break;
@@ -365,9 +380,80 @@ bool HashableDimensionKey::contains(const HashableDimensionKey& that) const {
     return true;
 }
 
+/**
+ * The values of the interned keys. Entries are removed when their last key releases them.
+ */
+class HashableDimensionKey::InternTable {
+public:
+    static InternTable& getInstance() {
+        // Never destroyed, since interned keys may be released after static destructors run.
+        static InternTable* table = new InternTable();
+        return *table;
+    }
+
+    std::shared_ptr<const InternedValues> intern(vector<FieldValue>&& values,
+                                                 android::hash_t hash) {
+        std::lock_guard<std::mutex> lock(mMutex);
+        auto range = mEntries.equal_range(hash);
+        for (auto it = range.first; it != range.second; it++) {
+            // The values cannot be freed while the mutex is held, see release().
+            if (it->second.values->values == values) {
+                std::shared_ptr<const InternedValues> interned = it->second.ref.lock();
+                // Unless the last key is releasing them.
+                if (interned != nullptr) {
+                    return interned;
+                }
+            }
+        }
+
+        InternedValues* internedValues = new InternedValues{std::move(values), hash};
+        std::shared_ptr<const InternedValues> interned(
+                internedValues, [](const InternedValues* p) { getInstance().release(p); });
+        mEntries.emplace(hash, Entry{internedValues, interned});
+        return interned;
+    }
+
+private:
+    struct Entry {
+        const InternedValues* values;
+        std::weak_ptr<const InternedValues> ref;
+    };
+
+    void release(const InternedValues* values) {
+        {
+            std::lock_guard<std::mutex> lock(mMutex);
+            auto range = mEntries.equal_range(values->hash);
+            for (auto it = range.first; it != range.second; it++) {
+                if (it->second.values == values) {
+                    mEntries.erase(it);
+                    break;
+                }
+            }
+        }
+        delete values;
+    }
+
+    std::mutex mMutex;
+    std::unordered_multimap<android::hash_t, Entry> mEntries;
+};
+
+void HashableDimensionKey::intern() {
+    if (mInterned != nullptr || mValues.empty()) {
+        return;
+    }
+    const android::hash_t hash = getHash();
+    mInterned = InternTable::getInstance().intern(std::move(mValues), hash);
+    mValues.clear();
+}
+
+void HashableDimensionKey::unintern() {
+    mValues = mInterned->values;
+    mInterned = nullptr;
+}
+
 string HashableDimensionKey::toString() const {
     std::string output;
-    for (const auto& value : mValues) {
+    for (const auto& value : getValues()) {
         output += StringPrintf("(%d)%#x->%s ", value.mField.getTag(), value.mField.getField(),
                                value.mValue.toString().c_str());
     }
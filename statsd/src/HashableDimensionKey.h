@@ -18,6 +18,7 @@
 
 #include <aidl/android/os/StatsDimensionsValueParcel.h>
 #include <utils/JenkinsHash.h>
+#include <memory>
 #include <vector>
 #include "android-base/stringprintf.h"
 #include "FieldValue.h"
@@ -50,35 +51,102 @@ struct Metric2State {
     std::vector<Matcher> stateFields;
 };
 
+/**
+ * The values of a dimension, hashed and compared as a whole.
+ *
+ * The hash is kept until the values change, since the same key is usually looked up in several
+ * maps. Keys constructed with their values have it computed right away, others the first time it
+ * is needed. It is copied with the key, so the values must only be changed through the mutators
+ * below, which discard it.
+ *
+ * The keys that metrics keep can be interned, see intern().
+ */
 class HashableDimensionKey {
 public:
-    explicit HashableDimensionKey(const std::vector<FieldValue>& values) {
-        mValues = values;
+    explicit HashableDimensionKey(const std::vector<FieldValue>& values)
+        : mValues(values), mHash(computeHash()), mHashValid(true) {
+    }
+
+    explicit HashableDimensionKey(std::vector<FieldValue>&& values)
+        : mValues(std::move(values)), mHash(computeHash()), mHashValid(true) {
+    }
+
+    HashableDimensionKey() : mHash(computeHash()), mHashValid(true) {
     }
 
-    HashableDimensionKey() {};
+    HashableDimensionKey(const HashableDimensionKey& that) = default;
 
-    HashableDimensionKey(const HashableDimensionKey& that) : mValues(that.getValues()){};
+    HashableDimensionKey& operator=(const HashableDimensionKey& that) = default;
+
+    // Moving leaves that empty, so its hash is discarded.
+    HashableDimensionKey(HashableDimensionKey&& that) noexcept
+        : mValues(std::move(that.mValues)),
+          mInterned(std::move(that.mInterned)),
+          mHash(that.mHash),
+          mHashValid(that.mHashValid) {
+        that.mValues.clear();
+        that.mInterned = nullptr;
+        that.mHashValid = false;
+    }
+
+    HashableDimensionKey& operator=(HashableDimensionKey&& that) noexcept {
+        if (this != &that) {
+            mValues = std::move(that.mValues);
+            mInterned = std::move(that.mInterned);
+            mHash = that.mHash;
+            mHashValid = that.mHashValid;
+            that.mValues.clear();
+            that.mInterned = nullptr;
+            that.mHashValid = false;
+        }
+        return *this;
+    }
 
     inline void addValue(const FieldValue& value) {
-        mValues.push_back(value);
+        mutableValues()->push_back(value);
     }
 
     inline const std::vector<FieldValue>& getValues() const {
-        return mValues;
+        return mInterned != nullptr ? mInterned->values : mValues;
     }
 
     inline std::vector<FieldValue>* mutableValues() {
+        if (mInterned != nullptr) {
+            unintern();
+        }
+        mHashValid = false;
         return &mValues;
     }
 
     inline FieldValue* mutableValue(size_t i) {
-        if (i >= 0 && i < mValues.size()) {
-            return &(mValues[i]);
+        if (i >= 0 && i < getValues().size()) {
+            return &(*mutableValues())[i];
         }
         return nullptr;
     }
 
+    inline android::hash_t getHash() const {
+        if (!mHashValid) {
+            mHash = computeHash();
+            mHashValid = true;
+        }
+        return mHash;
+    }
+
+    /**
+     * Shares the values with all the equal keys interned in statsd, across metrics and configs,
+     * instead of keeping a copy of them. Copying an interned key only takes a reference, and two
+     * interned keys are equal if and only if they share their values. The values are released
+     * with the last key using them.
+     *
+     * Changing the values of an interned key gives it its own copy first.
+     */
+    void intern();
+
+    inline bool isInterned() const {
+        return mInterned != nullptr;
+    }
+
     StatsDimensionsValueParcel toStatsDimensionsValueParcel() const;
 
     std::string toString() const;
@@ -92,7 +160,28 @@ public:
     bool contains(const HashableDimensionKey& that) const;
 
 private:
+    // Values shared by interned keys. They never change.
+    struct InternedValues {
+        std::vector<FieldValue> values;
+        android::hash_t hash;
+    };
+
+    class InternTable;
+
+    android::hash_t computeHash() const;
+
+    // Copies the interned values back to mValues.
+    void unintern();
+
+    // The values, unless the key is interned.
     std::vector<FieldValue> mValues;
+
+    std::shared_ptr<const InternedValues> mInterned;
+
+    // The first getHash() after a change must not race with other accesses to the key. Shared
+    // keys, like DEFAULT_DIMENSION_KEY, are never changed and have their hash from the start.
+    mutable android::hash_t mHash = 0;
+    mutable bool mHashValid = false;
 };
 
 class MetricDimensionKey {
@@ -103,12 +192,14 @@ public:
 
     MetricDimensionKey(){};
 
-    MetricDimensionKey(const MetricDimensionKey& that)
-        : mDimensionKeyInWhat(that.getDimensionKeyInWhat()),
-          mStateValuesKey(that.getStateValuesKey()){};
+    MetricDimensionKey(const MetricDimensionKey& that) = default;
+
+    MetricDimensionKey(MetricDimensionKey&& that) = default;
 
     MetricDimensionKey& operator=(const MetricDimensionKey& from) = default;
 
+    MetricDimensionKey& operator=(MetricDimensionKey&& from) = default;
+
     std::string toString() const;
 
     inline const HashableDimensionKey& getDimensionKeyInWhat() const {
@@ -131,6 +222,12 @@ public:
         return mStateValuesKey.getValues().size() > 0;
     }
 
+    // Interns both parts of the key, see HashableDimensionKey::intern().
+    inline void intern() {
+        mDimensionKeyInWhat.intern();
+        mStateValuesKey.intern();
+    }
+
     bool operator==(const MetricDimensionKey& that) const;
 
     bool operator<(const MetricDimensionKey& that) const;
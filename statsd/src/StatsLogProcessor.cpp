@@ -139,18 +139,24 @@ void StatsLogProcessor::onPeriodicAlarmFired(
 }
 
 void StatsLogProcessor::mapIsolatedUidToHostUidIfNecessaryLocked(LogEvent* event) const {
-    if (std::pair<size_t, size_t> indexRange; event->hasAttributionChain(&indexRange)) {
-        vector<FieldValue>* const fieldValues = event->getMutableValues();
-        for (size_t i = indexRange.first; i <= indexRange.second; i++) {
-            FieldValue& fieldValue = fieldValues->at(i);
-            if (isAttributionUidField(fieldValue)) {
-                const int hostUid = mUidMap->getHostUidOrSelf(fieldValue.mValue.int_value);
-                fieldValue.mValue.setInt(hostUid);
-            }
+    mapIsolatedUidsToHostUidInLogEvent(mUidMap, *event);
+}
+
+bool StatsLogProcessor::isAtomUsedLocked(const int atomId) const {
+    if (atomId == android::os::statsd::util::BINARY_PUSH_STATE_CHANGED ||
+        atomId == android::os::statsd::util::WATCHDOG_ROLLBACK_OCCURRED ||
+        atomId == android::os::statsd::util::ISOLATED_UID_CHANGED) {
+        return true;
+    }
+    if (StateManager::getInstance().hasStateTracker(atomId)) {
+        return true;
+    }
+    for (const auto& pair : mMetricsManagers) {
+        if (pair.second->isAtomUsed(atomId)) {
+            return true;
         }
-    } else {
-        mapIsolatedUidsToHostUidInLogEvent(mUidMap, *event);
     }
+    return false;
 }
 
 void StatsLogProcessor::onIsolatedUidChangedEventLocked(const LogEvent& event) {
@@ -387,7 +393,10 @@ void StatsLogProcessor::OnLogEvent(LogEvent* event, int64_t elapsedRealtimeNs) {
     const int64_t eventElapsedTimeNs = event->GetElapsedTimestampNs();
     int atomId = event->GetTagId();
     StatsdStats::getInstance().noteAtomLogged(atomId, eventElapsedTimeNs / NS_PER_SEC);
-    if (!event->isValid()) {
+    // The values of lazily parsed events are only parsed when they are accessed. Most atoms are
+    // not used by any config, so do not parse them just to check their validity.
+    const bool valuesUsed = mPrintAllLogs || isAtomUsedLocked(atomId);
+    if (valuesUsed ? !event->isValid() : !event->isHeaderValid()) {
         StatsdStats::getInstance().noteAtomError(atomId);
         return;
     }
@@ -413,8 +422,9 @@ void StatsLogProcessor::OnLogEvent(LogEvent* event, int64_t elapsedRealtimeNs) {
     // The field numbers need to be currently updated by hand with atoms.proto
     if (atomId == android::os::statsd::util::ISOLATED_UID_CHANGED) {
         onIsolatedUidChangedEventLocked(*event);
-    } else {
-        // Map the isolated uid to host uid if necessary.
+    } else if (valuesUsed) {
+        // Map the isolated uid to host uid if necessary. ShellSubscriber maps the uids of the
+        // unused atoms it subscribes to.
         mapIsolatedUidToHostUidIfNecessaryLocked(event);
     }
 
@@ -444,14 +454,24 @@ void StatsLogProcessor::OnLogEvent(LogEvent* event, int64_t elapsedRealtimeNs) {
         mLastPullerCacheClearTimeSec = curTimeSec;
     }
 
+    if (mWorkerPool != nullptr) {
+        onLogEventOnWorkersLocked(*event);
+    }
+
     std::unordered_set<int> uidsWithActiveConfigsChanged;
     std::unordered_map<int, std::vector<int64_t>> activeConfigsPerUid;
+    size_t managerIndex = 0;
     // pass the event to metrics managers.
     for (auto& pair : mMetricsManagers) {
         int uid = pair.first.GetUid();
         int64_t configId = pair.first.GetId();
-        bool isPrevActive = pair.second->isActive();
-        pair.second->onLogEvent(*event);
+        bool isPrevActive;
+        if (mWorkerPool != nullptr) {
+            isPrevActive = mManagersWereActive[managerIndex++];
+        } else {
+            isPrevActive = pair.second->isActive();
+            pair.second->onLogEvent(*event);
+        }
         bool isCurActive = pair.second->isActive();
         // Map all active configs by uid.
         if (isCurActive) {
@@ -501,6 +521,52 @@ void StatsLogProcessor::OnLogEvent(LogEvent* event, int64_t elapsedRealtimeNs) {
     }
 }
 
+void StatsLogProcessor::onLogEventOnWorkersLocked(const LogEvent& event) {
+    const int numShards = mWorkerPool->getNumShards();
+    for (int shard = 0; shard < numShards; shard++) {
+        mShardManagers[shard].clear();
+        mShardsWithManagers[shard] = false;
+    }
+    mManagersWereActive.clear();
+
+    const int atomId = event.GetTagId();
+    std::hash<ConfigKey> hasher;
+    for (auto& pair : mMetricsManagers) {
+        mManagersWereActive.push_back(pair.second->isActive());
+        // The other managers only expire their activations, which is cheap, so they all stay on
+        // the calling thread. The values of atoms that a manager uses are already parsed, so the
+        // workers only read the event.
+        const int shard =
+                pair.second->isAtomUsed(atomId) ? hasher(pair.first) % numShards : 0;
+        mShardManagers[shard].push_back(pair.second.get());
+        mShardsWithManagers[shard] = true;
+    }
+
+    mWorkerPool->run(
+            [this, &event](int shard) {
+                for (MetricsManager* manager : mShardManagers[shard]) {
+                    manager->onLogEvent(event);
+                }
+            },
+            mShardsWithManagers);
+}
+
+void StatsLogProcessor::setProcessingWorkers(int numWorkers) {
+    std::lock_guard<std::mutex> lock(mMetricsMutex);
+    if (numWorkers <= 1) {
+        mWorkerPool = nullptr;
+        mShardManagers.clear();
+        mShardsWithManagers.clear();
+        return;
+    }
+    if (mWorkerPool != nullptr && mWorkerPool->getNumShards() == numWorkers) {
+        return;
+    }
+    mWorkerPool = std::make_unique<WorkerPool>(numWorkers);
+    mShardManagers.assign(numWorkers, {});
+    mShardsWithManagers.assign(numWorkers, false);
+}
+
 void StatsLogProcessor::GetActiveConfigs(const int uid, vector<int64_t>& outActiveConfigs) {
     std::lock_guard<std::mutex> lock(mMetricsMutex);
     GetActiveConfigsLocked(uid, outActiveConfigs);
@@ -560,6 +626,43 @@ void StatsLogProcessor::OnConfigUpdatedLocked(const int64_t timestampNs, const C
         ALOGE("StatsdConfig NOT valid");
         mMetricsManagers.erase(key);
     }
+    updateUnsampledAtomsLocked();
+}
+
+void StatsLogProcessor::setUnsampledAtomsListener(
+        const std::function<void(const std::vector<int>&)>& unsampledAtomsListener) {
+    std::lock_guard<std::mutex> lock(mMetricsMutex);
+    mUnsampledAtomsListener = unsampledAtomsListener;
+}
+
+void StatsLogProcessor::resendUnsampledAtoms() {
+    std::lock_guard<std::mutex> lock(mMetricsMutex);
+    if (mUnsampledAtomsListener) {
+        mUnsampledAtomsListener(mUnsampledAtoms);
+    }
+}
+
+void StatsLogProcessor::setShellSubscribedAtoms(const std::set<int>& atomIds) {
+    std::lock_guard<std::mutex> lock(mMetricsMutex);
+    mShellSubscribedAtoms = atomIds;
+    updateUnsampledAtomsLocked();
+}
+
+void StatsLogProcessor::updateUnsampledAtomsLocked() {
+    // The shell client gets each event as logged, so it cannot account for aggregated counts.
+    std::set<int> atomIds = mShellSubscribedAtoms;
+    for (const auto& [key, metricsManager] : mMetricsManagers) {
+        metricsManager->addUnsampledAtoms(&atomIds);
+    }
+    std::vector<int> unsampledAtoms(atomIds.begin(), atomIds.end());
+    if (unsampledAtoms == mUnsampledAtoms) {
+        return;
+    }
+    mUnsampledAtoms = std::move(unsampledAtoms);
+    // Sent under mMetricsMutex, so that the listener gets the updates in order.
+    if (mUnsampledAtomsListener) {
+        mUnsampledAtomsListener(mUnsampledAtoms);
+    }
 }
 
 size_t StatsLogProcessor::GetMetricsSize(const ConfigKey& key) const {
@@ -787,6 +890,7 @@ void StatsLogProcessor::OnConfigRemoved(const ConfigKey& key) {
     if (mMetricsManagers.empty()) {
         mPullerManager->ForceClearPullerCache();
     }
+    updateUnsampledAtomsLocked();
 }
 
 void StatsLogProcessor::flushIfNecessaryLocked(const ConfigKey& key,
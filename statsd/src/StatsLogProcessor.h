@@ -21,6 +21,7 @@
 #include "logd/LogEvent.h"
 #include "metrics/MetricsManager.h"
 #include "packages/UidMap.h"
+#include "utils/WorkerPool.h"
 #include "external/StatsPullerManager.h"
 
 #include "src/statsd_config.pb.h"
@@ -144,6 +145,14 @@ public:
         mPrintAllLogs = enabled;
     }
 
+    /**
+     * Processes each event on up to numWorkers threads, with the configs sharded across them.
+     * The configs using the atom of the event are processed by the worker of their shard, and
+     * OnLogEvent returns once all of them are done, so the events of a config are still
+     * processed in order. 1, the default, processes every config on the calling thread.
+     */
+    void setProcessingWorkers(int numWorkers);
+
     // Add a specific config key to the possible configs to dump ASAP.
     void noteOnDiskData(const ConfigKey& key);
 
@@ -151,6 +160,19 @@ public:
 
     void cancelAnomalyAlarm();
 
+    /**
+     * Sets the function told of the atoms that the logging processes must not sample, sorted,
+     * whenever the configs change them. See MetricsManager::addUnsampledAtoms.
+     */
+    void setUnsampledAtomsListener(
+            const std::function<void(const std::vector<int>&)>& unsampledAtomsListener);
+
+    // Tells the listener of the current unsampled atoms, e.g. after it restarted.
+    void resendUnsampledAtoms();
+
+    // Sets the pushed atoms that the shell subscription gets, which must stay unsampled too.
+    void setShellSubscribedAtoms(const std::set<int>& atomIds);
+
 private:
     // For testing only.
     inline sp<AlarmMonitor> getAnomalyAlarmMonitor() const {
@@ -170,6 +192,16 @@ private:
 
     std::unordered_map<ConfigKey, sp<MetricsManager>> mMetricsManagers;
 
+    // Processes the metrics managers in parallel when there are several processing workers.
+    std::unique_ptr<WorkerPool> mWorkerPool;
+
+    // Reused by each event processed on the workers: the metrics managers of each shard, whether
+    // a shard has any, and whether each manager was active before the event, in the order of
+    // mMetricsManagers.
+    std::vector<std::vector<MetricsManager*>> mShardManagers;
+    std::vector<bool> mShardsWithManagers;
+    std::vector<bool> mManagersWereActive;
+
     std::unordered_map<ConfigKey, int64_t> mLastBroadcastTimes;
 
     // Last time we sent a broadcast to this uid that the active configs had changed.
@@ -193,6 +225,10 @@ private:
 
     void resetIfConfigTtlExpiredLocked(const int64_t eventTimeNs);
 
+    // Passes the event to all the metrics managers, those using its atom on the worker of their
+    // shard, and records in mManagersWereActive whether they were active before.
+    void onLogEventOnWorkersLocked(const LogEvent& event);
+
     void OnConfigUpdatedLocked(const int64_t currentTimestampNs, const ConfigKey& key,
                                const StatsdConfig& config, bool modularUpdate);
 
@@ -235,6 +271,13 @@ private:
     // Maps the isolated uid in the log event to host uid if the log event contains uid fields.
     void mapIsolatedUidToHostUidIfNecessaryLocked(LogEvent* event) const;
 
+    // Returns whether the values of the events of this atom are needed, beyond their atom id and
+    // timestamp.
+    bool isAtomUsedLocked(const int atomId) const;
+
+    // Recomputes mUnsampledAtoms after a config change, and tells the listener if they changed.
+    void updateUnsampledAtomsLocked();
+
     // Handler over the isolated uid change event.
     void onIsolatedUidChangedEventLocked(const LogEvent& event);
 
@@ -276,6 +319,15 @@ private:
     // are currently active.
     std::function<bool(const int& uid, const vector<int64_t>& configIds)> mSendActivationBroadcast;
 
+    std::function<void(const std::vector<int>&)> mUnsampledAtomsListener;
+
+    // Pushed atoms of the current shell subscription.
+    std::set<int> mShellSubscribedAtoms;
+
+    // Atoms used by the configs other than as the what of count metrics, and by the shell
+    // subscription, sorted.
+    std::vector<int> mUnsampledAtoms;
+
     const int64_t mTimeBaseNs;
 
     // Largest timestamp of the events that we have processed.
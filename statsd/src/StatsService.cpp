@@ -22,11 +22,13 @@
 #include "android-base/stringprintf.h"
 #include "config/ConfigKey.h"
 #include "config/ConfigManager.h"
+#include "flags/FlagProvider.h"
 #include "guardrail/StatsdStats.h"
 #include "storage/StorageManager.h"
 #include "subscriber/SubscriberReporter.h"
 
 #include <android-base/file.h>
+#include <android-base/parseint.h>
 #include <android-base/strings.h>
 #include <cutils/multiuser.h>
 #include <src/statsd_config.pb.h>
@@ -57,6 +59,8 @@ constexpr const char* kPermissionRegisterPullAtom = "android.permission.REGISTER
 
 constexpr const char* kIncludeCertificateHash = "include_certificate_hash";
 
+constexpr int kMaxProcessingWorkers = 4;
+
 #define STATS_SERVICE_DIR "/data/misc/stats-service"
 
 // for StatsDataDumpProto
@@ -164,9 +168,28 @@ StatsService::StatsService(const sp<Looper>& handlerLooper, shared_ptr<LogEventQ
                 return false;
             });
 
+    mProcessor->setUnsampledAtomsListener([this](const vector<int>& atomIds) {
+        shared_ptr<IStatsCompanionService> receiver;
+        {
+            std::lock_guard<std::mutex> lock(mUnsampledAtomsReceiverMutex);
+            receiver = mUnsampledAtomsReceiver;
+        }
+        if (receiver != nullptr) {
+            receiver->setUnsampledAtoms(atomIds);
+        }
+    });
+
     mUidMap->setListener(mProcessor);
     mConfigManager->AddListener(mProcessor);
 
+    const string processingWorkersFlag =
+            FlagProvider::getInstance().getBootFlagString(PROCESSING_WORKERS_FLAG, "1");
+    int processingWorkers;
+    if (android::base::ParseInt(processingWorkersFlag, &processingWorkers, 1,
+                                kMaxProcessingWorkers)) {
+        mProcessor->setProcessingWorkers(processingWorkers);
+    }
+
     init_system_properties();
 
     if (mEventQueue != nullptr) {
@@ -192,6 +215,8 @@ void StatsService::readLogs() {
         if (mShellSubscriber != nullptr) {
             mShellSubscriber->onLogEvent(*event);
         }
+        // Nothing keeps the event once processed, so it can be reused for the next atoms.
+        mEventQueue->getEventPool()->recycle(std::move(event));
     }
 }
 
@@ -360,7 +385,10 @@ status_t StatsService::handleShellCommand(int in, int out, int err, const char**
             {
                 std::lock_guard<std::mutex> lock(mShellSubscriberMutex);
                 if (mShellSubscriber == nullptr) {
-                    mShellSubscriber = new ShellSubscriber(mUidMap, mPullerManager);
+                    mShellSubscriber = new ShellSubscriber(
+                            mUidMap, mPullerManager, [this](const std::set<int>& atomIds) {
+                                mProcessor->setShellSubscribedAtoms(atomIds);
+                            });
                 }
             }
             int timeoutSec = -1;
@@ -1068,6 +1096,11 @@ Status StatsService::statsCompanionReady() {
     mPullerManager->SetStatsCompanionService(statsCompanion);
     mAnomalyAlarmMonitor->setStatsCompanionService(statsCompanion);
     mPeriodicAlarmMonitor->setStatsCompanionService(statsCompanion);
+    {
+        std::lock_guard<std::mutex> lock(mUnsampledAtomsReceiverMutex);
+        mUnsampledAtomsReceiver = statsCompanion;
+    }
+    mProcessor->resendUnsampledAtoms();
     return Status::ok();
 }
 
@@ -1307,14 +1340,43 @@ Status StatsService::getRegisteredExperimentIds(std::vector<int64_t>* experiment
 Status StatsService::updateProperties(const vector<PropertyParcel>& properties) {
     ENFORCE_UID(AID_SYSTEM);
 
+    vector<pair<string, string>> propertyValues;
+    propertyValues.reserve(properties.size());
     for (const auto& [property, value] : properties) {
+        propertyValues.emplace_back(property, value);
+    }
+
+    // Only act on properties whose value differs from what was last delivered.
+    FlagProvider& flagProvider = FlagProvider::getInstance();
+    for (const string& property : flagProvider.updateJavaProperties(propertyValues)) {
         if (property == kIncludeCertificateHash) {
-            mUidMap->setIncludeCertificateHash(value == "true");
+            mUidMap->setIncludeCertificateHash(
+                    flagProvider.getJavaPropertyString(kIncludeCertificateHash, FLAG_FALSE) ==
+                    FLAG_TRUE);
         }
     }
     return Status::ok();
 }
 
+Status StatsService::noteStatsdRecovery(int64_t replayMillis, int64_t totalMillis,
+                                        const vector<string>& phaseNames,
+                                        const vector<int64_t>& phaseMillis) {
+    ENFORCE_UID(AID_SYSTEM);
+
+    if (phaseNames.size() != phaseMillis.size()) {
+        ALOGE("Recovery has %zu phase names but %zu phase timings", phaseNames.size(),
+              phaseMillis.size());
+        return Status::ok();
+    }
+    vector<pair<string, int64_t>> phases;
+    phases.reserve(phaseNames.size());
+    for (size_t i = 0; i < phaseNames.size(); i++) {
+        phases.emplace_back(phaseNames[i], phaseMillis[i]);
+    }
+    StatsdStats::getInstance().noteStatsdRecovery(replayMillis, totalMillis, phases);
+    return Status::ok();
+}
+
 void StatsService::statsCompanionServiceDied(void* cookie) {
     auto thiz = static_cast<StatsService*>(cookie);
     thiz->statsCompanionServiceDiedImpl();
@@ -1347,6 +1409,8 @@ void StatsService::statsCompanionServiceDiedImpl() {
     mAnomalyAlarmMonitor->setStatsCompanionService(nullptr);
     mPeriodicAlarmMonitor->setStatsCompanionService(nullptr);
     mPullerManager->SetStatsCompanionService(nullptr);
+    std::lock_guard<std::mutex> lock(mUnsampledAtomsReceiverMutex);
+    mUnsampledAtomsReceiver = nullptr;
 }
 
 }  // namespace statsd
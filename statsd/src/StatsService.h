@@ -205,6 +205,13 @@ public:
      */
     virtual Status updateProperties(const std::vector<PropertyParcel>& properties);
 
+    /**
+     * Binder call to record the timings of StatsCompanionService's replay after a restart.
+     */
+    virtual Status noteStatsdRecovery(int64_t replayMillis, int64_t totalMillis,
+                                      const std::vector<std::string>& phaseNames,
+                                      const std::vector<int64_t>& phaseMillis);
+
 private:
     /**
      * Load system properties at init.
@@ -387,6 +394,14 @@ private:
      * Mutex for setting the shell subscriber
      */
     mutable mutex mShellSubscriberMutex;
+
+    /**
+     * StatsCompanionService, told of the atoms that system_server must not sample. Null while
+     * it is not ready.
+     */
+    shared_ptr<IStatsCompanionService> mUnsampledAtomsReceiver;
+    mutable mutex mUnsampledAtomsReceiverMutex;
+
     std::shared_ptr<LogEventQueue> mEventQueue;
 
     MultiConditionTrigger mBootCompleteTrigger;
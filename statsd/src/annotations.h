@@ -27,6 +27,7 @@ const uint8_t ANNOTATION_ID_EXCLUSIVE_STATE = 4;
 const uint8_t ANNOTATION_ID_PRIMARY_FIELD_FIRST_UID = 5;
 const uint8_t ANNOTATION_ID_TRIGGER_STATE_RESET = 7;
 const uint8_t ANNOTATION_ID_STATE_NESTED = 8;
+const uint8_t ANNOTATION_ID_AGGREGATED_COUNT = 9;
 
 } // namespace statsd
 } // namespace os
@@ -114,6 +114,13 @@ public:
         return mTrackerIndex;
     }
 
+    // Get the indices of the conditions this condition combines. evaluateCondition may evaluate
+    // them too. Empty for simple conditions.
+    virtual const std::vector<int>& getChildren() const {
+        static const std::vector<int> kNoChildren;
+        return kNoChildren;
+    }
+
     virtual void setSliced(bool sliced) {
         mSliced = mSliced | sliced;
     }
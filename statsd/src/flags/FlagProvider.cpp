@@ -18,7 +18,10 @@
 
 using android::modules::sdklevel::IsAtLeastS;
 using server_configurable_flags::GetServerConfigurableFlag;
+using std::pair;
+using std::shared_ptr;
 using std::string;
+using std::unordered_map;
 using std::vector;
 
 namespace android {
@@ -26,7 +29,9 @@ namespace os {
 namespace statsd {
 
 FlagProvider::FlagProvider()
-    : mIsAtLeastSFunc(IsAtLeastS), mGetServerFlagFunc(GetServerConfigurableFlag) {
+    : mIsAtLeastSFunc(IsAtLeastS),
+      mGetServerFlagFunc(GetServerConfigurableFlag),
+      mJavaProperties(std::make_shared<const unordered_map<string, string>>()) {
 }
 
 FlagProvider& FlagProvider::getInstance() {
@@ -61,6 +66,49 @@ void FlagProvider::initBootFlags(const vector<string>& flags) {
     }
 }
 
+vector<string> FlagProvider::updateJavaProperties(const vector<pair<string, string>>& properties) {
+    std::lock_guard<std::mutex> lock(mJavaPropertiesUpdateMutex);
+    const shared_ptr<const unordered_map<string, string>> current = getJavaProperties();
+    vector<string> changedProperties;
+    shared_ptr<unordered_map<string, string>> updated;
+    for (const auto& [propertyName, value] : properties) {
+        const unordered_map<string, string>& latest = updated ? *updated : *current;
+        const auto it = latest.find(propertyName);
+        const bool unchanged = value == FLAG_EMPTY ? it == latest.end()
+                                                   : it != latest.end() && it->second == value;
+        if (unchanged) {
+            continue;
+        }
+        // Copy the snapshot lazily so that updates which change nothing do not allocate.
+        if (!updated) {
+            updated = std::make_shared<unordered_map<string, string>>(*current);
+        }
+        if (value == FLAG_EMPTY) {
+            updated->erase(propertyName);
+        } else {
+            (*updated)[propertyName] = value;
+        }
+        changedProperties.push_back(propertyName);
+    }
+    if (updated) {
+        std::lock_guard<std::mutex> propertiesLock(mJavaPropertiesMutex);
+        mJavaProperties = std::move(updated);
+    }
+    return changedProperties;
+}
+
+shared_ptr<const unordered_map<string, string>> FlagProvider::getJavaProperties() const {
+    std::lock_guard<std::mutex> lock(mJavaPropertiesMutex);
+    return mJavaProperties;
+}
+
+string FlagProvider::getJavaPropertyString(const string& propertyName,
+                                           const string& defaultValue) const {
+    const shared_ptr<const unordered_map<string, string>> properties = getJavaProperties();
+    const auto& it = properties->find(propertyName);
+    return it == properties->end() ? defaultValue : it->second;
+}
+
 void FlagProvider::overrideFlag(const string& flagName, const std::string& flagValue,
                                 const bool isBootFlag) {
     std::lock_guard<std::mutex> lock(mFlagsMutex);
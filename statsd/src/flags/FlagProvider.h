@@ -23,8 +23,10 @@
 #include <gtest/gtest_prod.h>
 #include <server_configurable_flags/get_flags.h>
 
+#include <memory>
 #include <mutex>
 #include <string>
+#include <utility>
 
 namespace android {
 namespace os {
@@ -41,6 +43,10 @@ const std::string FLAG_TRUE = "true";
 const std::string FLAG_FALSE = "false";
 const std::string FLAG_EMPTY = "";
 
+// Boot flag with the number of threads processing the pushed events, see
+// StatsLogProcessor::setProcessingWorkers.
+const std::string PROCESSING_WORKERS_FLAG = "processing_workers";
+
 class FlagProvider {
 public:
     static FlagProvider& getInstance();
@@ -59,6 +65,16 @@ public:
     // Queries the boot flags. Should only be called once at boot.
     void initBootFlags(const std::vector<std::string>& flags);
 
+    // Applies statsd_java properties pushed by StatsCompanionService. Only the given properties
+    // are changed; an empty value removes the property. Returns the names of the properties whose
+    // value actually changed. Readers of java properties only hold a lock to copy the snapshot
+    // pointer.
+    std::vector<std::string> updateJavaProperties(
+            const std::vector<std::pair<std::string, std::string>>& properties);
+
+    std::string getJavaPropertyString(const std::string& propertyName,
+                                      const std::string& defaultValue) const;
+
 private:
     FlagProvider();
 
@@ -77,6 +93,8 @@ private:
         std::lock_guard<std::mutex> lock(mFlagsMutex);
         overrideFuncsLocked();
         mLocalFlags.clear();
+        std::lock_guard<std::mutex> propertiesLock(mJavaPropertiesMutex);
+        mJavaProperties = std::make_shared<const std::unordered_map<std::string, std::string>>();
     }
 
     void overrideFlag(const std::string& flagName, const std::string& flagValue,
@@ -98,6 +116,18 @@ private:
 
     mutable std::mutex mFlagsMutex;
 
+    std::shared_ptr<const std::unordered_map<std::string, std::string>> getJavaProperties() const;
+
+    // Immutable snapshot of the statsd_java properties. Updates build a new snapshot and swap it
+    // in, so that reads from the event processing path only hold a lock to copy the pointer.
+    std::shared_ptr<const std::unordered_map<std::string, std::string>> mJavaProperties;
+
+    // Guards mJavaProperties, the pointer only.
+    mutable std::mutex mJavaPropertiesMutex;
+
+    // Serializes writers of mJavaProperties.
+    std::mutex mJavaPropertiesUpdateMutex;
+
     friend class ConfigUpdateE2eTest;
     friend class ConfigUpdateTest;
     friend class EventMetricE2eTest;
@@ -52,6 +52,8 @@ const int FIELD_ID_SYSTEM_SERVER_RESTART = 15;
 const int FIELD_ID_LOGGER_ERROR_STATS = 16;
 const int FIELD_ID_OVERFLOW = 18;
 const int FIELD_ID_ACTIVATION_BROADCAST_GUARDRAIL = 19;
+const int FIELD_ID_LOG_EVENT_ALLOCATIONS = 20;
+const int FIELD_ID_STATSD_RECOVERY = 21;
 
 const int FIELD_ID_ATOM_STATS_TAG = 1;
 const int FIELD_ID_ATOM_STATS_COUNT = 2;
@@ -71,6 +73,18 @@ const int FIELD_ID_OVERFLOW_COUNT = 1;
 const int FIELD_ID_OVERFLOW_MAX_HISTORY = 2;
 const int FIELD_ID_OVERFLOW_MIN_HISTORY = 3;
 
+const int FIELD_ID_LOG_EVENT_ALLOCATIONS_REUSED = 1;
+const int FIELD_ID_LOG_EVENT_ALLOCATIONS_ALLOCATED = 2;
+const int FIELD_ID_LOG_EVENT_ALLOCATIONS_FREED = 3;
+
+// for StatsdRecoveryStats proto
+const int FIELD_ID_STATSD_RECOVERY_TIME = 1;
+const int FIELD_ID_STATSD_RECOVERY_REPLAY_MILLIS = 2;
+const int FIELD_ID_STATSD_RECOVERY_TOTAL_MILLIS = 3;
+const int FIELD_ID_STATSD_RECOVERY_PHASE = 4;
+const int FIELD_ID_STATSD_RECOVERY_PHASE_NAME = 1;
+const int FIELD_ID_STATSD_RECOVERY_PHASE_MILLIS = 2;
+
 const int FIELD_ID_CONFIG_STATS_UID = 1;
 const int FIELD_ID_CONFIG_STATS_ID = 2;
 const int FIELD_ID_CONFIG_STATS_CREATION = 3;
@@ -274,6 +288,23 @@ void StatsdStats::noteEventQueueOverflow(int64_t oldestEventTimestampNs) {
     }
 }
 
+void StatsdStats::noteLogEventAllocations(int64_t reused, int64_t allocated, int64_t freed) {
+    lock_guard<std::mutex> lock(mLock);
+    mLogEventsReused += reused;
+    mLogEventsAllocated += allocated;
+    mLogEventsFreed += freed;
+}
+
+void StatsdStats::noteStatsdRecovery(int64_t replayMillis, int64_t totalMillis,
+                                     const vector<std::pair<string, int64_t>>& phaseMillis) {
+    lock_guard<std::mutex> lock(mLock);
+    if (mStatsdRecoveryStats.size() == kMaxStatsdRecoveries) {
+        mStatsdRecoveryStats.pop_front();
+    }
+    mStatsdRecoveryStats.push_back(
+            {getWallClockSec(), replayMillis, totalMillis, phaseMillis});
+}
+
 void StatsdStats::noteDataDropped(const ConfigKey& key, const size_t totalBytes, int32_t timeSec) {
     lock_guard<std::mutex> lock(mLock);
     auto it = mConfigStats.find(key);
@@ -534,6 +565,11 @@ void StatsdStats::noteBadValueType(int64_t metricId) {
     getAtomMetricStats(metricId).badValueType++;
 }
 
+void StatsdStats::noteAggregatedCountDropped(int64_t metricId) {
+    lock_guard<std::mutex> lock(mLock);
+    getAtomMetricStats(metricId).aggregatedCountDropped++;
+}
+
 void StatsdStats::noteBucketDropped(int64_t metricId) {
     lock_guard<std::mutex> lock(mLock);
     getAtomMetricStats(metricId).bucketDropped++;
@@ -605,10 +641,14 @@ void StatsdStats::resetInternalLocked() {
     mAnomalyAlarmRegisteredStats = 0;
     mPeriodicAlarmRegisteredStats = 0;
     mSystemServerRestartSec.clear();
+    mStatsdRecoveryStats.clear();
     mLogLossStats.clear();
     mOverflowCount = 0;
     mMinQueueHistoryNs = kInt64Max;
     mMaxQueueHistoryNs = 0;
+    mLogEventsReused = 0;
+    mLogEventsAllocated = 0;
+    mLogEventsFreed = 0;
     for (auto& config : mConfigStats) {
         config.second->broadcast_sent_time_sec.clear();
         config.second->activation_time_sec.clear();
@@ -835,6 +875,17 @@ void StatsdStats::dumpStats(int out) const {
                 (long long)restart);
     }
 
+    for (const auto& recovery : mStatsdRecoveryStats) {
+        dprintf(out, "Statsd recovery at %s(%lld): replay %lld ms, total %lld ms",
+                buildTimeString(recovery.mWallClockSec).c_str(),
+                (long long)recovery.mWallClockSec, (long long)recovery.mReplayMillis,
+                (long long)recovery.mTotalMillis);
+        for (const auto& [phase, millis] : recovery.mPhaseMillis) {
+            dprintf(out, ", %s %lld ms", phase.c_str(), (long long)millis);
+        }
+        dprintf(out, "\n");
+    }
+
     for (const auto& loss : mLogLossStats) {
         dprintf(out,
                 "Log loss: %lld (wall clock sec) - %d (count), %d (last error), %d (last tag), %d "
@@ -846,6 +897,10 @@ void StatsdStats::dumpStats(int out) const {
     dprintf(out, "Event queue overflow: %d; MaxHistoryNs: %lld; MinHistoryNs: %lld\n",
             mOverflowCount, (long long)mMaxQueueHistoryNs, (long long)mMinQueueHistoryNs);
 
+    dprintf(out, "LogEvents reused: %lld; allocated: %lld; freed: %lld\n",
+            (long long)mLogEventsReused, (long long)mLogEventsAllocated,
+            (long long)mLogEventsFreed);
+
     if (mActivationBroadcastGuardrailStats.size() > 0) {
         dprintf(out, "********mActivationBroadcastGuardrail stats***********\n");
         for (const auto& pair: mActivationBroadcastGuardrailStats) {
@@ -1060,11 +1115,43 @@ void StatsdStats::dumpStats(std::vector<uint8_t>* output, bool reset) {
         proto.end(token);
     }
 
+    if (mLogEventsReused > 0 || mLogEventsAllocated > 0 || mLogEventsFreed > 0) {
+        uint64_t token = proto.start(FIELD_TYPE_MESSAGE | FIELD_ID_LOG_EVENT_ALLOCATIONS);
+        proto.write(FIELD_TYPE_INT64 | FIELD_ID_LOG_EVENT_ALLOCATIONS_REUSED,
+                    (long long)mLogEventsReused);
+        proto.write(FIELD_TYPE_INT64 | FIELD_ID_LOG_EVENT_ALLOCATIONS_ALLOCATED,
+                    (long long)mLogEventsAllocated);
+        proto.write(FIELD_TYPE_INT64 | FIELD_ID_LOG_EVENT_ALLOCATIONS_FREED,
+                    (long long)mLogEventsFreed);
+        proto.end(token);
+    }
+
     for (const auto& restart : mSystemServerRestartSec) {
         proto.write(FIELD_TYPE_INT32 | FIELD_ID_SYSTEM_SERVER_RESTART | FIELD_COUNT_REPEATED,
                     restart);
     }
 
+    for (const auto& recovery : mStatsdRecoveryStats) {
+        uint64_t token = proto.start(FIELD_TYPE_MESSAGE | FIELD_ID_STATSD_RECOVERY |
+                                     FIELD_COUNT_REPEATED);
+        proto.write(FIELD_TYPE_INT32 | FIELD_ID_STATSD_RECOVERY_TIME, recovery.mWallClockSec);
+        proto.write(FIELD_TYPE_INT64 | FIELD_ID_STATSD_RECOVERY_REPLAY_MILLIS,
+                    (long long)recovery.mReplayMillis);
+        if (recovery.mTotalMillis >= 0) {
+            proto.write(FIELD_TYPE_INT64 | FIELD_ID_STATSD_RECOVERY_TOTAL_MILLIS,
+                        (long long)recovery.mTotalMillis);
+        }
+        for (const auto& [phase, millis] : recovery.mPhaseMillis) {
+            uint64_t phaseToken = proto.start(FIELD_TYPE_MESSAGE | FIELD_ID_STATSD_RECOVERY_PHASE |
+                                              FIELD_COUNT_REPEATED);
+            proto.write(FIELD_TYPE_STRING | FIELD_ID_STATSD_RECOVERY_PHASE_NAME, phase);
+            proto.write(FIELD_TYPE_INT64 | FIELD_ID_STATSD_RECOVERY_PHASE_MILLIS,
+                        (long long)millis);
+            proto.end(phaseToken);
+        }
+        proto.end(token);
+    }
+
     for (const auto& pair: mActivationBroadcastGuardrailStats) {
         uint64_t token = proto.start(FIELD_TYPE_MESSAGE |
                                      FIELD_ID_ACTIVATION_BROADCAST_GUARDRAIL |
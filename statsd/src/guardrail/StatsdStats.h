@@ -114,6 +114,8 @@ public:
 
     const static int kMaxSystemServerRestarts = 20;
 
+    const static int kMaxStatsdRecoveries = 20;
+
     const static int kMaxTimestampCount = 20;
 
     const static int kMaxLogSourceCount = 150;
@@ -428,6 +430,12 @@ public:
      */
     void noteBadValueType(int64_t metricId);
 
+    /**
+     * An event standing for several aggregated occurrences was dropped by a metric that is not a
+     * count metric.
+     */
+    void noteAggregatedCountDropped(int64_t metricId);
+
     /**
      * Buckets were dropped due to reclaim memory.
      */
@@ -463,6 +471,20 @@ public:
      * the queue */
     void noteEventQueueOverflow(int64_t oldestEventTimestampNs);
 
+    /**
+     * Reports the socket events that reused a pooled LogEvent, the ones that needed a new
+     * allocation, and the events freed because the pool was full.
+     */
+    void noteLogEventAllocations(int64_t reused, int64_t allocated, int64_t freed);
+
+    /**
+     * Reports how long StatsCompanionService took to replay the state statsd lost when it
+     * restarted, in total and per phase. totalMillis is negative if the death of statsd was not
+     * observed.
+     */
+    void noteStatsdRecovery(int64_t replayMillis, int64_t totalMillis,
+                            const std::vector<std::pair<std::string, int64_t>>& phaseMillis);
+
     /**
      * Reports that the activation broadcast guardrail was hit for this uid. Namely, the broadcast
      * should have been sent, but instead was skipped due to hitting the guardrail.
@@ -547,6 +569,7 @@ public:
         int64_t maxBucketBoundaryDelayNs = 0;
         long bucketUnknownCondition = 0;
         long bucketCount = 0;
+        long aggregatedCountDropped = 0;
     } AtomMetricStats;
 
 private:
@@ -623,11 +646,27 @@ private:
     // Total number of events that are lost due to queue overflow.
     int32_t mOverflowCount = 0;
 
+    // Socket events that reused a pooled LogEvent, that were allocated, and that were freed
+    // because the pool was full.
+    int64_t mLogEventsReused = 0;
+    int64_t mLogEventsAllocated = 0;
+    int64_t mLogEventsFreed = 0;
+
     // Timestamps when we detect log loss, and the number of logs lost.
     std::list<LogLossStats> mLogLossStats;
 
     std::list<int32_t> mSystemServerRestartSec;
 
+    struct StatsdRecoveryStats {
+        int32_t mWallClockSec;
+        int64_t mReplayMillis;
+        int64_t mTotalMillis;
+        std::vector<std::pair<std::string, int64_t>> mPhaseMillis;
+    };
+
+    // Timings of the last kMaxStatsdRecoveries recoveries.
+    std::list<StatsdRecoveryStats> mStatsdRecoveryStats;
+
     // Stores the number of times statsd modified the anomaly alarm registered with
     // StatsCompanionService.
     int mAnomalyAlarmRegisteredStats = 0;
@@ -673,6 +712,7 @@ private:
     FRIEND_TEST(StatsdStatsTest, TestPullAtomStats);
     FRIEND_TEST(StatsdStatsTest, TestAtomMetricsStats);
     FRIEND_TEST(StatsdStatsTest, TestActivationBroadcastGuardrailHit);
+    FRIEND_TEST(StatsdStatsTest, TestStatsdRecovery);
     FRIEND_TEST(StatsdStatsTest, TestAtomErrorStats);
 
     FRIEND_TEST(StatsLogProcessorTest, InvalidConfigRemoved);
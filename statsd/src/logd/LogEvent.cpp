@@ -33,6 +33,11 @@ namespace statsd {
 // for TrainInfo experiment id serialization
 const int FIELD_ID_EXPERIMENT_ID = 1;
 
+// Storage kept by reset(). Larger events give theirs back, so that a pooled event does not hold
+// on to the memory of the largest atom it ever carried.
+const size_t kMaxRetainedValues = 64;
+const size_t kMaxRetainedFieldBytes = 1024;
+
 using namespace android::util;
 using android::base::StringPrintf;
 using android::util::ProtoOutputStream;
@@ -364,6 +369,21 @@ void LogEvent::parseStateNestedAnnotation(uint8_t annotationType,
     mValues[mValues.size() - 1].mAnnotations.setNested(nested);
 }
 
+void LogEvent::parseAggregatedCountAnnotation(uint8_t annotationType) {
+    // Allowed types: atom-level INT annotation with a positive count.
+    if (!mValues.empty() || annotationType != INT32_TYPE) {
+        mValid = false;
+        return;
+    }
+
+    const int32_t count = readNextValue<int32_t>();
+    if (count < 1) {
+        mValid = false;
+        return;
+    }
+    mAggregatedCount = count;
+}
+
 // firstUidInChainIndex is a default parameter that is only needed when parsing
 // annotations for attribution chains.
 // numElements is a default param that is only needed when parsing annotations for repeated fields
@@ -395,6 +415,9 @@ void LogEvent::parseAnnotations(uint8_t numAnnotations, std::optional<uint8_t> n
             case ANNOTATION_ID_STATE_NESTED:
                 parseStateNestedAnnotation(annotationType, numElements);
                 break;
+            case ANNOTATION_ID_AGGREGATED_COUNT:
+                parseAggregatedCountAnnotation(annotationType);
+                break;
             default:
                 mValid = false;
                 return;
@@ -408,9 +431,71 @@ bool LogEvent::parseBuffer(uint8_t* buf, size_t len) {
     mBuf = buf;
     mRemainingLen = (uint32_t)len;
 
-    int32_t pos[] = {1, 1, 1};
-    bool last[] = {false, false, false};
+    const uint8_t numElements = parseHeader();
+    parseFields(numElements);
+
+    mBuf = nullptr;
+    return mValid;
+}
+
+bool LogEvent::parseBufferLazily(uint8_t* buf, size_t len) {
+    mBuf = buf;
+    mRemainingLen = (uint32_t)len;
 
+    const uint8_t numElements = parseHeader();
+    if (mValid) {
+        if (mRemainingLen > 0) {
+            mDeferredFields.assign(mBuf, mBuf + mRemainingLen);
+            mNumDeferredElements = numElements;
+        } else {
+            parseFields(numElements);
+        }
+    }
+
+    mBuf = nullptr;
+    return mValid;
+}
+
+void LogEvent::parseDeferredFieldsNow() {
+    std::vector<uint8_t> fields;
+    fields.swap(mDeferredFields);
+    mBuf = fields.data();
+    mRemainingLen = (uint32_t)fields.size();
+    parseFields(mNumDeferredElements);
+    mBuf = nullptr;
+    // Keep the buffer, for when the event is reset and reused.
+    fields.clear();
+    mDeferredFields.swap(fields);
+}
+
+void LogEvent::reset(int32_t uid, int32_t pid) {
+    if (mValues.capacity() > kMaxRetainedValues) {
+        vector<FieldValue>().swap(mValues);
+    } else {
+        mValues.clear();
+    }
+    if (mDeferredFields.capacity() > kMaxRetainedFieldBytes) {
+        vector<uint8_t>().swap(mDeferredFields);
+    } else {
+        mDeferredFields.clear();
+    }
+    mNumDeferredElements = 0;
+    mValid = true;
+    mLogdTimestampNs = time(nullptr);
+    mElapsedTimestampNs = 0;
+    mTagId = 0;
+    mLogUid = uid;
+    mLogPid = pid;
+    mTruncateTimestamp = false;
+    mResetState = -1;
+    mAggregatedCount = 1;
+    mNumUidFields = 0;
+    mAttributionChainStartIndex.reset();
+    mAttributionChainEndIndex.reset();
+    mExclusiveStateFieldIndex.reset();
+}
+
+uint8_t LogEvent::parseHeader() {
     // Beginning of buffer is OBJECT_TYPE | NUM_FIELDS | TIMESTAMP | ATOM_ID
     uint8_t typeInfo = readNextValue<uint8_t>();
     if (getTypeId(typeInfo) != OBJECT_TYPE) mValid = false;
@@ -428,6 +513,13 @@ bool LogEvent::parseBuffer(uint8_t* buf, size_t len) {
     mTagId = readNextValue<int32_t>();
     numElements--;
     parseAnnotations(getNumAnnotations(typeInfo));  // atom-level annotations
+    return numElements;
+}
+
+void LogEvent::parseFields(uint8_t numElements) {
+    int32_t pos[] = {1, 1, 1};
+    bool last[] = {false, false, false};
+    uint8_t typeInfo;
 
     for (pos[0] = 1; pos[0] <= numElements && mValid; pos[0]++) {
         last[0] = (pos[0] == numElements);
@@ -474,8 +566,6 @@ bool LogEvent::parseBuffer(uint8_t* buf, size_t len) {
     }
 
     if (mRemainingLen != 0) mValid = false;
-    mBuf = nullptr;
-    return mValid;
 }
 
 uint8_t LogEvent::getTypeId(uint8_t typeInfo) {
@@ -487,6 +577,7 @@ uint8_t LogEvent::getNumAnnotations(uint8_t typeInfo) {
 }
 
 int64_t LogEvent::GetLong(size_t key, status_t* err) const {
+    parseDeferredFields();
     // TODO(b/110561208): encapsulate the magical operations in Field struct as static functions
     int field = getSimpleField(key);
     for (const auto& value : mValues) {
@@ -510,6 +601,7 @@ int64_t LogEvent::GetLong(size_t key, status_t* err) const {
 }
 
 int LogEvent::GetInt(size_t key, status_t* err) const {
+    parseDeferredFields();
     int field = getSimpleField(key);
     for (const auto& value : mValues) {
         if (value.mField.getField() == field) {
@@ -530,6 +622,7 @@ int LogEvent::GetInt(size_t key, status_t* err) const {
 }
 
 const char* LogEvent::GetString(size_t key, status_t* err) const {
+    parseDeferredFields();
     int field = getSimpleField(key);
     for (const auto& value : mValues) {
         if (value.mField.getField() == field) {
@@ -550,6 +643,7 @@ const char* LogEvent::GetString(size_t key, status_t* err) const {
 }
 
 bool LogEvent::GetBool(size_t key, status_t* err) const {
+    parseDeferredFields();
     int field = getSimpleField(key);
     for (const auto& value : mValues) {
         if (value.mField.getField() == field) {
@@ -572,6 +666,7 @@ bool LogEvent::GetBool(size_t key, status_t* err) const {
 }
 
 float LogEvent::GetFloat(size_t key, status_t* err) const {
+    parseDeferredFields();
     int field = getSimpleField(key);
     for (const auto& value : mValues) {
         if (value.mField.getField() == field) {
@@ -592,6 +687,7 @@ float LogEvent::GetFloat(size_t key, status_t* err) const {
 }
 
 std::vector<uint8_t> LogEvent::GetStorage(size_t key, status_t* err) const {
+    parseDeferredFields();
     int field = getSimpleField(key);
     for (const auto& value : mValues) {
         if (value.mField.getField() == field) {
@@ -612,6 +708,7 @@ std::vector<uint8_t> LogEvent::GetStorage(size_t key, status_t* err) const {
 }
 
 string LogEvent::ToString() const {
+    parseDeferredFields();
     string result;
     result += StringPrintf("{ uid(%d) %lld %lld (%d)", mLogUid, (long long)mLogdTimestampNs,
                            (long long)mElapsedTimestampNs, mTagId);
@@ -624,10 +721,12 @@ string LogEvent::ToString() const {
 }
 
 void LogEvent::ToProto(ProtoOutputStream& protoOutput) const {
+    parseDeferredFields();
     writeFieldValueTreeToStream(mTagId, getValues(), &protoOutput);
 }
 
 bool LogEvent::hasAttributionChain(std::pair<size_t, size_t>* indexRange) const {
+    parseDeferredFields();
     if (!mAttributionChainStartIndex || !mAttributionChainEndIndex) {
         return false;
     }
@@ -93,6 +93,25 @@ public:
      */
     bool parseBuffer(uint8_t* buf, size_t len);
 
+    /**
+     * Like parseBuffer, but only parses the header up front: the atomId, the timestamp and the
+     * atom-level annotations. The rest of the buffer is copied, and the values are parsed the
+     * first time they, or anything derived from them, are accessed. Events that nothing looks
+     * at then cost little more than a copy.
+     *
+     * Because of this, the accessors of a lazily parsed event modify it, even though they are
+     * const. The event must not be accessed from several threads at once.
+     *
+     * \return whether the header is valid. isValid() tells whether the whole event is.
+     */
+    bool parseBufferLazily(uint8_t* buf, size_t len);
+
+    /**
+     * Clears the event so that it can be reused for another atom, as if it had just been
+     * constructed with uid and pid. The storage of its values is kept, unless it is large.
+     */
+    void reset(int32_t uid, int32_t pid);
+
     // Constructs a BinaryPushStateChanged LogEvent from API call.
     explicit LogEvent(const std::string& trainName, int64_t trainVersionCode, bool requiresStaging,
                       bool rollbackEnabled, bool requiresLowLatencyMonitor, int32_t state,
@@ -164,14 +183,17 @@ public:
     }
 
     inline int size() const {
+        parseDeferredFields();
         return mValues.size();
     }
 
     const std::vector<FieldValue>& getValues() const {
+        parseDeferredFields();
         return mValues;
     }
 
     std::vector<FieldValue>* getMutableValues() {
+        parseDeferredFields();
         return &mValues;
     }
 
@@ -181,6 +203,7 @@ public:
     }
 
     inline uint8_t getNumUidFields() const {
+        parseDeferredFields();
         return mNumUidFields;
     }
 
@@ -200,17 +223,26 @@ public:
     //    }
     // Note that atomIndex is 1-indexed.
     inline std::optional<size_t> getExclusiveStateFieldIndex() const {
+        parseDeferredFields();
         return mExclusiveStateFieldIndex;
     }
 
     // If a reset state is not sent in the StatsEvent, returns -1. Note that a
     // reset state is sent if and only if a reset should be triggered.
     inline int getResetState() const {
+        parseDeferredFields();
         return mResetState;
     }
 
+    // Number of occurrences this event stands for. Events that were pre-aggregated by the
+    // client carry the count in an atom-level annotation; all other events count once.
+    inline int32_t getAggregatedCount() const {
+        return mAggregatedCount;
+    }
+
     template <class T>
     status_t updateValue(size_t key, T& value, Type type) {
+        parseDeferredFields();
         int field = getSimpleField(key);
         for (auto& fieldValue : mValues) {
             if (fieldValue.mField.getField() == field) {
@@ -226,6 +258,15 @@ public:
     }
 
     bool isValid() const {
+        parseDeferredFields();
+        return mValid;
+    }
+
+    /**
+     * Like isValid, but does not parse the values of a lazily parsed event: only tells whether
+     * what was parsed so far is valid.
+     */
+    bool isHeaderValid() const {
         return mValid;
     }
 
@@ -235,6 +276,19 @@ public:
     LogEvent(const LogEvent&) = default;
 
 private:
+    // Parses the header at mBuf, and returns the number of values that follow it.
+    uint8_t parseHeader();
+    // Parses numElements values at mBuf.
+    void parseFields(uint8_t numElements);
+
+    inline void parseDeferredFields() const {
+        if (!mDeferredFields.empty()) {
+            // LogEvents are never created const, so this is safe.
+            const_cast<LogEvent*>(this)->parseDeferredFieldsNow();
+        }
+    }
+    void parseDeferredFieldsNow();
+
     void parseInt32(int32_t* pos, int32_t depth, bool* last, uint8_t numAnnotations);
     void parseInt64(int32_t* pos, int32_t depth, bool* last, uint8_t numAnnotations);
     void parseString(int32_t* pos, int32_t depth, bool* last, uint8_t numAnnotations);
@@ -257,8 +311,13 @@ private:
     void parseTriggerStateResetAnnotation(uint8_t annotationType,
                                           std::optional<uint8_t> numElements);
     void parseStateNestedAnnotation(uint8_t annotationType, std::optional<uint8_t> numElements);
+    void parseAggregatedCountAnnotation(uint8_t annotationType);
     bool checkPreviousValueType(Type expected);
 
+    // The encoded values of a lazily parsed event, until they are parsed.
+    std::vector<uint8_t> mDeferredFields;
+    uint8_t mNumDeferredElements = 0;
+
     /**
      * The below two variables are only valid during the execution of
      * parseBuffer. There are no guarantees about the state of these variables
@@ -335,6 +394,7 @@ private:
     // Annotations
     bool mTruncateTimestamp = false;
     int mResetState = -1;
+    int32_t mAggregatedCount = 1;
 
     size_t mNumUidFields = 0;
 
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#define STATSD_DEBUG false  // STOPSHIP if true
+#include "Log.h"
+
+#include "LogEventPool.h"
+
+#include "guardrail/StatsdStats.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+using std::lock_guard;
+using std::unique_ptr;
+
+LogEventPool::LogEventPool(size_t maxSize) : mMaxSize(maxSize) {
+    mFreeEvents.reserve(maxSize);
+}
+
+unique_ptr<LogEvent> LogEventPool::obtain(int32_t uid, int32_t pid) {
+    unique_ptr<LogEvent> event;
+    {
+        lock_guard<std::mutex> lock(mMutex);
+        if (mFreeEvents.empty()) {
+            mAllocatedCount++;
+        } else {
+            event = std::move(mFreeEvents.back());
+            mFreeEvents.pop_back();
+            mReusedCount++;
+        }
+    }
+
+    if (event == nullptr) {
+        return std::make_unique<LogEvent>(uid, pid);
+    }
+    event->reset(uid, pid);
+    return event;
+}
+
+void LogEventPool::recycle(unique_ptr<LogEvent> event) {
+    if (event == nullptr) {
+        return;
+    }
+    {
+        lock_guard<std::mutex> lock(mMutex);
+        if (mFreeEvents.size() < mMaxSize) {
+            mFreeEvents.push_back(std::move(event));
+            return;
+        }
+        mFreedCount++;
+    }
+    // The event is freed here, outside of the lock.
+}
+
+void LogEventPool::flushStats() {
+    int64_t reused;
+    int64_t allocated;
+    int64_t freed;
+    {
+        lock_guard<std::mutex> lock(mMutex);
+        reused = mReusedCount;
+        allocated = mAllocatedCount;
+        freed = mFreedCount;
+        mReusedCount = 0;
+        mAllocatedCount = 0;
+        mFreedCount = 0;
+    }
+    if (reused > 0 || allocated > 0 || freed > 0) {
+        StatsdStats::getInstance().noteLogEventAllocations(reused, allocated, freed);
+    }
+}
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#pragma once
+
+#include "LogEvent.h"
+
+#include <memory>
+#include <mutex>
+#include <vector>
+
+namespace android {
+namespace os {
+namespace statsd {
+
+/**
+ * A thread safe pool of LogEvents, so that the events of the socket and the storage of their
+ * values are reused instead of being allocated and freed for each atom.
+ *
+ * The socket listener obtains the events, and the thread processing them recycles them once
+ * they are processed.
+ */
+class LogEventPool {
+public:
+    explicit LogEventPool(size_t maxSize);
+
+    /**
+     * Returns an event for an atom logged by uid and pid, as if newly constructed. A recycled
+     * event is used if there is one.
+     */
+    std::unique_ptr<LogEvent> obtain(int32_t uid, int32_t pid);
+
+    /**
+     * Gives back an event that is no longer used. It is freed if the pool is full.
+     */
+    void recycle(std::unique_ptr<LogEvent> event);
+
+    /**
+     * Reports the events reused, allocated and freed since the last call to StatsdStats, so that
+     * the stats lock is not taken for each event.
+     */
+    void flushStats();
+
+private:
+    const size_t mMaxSize;
+
+    std::mutex mMutex;
+    std::vector<std::unique_ptr<LogEvent>> mFreeEvents;
+
+    int64_t mReusedCount = 0;
+    int64_t mAllocatedCount = 0;
+    int64_t mFreedCount = 0;
+};
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -19,6 +19,8 @@
 
 #include "LogEventQueue.h"
 
+#include <algorithm>
+
 namespace android {
 namespace os {
 namespace statsd {
@@ -26,35 +28,125 @@ namespace statsd {
 using std::unique_lock;
 using std::unique_ptr;
 
-unique_ptr<LogEvent> LogEventQueue::waitPop() {
-    std::unique_lock<std::mutex> lock(mMutex);
+// Events are recycled about as fast as they are obtained, the pool only needs to absorb bursts.
+const size_t kMaxPooledEvents = 256;
 
-    if (mQueue.empty()) {
-        mCondition.wait(lock, [this] { return !this->mQueue.empty(); });
+LogEventQueue::LogEventQueue(size_t maxSize)
+    : mQueueLimit(maxSize),
+      mSlots(new Slot[maxSize]),
+      mEnqueuePos(0),
+      mDequeuePos(0),
+      mConsumerWaiting(false),
+      mEventPool(std::min(maxSize, kMaxPooledEvents)) {
+    for (size_t i = 0; i < mQueueLimit; i++) {
+        mSlots[i].sequence.store(i, std::memory_order_relaxed);
+        mSlots[i].timestampNs.store(0, std::memory_order_relaxed);
+        mSlots[i].event = nullptr;
     }
+}
 
-    unique_ptr<LogEvent> item = std::move(mQueue.front());
-    mQueue.pop();
+LogEventQueue::~LogEventQueue() {
+    while (tryPop() != nullptr) {
+    }
+}
+
+bool LogEventQueue::hasReadyEvent() const {
+    const Slot& slot = mSlots[mDequeuePos % mQueueLimit];
+    return slot.sequence.load(std::memory_order_acquire) == mDequeuePos + 1;
+}
 
+unique_ptr<LogEvent> LogEventQueue::tryPop() {
+    if (!hasReadyEvent()) {
+        return nullptr;
+    }
+    Slot& slot = mSlots[mDequeuePos % mQueueLimit];
+    unique_ptr<LogEvent> item(slot.event);
+    slot.event = nullptr;
+    // Hand the slot to the producer that will push one lap later.
+    slot.sequence.store(mDequeuePos + mQueueLimit, std::memory_order_release);
+    mDequeuePos++;
+    return item;
+}
+
+unique_ptr<LogEvent> LogEventQueue::waitPop() {
+    unique_ptr<LogEvent> item = tryPop();
+    while (item == nullptr) {
+        {
+            std::unique_lock<std::mutex> lock(mMutex);
+            mConsumerWaiting.store(true, std::memory_order_relaxed);
+            // Pairs with the fence in push(): either the producer sees mConsumerWaiting and
+            // notifies, or the event is visible here and we do not wait.
+            std::atomic_thread_fence(std::memory_order_seq_cst);
+            mCondition.wait(lock, [this] { return hasReadyEvent(); });
+            mConsumerWaiting.store(false, std::memory_order_relaxed);
+        }
+        item = tryPop();
+    }
     return item;
 }
 
 bool LogEventQueue::push(unique_ptr<LogEvent> item, int64_t* oldestTimestampNs) {
-    bool success;
-    {
-        std::unique_lock<std::mutex> lock(mMutex);
-        if (mQueue.size() < mQueueLimit) {
-            mQueue.push(std::move(item));
-            success = true;
-        } else {
-            // safe operation as queue must not be empty.
-            *oldestTimestampNs = mQueue.front()->GetElapsedTimestampNs();
-            success = false;
+    return pushEvents(&item, 1, oldestTimestampNs) == 1;
+}
+
+size_t LogEventQueue::pushBatch(std::vector<unique_ptr<LogEvent>>* events,
+                                int64_t* oldestTimestampNs) {
+    return pushEvents(events->data(), events->size(), oldestTimestampNs);
+}
+
+size_t LogEventQueue::pushEvents(unique_ptr<LogEvent>* events, size_t numEvents,
+                                 int64_t* oldestTimestampNs) {
+    const auto isFree = [this](size_t pos) {
+        return mSlots[pos % mQueueLimit].sequence.load(std::memory_order_acquire) == pos;
+    };
+    size_t pos = mEnqueuePos.load(std::memory_order_relaxed);
+    size_t count;
+    while (true) {
+        // Slots are freed in order by the consumer, so count the free ones from pos.
+        count = 0;
+        while (count < numEvents && isFree(pos + count)) {
+            count++;
+        }
+        if (count > 0) {
+            if (mEnqueuePos.compare_exchange_weak(pos, pos + count, std::memory_order_relaxed)) {
+                break;
+            }
+            // pos now holds the current enqueue position, try again from there.
+            continue;
         }
+
+        const Slot& slot = mSlots[pos % mQueueLimit];
+        const intptr_t diff =
+                (intptr_t)slot.sequence.load(std::memory_order_acquire) - (intptr_t)pos;
+        if (diff < 0) {
+            // The slot still holds the event pushed one lap earlier, which is the oldest
+            // event in the queue, so the queue is full.
+            *oldestTimestampNs = slot.timestampNs.load(std::memory_order_relaxed);
+            return 0;
+        }
+        // Another producer claimed pos, reload.
+        pos = mEnqueuePos.load(std::memory_order_relaxed);
+    }
+
+    for (size_t i = 0; i < count; i++) {
+        Slot& slot = mSlots[(pos + i) % mQueueLimit];
+        slot.timestampNs.store(events[i]->GetElapsedTimestampNs(), std::memory_order_relaxed);
+        slot.event = events[i].release();
+        slot.sequence.store(pos + i + 1, std::memory_order_release);
+    }
+    if (count < numEvents) {
+        *oldestTimestampNs =
+                mSlots[(pos + count) % mQueueLimit].timestampNs.load(std::memory_order_relaxed);
     }
 
-    mCondition.notify_one();
-    return success;
+    std::atomic_thread_fence(std::memory_order_seq_cst);
+    if (mConsumerWaiting.load(std::memory_order_relaxed)) {
+        // Taking the lock ensures the consumer is either waiting, or has not yet checked for
+        // the events, so the notification cannot be lost.
+        std::lock_guard<std::mutex> lock(mMutex);
+        mCondition.notify_one();
+    }
+    return count;
 }
 
 }  // namespace statsd
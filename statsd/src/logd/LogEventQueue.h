@@ -17,10 +17,13 @@
 #pragma once
 
 #include "LogEvent.h"
+#include "LogEventPool.h"
 
+#include <atomic>
 #include <condition_variable>
+#include <memory>
 #include <mutex>
-#include <queue>
+#include <vector>
 
 namespace android {
 namespace os {
@@ -28,13 +31,23 @@ namespace statsd {
 
 /**
  * A zero copy thread safe queue buffer for producing and consuming LogEvent.
+ *
+ * The queue is a bounded lock-free ring with many producers and a single consumer. Each slot
+ * carries a sequence number that tells whether it is free for the producer claiming it, or
+ * holds an event ready for the consumer. The mutex and condition variable are only used to put
+ * the consumer to sleep when the queue is empty, and producers only take the mutex when the
+ * consumer is actually sleeping.
  */
 class LogEventQueue {
 public:
-    explicit LogEventQueue(size_t maxSize) : mQueueLimit(maxSize){};
+    // maxSize must be at least 2.
+    explicit LogEventQueue(size_t maxSize);
+
+    ~LogEventQueue();
 
     /**
      * Blocking read one event from the queue.
+     * Must only be called from one thread at a time.
      */
     std::unique_ptr<LogEvent> waitPop();
 
@@ -45,11 +58,54 @@ public:
      */
     bool push(std::unique_ptr<LogEvent> event, int64_t* oldestTimestampNs);
 
+    /**
+     * Puts the events to the end of the queue, in order, claiming their slots at once.
+     * Returns the number of events pushed. When the queue is full, the events that did not fit
+     * are left in events, from the end of the batch, and the oldest event timestamp in the
+     * queue is output.
+     */
+    size_t pushBatch(std::vector<std::unique_ptr<LogEvent>>* events, int64_t* oldestTimestampNs);
+
+    /**
+     * The pool that the producers obtain events from, and that the consumer recycles the
+     * events it popped to once they are processed.
+     */
+    LogEventPool* getEventPool() {
+        return &mEventPool;
+    }
+
 private:
+    struct Slot {
+        // pos when the slot is free for the producer at position pos, pos + 1 when it holds the
+        // event pushed at position pos.
+        std::atomic<size_t> sequence;
+        // Atomic so that a producer finding the queue full can read it while the consumer pops.
+        std::atomic<int64_t> timestampNs;
+        LogEvent* event;
+    };
+
+    size_t pushEvents(std::unique_ptr<LogEvent>* events, size_t count,
+                      int64_t* oldestTimestampNs);
+
+    // Pops the oldest event if one is ready, without blocking.
+    std::unique_ptr<LogEvent> tryPop();
+
+    // Whether the event at mDequeuePos has been pushed.
+    bool hasReadyEvent() const;
+
     const size_t mQueueLimit;
+    const std::unique_ptr<Slot[]> mSlots;
+
+    // Next position to push at, shared by the producers.
+    alignas(64) std::atomic<size_t> mEnqueuePos;
+
+    // Next position to pop from, only used by the consumer.
+    alignas(64) size_t mDequeuePos;
+    std::atomic<bool> mConsumerWaiting;
     std::condition_variable mCondition;
     std::mutex mMutex;
-    std::queue<std::unique_ptr<LogEvent>> mQueue;
+
+    LogEventPool mEventPool;
 };
 
 }  // namespace statsd
@@ -77,10 +77,10 @@ int main(int /*argc*/, char** /*argv*/) {
     ABinderProcess_startThreadPool();
 
     std::shared_ptr<LogEventQueue> eventQueue =
-            std::make_shared<LogEventQueue>(4000 /*buffer limit. Buffer is NOT pre-allocated*/);
+            std::make_shared<LogEventQueue>(4000 /*buffer limit. Slots are pre-allocated*/);
 
     // Initialize boot flags
-    FlagProvider::getInstance().initBootFlags({});
+    FlagProvider::getInstance().initBootFlags({PROCESSING_WORKERS_FLAG});
 
     // Create the service
     gStatsService = SharedRefBase::make<StatsService>(looper, eventQueue);
@@ -79,6 +79,13 @@ public:
         return mAtomIds;
     }
 
+    // Get the indices of the matchers this matcher combines. onLogEvent may write the results of
+    // these matchers to matcherResults too. Empty for simple matchers.
+    virtual const std::vector<int>& getChildren() const {
+        static const std::vector<int> kNoChildren;
+        return kNoChildren;
+    }
+
     int64_t getId() const {
         return mId;
     }
@@ -44,6 +44,10 @@ public:
                     const std::vector<sp<AtomMatchingTracker>>& allAtomMatchingTrackers,
                     std::vector<MatchingState>& matcherResults) override;
 
+    const std::vector<int>& getChildren() const override {
+        return mChildren;
+    }
+
 private:
     LogicalOperation mLogicalOperation;
 
@@ -339,12 +339,14 @@ void CountMetricProducer::onMatchedLogEventInternalLocked(
         if (hitGuardRailLocked(eventKey)) {
             return;
         }
-        // create a counter for the new key
-        (*mCurrentSlicedCounter)[eventKey] = 1;
+        // create a counter for the new key, sharing its values with the other metrics using it
+        MetricDimensionKey newKey = eventKey;
+        newKey.intern();
+        (*mCurrentSlicedCounter)[newKey] = event.getAggregatedCount();
     } else {
         // increment the existing value
         auto& count = it->second;
-        count++;
+        count += event.getAggregatedCount();
     }
     for (auto& tracker : mAnomalyTrackers) {
         int64_t countWholeBucket = mCurrentSlicedCounter->find(eventKey)->second;
@@ -646,7 +646,10 @@ void DurationMetricProducer::handleStartEvent(const MetricDimensionKey& eventKey
         if (hitGuardRailLocked(eventKey)) {
             return;
         }
-        mCurrentSlicedDurationTrackerMap[whatKey] = createDurationTracker(eventKey);
+        MetricDimensionKey newKey = eventKey;
+        newKey.intern();
+        mCurrentSlicedDurationTrackerMap[newKey.getDimensionKeyInWhat()] =
+                createDurationTracker(newKey);
     }
 
     auto it = mCurrentSlicedDurationTrackerMap.find(whatKey);
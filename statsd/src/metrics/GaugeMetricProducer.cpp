@@ -541,13 +541,20 @@ void GaugeMetricProducer::onMatchedLogEventInternalLocked(
     if (hitGuardRailLocked(eventKey)) {
         return;
     }
-    if ((*mCurrentSlicedBucket)[eventKey].size() >= mGaugeAtomsPerDimensionLimit) {
+    auto it = mCurrentSlicedBucket->find(eventKey);
+    if (it == mCurrentSlicedBucket->end()) {
+        // Share the values of the new dimension with the other metrics using it.
+        MetricDimensionKey newKey = eventKey;
+        newKey.intern();
+        it = mCurrentSlicedBucket->emplace(std::move(newKey), vector<GaugeAtom>()).first;
+    }
+    if (it->second.size() >= mGaugeAtomsPerDimensionLimit) {
         return;
     }
 
     const int64_t truncatedElapsedTimestampNs = truncateTimestampIfNecessary(event);
     GaugeAtom gaugeAtom(getGaugeFields(event), truncatedElapsedTimestampNs);
-    (*mCurrentSlicedBucket)[eventKey].push_back(gaugeAtom);
+    it->second.push_back(gaugeAtom);
     // Anomaly detection on gauge metric only works when there is one numeric
     // field specified.
     if (mAnomalyTrackers.size() > 0) {
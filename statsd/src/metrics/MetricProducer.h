@@ -26,6 +26,7 @@
 #include "anomaly/AnomalyTracker.h"
 #include "condition/ConditionWizard.h"
 #include "config/ConfigKey.h"
+#include "guardrail/StatsdStats.h"
 #include "matchers/EventMatcherWizard.h"
 #include "matchers/matcher_util.h"
 #include "packages/PackageInfoListener.h"
@@ -218,6 +219,12 @@ public:
     // Consume the parsed stats log entry that already matched the "what" of the metric.
     void onMatchedLogEvent(const size_t matcherIndex, const LogEvent& event) {
         std::lock_guard<std::mutex> lock(mMutex);
+        // Only count metrics weigh the events that stand for several aggregated occurrences.
+        // The other metrics would take them for a single occurrence, so they drop them.
+        if (event.getAggregatedCount() != 1 && getMetricType() != METRIC_TYPE_COUNT) {
+            StatsdStats::getInstance().noteAggregatedCountDropped(mMetricId);
+            return;
+        }
         onMatchedLogEventLocked(matcherIndex, event);
     }
 
@@ -87,6 +87,7 @@ MetricsManager::MetricsManager(const ConfigKey& key, const StatsdConfig& config,
             mTrackerToMetricMap, mTrackerToConditionMap, mActivationAtomTrackerToMetricMap,
             mDeactivationAtomTrackerToMetricMap, mAlertTrackerMap, mMetricIndexesWithActivation,
             mStateProtoHashes, mNoReportMetricIds);
+    buildAtomIndex();
 
     mHashStringsInReport = config.hash_strings_in_metric_report();
     mVersionStringsInReport = config.version_strings_in_metric_report();
@@ -157,6 +158,7 @@ bool MetricsManager::updateConfig(const StatsdConfig& config, const int64_t time
     mAllAnomalyTrackers = newAnomalyTrackers;
     mAlertTrackerMap = newAlertTrackerMap;
     mAllPeriodicAlarmTrackers = newPeriodicAlarmTrackers;
+    buildAtomIndex();
 
     mTtlNs = config.has_ttl_in_seconds() ? config.ttl_in_seconds() * NS_PER_SEC : -1;
     refreshTtl(currentTimeNs);
@@ -188,6 +190,69 @@ bool MetricsManager::updateConfig(const StatsdConfig& config, const int64_t time
     return mConfigValid;
 }
 
+void MetricsManager::buildAtomIndex() {
+    mAtomIndex.clear();
+    if (!mConfigValid) {
+        // onLogEvent ignores all events, and the trackers may be inconsistent.
+        return;
+    }
+    for (const int tagId : mTagIds) {
+        mAtomIndex[tagId];
+    }
+
+    for (size_t i = 0; i < mAllAtomMatchingTrackers.size(); i++) {
+        const sp<AtomMatchingTracker>& matcher = mAllAtomMatchingTrackers[i];
+        for (const int atomId : matcher->getAtomIds()) {
+            auto it = mAtomIndex.find(atomId);
+            if (it == mAtomIndex.end()) {
+                continue;
+            }
+            AtomIndex& atomIndex = it->second;
+            atomIndex.matchers.push_back(i);
+            atomIndex.touchedMatchers.push_back(i);
+            // Combination matchers evaluate all their children, even the ones that do not
+            // track the atom. Those children do not evaluate theirs.
+            for (const int childIndex : matcher->getChildren()) {
+                atomIndex.touchedMatchers.push_back(childIndex);
+            }
+        }
+    }
+
+    for (auto& it : mAtomIndex) {
+        AtomIndex& atomIndex = it.second;
+        set<int> conditions;
+        for (const int matcherIndex : atomIndex.matchers) {
+            auto conditionIt = mTrackerToConditionMap.find(matcherIndex);
+            if (conditionIt != mTrackerToConditionMap.end()) {
+                conditions.insert(conditionIt->second.begin(), conditionIt->second.end());
+            }
+        }
+        atomIndex.conditions.assign(conditions.begin(), conditions.end());
+
+        // Combination conditions evaluate all their descendants.
+        vector<int> toVisit(conditions.begin(), conditions.end());
+        while (!toVisit.empty()) {
+            const int conditionIndex = toVisit.back();
+            toVisit.pop_back();
+            for (const int childIndex : mAllConditionTrackers[conditionIndex]->getChildren()) {
+                if (conditions.insert(childIndex).second) {
+                    toVisit.push_back(childIndex);
+                }
+            }
+        }
+        atomIndex.touchedConditions.assign(conditions.begin(), conditions.end());
+
+        set<int> touchedMatchers(atomIndex.touchedMatchers.begin(),
+                                 atomIndex.touchedMatchers.end());
+        atomIndex.touchedMatchers.assign(touchedMatchers.begin(), touchedMatchers.end());
+    }
+
+    mMatcherCache.assign(mAllAtomMatchingTrackers.size(), MatchingState::kNotComputed);
+    mConditionCache.assign(mAllConditionTrackers.size(), ConditionState::kNotEvaluated);
+    mConditionChangedCache.assign(mAllConditionTrackers.size(), false);
+    mConditionToBeEvaluated.assign(mAllConditionTrackers.size(), false);
+}
+
 void MetricsManager::createAllLogSourcesFromConfig(const StatsdConfig& config) {
     // Init allowed pushed atom uids.
     if (config.allowed_log_source_size() == 0) {
@@ -521,6 +586,38 @@ bool MetricsManager::eventSanityCheck(const LogEvent& event) {
     return true;
 }
 
+// Collect the atoms that must reach statsd unsampled.
+void MetricsManager::addUnsampledAtoms(std::set<int>* atomIds) const {
+    for (const auto& [atomId, atomIndex] : mAtomIndex) {
+        bool onlyCounted = atomIndex.conditions.empty();
+        for (size_t i = 0; onlyCounted && i < atomIndex.matchers.size(); i++) {
+            const int matcherIndex = atomIndex.matchers[i];
+            if (mActivationAtomTrackerToMetricMap.count(matcherIndex) > 0 ||
+                mDeactivationAtomTrackerToMetricMap.count(matcherIndex) > 0) {
+                onlyCounted = false;
+                break;
+            }
+            auto it = mTrackerToMetricMap.find(matcherIndex);
+            if (it == mTrackerToMetricMap.end()) {
+                continue;
+            }
+            for (const int metricIndex : it->second) {
+                if (mAllMetricProducers[metricIndex]->getMetricType() != METRIC_TYPE_COUNT) {
+                    onlyCounted = false;
+                    break;
+                }
+            }
+        }
+        if (!onlyCounted) {
+            atomIds->insert(atomId);
+        }
+    }
+    for (const sp<MetricProducer>& producer : mAllMetricProducers) {
+        const std::vector<int> stateAtoms = producer->getSlicedStateAtoms();
+        atomIds->insert(stateAtoms.begin(), stateAtoms.end());
+    }
+}
+
 // Consume the stats log if it's interesting to this metric.
 void MetricsManager::onLogEvent(const LogEvent& event) {
     if (!mConfigValid) {
@@ -556,27 +653,31 @@ void MetricsManager::onLogEvent(const LogEvent& event) {
 
     mIsActive = isActive || !activeMetricsIndices.empty();
 
-    if (mTagIds.find(tagId) == mTagIds.end()) {
+    const auto atomIndexIt = mAtomIndex.find(tagId);
+    if (atomIndexIt == mAtomIndex.end()) {
         // Not interesting...
         return;
     }
+    const AtomIndex& atomIndex = atomIndexIt->second;
 
-    vector<MatchingState> matcherCache(mAllAtomMatchingTrackers.size(),
-                                       MatchingState::kNotComputed);
-
-    // Evaluate all atom matchers.
-    for (auto& matcher : mAllAtomMatchingTrackers) {
-        matcher->onLogEvent(event, mAllAtomMatchingTrackers, matcherCache);
+    // Evaluate the atom matchers that track this atom. The others cannot match it.
+    for (const int matcherIndex : atomIndex.matchers) {
+        mAllAtomMatchingTrackers[matcherIndex]->onLogEvent(event, mAllAtomMatchingTrackers,
+                                                           mMatcherCache);
     }
 
     // Set of metrics that received an activation cancellation.
     unordered_set<int> metricIndicesWithCanceledActivations;
 
     // Determine which metric activations received a cancellation and cancel them.
-    for (const auto& it : mDeactivationAtomTrackerToMetricMap) {
-        if (matcherCache[it.first] == MatchingState::kMatched) {
-            for (int metricIndex : it.second) {
-                mAllMetricProducers[metricIndex]->cancelEventActivation(it.first);
+    for (const int matcherIndex : atomIndex.matchers) {
+        if (mMatcherCache[matcherIndex] != MatchingState::kMatched) {
+            continue;
+        }
+        auto it = mDeactivationAtomTrackerToMetricMap.find(matcherIndex);
+        if (it != mDeactivationAtomTrackerToMetricMap.end()) {
+            for (int metricIndex : it->second) {
+                mAllMetricProducers[metricIndex]->cancelEventActivation(matcherIndex);
                 metricIndicesWithCanceledActivations.insert(metricIndex);
             }
         }
@@ -595,10 +696,14 @@ void MetricsManager::onLogEvent(const LogEvent& event) {
 
 
     // Determine which metric activations should be turned on and turn them on
-    for (const auto& it : mActivationAtomTrackerToMetricMap) {
-        if (matcherCache[it.first] == MatchingState::kMatched) {
-            for (int metricIndex : it.second) {
-                mAllMetricProducers[metricIndex]->activate(it.first, eventTimeNs);
+    for (const int matcherIndex : atomIndex.matchers) {
+        if (mMatcherCache[matcherIndex] != MatchingState::kMatched) {
+            continue;
+        }
+        auto it = mActivationAtomTrackerToMetricMap.find(matcherIndex);
+        if (it != mActivationAtomTrackerToMetricMap.end()) {
+            for (int metricIndex : it->second) {
+                mAllMetricProducers[metricIndex]->activate(matcherIndex, eventTimeNs);
                 isActive |= mAllMetricProducers[metricIndex]->isActive();
             }
         }
@@ -607,69 +712,76 @@ void MetricsManager::onLogEvent(const LogEvent& event) {
     mIsActive = isActive;
 
     // A bitmap to see which ConditionTracker needs to be re-evaluated.
-    vector<bool> conditionToBeEvaluated(mAllConditionTrackers.size(), false);
-
-    for (const auto& pair : mTrackerToConditionMap) {
-        if (matcherCache[pair.first] == MatchingState::kMatched) {
-            const auto& conditionList = pair.second;
-            for (const int conditionIndex : conditionList) {
-                conditionToBeEvaluated[conditionIndex] = true;
+    for (const int matcherIndex : atomIndex.matchers) {
+        if (mMatcherCache[matcherIndex] != MatchingState::kMatched) {
+            continue;
+        }
+        auto it = mTrackerToConditionMap.find(matcherIndex);
+        if (it != mTrackerToConditionMap.end()) {
+            for (const int conditionIndex : it->second) {
+                mConditionToBeEvaluated[conditionIndex] = true;
             }
         }
     }
 
-    vector<ConditionState> conditionCache(mAllConditionTrackers.size(),
-                                          ConditionState::kNotEvaluated);
-    // A bitmap to track if a condition has changed value.
-    vector<bool> changedCache(mAllConditionTrackers.size(), false);
-    for (size_t i = 0; i < mAllConditionTrackers.size(); i++) {
-        if (conditionToBeEvaluated[i] == false) {
+    for (const int conditionIndex : atomIndex.conditions) {
+        if (mConditionToBeEvaluated[conditionIndex] == false) {
             continue;
         }
-        sp<ConditionTracker>& condition = mAllConditionTrackers[i];
-        condition->evaluateCondition(event, matcherCache, mAllConditionTrackers, conditionCache,
-                                     changedCache);
+        sp<ConditionTracker>& condition = mAllConditionTrackers[conditionIndex];
+        condition->evaluateCondition(event, mMatcherCache, mAllConditionTrackers, mConditionCache,
+                                     mConditionChangedCache);
     }
 
-    for (size_t i = 0; i < mAllConditionTrackers.size(); i++) {
-        if (changedCache[i] == false) {
+    for (const int conditionIndex : atomIndex.touchedConditions) {
+        if (mConditionChangedCache[conditionIndex] == false) {
             continue;
         }
-        auto pair = mConditionToMetricMap.find(i);
+        auto pair = mConditionToMetricMap.find(conditionIndex);
         if (pair != mConditionToMetricMap.end()) {
             auto& metricList = pair->second;
             for (auto metricIndex : metricList) {
                 // Metric cares about non sliced condition, and it's changed.
                 // Push the new condition to it directly.
                 if (!mAllMetricProducers[metricIndex]->isConditionSliced()) {
-                    mAllMetricProducers[metricIndex]->onConditionChanged(conditionCache[i],
-                                                                         eventTimeNs);
+                    mAllMetricProducers[metricIndex]->onConditionChanged(
+                            mConditionCache[conditionIndex], eventTimeNs);
                     // Metric cares about sliced conditions, and it may have changed. Send
                     // notification, and the metric can query the sliced conditions that are
                     // interesting to it.
                 } else {
-                    mAllMetricProducers[metricIndex]->onSlicedConditionMayChange(conditionCache[i],
-                                                                                 eventTimeNs);
+                    mAllMetricProducers[metricIndex]->onSlicedConditionMayChange(
+                            mConditionCache[conditionIndex], eventTimeNs);
                 }
             }
         }
     }
 
     // For matched AtomMatchers, tell relevant metrics that a matched event has come.
-    for (size_t i = 0; i < mAllAtomMatchingTrackers.size(); i++) {
-        if (matcherCache[i] == MatchingState::kMatched) {
-            StatsdStats::getInstance().noteMatcherMatched(mConfigKey,
-                                                          mAllAtomMatchingTrackers[i]->getId());
-            auto pair = mTrackerToMetricMap.find(i);
+    for (const int matcherIndex : atomIndex.matchers) {
+        if (mMatcherCache[matcherIndex] == MatchingState::kMatched) {
+            StatsdStats::getInstance().noteMatcherMatched(
+                    mConfigKey, mAllAtomMatchingTrackers[matcherIndex]->getId());
+            auto pair = mTrackerToMetricMap.find(matcherIndex);
             if (pair != mTrackerToMetricMap.end()) {
                 auto& metricList = pair->second;
                 for (const int metricIndex : metricList) {
                     // pushed metrics are never scheduled pulls
-                    mAllMetricProducers[metricIndex]->onMatchedLogEvent(i, event);
+                    mAllMetricProducers[metricIndex]->onMatchedLogEvent(matcherIndex, event);
                 }
             }
         }
     }
+
+    // Reset the caches for the next event, only where this event may have written.
+    for (const int matcherIndex : atomIndex.touchedMatchers) {
+        mMatcherCache[matcherIndex] = MatchingState::kNotComputed;
+    }
+    for (const int conditionIndex : atomIndex.touchedConditions) {
+        mConditionCache[conditionIndex] = ConditionState::kNotEvaluated;
+        mConditionChangedCache[conditionIndex] = false;
+        mConditionToBeEvaluated[conditionIndex] = false;
+    }
 }
 
 void MetricsManager::onAnomalyAlarmFired(
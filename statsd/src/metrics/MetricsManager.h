@@ -59,6 +59,16 @@ public:
 
     void onLogEvent(const LogEvent& event);
 
+    // Returns whether onLogEvent may look at the values of the events of this atom.
+    inline bool isAtomUsed(const int atomId) const {
+        return mAtomIndex.find(atomId) != mAtomIndex.end();
+    }
+
+    // Adds the atoms that this config uses other than as the what of count metrics. Only count
+    // metrics weigh sampled events by the occurrences they stand for, so these atoms must not be
+    // sampled by the logging processes.
+    void addUnsampledAtoms(std::set<int>* atomIds) const;
+
     void onAnomalyAlarmFired(
         const int64_t& timestampNs,
         unordered_set<sp<const InternalAlarm>, SpHash<InternalAlarm>>& alarmSet);
@@ -258,7 +268,7 @@ private:
 
     // 1st filter: check if the event tag id is in mTagIds.
     // 2nd filter: if it is, we parse the event because there is at least one member is interested.
-    //             then pass to all AtomMatchingTrackers (itself also filter events by ids).
+    //             then pass to the AtomMatchingTrackers that track the tag id, from mAtomIndex.
     // 3nd filter: for AtomMatchingTrackers that matched this event, we pass this event to the
     //             ConditionTrackers and MetricProducers that use this matcher.
     // 4th filter: for ConditionTrackers that changed value due to this event, we pass
@@ -287,6 +297,34 @@ private:
 
     std::vector<int> mMetricIndexesWithActivation;
 
+    // What onLogEvent needs to look at for the events of one atom, so that the work per event
+    // does not grow with the number of matchers and conditions in the config.
+    struct AtomIndex {
+        // AtomMatchingTrackers that track the atom, in index order.
+        std::vector<int> matchers;
+        // matchers and their children: all the entries of mMatcherCache that are written when
+        // evaluating them.
+        std::vector<int> touchedMatchers;
+        // ConditionTrackers that use one of matchers, in index order.
+        std::vector<int> conditions;
+        // conditions and all their descendants: all the entries of the condition caches that are
+        // written when evaluating them, in index order.
+        std::vector<int> touchedConditions;
+    };
+
+    // Maps from the atom id of each of mTagIds to its AtomIndex.
+    std::unordered_map<int, AtomIndex> mAtomIndex;
+
+    // Caches for the evaluation of one event. They are sized to all matchers and conditions, but
+    // only the entries of the event's AtomIndex are used, and they are reset after each event.
+    std::vector<MatchingState> mMatcherCache;
+    std::vector<ConditionState> mConditionCache;
+    std::vector<bool> mConditionChangedCache;
+    std::vector<bool> mConditionToBeEvaluated;
+
+    // Only called on config creation/update, after the trackers and maps are initialized.
+    void buildAtomIndex();
+
     void initAllowedLogSources();
 
     void initPullAtomSources();
@@ -356,6 +394,7 @@ private:
     FRIEND_TEST(StatsLogProcessorTest, TestActivationsPersistAcrossSystemServerRestart);
 
     FRIEND_TEST(CountMetricE2eTest, TestInitialConditionChanges);
+    FRIEND_TEST(CountMetricE2eTest, TestMatchersOfOtherAtomsNotEvaluated);
     FRIEND_TEST(CountMetricE2eTest, TestSlicedState);
     FRIEND_TEST(CountMetricE2eTest, TestSlicedStateWithMap);
     FRIEND_TEST(CountMetricE2eTest, TestMultipleSlicedStates);
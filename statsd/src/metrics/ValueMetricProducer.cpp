@@ -667,10 +667,21 @@ void ValueMetricProducer<AggregatedValue, DimExtras>::onMatchedLogEventInternalL
         return;
     }
 
-    const auto& returnVal = mDimInfos.emplace(whatKey, DimensionsInWhatInfo(getUnknownStateKey()));
-    DimensionsInWhatInfo& dimensionsInWhatInfo = returnVal.first->second;
+    auto dimInfoIt = mDimInfos.find(whatKey);
+    if (dimInfoIt == mDimInfos.end()) {
+        // Share the values of the new dimension with the other metrics using it.
+        HashableDimensionKey newWhatKey = whatKey;
+        newWhatKey.intern();
+        dimInfoIt = mDimInfos.emplace(std::move(newWhatKey),
+                                      DimensionsInWhatInfo(getUnknownStateKey()))
+                            .first;
+    }
+    // The interned key, that the buckets below also use.
+    const HashableDimensionKey& storedWhatKey = dimInfoIt->first;
+    DimensionsInWhatInfo& dimensionsInWhatInfo = dimInfoIt->second;
     const HashableDimensionKey& oldStateKey = dimensionsInWhatInfo.currentState;
-    CurrentBucket& currentBucket = mCurrentSlicedBucket[MetricDimensionKey(whatKey, oldStateKey)];
+    CurrentBucket& currentBucket =
+            mCurrentSlicedBucket[MetricDimensionKey(storedWhatKey, oldStateKey)];
 
     // Ensure we turn on the condition timer in the case where dimensions
     // were missing on a previous pull due to a state change.
@@ -697,7 +708,7 @@ void ValueMetricProducer<AggregatedValue, DimExtras>::onMatchedLogEventInternalL
         currentBucket.conditionTimer.onConditionChanged(false, eventTimeNs);
 
         // Turn ON the condition timer for the new state key.
-        mCurrentSlicedBucket[MetricDimensionKey(whatKey, stateKey)]
+        mCurrentSlicedBucket[MetricDimensionKey(storedWhatKey, stateKey)]
                 .conditionTimer.onConditionChanged(true, eventTimeNs);
     }
 }
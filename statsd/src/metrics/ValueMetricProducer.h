@@ -286,7 +286,7 @@ protected:
 
     // Tracks the internal state in the ongoing aggregation bucket for each DimensionsInWhat
     // key and StateValuesKey pair.
-    std::unordered_map<MetricDimensionKey, CurrentBucket> mCurrentSlicedBucket;
+    FlatHashMap<MetricDimensionKey, CurrentBucket> mCurrentSlicedBucket;
 
     // State key and any extra information for a specific DimensionsInWhat key.
     struct DimensionsInWhatInfo {
@@ -307,7 +307,7 @@ protected:
     };
 
     // Tracks current state key and other information for each DimensionsInWhat key.
-    std::unordered_map<HashableDimensionKey, DimensionsInWhatInfo> mDimInfos;
+    FlatHashMap<HashableDimensionKey, DimensionsInWhatInfo> mDimInfos;
 
     // Save the past buckets and we can clear when the StatsLogReport is dumped.
     std::unordered_map<MetricDimensionKey, std::vector<PastBucket<AggregatedValue>>> mPastBuckets;
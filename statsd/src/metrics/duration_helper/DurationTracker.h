@@ -254,7 +254,7 @@ protected:
     int64_t mDuration;  // current recorded duration result (for partial bucket)
 
     // Recorded duration results for each state key in the current partial bucket.
-    std::unordered_map<HashableDimensionKey, DurationValues> mStateKeyDurationMap;
+    FlatHashMap<HashableDimensionKey, DurationValues> mStateKeyDurationMap;
 
     int64_t mCurrentBucketNum;
 
@@ -83,6 +83,7 @@ void MaxDurationTracker::noteStart(const HashableDimensionKey& key, bool conditi
             } else {
                 duration.state = DurationState::kStarted;
                 duration.lastStartTime = eventTime;
+                mNumStarted++;
                 startAnomalyAlarm(eventTime);
             }
             duration.startCount = 1;
@@ -93,11 +94,12 @@ void MaxDurationTracker::noteStart(const HashableDimensionKey& key, bool conditi
 void MaxDurationTracker::noteStop(const HashableDimensionKey& key, const int64_t eventTime,
                                   bool forceStop) {
     VLOG("MaxDuration: key %s stop", key.toString().c_str());
-    if (mInfos.find(key) == mInfos.end()) {
+    auto it = mInfos.find(key);
+    if (it == mInfos.end()) {
         // we didn't see a start event before. do nothing.
         return;
     }
-    DurationInfo& duration = mInfos[key];
+    DurationInfo& duration = it->second;
 
     switch (duration.state) {
         case DurationState::kStopped:
@@ -108,6 +110,7 @@ void MaxDurationTracker::noteStop(const HashableDimensionKey& key, const int64_t
             if (forceStop || !mNested || duration.startCount <= 0) {
                 stopAnomalyAlarm(eventTime);
                 duration.state = DurationState::kStopped;
+                mNumStarted--;
                 int64_t durationTime = eventTime - duration.lastStartTime;
                 VLOG("Max, key %s, Stop %lld %lld %lld", key.toString().c_str(),
                      (long long)duration.lastStartTime, (long long)eventTime,
@@ -138,17 +141,12 @@ void MaxDurationTracker::noteStop(const HashableDimensionKey& key, const int64_t
     // Once an atom duration ends, we erase it. Next time, if we see another atom event with the
     // same name, they are still considered as different atom durations.
     if (duration.state == DurationState::kStopped) {
-        mInfos.erase(key);
+        mInfos.erase(it);
     }
 }
 
 bool MaxDurationTracker::hasAccumulatingDuration() {
-    for (auto& pair : mInfos) {
-        if (pair.second.state == kStarted) {
-            return true;
-        }
-    }
-    return false;
+    return mNumStarted > 0;
 }
 
 void MaxDurationTracker::noteStopAll(const int64_t eventTime) {
@@ -267,6 +265,7 @@ void MaxDurationTracker::noteConditionChanged(const HashableDimensionKey& key, b
                 stopAnomalyAlarm(timestamp);
                 it->second.state = DurationState::kPaused;
                 it->second.lastDuration += (timestamp - it->second.lastStartTime);
+                mNumStarted--;
                 if (hasAccumulatingDuration()) {
                     // In case any other dimensions are still started, we need to set the alarm.
                     startAnomalyAlarm(timestamp);
@@ -283,6 +282,7 @@ void MaxDurationTracker::noteConditionChanged(const HashableDimensionKey& key, b
             if (conditionMet) {
                 it->second.state = DurationState::kStarted;
                 it->second.lastStartTime = timestamp;
+                mNumStarted++;
                 startAnomalyAlarm(timestamp);
                 VLOG("MaxDurationTracker Key: %s Paused->Started", key.toString().c_str());
             }
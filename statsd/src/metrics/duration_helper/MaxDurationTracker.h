@@ -70,7 +70,10 @@ protected:
     bool hasAccumulatingDuration() override;
 
 private:
-    std::unordered_map<HashableDimensionKey, DurationInfo> mInfos;
+    FlatHashMap<HashableDimensionKey, DurationInfo> mInfos;
+
+    // Number of mInfos in the kStarted state.
+    int mNumStarted = 0;
 
     void noteConditionChanged(const HashableDimensionKey& key, bool conditionMet,
                               const int64_t timestamp);
@@ -30,6 +30,7 @@ namespace os {
 namespace statsd {
 
 const static int FIELD_ID_ATOM = 1;
+const static int FIELD_ID_ELAPSED_TIMESTAMP_NANOS = 2;
 
 void ShellSubscriber::startNewSubscription(int in, int out, int timeoutSec) {
     int myToken = claimToken();
@@ -42,16 +43,30 @@ void ShellSubscriber::startNewSubscription(int in, int out, int timeoutSec) {
     {
         std::unique_lock<std::mutex> lock(mMutex);
         mSubscriptionInfo = mySubscriptionInfo;
+        notifySubscribedAtomsLocked();
         spawnHelperThread(myToken);
         waitForSubscriptionToEndLocked(mySubscriptionInfo, myToken, lock, timeoutSec);
 
         if (mSubscriptionInfo == mySubscriptionInfo) {
             mSubscriptionInfo = nullptr;
+            notifySubscribedAtomsLocked();
         }
 
     }
 }
 
+void ShellSubscriber::notifySubscribedAtomsLocked() {
+    if (!mSubscribedAtomsListener) return;
+    std::set<int> atomIds;
+    if (mSubscriptionInfo) {
+        for (const auto& matcher : mSubscriptionInfo->mPushedMatchers) {
+            atomIds.insert(matcher.atom_id());
+        }
+    }
+    // Sent under mMutex, so that the listener gets the updates in order.
+    mSubscribedAtomsListener(atomIds);
+}
+
 void ShellSubscriber::spawnHelperThread(int myToken) {
     std::thread t([this, myToken] { pullAndSendHeartbeats(myToken); });
     t.detach();
@@ -189,31 +204,49 @@ void ShellSubscriber::getUidsForPullAtom(vector<int32_t>* uids, const PullInfo&
 void ShellSubscriber::writePulledAtomsLocked(const vector<std::shared_ptr<LogEvent>>& data,
                                              const SimpleAtomMatcher& matcher) {
     mProto.clear();
-    int count = 0;
+    vector<int64_t> timestamps;
     for (const auto& event : data) {
         if (matchesSimple(mUidMap, matcher, *event)) {
-            count++;
             uint64_t atomToken = mProto.start(util::FIELD_TYPE_MESSAGE |
                                               util::FIELD_COUNT_REPEATED | FIELD_ID_ATOM);
             event->ToProto(mProto);
             mProto.end(atomToken);
+            timestamps.push_back(event->GetElapsedTimestampNs());
         }
     }
+    for (int64_t timestampNs : timestamps) {
+        mProto.write(util::FIELD_TYPE_INT64 | util::FIELD_COUNT_REPEATED |
+                             FIELD_ID_ELAPSED_TIMESTAMP_NANOS,
+                     (long long)timestampNs);
+    }
 
-    if (count > 0) attemptWriteToPipeLocked(mProto.size());
+    if (!timestamps.empty()) attemptWriteToPipeLocked(mProto.size());
 }
 
-void ShellSubscriber::onLogEvent(const LogEvent& event) {
+void ShellSubscriber::onLogEvent(LogEvent& event) {
     std::lock_guard<std::mutex> lock(mMutex);
     if (!mSubscriptionInfo) return;
 
     mProto.clear();
+    bool uidsMapped = false;
     for (const auto& matcher : mSubscriptionInfo->mPushedMatchers) {
+        if (matcher.atom_id() != event.GetTagId()) {
+            continue;
+        }
+        // StatsLogProcessor does not decode the atoms that no config uses, so their uids are not
+        // mapped yet. Mapping the uids of the other atoms again leaves them unchanged.
+        if (!uidsMapped) {
+            mapIsolatedUidsToHostUidInLogEvent(mUidMap, event);
+            uidsMapped = true;
+        }
         if (matchesSimple(mUidMap, matcher, event)) {
             uint64_t atomToken = mProto.start(util::FIELD_TYPE_MESSAGE |
                                               util::FIELD_COUNT_REPEATED | FIELD_ID_ATOM);
             event.ToProto(mProto);
             mProto.end(atomToken);
+            mProto.write(util::FIELD_TYPE_INT64 | util::FIELD_COUNT_REPEATED |
+                                 FIELD_ID_ELAPSED_TIMESTAMP_NANOS,
+                         (long long)event.GetElapsedTimestampNs());
             attemptWriteToPipeLocked(mProto.size());
         }
     }
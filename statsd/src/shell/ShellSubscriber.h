@@ -20,7 +20,9 @@
 #include <private/android_filesystem_config.h>
 
 #include <condition_variable>
+#include <functional>
 #include <mutex>
+#include <set>
 #include <thread>
 
 #include "external/StatsPullerManager.h"
@@ -59,12 +61,18 @@ namespace statsd {
  */
 class ShellSubscriber : public virtual RefBase {
 public:
-    ShellSubscriber(sp<UidMap> uidMap, sp<StatsPullerManager> pullerMgr)
-        : mUidMap(uidMap), mPullerMgr(pullerMgr){};
+    // subscribedAtomsListener, if set, is told of the pushed atoms of the current subscription
+    // whenever it changes, so that they reach the shell client unsampled.
+    ShellSubscriber(sp<UidMap> uidMap, sp<StatsPullerManager> pullerMgr,
+                    std::function<void(const std::set<int>&)> subscribedAtomsListener = nullptr)
+        : mUidMap(uidMap),
+          mPullerMgr(pullerMgr),
+          mSubscribedAtomsListener(subscribedAtomsListener){};
 
     void startNewSubscription(int inFd, int outFd, int timeoutSec);
 
-    void onLogEvent(const LogEvent& event);
+    // Maps the isolated uids of the event if it is of a subscribed atom.
+    void onLogEvent(LogEvent& event);
 
 private:
     struct PullInfo {
@@ -119,10 +127,15 @@ private:
 
     void attemptWriteToPipeLocked(size_t dataSize);
 
+    // Tells mSubscribedAtomsListener of the pushed atoms of mSubscriptionInfo.
+    void notifySubscribedAtomsLocked();
+
     sp<UidMap> mUidMap;
 
     sp<StatsPullerManager> mPullerMgr;
 
+    std::function<void(const std::set<int>&)> mSubscribedAtomsListener;
+
     android::util::ProtoOutputStream mProto;
 
     mutable std::mutex mMutex;
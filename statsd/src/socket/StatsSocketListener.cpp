@@ -17,6 +17,7 @@
 #include "Log.h"
 
 #include <ctype.h>
+#include <errno.h>
 #include <limits.h>
 #include <stdio.h>
 #include <sys/cdefs.h>
@@ -37,7 +38,20 @@ namespace os {
 namespace statsd {
 
 StatsSocketListener::StatsSocketListener(std::shared_ptr<LogEventQueue> queue)
-    : SocketListener(getLogSocket(), false /*start listen*/), mQueue(queue) {
+    : SocketListener(getLogSocket(), false /*start listen*/),
+      mQueue(queue),
+      mBuffers(std::make_unique<ReceiveBuffers>()) {
+}
+
+StatsSocketListener::ReceiveBuffers::ReceiveBuffers() {
+    for (int i = 0; i < kMaxBatchSize; i++) {
+        iovs[i] = {buffers[i], sizeof(buffers[i]) - 1};
+        headers[i].msg_hdr = {
+                NULL, 0, &iovs[i], 1, controls[i], sizeof(controls[i]), 0,
+        };
+        headers[i].msg_len = 0;
+    }
+    events.reserve(kMaxBatchSize);
 }
 
 StatsSocketListener::~StatsSocketListener() {
@@ -50,37 +64,66 @@ bool StatsSocketListener::onDataAvailable(SocketClient* cli) {
         name_set = true;
     }
 
-    // + 1 to ensure null terminator if MAX_PAYLOAD buffer is received
-    char buffer[sizeof(android_log_header_t) + LOGGER_ENTRY_MAX_PAYLOAD + 1];
-    struct iovec iov = {buffer, sizeof(buffer) - 1};
-
-    alignas(4) char control[CMSG_SPACE(sizeof(struct ucred))];
-    struct msghdr hdr = {
-            NULL, 0, &iov, 1, control, sizeof(control), 0,
-    };
+    // Drain up to kMaxBatchSize datagrams per wakeup, so that bursts of events cost one
+    // syscall per batch instead of one per event.
+    return readBatch(cli->getSocket(), kMaxBatchSize, mBuffers.get(), mQueue.get()) > 0;
+}
 
-    int socket = cli->getSocket();
+int StatsSocketListener::readBatch(int socket, int maxBatchSize, ReceiveBuffers* buffers,
+                                   LogEventQueue* queue) {
+    for (int i = 0; i < maxBatchSize; i++) {
+        // recvmmsg updates msg_controllen, reset it.
+        buffers->headers[i].msg_hdr.msg_controllen = sizeof(buffers->controls[i]);
+    }
 
     // To clear the entire buffer is secure/safe, but this contributes to 1.68%
     // overhead under logging load. We are safe because we check counts, but
     // still need to clear null terminator
     // memset(buffer, 0, sizeof(buffer));
-    ssize_t n = recvmsg(socket, &hdr, 0);
+    // MSG_DONTWAIT: only take the datagrams already queued on the socket.
+    int received = recvmmsg(socket, buffers->headers, maxBatchSize, MSG_DONTWAIT, NULL);
+    if (received < 0) {
+        return errno == EAGAIN || errno == EWOULDBLOCK ? 0 : -1;
+    }
+
+    LogEventPool* pool = queue->getEventPool();
+    buffers->events.clear();
+    for (int i = 0; i < received; i++) {
+        processMessage(buffers->buffers[i], buffers->headers[i].msg_len,
+                       &buffers->headers[i].msg_hdr, pool, &buffers->events);
+    }
+
+    if (!buffers->events.empty()) {
+        int64_t oldestTimestamp;
+        const size_t pushed = queue->pushBatch(&buffers->events, &oldestTimestamp);
+        for (size_t i = pushed; i < buffers->events.size(); i++) {
+            StatsdStats::getInstance().noteEventQueueOverflow(oldestTimestamp);
+            pool->recycle(std::move(buffers->events[i]));
+        }
+        buffers->events.clear();
+    }
+    pool->flushStats();
+    return received;
+}
+
+void StatsSocketListener::processMessage(char* buffer, ssize_t n, struct msghdr* hdr,
+                                         LogEventPool* pool,
+                                         std::vector<std::unique_ptr<LogEvent>>* events) {
     if (n <= (ssize_t)(sizeof(android_log_header_t))) {
-        return false;
+        return;
     }
 
     buffer[n] = 0;
 
     struct ucred* cred = NULL;
 
-    struct cmsghdr* cmsg = CMSG_FIRSTHDR(&hdr);
+    struct cmsghdr* cmsg = CMSG_FIRSTHDR(hdr);
     while (cmsg != NULL) {
         if (cmsg->cmsg_level == SOL_SOCKET && cmsg->cmsg_type == SCM_CREDENTIALS) {
             cred = (struct ucred*)CMSG_DATA(cmsg);
             break;
         }
-        cmsg = CMSG_NXTHDR(&hdr, cmsg);
+        cmsg = CMSG_NXTHDR(hdr, cmsg);
     }
 
     struct ucred fake_cred;
@@ -115,7 +158,7 @@ bool StatsSocketListener::onDataAvailable(SocketClient* cli) {
             StatsdStats::getInstance().noteLogLost((int32_t)getWallClockSec(), dropped_count,
                                                    long_event->header.tag, last_atom_tag, cred->uid,
                                                    cred->pid);
-            return true;
+            return;
         }
     }
 
@@ -125,15 +168,10 @@ bool StatsSocketListener::onDataAvailable(SocketClient* cli) {
     uint32_t uid = cred->uid;
     uint32_t pid = cred->pid;
 
-    int64_t oldestTimestamp;
-    std::unique_ptr<LogEvent> logEvent = std::make_unique<LogEvent>(uid, pid);
-    logEvent->parseBuffer(msg, len);
-
-    if (!mQueue->push(std::move(logEvent), &oldestTimestamp)) {
-        StatsdStats::getInstance().noteEventQueueOverflow(oldestTimestamp);
-    }
-
-    return true;
+    std::unique_ptr<LogEvent> logEvent = pool->obtain(uid, pid);
+    // Most events are of atoms that no config uses, so only parse their values if needed.
+    logEvent->parseBufferLazily(msg, len);
+    events->push_back(std::move(logEvent));
 }
 
 int StatsSocketListener::getLogSocket() {
@@ -15,8 +15,14 @@
  */
 #pragma once
 
+#include <private/android_logger.h>
+#include <sys/socket.h>
 #include <sysutils/SocketListener.h>
 #include <utils/RefBase.h>
+
+#include <memory>
+#include <vector>
+
 #include "logd/LogEventQueue.h"
 
 // DEFAULT_OVERFLOWUID is defined in linux/highuid.h, which is not part of
@@ -39,15 +45,50 @@ public:
 
     virtual ~StatsSocketListener();
 
+    // Max number of datagrams read from the socket with one recvmmsg call.
+    static const int kMaxBatchSize = 16;
+
+    /**
+     * Preallocated storage for reading a batch of datagrams.
+     */
+    struct ReceiveBuffers {
+        ReceiveBuffers();
+
+        // + 1 to ensure null terminator if MAX_PAYLOAD buffer is received
+        char buffers[kMaxBatchSize][sizeof(android_log_header_t) + LOGGER_ENTRY_MAX_PAYLOAD + 1];
+        alignas(4) char controls[kMaxBatchSize][CMSG_SPACE(sizeof(struct ucred))];
+        struct iovec iovs[kMaxBatchSize];
+        struct mmsghdr headers[kMaxBatchSize];
+        std::vector<std::unique_ptr<LogEvent>> events;
+    };
+
+    /**
+     * Reads up to maxBatchSize datagrams that are available on socket with one recvmmsg call,
+     * and pushes their events to queue as one batch.
+     * Returns the number of datagrams read, 0 if none were available, or -1 on error.
+     */
+    static int readBatch(int socket, int maxBatchSize, ReceiveBuffers* buffers,
+                         LogEventQueue* queue);
+
 protected:
     virtual bool onDataAvailable(SocketClient* cli);
 
 private:
     static int getLogSocket();
+
+    /**
+     * Parses one datagram into an event obtained from pool and appends it to events, unless it
+     * is a report of lost events, which is noted in StatsdStats.
+     */
+    static void processMessage(char* buffer, ssize_t n, struct msghdr* hdr, LogEventPool* pool,
+                               std::vector<std::unique_ptr<LogEvent>>* events);
+
     /**
      * Who is going to get the events when they're read.
      */
     std::shared_ptr<LogEventQueue> mQueue;
+
+    const std::unique_ptr<ReceiveBuffers> mBuffers;
 };
 }  // namespace statsd
 }  // namespace os
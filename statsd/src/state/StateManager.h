@@ -72,6 +72,10 @@ public:
 
     void notifyAppChanged(const string& apk, const sp<UidMap>& uidMap);
 
+    inline bool hasStateTracker(const int32_t atomId) const {
+        return mStateTrackers.find(atomId) != mStateTrackers.end();
+    }
+
     inline int getStateTrackersCount() const {
         return mStateTrackers.size();
     }
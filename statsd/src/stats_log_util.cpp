@@ -99,6 +99,7 @@ const int FIELD_ID_MIN_BUCKET_BOUNDARY_DELAY_NS = 9;
 const int FIELD_ID_MAX_BUCKET_BOUNDARY_DELAY_NS = 10;
 const int FIELD_ID_BUCKET_UNKNOWN_CONDITION = 11;
 const int FIELD_ID_BUCKET_COUNT = 12;
+const int FIELD_ID_AGGREGATED_COUNT_DROPPED = 16;
 
 namespace {
 
@@ -548,6 +549,8 @@ void writeAtomMetricStatsToStream(const std::pair<int64_t, StatsdStats::AtomMetr
                              (long long)pair.second.bucketUnknownCondition, protoOutput);
     writeNonZeroStatToStream(FIELD_TYPE_INT64 | FIELD_ID_BUCKET_COUNT,
                              (long long)pair.second.bucketCount, protoOutput);
+    writeNonZeroStatToStream(FIELD_TYPE_INT64 | FIELD_ID_AGGREGATED_COUNT_DROPPED,
+                             (long long)pair.second.aggregatedCountDropped, protoOutput);
     protoOutput->end(token);
 }
 
@@ -615,6 +618,16 @@ bool checkPermissionForIds(const char* permission, pid_t pid, uid_t uid) {
 }
 
 void mapIsolatedUidsToHostUidInLogEvent(const sp<UidMap> uidMap, LogEvent& event) {
+    if (std::pair<size_t, size_t> indexRange; event.hasAttributionChain(&indexRange)) {
+        vector<FieldValue>* const fieldValues = event.getMutableValues();
+        for (size_t i = indexRange.first; i <= indexRange.second; i++) {
+            FieldValue& fieldValue = fieldValues->at(i);
+            if (isAttributionUidField(fieldValue)) {
+                fieldValue.mValue.setInt(uidMap->getHostUidOrSelf(fieldValue.mValue.int_value));
+            }
+        }
+        return;
+    }
     uint8_t remainingUidCount = event.getNumUidFields();
     vector<FieldValue>* fieldValues = event.getMutableValues();
     auto it = fieldValues->begin();
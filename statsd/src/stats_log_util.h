@@ -117,6 +117,8 @@ inline bool isPulledAtom(int atomId) {
     return atomId >= StatsdStats::kPullAtomStartTag && atomId < StatsdStats::kVendorAtomStartTag;
 }
 
+// Replaces the isolated uids in the attribution chain of the event, or in its uid fields if it has
+// no attribution chain, with their host uids.
 void mapIsolatedUidsToHostUidInLogEvent(const sp<UidMap> uidMap, LogEvent& event);
 
 std::string toHexString(const vector<uint8_t>& bytes);
@@ -17,6 +17,7 @@
 #pragma once
 
 #include "HashableDimensionKey.h"
+#include "utils/FlatHashMap.h"
 
 #include <unordered_map>
 
@@ -39,7 +40,7 @@ const MetricDimensionKey DEFAULT_METRIC_DIMENSION_KEY = MetricDimensionKey();
 
 typedef std::map<int64_t, HashableDimensionKey> ConditionKey;
 
-typedef std::unordered_map<MetricDimensionKey, int64_t> DimToValMap;
+typedef FlatHashMap<MetricDimensionKey, int64_t> DimToValMap;
 
 using ConditionLinks = google::protobuf::RepeatedPtrField<MetricConditionLink>;
 
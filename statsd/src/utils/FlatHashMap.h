@@ -0,0 +1,362 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#pragma once
+
+#include <stdint.h>
+
+#include <algorithm>
+#include <cstddef>
+#include <functional>
+#include <iterator>
+#include <optional>
+#include <tuple>
+#include <type_traits>
+#include <utility>
+#include <vector>
+
+namespace android {
+namespace os {
+namespace statsd {
+
+/**
+ * A hash map with open addressing, for the per-dimension state of metrics.
+ *
+ * The entries are stored contiguously, in insertion order, and a table of slots probed
+ * linearly maps the hashes to them. Unlike std::unordered_map, there is no allocation per
+ * entry, and clear() keeps the storage for the next bucket.
+ *
+ * Iteration starts from the most recently inserted entry, as std::unordered_map does for
+ * small maps. Any insertion invalidates all iterators and references to entries. Erasing an
+ * entry only invalidates the iterators and references to it, so that entries can be erased
+ * while iterating.
+ */
+template <typename Key, typename Value, typename Hash = std::hash<Key>>
+class FlatHashMap {
+public:
+    using value_type = std::pair<Key, Value>;
+
+private:
+    using Entries = std::vector<std::optional<value_type>>;
+
+public:
+    template <bool IsConst>
+    class Iterator {
+    public:
+        using iterator_category = std::forward_iterator_tag;
+        using value_type = FlatHashMap::value_type;
+        using difference_type = std::ptrdiff_t;
+        using pointer = std::conditional_t<IsConst, const value_type*, value_type*>;
+        using reference = std::conditional_t<IsConst, const value_type&, value_type&>;
+
+        Iterator() = default;
+
+        // Converts an iterator to a const_iterator.
+        template <bool WasConst, typename = std::enable_if_t<IsConst && !WasConst>>
+        Iterator(const Iterator<WasConst>& that) : mEntries(that.mEntries), mPos(that.mPos) {
+        }
+
+        reference operator*() const {
+            return *(*mEntries)[mPos];
+        }
+
+        pointer operator->() const {
+            return &**this;
+        }
+
+        Iterator& operator++() {
+            mPos--;
+            skipErased();
+            return *this;
+        }
+
+        Iterator operator++(int) {
+            Iterator it = *this;
+            ++*this;
+            return it;
+        }
+
+        bool operator==(const Iterator& that) const {
+            return mPos == that.mPos;
+        }
+
+        bool operator!=(const Iterator& that) const {
+            return mPos != that.mPos;
+        }
+
+    private:
+        using EntriesPtr = std::conditional_t<IsConst, const Entries*, Entries*>;
+
+        Iterator(EntriesPtr entries, std::ptrdiff_t pos) : mEntries(entries), mPos(pos) {
+            skipErased();
+        }
+
+        void skipErased() {
+            while (mPos >= 0 && !(*mEntries)[mPos].has_value()) {
+                mPos--;
+            }
+        }
+
+        EntriesPtr mEntries = nullptr;
+        // Index of the entry, or -1 at the end.
+        std::ptrdiff_t mPos = -1;
+
+        friend class FlatHashMap;
+        friend class Iterator<!IsConst>;
+    };
+
+    using iterator = Iterator<false>;
+    using const_iterator = Iterator<true>;
+
+    size_t size() const {
+        return mSize;
+    }
+
+    bool empty() const {
+        return mSize == 0;
+    }
+
+    iterator begin() {
+        return iterator(&mEntries, (std::ptrdiff_t)mEntries.size() - 1);
+    }
+
+    const_iterator begin() const {
+        return const_iterator(&mEntries, (std::ptrdiff_t)mEntries.size() - 1);
+    }
+
+    iterator end() {
+        return iterator(&mEntries, -1);
+    }
+
+    const_iterator end() const {
+        return const_iterator(&mEntries, -1);
+    }
+
+    iterator find(const Key& key) {
+        size_t slot;
+        return iterator(&mEntries, findPos(key, hashOf(key), &slot));
+    }
+
+    const_iterator find(const Key& key) const {
+        size_t slot;
+        return const_iterator(&mEntries, findPos(key, hashOf(key), &slot));
+    }
+
+    size_t count(const Key& key) const {
+        size_t slot;
+        return findPos(key, hashOf(key), &slot) >= 0 ? 1 : 0;
+    }
+
+    Value& operator[](const Key& key) {
+        return emplaceKey(key).first->second;
+    }
+
+    Value& operator[](Key&& key) {
+        return emplaceKey(std::move(key)).first->second;
+    }
+
+    // Like std::unordered_map::try_emplace, value is not moved from if key is already present.
+    template <typename K, typename V>
+    std::pair<iterator, bool> emplace(K&& key, V&& value) {
+        return emplaceKey(std::forward<K>(key), std::forward<V>(value));
+    }
+
+    std::pair<iterator, bool> insert(const value_type& entry) {
+        return emplaceKey(entry.first, entry.second);
+    }
+
+    // Inserts the entries whose keys are not already present.
+    template <typename InputIt>
+    void insert(InputIt first, InputIt last) {
+        for (; first != last; ++first) {
+            emplaceKey(first->first, first->second);
+        }
+    }
+
+    iterator erase(const_iterator pos) {
+        const std::ptrdiff_t index = pos.mPos;
+        removeSlot(findSlotOf(index));
+        mEntries[index].reset();
+        mSize--;
+        // Erased entries at the end are dropped, the others are skipped until the next rehash.
+        while (!mEntries.empty() && !mEntries.back().has_value()) {
+            mEntries.pop_back();
+        }
+        return iterator(&mEntries, std::min(index, (std::ptrdiff_t)mEntries.size()) - 1);
+    }
+
+    size_t erase(const Key& key) {
+        size_t slot;
+        const std::ptrdiff_t pos = findPos(key, hashOf(key), &slot);
+        if (pos < 0) {
+            return 0;
+        }
+        erase(const_iterator(&mEntries, pos));
+        return 1;
+    }
+
+    // Keeps the storage for about as many entries, unless most of it was unused.
+    void clear() {
+        if (mSize * kShrinkFactor < mEntries.capacity()) {
+            Entries().swap(mEntries);
+            std::vector<Slot>().swap(mSlots);
+        } else {
+            mEntries.clear();
+            std::fill(mSlots.begin(), mSlots.end(), Slot());
+        }
+        mSize = 0;
+    }
+
+    void reserve(size_t numEntries) {
+        if (needsRehash(numEntries)) {
+            rehash(std::max(numEntries, mSize));
+        }
+        mEntries.reserve(numEntries);
+    }
+
+private:
+    struct Slot {
+        // Index of the entry in mEntries, or kEmptySlot.
+        uint32_t index = kEmptySlot;
+        uint32_t hash = 0;
+    };
+
+    static constexpr uint32_t kEmptySlot = UINT32_MAX;
+    static constexpr size_t kMinSlots = 8;
+    // At most 3/4 of the slots are used.
+    static constexpr size_t kMaxLoadNumerator = 3;
+    static constexpr size_t kMaxLoadDenominator = 4;
+    static constexpr size_t kShrinkFactor = 4;
+
+    static uint32_t hashOf(const Key& key) {
+        return static_cast<uint32_t>(Hash()(key));
+    }
+
+    // Spreads the hash over the slots, since dimension hashes are not uniform in the low bits.
+    size_t homeSlot(uint32_t hash) const {
+        return (hash * 0x9E3779B9u) >> mShift;
+    }
+
+    size_t nextSlot(size_t slot) const {
+        return (slot + 1) & (mSlots.size() - 1);
+    }
+
+    // Returns the index of the entry for key, or -1 if there is none. Sets slot to the slot of
+    // the entry, or to the empty slot where it would go.
+    std::ptrdiff_t findPos(const Key& key, uint32_t hash, size_t* slot) const {
+        if (mSlots.empty()) {
+            return -1;
+        }
+        for (*slot = homeSlot(hash);; *slot = nextSlot(*slot)) {
+            const Slot& candidate = mSlots[*slot];
+            if (candidate.index == kEmptySlot) {
+                return -1;
+            }
+            if (candidate.hash == hash && mEntries[candidate.index]->first == key) {
+                return candidate.index;
+            }
+        }
+    }
+
+    size_t findSlotOf(std::ptrdiff_t index) const {
+        size_t slot = homeSlot(hashOf(mEntries[index]->first));
+        while (mSlots[slot].index != (uint32_t)index) {
+            slot = nextSlot(slot);
+        }
+        return slot;
+    }
+
+    // Empties the slot, and moves back the slots after it that probed past it.
+    void removeSlot(size_t hole) {
+        const size_t mask = mSlots.size() - 1;
+        for (size_t slot = nextSlot(hole); mSlots[slot].index != kEmptySlot;
+             slot = nextSlot(slot)) {
+            const size_t home = homeSlot(mSlots[slot].hash);
+            if (((slot - home) & mask) >= ((slot - hole) & mask)) {
+                mSlots[hole] = mSlots[slot];
+                hole = slot;
+            }
+        }
+        mSlots[hole] = Slot();
+    }
+
+    bool needsRehash(size_t numEntries) const {
+        return numEntries * kMaxLoadDenominator > mSlots.size() * kMaxLoadNumerator;
+    }
+
+    // Drops the erased entries, and sizes the slots for numEntries.
+    void rehash(size_t numEntries) {
+        if (mEntries.size() != mSize) {
+            mEntries.erase(std::remove_if(mEntries.begin(), mEntries.end(),
+                                          [](const std::optional<value_type>& entry) {
+                                              return !entry.has_value();
+                                          }),
+                           mEntries.end());
+        }
+        size_t numSlots = kMinSlots;
+        mShift = 32 - 3;
+        while (numEntries * kMaxLoadDenominator > numSlots * kMaxLoadNumerator) {
+            numSlots *= 2;
+            mShift--;
+        }
+        mSlots.assign(numSlots, Slot());
+        for (size_t i = 0; i < mEntries.size(); i++) {
+            const uint32_t hash = hashOf(mEntries[i]->first);
+            size_t slot = homeSlot(hash);
+            while (mSlots[slot].index != kEmptySlot) {
+                slot = nextSlot(slot);
+            }
+            mSlots[slot] = {(uint32_t)i, hash};
+        }
+    }
+
+    template <typename K, typename... Args>
+    std::pair<iterator, bool> emplaceKey(K&& key, Args&&... args) {
+        const uint32_t hash = hashOf(key);
+        size_t slot;
+        const std::ptrdiff_t pos = findPos(key, hash, &slot);
+        if (pos >= 0) {
+            return {iterator(&mEntries, pos), false};
+        }
+        if (needsRehash(mEntries.size() + 1)) {
+            rehash(mSize + 1);
+            slot = homeSlot(hash);
+            while (mSlots[slot].index != kEmptySlot) {
+                slot = nextSlot(slot);
+            }
+        }
+        mEntries.emplace_back(std::in_place, std::piecewise_construct,
+                              std::forward_as_tuple(std::forward<K>(key)),
+                              std::forward_as_tuple(std::forward<Args>(args)...));
+        mSlots[slot] = {(uint32_t)(mEntries.size() - 1), hash};
+        mSize++;
+        return {iterator(&mEntries, (std::ptrdiff_t)mEntries.size() - 1), true};
+    }
+
+    // The entries, in insertion order. Erased entries are empty until the next rehash.
+    Entries mEntries;
+
+    // Size is a power of 2, or 0 before the first insertion.
+    std::vector<Slot> mSlots;
+
+    // Shifts a 32-bit hash to a slot index.
+    int mShift = 32;
+
+    size_t mSize = 0;
+};
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "WorkerPool.h"
+
+#include <sys/prctl.h>
+
+using namespace std;
+
+namespace android {
+namespace os {
+namespace statsd {
+
+WorkerPool::WorkerPool(int numShards) : mNumShards(numShards), mPending(numShards, false) {
+    for (int shard = 1; shard < mNumShards; shard++) {
+        mThreads.emplace_back([this, shard] { workerLoop(shard); });
+    }
+}
+
+WorkerPool::~WorkerPool() {
+    {
+        lock_guard<mutex> lock(mMutex);
+        mStopping = true;
+    }
+    mWorkCondition.notify_all();
+    for (thread& worker : mThreads) {
+        worker.join();
+    }
+}
+
+void WorkerPool::run(const function<void(int)>& task, const vector<bool>& shards) {
+    bool hasWork = false;
+    {
+        lock_guard<mutex> lock(mMutex);
+        mTask = &task;
+        for (int shard = 1; shard < mNumShards; shard++) {
+            mPending[shard] = shards[shard];
+            if (shards[shard]) {
+                mRemaining++;
+                hasWork = true;
+            }
+        }
+    }
+    if (hasWork) {
+        mWorkCondition.notify_all();
+    }
+
+    if (shards[0]) {
+        task(0);
+    }
+
+    unique_lock<mutex> lock(mMutex);
+    mDoneCondition.wait(lock, [this] { return mRemaining == 0; });
+    mTask = nullptr;
+}
+
+void WorkerPool::workerLoop(int shard) {
+    prctl(PR_SET_NAME, "statsd.worker");
+    unique_lock<mutex> lock(mMutex);
+    while (true) {
+        mWorkCondition.wait(lock, [this, shard] { return mStopping || mPending[shard]; });
+        if (mStopping) {
+            return;
+        }
+        mPending[shard] = false;
+        const function<void(int)>* task = mTask;
+
+        lock.unlock();
+        (*task)(shard);
+        lock.lock();
+
+        if (--mRemaining == 0) {
+            mDoneCondition.notify_one();
+        }
+    }
+}
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#pragma once
+
+#include <condition_variable>
+#include <functional>
+#include <mutex>
+#include <thread>
+#include <vector>
+
+namespace android {
+namespace os {
+namespace statsd {
+
+/**
+ * Runs a task on several shards in parallel and waits for all of them to finish.
+ *
+ * Shard 0 runs on the calling thread, and each other shard on its own thread, so that a shard's
+ * work always runs on the same thread. With a single shard, no thread is created.
+ */
+class WorkerPool {
+public:
+    explicit WorkerPool(int numShards);
+
+    ~WorkerPool();
+
+    WorkerPool(const WorkerPool&) = delete;
+    WorkerPool& operator=(const WorkerPool&) = delete;
+
+    int getNumShards() const {
+        return mNumShards;
+    }
+
+    /**
+     * Runs task(shard) for each shard whose entry in shards is true, and returns once they have
+     * all returned. shards must have getNumShards() entries.
+     * Must only be called from one thread at a time.
+     */
+    void run(const std::function<void(int)>& task, const std::vector<bool>& shards);
+
+private:
+    void workerLoop(int shard);
+
+    const int mNumShards;
+
+    std::mutex mMutex;
+    // Signaled when shards have a task to run, or when stopping.
+    std::condition_variable mWorkCondition;
+    // Signaled when the last shard of a run is done.
+    std::condition_variable mDoneCondition;
+
+    // The task of the current run, and whether each worker still has to run it.
+    const std::function<void(int)>* mTask = nullptr;
+    std::vector<bool> mPending;
+    int mRemaining = 0;
+    bool mStopping = false;
+
+    std::vector<std::thread> mThreads;
+};
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -129,6 +129,103 @@ TEST(HashableDimensionKeyTest, TestContainsLinkedStateValues_AllConditionsMet) {
     EXPECT_TRUE(containsLinkedStateValues(whatKey, primaryKey, mMetric2StateLinks, stateAtomId));
 }
 
+/**
+ * Test that the cached hash follows the changes to the values.
+ */
+TEST(HashableDimensionKeyTest, TestHashUpdatedOnChange) {
+    HashableDimensionKey key1;
+    getUidProcessKey(1000, &key1);
+    HashableDimensionKey key2(key1.getValues());
+    EXPECT_EQ(key2.getHash(), key1.getHash());
+    EXPECT_EQ(key2, key1);
+
+    key1.mutableValue(0)->mValue = Value((int32_t)1001);
+    HashableDimensionKey key3;
+    getUidProcessKey(1001, &key3);
+    EXPECT_EQ(key3.getHash(), key1.getHash());
+    EXPECT_NE(key2.getHash(), key1.getHash());
+    EXPECT_NE(key2, key1);
+
+    key1.addValue(key2.getValues()[0]);
+    HashableDimensionKey key4(key3.getValues());
+    key4.mutableValues()->push_back(key2.getValues()[0]);
+    EXPECT_EQ(key4.getHash(), key1.getHash());
+    EXPECT_EQ(key4, key1);
+}
+
+/**
+ * Test that a moved-from key hashes as an empty key.
+ */
+TEST(HashableDimensionKeyTest, TestHashAfterMove) {
+    HashableDimensionKey key1;
+    getUidProcessKey(1000, &key1);
+    const android::hash_t hash = key1.getHash();
+
+    HashableDimensionKey key2(std::move(key1));
+    EXPECT_EQ(hash, key2.getHash());
+    EXPECT_EQ(DEFAULT_DIMENSION_KEY.getHash(), key1.getHash());
+    EXPECT_EQ(DEFAULT_DIMENSION_KEY, key1);
+
+    key1 = std::move(key2);
+    EXPECT_EQ(hash, key1.getHash());
+    EXPECT_EQ(DEFAULT_DIMENSION_KEY.getHash(), key2.getHash());
+}
+
+/**
+ * Test that equal interned keys share their values, until one of them changes.
+ */
+TEST(HashableDimensionKeyTest, TestIntern) {
+    HashableDimensionKey key1;
+    getOverlayKey(1000, "package", &key1);
+    HashableDimensionKey key2;
+    getOverlayKey(1000, "package", &key2);
+    HashableDimensionKey key3;
+    getOverlayKey(1001, "package", &key3);
+    key1.intern();
+    key2.intern();
+    key3.intern();
+
+    EXPECT_TRUE(key1.isInterned());
+    EXPECT_EQ(&key1.getValues(), &key2.getValues());
+    EXPECT_EQ(key1, key2);
+    EXPECT_NE(key1, key3);
+    HashableDimensionKey copy = key1;
+    EXPECT_EQ(&key1.getValues(), &copy.getValues());
+
+    // Changing a key gives it its own values.
+    key2.mutableValue(0)->mValue = Value((int32_t)1001);
+    EXPECT_FALSE(key2.isInterned());
+    EXPECT_EQ(key3, key2);
+    EXPECT_EQ(key3.getHash(), key2.getHash());
+    HashableDimensionKey expected;
+    getOverlayKey(1000, "package", &expected);
+    EXPECT_EQ(expected, key1);
+
+    // Empty keys are not interned.
+    HashableDimensionKey empty;
+    empty.intern();
+    EXPECT_FALSE(empty.isInterned());
+}
+
+/**
+ * Test that interned values are released with their last key.
+ */
+TEST(HashableDimensionKeyTest, TestInternRelease) {
+    {
+        HashableDimensionKey key;
+        getOverlayKey(1000, "released", &key);
+        key.intern();
+    }
+    // The values are interned again, not found among the released ones.
+    HashableDimensionKey key;
+    getOverlayKey(1000, "released", &key);
+    key.intern();
+    EXPECT_TRUE(key.isInterned());
+    HashableDimensionKey expected;
+    getOverlayKey(1000, "released", &expected);
+    EXPECT_EQ(expected, key);
+}
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
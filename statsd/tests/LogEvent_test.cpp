@@ -893,6 +893,52 @@ TEST(LogEventTest, TestResetStateAnnotation_NotBoolAnnotation) {
                                           /*parseBufferResult*/ false);
 }
 
+TEST(LogEventTest, TestAggregatedCountAnnotation) {
+    AStatsEvent* event = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(event, 100);
+    AStatsEvent_addInt32Annotation(event, ANNOTATION_ID_AGGREGATED_COUNT, 25);
+    AStatsEvent_writeInt32(event, 10);
+    AStatsEvent_build(event);
+
+    size_t size;
+    uint8_t* buf = AStatsEvent_getBuffer(event, &size);
+    LogEvent logEvent(/*uid=*/1000, /*pid=*/1001);
+    EXPECT_TRUE(logEvent.parseBuffer(buf, size));
+    EXPECT_EQ(25, logEvent.getAggregatedCount());
+
+    AStatsEvent_release(event);
+}
+
+TEST(LogEventTest, TestAggregatedCountAnnotation_DefaultsToOne) {
+    LogEvent event(/*uid=*/0, /*pid=*/0);
+    createFieldWithBoolAnnotationLogEvent(&event, INT32_TYPE, ANNOTATION_ID_IS_UID, true,
+                                          /*parseBufferResult*/ true);
+    EXPECT_EQ(1, event.getAggregatedCount());
+}
+
+TEST(LogEventTest, TestAggregatedCountAnnotation_NonPositiveCount) {
+    AStatsEvent* event = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(event, 100);
+    AStatsEvent_addInt32Annotation(event, ANNOTATION_ID_AGGREGATED_COUNT, 0);
+    AStatsEvent_writeInt32(event, 10);
+    AStatsEvent_build(event);
+
+    size_t size;
+    uint8_t* buf = AStatsEvent_getBuffer(event, &size);
+    LogEvent logEvent(/*uid=*/1000, /*pid=*/1001);
+    EXPECT_FALSE(logEvent.parseBuffer(buf, size));
+
+    AStatsEvent_release(event);
+}
+
+TEST_P(LogEventTestBadAnnotationFieldTypes, TestAggregatedCountAnnotation) {
+    LogEvent event(/*uid=*/0, /*pid=*/0);
+
+    // The aggregated count is only allowed at the atom level.
+    createFieldWithIntAnnotationLogEvent(&event, GetParam(), ANNOTATION_ID_AGGREGATED_COUNT, 5,
+                                         /*parseBufferResult*/ false);
+}
+
 TEST(LogEventTest, TestUidAnnotationWithInt8MaxValues) {
     int32_t numElements = INT8_MAX;
     int32_t int32Array[numElements];
@@ -939,6 +985,63 @@ TEST(LogEventTest, TestEmptyAttributionChainWithPrimaryFieldFirstUidAnnotation)
     AStatsEvent_release(event);
 }
 
+TEST(LogEventTest, TestLazyParsing) {
+    AStatsEvent* event = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(event, 100);
+    AStatsEvent_overwriteTimestamp(event, 1111);
+    uint32_t uids[] = {1001, 1002};
+    const char* tags[] = {"tag1", "tag2"};
+    AStatsEvent_writeAttributionChain(event, uids, tags, 2);
+    AStatsEvent_writeInt32(event, 10);
+    AStatsEvent_addBoolAnnotation(event, ANNOTATION_ID_EXCLUSIVE_STATE, true);
+    AStatsEvent_writeString(event, "test");
+    AStatsEvent_build(event);
+
+    size_t size;
+    uint8_t* buf = AStatsEvent_getBuffer(event, &size);
+    LogEvent expected(/*uid=*/1000, /*pid=*/1001);
+    EXPECT_TRUE(expected.parseBuffer(buf, size));
+
+    vector<uint8_t> bufCopy(buf, buf + size);
+    LogEvent logEvent(/*uid=*/1000, /*pid=*/1001);
+    EXPECT_TRUE(logEvent.parseBufferLazily(bufCopy.data(), bufCopy.size()));
+    // The values are parsed from a copy of the buffer, which may be reused.
+    std::fill(bufCopy.begin(), bufCopy.end(), 0);
+
+    EXPECT_EQ(100, logEvent.GetTagId());
+    EXPECT_EQ(1111, logEvent.GetElapsedTimestampNs());
+    EXPECT_EQ(1000, logEvent.GetUid());
+    EXPECT_TRUE(logEvent.isValid());
+    EXPECT_EQ(expected.getValues(), logEvent.getValues());
+    std::pair<size_t, size_t> indexRange;
+    EXPECT_TRUE(logEvent.hasAttributionChain(&indexRange));
+    EXPECT_EQ(0, indexRange.first);
+    EXPECT_EQ(3, indexRange.second);
+    EXPECT_EQ(4, logEvent.getExclusiveStateFieldIndex().value());
+
+    AStatsEvent_release(event);
+}
+
+TEST(LogEventTest, TestLazyParsingInvalidValues) {
+    AStatsEvent* event = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(event, 100);
+    AStatsEvent_writeString(event, "not a uid");
+    AStatsEvent_addBoolAnnotation(event, ANNOTATION_ID_IS_UID, true);
+    AStatsEvent_build(event);
+
+    size_t size;
+    uint8_t* buf = AStatsEvent_getBuffer(event, &size);
+    LogEvent logEvent(/*uid=*/1000, /*pid=*/1001);
+    // Only the header is checked up front.
+    EXPECT_TRUE(logEvent.parseBufferLazily(buf, size));
+    EXPECT_TRUE(logEvent.isHeaderValid());
+    EXPECT_EQ(100, logEvent.GetTagId());
+
+    EXPECT_FALSE(logEvent.isValid());
+
+    AStatsEvent_release(event);
+}
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
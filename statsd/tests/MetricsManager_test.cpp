@@ -316,6 +316,29 @@ TEST(MetricsManagerTest, TestWhitelistedAtomStateTracker) {
     EXPECT_FALSE(metricsManager.isConfigValid());
 }
 
+TEST(MetricsManagerTest, TestAddUnsampledAtoms) {
+    sp<UidMap> uidMap;
+    sp<StatsPullerManager> pullerManager = new StatsPullerManager();
+    sp<AlarmMonitor> anomalyAlarmMonitor;
+    sp<AlarmMonitor> periodicAlarmMonitor;
+
+    // Atom 2 is only used by the count metric, atom 10 by an event metric.
+    StatsdConfig config = buildGoodConfig();
+    config.add_allowed_log_source("AID_SYSTEM");
+    *config.add_atom_matcher() = CreateSimpleAtomMatcher("EVENT_ATOM", 10);
+    EventMetric* eventMetric = config.add_event_metric();
+    eventMetric->set_id(4);
+    eventMetric->set_what(StringToId("EVENT_ATOM"));
+
+    MetricsManager metricsManager(kConfigKey, config, timeBaseSec, timeBaseSec, uidMap,
+                                  pullerManager, anomalyAlarmMonitor, periodicAlarmMonitor);
+    ASSERT_TRUE(metricsManager.isConfigValid());
+
+    set<int> unsampledAtoms;
+    metricsManager.addUnsampledAtoms(&unsampledAtoms);
+    EXPECT_EQ(set<int>({10}), unsampledAtoms);
+}
+
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
@@ -328,6 +328,33 @@ TEST(StatsLogProcessorTest, TestPullUidProviderSetOnConfigUpdate) {
     EXPECT_EQ(pullerManager->mPullUidProviders.find(key), pullerManager->mPullUidProviders.end());
 }
 
+TEST(StatsLogProcessorTest, TestShellSubscribedAtomsAreUnsampled) {
+    sp<UidMap> m = new UidMap();
+    sp<StatsPullerManager> pullerManager = new StatsPullerManager();
+    sp<AlarmMonitor> anomalyAlarmMonitor;
+    sp<AlarmMonitor> subscriberAlarmMonitor;
+    StatsLogProcessor p(
+            m, pullerManager, anomalyAlarmMonitor, subscriberAlarmMonitor, 0,
+            [](const ConfigKey& key) { return true; },
+            [](const int&, const vector<int64_t>&) { return true; });
+    vector<vector<int>> updates;
+    p.setUnsampledAtomsListener(
+            [&updates](const vector<int>& atomIds) { updates.push_back(atomIds); });
+
+    p.setShellSubscribedAtoms({29, 10});
+    ASSERT_EQ(1, updates.size());
+    EXPECT_THAT(updates[0], ElementsAre(10, 29));
+
+    // Unchanged atoms are not sent again.
+    p.setShellSubscribedAtoms({10, 29});
+    ASSERT_EQ(1, updates.size());
+
+    // The subscription ended.
+    p.setShellSubscribedAtoms({});
+    ASSERT_EQ(2, updates.size());
+    EXPECT_TRUE(updates[1].empty());
+}
+
 TEST(StatsLogProcessorTest, InvalidConfigRemoved) {
     // Setup simple config key corresponding to empty config.
     sp<UidMap> m = new UidMap();
@@ -2001,6 +2028,85 @@ TEST(StatsLogProcessorTest, TestDumpReportWithoutErasingDataDoesNotUpdateTimesta
 
 }
 
+TEST(StatsLogProcessorTest, TestProcessingWorkers) {
+    // Each config counts the screen turning on, and the last one also the screen turning off.
+    const int numConfigs = 6;
+    vector<ConfigKey> keys;
+    vector<StatsdConfig> configs;
+    for (int i = 0; i < numConfigs; i++) {
+        keys.push_back(ConfigKey(/*uid=*/1000 + i, /*id=*/12345 + i));
+        StatsdConfig config;
+        config.add_allowed_log_source("AID_ROOT");
+        *config.add_atom_matcher() = CreateScreenTurnedOnAtomMatcher();
+        CountMetric* metric = config.add_count_metric();
+        metric->set_id(1);
+        metric->set_what(config.atom_matcher(0).id());
+        metric->set_bucket(FIVE_MINUTES);
+        if (i == numConfigs - 1) {
+            *config.add_atom_matcher() = CreateScreenTurnedOffAtomMatcher();
+            metric = config.add_count_metric();
+            metric->set_id(2);
+            metric->set_what(config.atom_matcher(1).id());
+            metric->set_bucket(FIVE_MINUTES);
+        }
+        configs.push_back(config);
+    }
+
+    const int64_t timeBaseNs = 1 * NS_PER_SEC;
+    sp<StatsLogProcessor> processor =
+            CreateStatsLogProcessor(timeBaseNs, timeBaseNs, configs[0], keys[0]);
+    for (int i = 1; i < numConfigs; i++) {
+        processor->OnConfigUpdated(timeBaseNs, keys[i], configs[i]);
+    }
+    processor->setProcessingWorkers(4);
+
+    for (int i = 0; i < 10; i++) {
+        const int64_t eventTimeNs = timeBaseNs + (2 * i + 1) * NS_PER_SEC;
+        std::unique_ptr<LogEvent> event = CreateScreenStateChangedEvent(
+                eventTimeNs, android::view::DisplayStateEnum::DISPLAY_STATE_ON);
+        processor->OnLogEvent(event.get());
+        if (i < 3) {
+            event = CreateScreenStateChangedEvent(
+                    eventTimeNs + 1, android::view::DisplayStateEnum::DISPLAY_STATE_OFF);
+            processor->OnLogEvent(event.get());
+        }
+    }
+
+    for (int i = 0; i < numConfigs; i++) {
+        vector<uint8_t> bytes;
+        processor->onDumpReport(keys[i], timeBaseNs + 60 * NS_PER_SEC,
+                                true /* include_current_bucket */, true /* erase_data */, ADB_DUMP,
+                                FAST, &bytes);
+        ConfigMetricsReportList output;
+        ASSERT_TRUE(output.ParseFromArray(bytes.data(), bytes.size()));
+        ASSERT_EQ(1, output.reports_size());
+        const ConfigMetricsReport& report = output.reports(0);
+        ASSERT_EQ(i == numConfigs - 1 ? 2 : 1, report.metrics_size());
+        for (const StatsLogReport& metric : report.metrics()) {
+            ASSERT_EQ(1, metric.count_metrics().data_size());
+            ASSERT_EQ(1, metric.count_metrics().data(0).bucket_info_size());
+            EXPECT_EQ(metric.metric_id() == 1 ? 10 : 3,
+                      metric.count_metrics().data(0).bucket_info(0).count());
+        }
+    }
+
+    // Back to processing every config on the calling thread.
+    processor->setProcessingWorkers(1);
+    std::unique_ptr<LogEvent> event = CreateScreenStateChangedEvent(
+            timeBaseNs + 61 * NS_PER_SEC, android::view::DisplayStateEnum::DISPLAY_STATE_ON);
+    processor->OnLogEvent(event.get());
+    vector<uint8_t> bytes;
+    processor->onDumpReport(keys[0], timeBaseNs + 62 * NS_PER_SEC,
+                            true /* include_current_bucket */, true /* erase_data */, ADB_DUMP,
+                            FAST, &bytes);
+    ConfigMetricsReportList output;
+    ASSERT_TRUE(output.ParseFromArray(bytes.data(), bytes.size()));
+    ASSERT_EQ(1, output.reports_size());
+    ASSERT_EQ(1, output.reports(0).metrics_size());
+    ASSERT_EQ(1, output.reports(0).metrics(0).count_metrics().data_size());
+    EXPECT_EQ(1, output.reports(0).metrics(0).count_metrics().data(0).bucket_info(0).count());
+}
+
 #else
 GTEST_LOG_(INFO) << "This test does nothing.\n";
 #endif
@@ -113,6 +113,93 @@ TEST(CountMetricE2eTest, TestInitialConditionChanges) {
     EXPECT_EQ(ConditionState::kTrue, metricProducer2->mCondition);
 }
 
+/**
+ * Tests that matcher and condition results from one event do not leak into the next event of a
+ * different atom, now that only the matchers that track the event's atom are evaluated.
+ */
+TEST(CountMetricE2eTest, TestMatchersOfOtherAtomsNotEvaluated) {
+    StatsdConfig config;
+    config.add_allowed_log_source("AID_ROOT");  // LogEvent defaults to UID of root.
+
+    auto syncStartMatcher = CreateSyncStartAtomMatcher();
+    *config.add_atom_matcher() = syncStartMatcher;
+    auto screenOnMatcher = CreateScreenTurnedOnAtomMatcher();
+    *config.add_atom_matcher() = screenOnMatcher;
+    auto screenOffMatcher = CreateScreenTurnedOffAtomMatcher();
+    *config.add_atom_matcher() = screenOffMatcher;
+    AtomMatcher* screenChangedMatcher = config.add_atom_matcher();
+    screenChangedMatcher->set_id(StringToId("ScreenChanged"));
+    screenChangedMatcher->mutable_combination()->set_operation(LogicalOperation::OR);
+    screenChangedMatcher->mutable_combination()->add_matcher(screenOnMatcher.id());
+    screenChangedMatcher->mutable_combination()->add_matcher(screenOffMatcher.id());
+
+    auto screenOnPredicate = CreateScreenIsOnPredicate();
+    *config.add_predicate() = screenOnPredicate;
+
+    *config.add_count_metric() =
+            createCountMetric("CountSyncWhileScreenOn", syncStartMatcher.id(),
+                              screenOnPredicate.id(), {});
+    *config.add_count_metric() =
+            createCountMetric("CountScreenChanged", screenChangedMatcher->id(), nullopt, {});
+
+    const uint64_t bucketStartTimeNs = 10000000000;  // 0:10
+    const uint64_t bucketSizeNs =
+            TimeUnitToBucketSizeInMillis(config.count_metric(0).bucket()) * 1000000LL;
+    int uid = 12345;
+    int64_t cfgId = 98765;
+    ConfigKey cfgKey(uid, cfgId);
+    auto processor = CreateStatsLogProcessor(bucketStartTimeNs, bucketStartTimeNs, config, cfgKey);
+
+    sp<MetricsManager> metricsManager = processor->mMetricsManagers.begin()->second;
+    EXPECT_TRUE(metricsManager->isConfigValid());
+    // Screen events are evaluated by the screen matchers and the combination only.
+    const auto& screenIndex = metricsManager->mAtomIndex.at(util::SCREEN_STATE_CHANGED);
+    EXPECT_EQ(vector<int>({1, 2, 3}), screenIndex.matchers);
+    EXPECT_EQ(vector<int>({0}), screenIndex.conditions);
+    const auto& syncIndex = metricsManager->mAtomIndex.at(util::SYNC_STATE_CHANGED);
+    EXPECT_EQ(vector<int>({0}), syncIndex.matchers);
+    EXPECT_TRUE(syncIndex.conditions.empty());
+
+    // The screen off matcher must not be seen as matched for the screen on event.
+    std::vector<std::unique_ptr<LogEvent>> events;
+    events.push_back(CreateScreenStateChangedEvent(bucketStartTimeNs + 10 * NS_PER_SEC,
+                                                   android::view::DISPLAY_STATE_OFF));
+    events.push_back(CreateScreenStateChangedEvent(bucketStartTimeNs + 20 * NS_PER_SEC,
+                                                   android::view::DISPLAY_STATE_ON));
+    events.push_back(CreateSyncStartEvent(bucketStartTimeNs + 30 * NS_PER_SEC, {111}, {"App1"},
+                                          "sync_name"));
+    events.push_back(CreateScreenStateChangedEvent(bucketStartTimeNs + 40 * NS_PER_SEC,
+                                                   android::view::DISPLAY_STATE_OFF));
+    events.push_back(CreateSyncStartEvent(bucketStartTimeNs + 50 * NS_PER_SEC, {111}, {"App1"},
+                                          "sync_name"));
+    for (auto& event : events) {
+        processor->OnLogEvent(event.get());
+    }
+
+    vector<uint8_t> buffer;
+    ConfigMetricsReportList reports;
+    processor->onDumpReport(cfgKey, bucketStartTimeNs + bucketSizeNs + 1, false, true, ADB_DUMP,
+                            FAST, &buffer);
+    ASSERT_GT(buffer.size(), 0);
+    EXPECT_TRUE(reports.ParseFromArray(&buffer[0], buffer.size()));
+    backfillStartEndTimestamp(&reports);
+
+    ASSERT_EQ(1, reports.reports_size());
+    ASSERT_EQ(2, reports.reports(0).metrics_size());
+    StatsLogReport::CountMetricDataWrapper syncCounts =
+            reports.reports(0).metrics(0).count_metrics();
+    ASSERT_EQ(1, syncCounts.data_size());
+    ASSERT_EQ(1, syncCounts.data(0).bucket_info_size());
+    ValidateCountBucket(syncCounts.data(0).bucket_info(0), bucketStartTimeNs,
+                        bucketStartTimeNs + bucketSizeNs, 1);
+    StatsLogReport::CountMetricDataWrapper screenCounts =
+            reports.reports(0).metrics(1).count_metrics();
+    ASSERT_EQ(1, screenCounts.data_size());
+    ASSERT_EQ(1, screenCounts.data(0).bucket_info_size());
+    ValidateCountBucket(screenCounts.data(0).bucket_info(0), bucketStartTimeNs,
+                        bucketStartTimeNs + bucketSizeNs, 3);
+}
+
 /**
 * Test a count metric that has one slice_by_state with no primary fields.
 *
@@ -75,6 +75,26 @@ TEST_P(FlagProviderTest_SPlus, TestOverrideLocalFlags) {
     EXPECT_TRUE(FlagProvider::getInstance().getBootFlagBool(TEST_FLAG, GetParam().flagValue));
 }
 
+TEST_P(FlagProviderTest_SPlus, TestUpdateJavaProperties) {
+    FlagProvider& flagProvider = FlagProvider::getInstance();
+    EXPECT_EQ(GetParam().flagValue,
+              flagProvider.getJavaPropertyString(TEST_FLAG, GetParam().flagValue));
+
+    vector<string> changed = flagProvider.updateJavaProperties({{TEST_FLAG, FLAG_TRUE}});
+    EXPECT_EQ(vector<string>{TEST_FLAG}, changed);
+    EXPECT_EQ(FLAG_TRUE, flagProvider.getJavaPropertyString(TEST_FLAG, GetParam().flagValue));
+
+    // Re-delivering the same value is not a change.
+    changed = flagProvider.updateJavaProperties({{TEST_FLAG, FLAG_TRUE}});
+    EXPECT_TRUE(changed.empty());
+
+    // An empty value removes the property.
+    changed = flagProvider.updateJavaProperties({{TEST_FLAG, FLAG_EMPTY}});
+    EXPECT_EQ(vector<string>{TEST_FLAG}, changed);
+    EXPECT_EQ(GetParam().flagValue,
+              flagProvider.getJavaPropertyString(TEST_FLAG, GetParam().flagValue));
+}
+
 class FlagProviderTest_SPlus_RealValues : public testing::TestWithParam<FlagParam> {
     void SetUp() override {
         if (!IsAtLeastS()) {
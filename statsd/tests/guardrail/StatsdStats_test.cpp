@@ -350,6 +350,8 @@ TEST(StatsdStatsTest, TestAtomMetricsStats) {
     stats.noteBucketBoundaryDelayNs(10000000000LL, 2L);
 
     stats.noteBucketBoundaryDelayNs(10000000001LL, 1L);
+    stats.noteAggregatedCountDropped(10000000001LL);
+    stats.noteAggregatedCountDropped(10000000001LL);
 
     vector<uint8_t> output;
     stats.dumpStats(&output, false);
@@ -364,12 +366,14 @@ TEST(StatsdStatsTest, TestAtomMetricsStats) {
     EXPECT_EQ(1L, atomStats.bucket_dropped());
     EXPECT_EQ(-10L, atomStats.min_bucket_boundary_delay_ns());
     EXPECT_EQ(2L, atomStats.max_bucket_boundary_delay_ns());
+    EXPECT_EQ(0L, atomStats.aggregated_count_dropped());
 
     auto atomStats2 = report.atom_metric_stats(1);
     EXPECT_EQ(10000000001LL, atomStats2.metric_id());
     EXPECT_EQ(0L, atomStats2.bucket_dropped());
     EXPECT_EQ(0L, atomStats2.min_bucket_boundary_delay_ns());
     EXPECT_EQ(1L, atomStats2.max_bucket_boundary_delay_ns());
+    EXPECT_EQ(2L, atomStats2.aggregated_count_dropped());
 }
 
 TEST(StatsdStatsTest, TestAnomalyMonitor) {
@@ -460,6 +464,69 @@ TEST(StatsdStatsTest, TestSystemServerCrash) {
     EXPECT_EQ(StatsdStats::kMaxSystemServerRestarts + 1, report.system_restart_sec(maxCount - 1));
 }
 
+TEST(StatsdStatsTest, TestLogEventAllocations) {
+    StatsdStats stats;
+    stats.noteLogEventAllocations(/*reused=*/10, /*allocated=*/2, /*freed=*/0);
+    stats.noteLogEventAllocations(/*reused=*/5, /*allocated=*/1, /*freed=*/3);
+
+    vector<uint8_t> output;
+    stats.dumpStats(&output, true);
+    StatsdStatsReport report;
+    ASSERT_TRUE(report.ParseFromArray(&output[0], output.size()));
+    ASSERT_TRUE(report.has_log_event_allocation_stats());
+    EXPECT_EQ(15, report.log_event_allocation_stats().reused());
+    EXPECT_EQ(3, report.log_event_allocation_stats().allocated());
+    EXPECT_EQ(3, report.log_event_allocation_stats().freed());
+
+    // The counts are reset with the report.
+    output.clear();
+    stats.dumpStats(&output, false);
+    ASSERT_TRUE(report.ParseFromArray(&output[0], output.size()));
+    EXPECT_FALSE(report.has_log_event_allocation_stats());
+}
+
+TEST(StatsdStatsTest, TestStatsdRecovery) {
+    StatsdStats stats;
+    stats.noteStatsdRecovery(/*replayMillis=*/120, /*totalMillis=*/2120,
+                             {{"statsd_down", 2000}, {"pullers", 80}, {"uid_map", 120}});
+    // The death of statsd was not observed.
+    stats.noteStatsdRecovery(/*replayMillis=*/90, /*totalMillis=*/-1, {{"pullers", 90}});
+
+    vector<uint8_t> output;
+    stats.dumpStats(&output, false);
+    StatsdStatsReport report;
+    ASSERT_TRUE(report.ParseFromArray(&output[0], output.size()));
+    ASSERT_EQ(2, report.statsd_recovery_stats_size());
+
+    const auto& recovery = report.statsd_recovery_stats(0);
+    EXPECT_EQ(120, recovery.replay_millis());
+    EXPECT_EQ(2120, recovery.total_millis());
+    ASSERT_EQ(3, recovery.phase_size());
+    EXPECT_EQ("statsd_down", recovery.phase(0).name());
+    EXPECT_EQ(2000, recovery.phase(0).millis());
+    EXPECT_EQ("uid_map", recovery.phase(2).name());
+    EXPECT_EQ(120, recovery.phase(2).millis());
+
+    EXPECT_EQ(90, report.statsd_recovery_stats(1).replay_millis());
+    EXPECT_FALSE(report.statsd_recovery_stats(1).has_total_millis());
+
+    // Only the last recoveries are kept.
+    for (int i = 0; i < StatsdStats::kMaxStatsdRecoveries; i++) {
+        stats.noteStatsdRecovery(/*replayMillis=*/i, /*totalMillis=*/-1, {});
+    }
+    output.clear();
+    stats.dumpStats(&output, true);
+    ASSERT_TRUE(report.ParseFromArray(&output[0], output.size()));
+    ASSERT_EQ(StatsdStats::kMaxStatsdRecoveries, report.statsd_recovery_stats_size());
+    EXPECT_EQ(0, report.statsd_recovery_stats(0).replay_millis());
+
+    // The recoveries are reset with the report.
+    output.clear();
+    stats.dumpStats(&output, false);
+    ASSERT_TRUE(report.ParseFromArray(&output[0], output.size()));
+    EXPECT_EQ(0, report.statsd_recovery_stats_size());
+}
+
 TEST(StatsdStatsTest, TestActivationBroadcastGuardrailHit) {
     StatsdStats stats;
     int uid1 = 1;
@@ -0,0 +1,77 @@
+// Copyright (C) 2022 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+#include "logd/LogEventPool.h"
+
+#include <gtest/gtest.h>
+
+#include "stats_event.h"
+#include "tests/statsd_test_util.h"
+
+namespace android {
+namespace os {
+namespace statsd {
+
+using std::unique_ptr;
+
+#ifdef __ANDROID__
+TEST(LogEventPoolTest, TestRecycledEventIsReset) {
+    LogEventPool pool(10);
+    unique_ptr<LogEvent> event = pool.obtain(/*uid=*/1000, /*pid=*/1001);
+    AStatsEvent* statsEvent = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(statsEvent, 10);
+    AStatsEvent_overwriteTimestamp(statsEvent, 1111);
+    AStatsEvent_writeInt32(statsEvent, 1);
+    AStatsEvent_addBoolAnnotation(statsEvent, ANNOTATION_ID_EXCLUSIVE_STATE, true);
+    AStatsEvent_writeString(statsEvent, "str");
+    parseStatsEventToLogEvent(statsEvent, event.get());
+    ASSERT_EQ(2, event->size());
+    const LogEvent* recycled = event.get();
+
+    pool.recycle(std::move(event));
+    event = pool.obtain(/*uid=*/2000, /*pid=*/2001);
+
+    EXPECT_EQ(recycled, event.get());
+    EXPECT_EQ(2000, event->GetUid());
+    EXPECT_EQ(2001, event->GetPid());
+    EXPECT_EQ(0, event->GetTagId());
+    EXPECT_EQ(0, event->GetElapsedTimestampNs());
+    EXPECT_EQ(0, event->size());
+    EXPECT_FALSE(event->getExclusiveStateFieldIndex());
+    EXPECT_TRUE(event->isValid());
+}
+
+TEST(LogEventPoolTest, TestFullPool) {
+    LogEventPool pool(1);
+    unique_ptr<LogEvent> event1 = pool.obtain(/*uid=*/0, /*pid=*/0);
+    unique_ptr<LogEvent> event2 = pool.obtain(/*uid=*/0, /*pid=*/0);
+    const LogEvent* kept = event1.get();
+
+    pool.recycle(std::move(event1));
+    // Freed, the pool only has room for one event.
+    pool.recycle(std::move(event2));
+
+    unique_ptr<LogEvent> event3 = pool.obtain(/*uid=*/0, /*pid=*/0);
+    unique_ptr<LogEvent> event4 = pool.obtain(/*uid=*/0, /*pid=*/0);
+    EXPECT_EQ(kept, event3.get());
+    EXPECT_NE(nullptr, event4);
+}
+
+#else
+GTEST_LOG_(INFO) << "This test does nothing.\n";
+#endif
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -19,6 +19,7 @@
 #include <stdio.h>
 
 #include <thread>
+#include <vector>
 
 #include "stats_event.h"
 #include "tests/statsd_test_util.h"
@@ -106,6 +107,80 @@ TEST(LogEventQueue_test, TestSlowConsumer) {
     writer.join();
 }
 
+TEST(LogEventQueue_test, TestOverflowReportsOldestEvent) {
+    LogEventQueue queue(3);
+    int64_t oldestEventNs = 0;
+    for (int i = 0; i < 3; i++) {
+        EXPECT_TRUE(queue.push(makeLogEvent(100 + i), &oldestEventNs));
+    }
+    EXPECT_FALSE(queue.push(makeLogEvent(200), &oldestEventNs));
+    EXPECT_EQ(100, oldestEventNs);
+
+    EXPECT_EQ(100, queue.waitPop()->GetElapsedTimestampNs());
+    EXPECT_TRUE(queue.push(makeLogEvent(103), &oldestEventNs));
+    EXPECT_FALSE(queue.push(makeLogEvent(201), &oldestEventNs));
+    EXPECT_EQ(101, oldestEventNs);
+
+    for (int i = 1; i < 4; i++) {
+        EXPECT_EQ(100 + i, queue.waitPop()->GetElapsedTimestampNs());
+    }
+}
+
+TEST(LogEventQueue_test, TestPushBatch) {
+    LogEventQueue queue(4);
+    int64_t oldestEventNs = 0;
+    EXPECT_TRUE(queue.push(makeLogEvent(100), &oldestEventNs));
+
+    std::vector<std::unique_ptr<LogEvent>> events;
+    for (int i = 1; i < 5; i++) {
+        events.push_back(makeLogEvent(100 + i));
+    }
+    // Only 3 of the 4 events fit, the last one is left in the batch.
+    EXPECT_EQ(3, queue.pushBatch(&events, &oldestEventNs));
+    EXPECT_EQ(100, oldestEventNs);
+    EXPECT_EQ(nullptr, events[2]);
+    ASSERT_NE(nullptr, events[3]);
+    EXPECT_EQ(104, events[3]->GetElapsedTimestampNs());
+
+    for (int i = 0; i < 4; i++) {
+        EXPECT_EQ(100 + i, queue.waitPop()->GetElapsedTimestampNs());
+    }
+}
+
+TEST(LogEventQueue_test, TestMultipleProducers) {
+    const int numProducers = 4;
+    const int eventsPerProducer = 1000;
+    LogEventQueue queue(50);
+    std::vector<std::thread> writers;
+    for (int p = 0; p < numProducers; p++) {
+        writers.emplace_back([&queue, p] {
+            for (int i = 0; i < eventsPerProducer; i++) {
+                int64_t oldestEventNs;
+                // Encode the producer in the timestamp so the reader can check the ordering.
+                while (!queue.push(makeLogEvent(p * eventsPerProducer + i), &oldestEventNs)) {
+                    std::this_thread::yield();
+                }
+            }
+        });
+    }
+
+    std::vector<int> nextEvent(numProducers, 0);
+    for (int i = 0; i < numProducers * eventsPerProducer; i++) {
+        auto event = queue.waitPop();
+        ASSERT_TRUE(event != nullptr);
+        const int64_t timestampNs = event->GetElapsedTimestampNs();
+        const int producer = timestampNs / eventsPerProducer;
+        // Events from each producer are in the order they were pushed.
+        EXPECT_EQ(nextEvent[producer], timestampNs % eventsPerProducer);
+        nextEvent[producer]++;
+    }
+
+    for (std::thread& writer : writers) {
+        writer.join();
+    }
+    EXPECT_THAT(nextEvent, Each(eventsPerProducer));
+}
+
 #else
 GTEST_LOG_(INFO) << "This test does nothing.\n";
 #endif
@@ -287,6 +287,46 @@ TEST_F(EventMetricProducerTest, TestTwoAtomTagAggregatedEvents) {
         }
     }
 }
+
+TEST_F(EventMetricProducerTest, TestDropsEventsWithAggregatedCount) {
+    int64_t bucketStartTimeNs = 10000000000;
+    int tagId = 1;
+
+    EventMetric metric;
+    metric.set_id(1);
+
+    LogEvent event1(/*uid=*/0, /*pid=*/0);
+    makeLogEvent(&event1, tagId, bucketStartTimeNs + 10, "111");
+
+    // An event standing for 5 occurrences, which an event metric cannot report.
+    AStatsEvent* statsEvent = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(statsEvent, tagId);
+    AStatsEvent_addInt32Annotation(statsEvent, ANNOTATION_ID_AGGREGATED_COUNT, 5);
+    AStatsEvent_overwriteTimestamp(statsEvent, bucketStartTimeNs + 20);
+    AStatsEvent_writeString(statsEvent, "111");
+    LogEvent event2(/*uid=*/0, /*pid=*/0);
+    parseStatsEventToLogEvent(statsEvent, &event2);
+    ASSERT_EQ(5, event2.getAggregatedCount());
+
+    sp<MockConditionWizard> wizard = new NaggyMock<MockConditionWizard>();
+    EventMetricProducer eventProducer(kConfigKey, metric, -1 /*-1 meaning no condition*/, {},
+                                      wizard, protoHash, bucketStartTimeNs);
+
+    eventProducer.onMatchedLogEvent(1 /*matcher index*/, event1);
+    eventProducer.onMatchedLogEvent(1 /*matcher index*/, event2);
+
+    // Check dump report content.
+    ProtoOutputStream output;
+    std::set<string> strSet;
+    eventProducer.onDumpReport(bucketStartTimeNs + 50, true /*include current partial bucket*/,
+                               true /*erase data*/, FAST, &strSet, &output);
+
+    StatsLogReport report = outputStreamToProto(&output);
+    backfillAggregatedAtoms(&report);
+    EXPECT_TRUE(report.has_event_metrics());
+    ASSERT_EQ(1, report.event_metrics().data_size());
+    EXPECT_EQ(bucketStartTimeNs + 10, report.event_metrics().data(0).elapsed_timestamp_nanos());
+}
 }  // namespace statsd
 }  // namespace os
 }  // namespace android
@@ -0,0 +1,186 @@
+// Copyright (C) 2022 The Android Open Source Project
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//      http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+#include "tools/replay/RecordedAtomReader.h"
+
+#include <android-base/file.h>
+#include <gtest/gtest.h>
+#include <unistd.h>
+
+#include <cstring>
+#include <vector>
+
+#include "src/shell/shell_data.pb.h"
+#include "stats_event.h"
+#include "tests/statsd_test_util.h"
+
+#ifdef __ANDROID__
+
+namespace android {
+namespace os {
+namespace statsd {
+
+using android::util::ProtoOutputStream;
+using android::util::ProtoReader;
+using std::string;
+using std::vector;
+
+namespace {
+
+const int kAtomId = 100;
+
+// Encodes events as ShellSubscriber does.
+vector<uint8_t> toShellData(const vector<LogEvent*>& events) {
+    ProtoOutputStream proto;
+    for (const LogEvent* event : events) {
+        uint64_t atomToken =
+                proto.start(util::FIELD_TYPE_MESSAGE | util::FIELD_COUNT_REPEATED | 1);
+        event->ToProto(proto);
+        proto.end(atomToken);
+    }
+    for (const LogEvent* event : events) {
+        proto.write(util::FIELD_TYPE_INT64 | util::FIELD_COUNT_REPEATED | 2,
+                    (long long)event->GetElapsedTimestampNs());
+    }
+
+    vector<uint8_t> bytes(proto.size());
+    size_t pos = 0;
+    sp<ProtoReader> reader = proto.data();
+    while (reader->readBuffer() != NULL) {
+        size_t toRead = reader->currentToRead();
+        std::memcpy(&bytes[pos], reader->readBuffer(), toRead);
+        pos += toRead;
+        reader->move(toRead);
+    }
+    return bytes;
+}
+
+void writeFrame(int fd, const vector<uint8_t>& shellData) {
+    uint64_t size = shellData.size();
+    ASSERT_TRUE(android::base::WriteFully(fd, &size, sizeof(size)));
+    ASSERT_TRUE(android::base::WriteFully(fd, shellData.data(), shellData.size()));
+}
+
+std::unique_ptr<LogEvent> makeEvent(int64_t timestampNs, int32_t value) {
+    AStatsEvent* statsEvent = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(statsEvent, kAtomId);
+    AStatsEvent_overwriteTimestamp(statsEvent, timestampNs);
+    AStatsEvent_writeInt32(statsEvent, value);
+    std::unique_ptr<LogEvent> logEvent = std::make_unique<LogEvent>(/*uid=*/0, /*pid=*/0);
+    parseStatsEventToLogEvent(statsEvent, logEvent.get());
+    return logEvent;
+}
+
+}  // namespace
+
+TEST(RecordedAtomReaderTest, TestFieldsRoundTrip) {
+    AStatsEvent* statsEvent = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(statsEvent, kAtomId);
+    AStatsEvent_overwriteTimestamp(statsEvent, 1000);
+    writeAttribution(statsEvent, {1001, 1002}, {"tag1", "tag2"});
+    AStatsEvent_writeInt32(statsEvent, -10);
+    AStatsEvent_writeInt64(statsEvent, 1LL << 40);
+    AStatsEvent_writeString(statsEvent, "str");
+    // Not written by ToProto, so replayed as the default int32.
+    AStatsEvent_writeInt32(statsEvent, 0);
+    AStatsEvent_writeFloat(statsEvent, 2.5f);
+    const int64_t int64Array[] = {3, 1LL << 40};
+    AStatsEvent_writeInt64Array(statsEvent, int64Array, 2);
+    LogEvent original(/*uid=*/0, /*pid=*/0);
+    parseStatsEventToLogEvent(statsEvent, &original);
+
+    const vector<uint8_t> shellData = toShellData({&original});
+    vector<RecordedAtom> atoms;
+    ASSERT_TRUE(parseShellData(shellData.data(), shellData.size(), &atoms));
+    ASSERT_EQ(1, atoms.size());
+    EXPECT_EQ(kAtomId, atoms[0].atomId);
+    EXPECT_EQ(1000, atoms[0].elapsedTimestampNs);
+
+    AStatsEvent* replayed = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(replayed, kAtomId);
+    AStatsEvent_overwriteTimestamp(replayed, 1000);
+    ASSERT_TRUE(writeRecordedFields(atoms[0].fields, replayed));
+    LogEvent replayedEvent(/*uid=*/0, /*pid=*/0);
+    parseStatsEventToLogEvent(replayed, &replayedEvent);
+
+    ASSERT_TRUE(replayedEvent.isValid());
+    EXPECT_EQ(kAtomId, replayedEvent.GetTagId());
+    EXPECT_EQ(original.getValues(), replayedEvent.getValues());
+}
+
+TEST(RecordedAtomReaderTest, TestMissingTimestamps) {
+    std::unique_ptr<LogEvent> event1 = makeEvent(1000, 1);
+    std::unique_ptr<LogEvent> event2 = makeEvent(2000, 2);
+    vector<uint8_t> shellData = toShellData({event1.get()});
+    ShellData parsed;
+    ASSERT_TRUE(parsed.ParseFromArray(shellData.data(), shellData.size()));
+    shellData = toShellData({event2.get()});
+    ShellData second;
+    ASSERT_TRUE(second.ParseFromArray(shellData.data(), shellData.size()));
+    *parsed.add_atom() = second.atom(0);
+    string bytes;
+    ASSERT_TRUE(parsed.SerializeToString(&bytes));
+
+    vector<RecordedAtom> atoms;
+    ASSERT_TRUE(parseShellData(reinterpret_cast<const uint8_t*>(bytes.data()), bytes.size(),
+                               &atoms));
+    ASSERT_EQ(2, atoms.size());
+    EXPECT_EQ(1000, atoms[0].elapsedTimestampNs);
+    // Takes the timestamp of the atom before it.
+    EXPECT_EQ(1000, atoms[1].elapsedTimestampNs);
+}
+
+TEST(RecordedAtomReaderTest, TestReadRecording) {
+    std::unique_ptr<LogEvent> event1 = makeEvent(1000, 1);
+    std::unique_ptr<LogEvent> event2 = makeEvent(2000, 2);
+    std::unique_ptr<LogEvent> event3 = makeEvent(3000, 3);
+    TemporaryFile recording;
+    writeFrame(recording.fd, toShellData({event1.get(), event2.get()}));
+    writeFrame(recording.fd, toShellData({event3.get()}));
+    // An interrupted recording ends with part of a frame.
+    const uint64_t size = 100;
+    ASSERT_TRUE(android::base::WriteFully(recording.fd, &size, sizeof(size)));
+    ASSERT_EQ(0, lseek(recording.fd, 0, SEEK_SET));
+
+    RecordedAtomReader reader(recording.fd);
+    vector<int64_t> timestamps;
+    RecordedAtom atom;
+    while (reader.next(&atom)) {
+        timestamps.push_back(atom.elapsedTimestampNs);
+    }
+
+    EXPECT_EQ(vector<int64_t>({1000, 2000, 3000}), timestamps);
+    EXPECT_FALSE(reader.hasError());
+}
+
+TEST(RecordedAtomReaderTest, TestCorruptRecording) {
+    TemporaryFile recording;
+    const uint8_t notShellData[] = {0xFF, 0xFF, 0xFF};
+    const uint64_t size = sizeof(notShellData);
+    ASSERT_TRUE(android::base::WriteFully(recording.fd, &size, sizeof(size)));
+    ASSERT_TRUE(android::base::WriteFully(recording.fd, notShellData, sizeof(notShellData)));
+    ASSERT_EQ(0, lseek(recording.fd, 0, SEEK_SET));
+
+    RecordedAtomReader reader(recording.fd);
+    RecordedAtom atom;
+    EXPECT_FALSE(reader.next(&atom));
+    EXPECT_TRUE(reader.hasError());
+}
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
+#else
+GTEST_LOG_(INFO) << "This test does nothing.\n";
+#endif
@@ -33,6 +33,7 @@ using std::vector;
 using testing::_;
 using testing::Invoke;
 using testing::NaggyMock;
+using testing::Return;
 using testing::StrictMock;
 
 #ifdef __ANDROID__
@@ -138,6 +139,7 @@ TEST(ShellSubscriberTest, testPushedSubscription) {
     ShellData shellData;
     shellData.add_atom()->mutable_screen_state_changed()->set_state(
             ::android::view::DisplayStateEnum::DISPLAY_STATE_ON);
+    shellData.add_elapsed_timestamp_nanos(1000);
 
     runShellTest(config, uidMap, pullerManager, pushedList, shellData);
 }
@@ -150,6 +152,8 @@ int kUid2 = 2000;
 int kCpuTime1 = 100;
 int kCpuTime2 = 200;
 
+int64_t kCpuActiveTimeTimestampNs = 1111L;
+
 ShellData getExpectedShellData() {
     ShellData shellData;
     auto* atom1 = shellData.add_atom()->mutable_cpu_active_time();
@@ -160,6 +164,8 @@ ShellData getExpectedShellData() {
     atom2->set_uid(kUid2);
     atom2->set_time_millis(kCpuTime2);
 
+    shellData.add_elapsed_timestamp_nanos(kCpuActiveTimeTimestampNs);
+    shellData.add_elapsed_timestamp_nanos(kCpuActiveTimeTimestampNs);
     return shellData;
 }
 
@@ -174,7 +180,7 @@ ShellSubscription getPulledConfig() {
 shared_ptr<LogEvent> makeCpuActiveTimeAtom(int32_t uid, int64_t timeMillis) {
     AStatsEvent* statsEvent = AStatsEvent_obtain();
     AStatsEvent_setAtomId(statsEvent, 10016);
-    AStatsEvent_overwriteTimestamp(statsEvent, 1111L);
+    AStatsEvent_overwriteTimestamp(statsEvent, kCpuActiveTimeTimestampNs);
     AStatsEvent_writeInt32(statsEvent, uid);
     AStatsEvent_writeInt64(statsEvent, timeMillis);
 
@@ -202,6 +208,35 @@ TEST(ShellSubscriberTest, testPulledSubscription) {
                  getExpectedShellData());
 }
 
+TEST(ShellSubscriberTest, testPushedSubscriptionMapsIsolatedUid) {
+    const int isolatedUid = 99123;
+    sp<MockUidMap> uidMap = new NaggyMock<MockUidMap>();
+    EXPECT_CALL(*uidMap, getHostUidOrSelf(isolatedUid)).WillRepeatedly(Return(kUid1));
+
+    sp<MockStatsPullerManager> pullerManager = new StrictMock<MockStatsPullerManager>();
+
+    // An event of an atom that no config uses, so StatsLogProcessor left its uid as is.
+    AStatsEvent* statsEvent = AStatsEvent_obtain();
+    AStatsEvent_setAtomId(statsEvent, 10016);
+    AStatsEvent_overwriteTimestamp(statsEvent, kCpuActiveTimeTimestampNs);
+    AStatsEvent_writeInt32(statsEvent, isolatedUid);
+    AStatsEvent_addBoolAnnotation(statsEvent, ANNOTATION_ID_IS_UID, true);
+    AStatsEvent_writeInt64(statsEvent, kCpuTime1);
+    std::shared_ptr<LogEvent> logEvent = std::make_shared<LogEvent>(/*uid=*/0, /*pid=*/0);
+    parseStatsEventToLogEvent(statsEvent, logEvent.get());
+
+    ShellSubscription config;
+    config.add_pushed()->set_atom_id(10016);
+
+    ShellData shellData;
+    auto* atom = shellData.add_atom()->mutable_cpu_active_time();
+    atom->set_uid(kUid1);
+    atom->set_time_millis(kCpuTime1);
+    shellData.add_elapsed_timestamp_nanos(kCpuActiveTimeTimestampNs);
+
+    runShellTest(config, uidMap, pullerManager, {logEvent}, shellData);
+}
+
 #else
 GTEST_LOG_(INFO) << "This test does nothing.\n";
 #endif
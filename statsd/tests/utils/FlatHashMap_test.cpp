@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include "utils/FlatHashMap.h"
+
+#include <gtest/gtest.h>
+
+#include <string>
+#include <unordered_map>
+#include <vector>
+
+#ifdef __ANDROID__
+
+using namespace std;
+
+namespace android {
+namespace os {
+namespace statsd {
+
+namespace {
+
+// Puts all keys in the same few slots, to exercise probing.
+struct CollidingHash {
+    size_t operator()(int key) const {
+        return key % 3;
+    }
+};
+
+template <typename Map>
+vector<int> getKeys(const Map& map) {
+    vector<int> keys;
+    for (const auto& [key, value] : map) {
+        keys.push_back(key);
+    }
+    return keys;
+}
+
+}  // namespace
+
+TEST(FlatHashMapTest, TestInsertAndFind) {
+    FlatHashMap<int, string> map;
+    EXPECT_TRUE(map.empty());
+    EXPECT_EQ(map.end(), map.find(1));
+
+    map[1] = "one";
+    EXPECT_TRUE(map.emplace(2, "two").second);
+    EXPECT_FALSE(map.emplace(2, "deux").second);
+    EXPECT_FALSE(map.insert({1, "un"}).second);
+
+    ASSERT_EQ(2UL, map.size());
+    EXPECT_EQ("one", map.find(1)->second);
+    EXPECT_EQ("two", map[2]);
+    EXPECT_EQ(1UL, map.count(2));
+    EXPECT_EQ(0UL, map.count(3));
+    EXPECT_EQ(map.end(), map.find(3));
+}
+
+TEST(FlatHashMapTest, TestInsertRange) {
+    FlatHashMap<int, string> map;
+    map[1] = "one";
+    const vector<pair<int, string>> entries = {{1, "un"}, {2, "deux"}, {3, "trois"}};
+    map.insert(entries.begin(), entries.end());
+
+    ASSERT_EQ(3UL, map.size());
+    EXPECT_EQ("one", map[1]);
+    EXPECT_EQ("deux", map[2]);
+    EXPECT_EQ("trois", map[3]);
+}
+
+TEST(FlatHashMapTest, TestIterationOrder) {
+    FlatHashMap<int, int> map;
+    map[1];
+    map[2];
+    map[3];
+    EXPECT_EQ(vector<int>({3, 2, 1}), getKeys(map));
+
+    map.erase(2);
+    map[4];
+    EXPECT_EQ(vector<int>({4, 3, 1}), getKeys(map));
+}
+
+TEST(FlatHashMapTest, TestEraseWhileIterating) {
+    FlatHashMap<int, int, CollidingHash> map;
+    for (int i = 0; i < 20; i++) {
+        map[i] = i;
+    }
+
+    for (auto it = map.begin(); it != map.end();) {
+        if (it->first % 2 == 0) {
+            it = map.erase(it);
+        } else {
+            it++;
+        }
+    }
+
+    ASSERT_EQ(10UL, map.size());
+    for (int i = 0; i < 20; i++) {
+        EXPECT_EQ(i % 2 == 0 ? 0UL : 1UL, map.count(i)) << i;
+    }
+    EXPECT_EQ(0UL, map.erase(0));
+    EXPECT_EQ(1UL, map.erase(1));
+    EXPECT_EQ(map.end(), map.find(1));
+    EXPECT_EQ(3, map.find(3)->second);
+}
+
+TEST(FlatHashMapTest, TestMatchesUnorderedMap) {
+    FlatHashMap<int, int, CollidingHash> map;
+    unordered_map<int, int> expected;
+    for (int i = 0; i < 5000; i++) {
+        const int key = (i * 7919) % 300;
+        if (i % 3 == 0) {
+            EXPECT_EQ(expected.erase(key), map.erase(key)) << key;
+        } else {
+            map[key] += i;
+            expected[key] += i;
+        }
+    }
+
+    ASSERT_EQ(expected.size(), map.size());
+    for (const auto& [key, value] : map) {
+        EXPECT_EQ(expected[key], value) << key;
+    }
+}
+
+TEST(FlatHashMapTest, TestClear) {
+    FlatHashMap<int, int> map;
+    for (int i = 0; i < 100; i++) {
+        map[i] = i;
+    }
+
+    map.clear();
+    EXPECT_TRUE(map.empty());
+    EXPECT_EQ(map.end(), map.begin());
+    EXPECT_EQ(map.end(), map.find(1));
+
+    map[1] = 2;
+    ASSERT_EQ(1UL, map.size());
+    EXPECT_EQ(2, map.find(1)->second);
+}
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
+#else
+GTEST_LOG_(INFO) << "This test does nothing.\n";
+#endif
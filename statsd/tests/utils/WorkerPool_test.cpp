@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+#include "utils/WorkerPool.h"
+
+#include <gtest/gtest.h>
+
+#include <thread>
+#include <vector>
+
+#ifdef __ANDROID__
+
+using namespace std;
+
+namespace android {
+namespace os {
+namespace statsd {
+
+TEST(WorkerPoolTest, TestRunsSelectedShards) {
+    WorkerPool pool(4);
+    vector<int> runs(4, 0);
+    vector<thread::id> threads(4);
+    const function<void(int)> task = [&runs, &threads](int shard) {
+        runs[shard]++;
+        threads[shard] = this_thread::get_id();
+    };
+
+    pool.run(task, {true, true, false, true});
+    EXPECT_EQ(vector<int>({1, 1, 0, 1}), runs);
+    // Shard 0 runs on the calling thread, the others on their own.
+    EXPECT_EQ(this_thread::get_id(), threads[0]);
+    EXPECT_NE(this_thread::get_id(), threads[1]);
+    EXPECT_NE(this_thread::get_id(), threads[3]);
+    EXPECT_NE(threads[1], threads[3]);
+
+    pool.run(task, {false, true, true, false});
+    EXPECT_EQ(vector<int>({1, 2, 1, 1}), runs);
+}
+
+TEST(WorkerPoolTest, TestManyRuns) {
+    WorkerPool pool(3);
+    vector<int64_t> sums(3, 0);
+    const function<void(int)> task = [&sums](int shard) { sums[shard] += shard + 1; };
+    for (int i = 0; i < 1000; i++) {
+        pool.run(task, {true, true, true});
+    }
+    EXPECT_EQ(vector<int64_t>({1000, 2000, 3000}), sums);
+}
+
+TEST(WorkerPoolTest, TestSingleShard) {
+    WorkerPool pool(1);
+    int runs = 0;
+    pool.run([&runs](int shard) { runs += shard + 1; }, {true});
+    EXPECT_EQ(1, runs);
+}
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
+#else
+GTEST_LOG_(INFO) << "This test does nothing.\n";
+#endif
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools;
+
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.StatsLogReport;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the same step on several devices at once.
+ *
+ * Each device gets its own thread, so a step that waits on one device does not hold up the
+ * others. The number of adb commands running at the same time is bounded separately, see
+ * {@link Utils#setMaxConcurrentCommands(int)}. A device whose step fails is logged and dropped
+ * from the following steps.
+ */
+public class MultiDeviceRunner implements AutoCloseable {
+
+    /**
+     * A step to run on one device.
+     */
+    public interface DeviceTask<T> {
+        T run(String deviceSerial) throws Exception;
+    }
+
+    private final List<String> mDeviceSerials;
+    private final Logger mLogger;
+    private final ExecutorService mExecutor;
+
+    public MultiDeviceRunner(List<String> deviceSerials, Logger logger) {
+        mDeviceSerials = new ArrayList<>(deviceSerials);
+        mLogger = logger;
+        mExecutor = Executors.newFixedThreadPool(Math.max(1, deviceSerials.size()));
+    }
+
+    /**
+     * Returns the devices on which every step run so far has succeeded.
+     */
+    public List<String> getDeviceSerials() {
+        return new ArrayList<>(mDeviceSerials);
+    }
+
+    /**
+     * Runs {@code task} on every remaining device concurrently and waits for all of them.
+     * @param description what the task does, for error messages
+     * @return the result of each device on which the task succeeded, in device order
+     */
+    public <T> Map<String, T> runOnAll(String description, DeviceTask<T> task)
+            throws InterruptedException {
+        Map<String, Future<T>> futures = new LinkedHashMap<>();
+        for (String deviceSerial : mDeviceSerials) {
+            futures.put(deviceSerial, mExecutor.submit(() -> task.run(deviceSerial)));
+        }
+        Map<String, T> results = new LinkedHashMap<>();
+        for (Map.Entry<String, Future<T>> entry : futures.entrySet()) {
+            try {
+                results.put(entry.getKey(), entry.getValue().get());
+            } catch (ExecutionException e) {
+                mLogger.log(Level.SEVERE, "Failed to " + description + " on device '"
+                        + entry.getKey() + "': " + e.getCause().getMessage(), e.getCause());
+                mDeviceSerials.remove(entry.getKey());
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public void close() {
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Returns the number of data entries in the report, e.g. the number of events of an event
+     * metric or the number of dimension keys of a count metric.
+     */
+    public static int countData(StatsLogReport report) {
+        if (report.hasEventMetrics()) {
+            return Utils.countEventMetricData(report);
+        } else if (report.hasCountMetrics()) {
+            return report.getCountMetrics().getDataCount();
+        } else if (report.hasDurationMetrics()) {
+            return report.getDurationMetrics().getDataCount();
+        } else if (report.hasValueMetrics()) {
+            return report.getValueMetrics().getDataCount();
+        } else if (report.hasGaugeMetrics()) {
+            return report.getGaugeMetrics().getDataCount();
+        } else if (report.hasKllMetrics()) {
+            return report.getKllMetrics().getDataCount();
+        }
+        return 0;
+    }
+
+    /**
+     * Formats a table with the number of data entries of each metric on each device, and the
+     * total across devices.
+     */
+    public static String summarizeReports(Map<String, ConfigMetricsReportList> reportsByDevice) {
+        // metric id -> device -> data count
+        Map<Long, Map<String, Integer>> counts = new TreeMap<>();
+        for (Map.Entry<String, ConfigMetricsReportList> entry : reportsByDevice.entrySet()) {
+            for (ConfigMetricsReport report : entry.getValue().getReportsList()) {
+                for (StatsLogReport metric : report.getMetricsList()) {
+                    counts.computeIfAbsent(metric.getMetricId(), id -> new LinkedHashMap<>())
+                            .merge(entry.getKey(), countData(metric), Integer::sum);
+                }
+            }
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("metric_id");
+        for (String deviceSerial : reportsByDevice.keySet()) {
+            sb.append('\t').append(deviceSerial);
+        }
+        sb.append("\ttotal\n");
+        for (Map.Entry<Long, Map<String, Integer>> metric : counts.entrySet()) {
+            sb.append(metric.getKey());
+            int total = 0;
+            for (String deviceSerial : reportsByDevice.keySet()) {
+                int count = metric.getValue().getOrDefault(deviceSerial, 0);
+                sb.append('\t').append(count);
+                total += count;
+            }
+            sb.append('\t').append(total).append('\n');
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools;
+
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.StatsLogReport;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.ExtensionRegistryLite;
+import com.google.protobuf.WireFormat;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Parses a serialized ConfigMetricsReportList incrementally, handing each StatsLogReport to a
+ * {@link Visitor} as soon as it has been read.
+ *
+ * Only one StatsLogReport is held in memory at a time, plus the non-metric fields of the
+ * ConfigMetricsReport being read, so memory stays bounded by the size of the largest metric
+ * rather than the size of the whole dump.
+ */
+public class ReportStreamReader {
+    // Tags of the length-delimited fields of ConfigMetricsReportList and ConfigMetricsReport in
+    // stats_log.proto, i.e. (field number << 3) | wire type.
+    private static final int REPORT_LIST_CONFIG_KEY_TAG =
+            (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int REPORT_LIST_REPORTS_TAG =
+            (2 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int REPORT_METRICS_TAG = (1 << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    /**
+     * Receives the parts of a ConfigMetricsReportList in the order they appear in the stream, with
+     * each StatsLogReport still serialized, so that the caller can decide where to parse it.
+     */
+    public interface RawVisitor {
+        /** Called when the config key of the report list has been read. */
+        default void onConfigKey(ConfigMetricsReportList.ConfigKey configKey) {}
+
+        /** Called before the first metric of each ConfigMetricsReport. */
+        default void onReportStart(int reportIndex) {}
+
+        /** Called with the serialized bytes of each StatsLogReport of the current report. */
+        void onMetricBytes(int reportIndex, ByteString metric) throws IOException;
+
+        /**
+         * Called once the current ConfigMetricsReport has been fully read, with all of its fields
+         * except for the metrics, which have already been passed to {@link #onMetricBytes}.
+         */
+        default void onReportEnd(int reportIndex, ConfigMetricsReport reportWithoutMetrics) {}
+    }
+
+    /**
+     * Receives the parts of a ConfigMetricsReportList in the order they appear in the stream.
+     */
+    public interface Visitor {
+        /** Called when the config key of the report list has been read. */
+        default void onConfigKey(ConfigMetricsReportList.ConfigKey configKey) {}
+
+        /** Called before the first metric of each ConfigMetricsReport. */
+        default void onReportStart(int reportIndex) {}
+
+        /** Called for each StatsLogReport of the current ConfigMetricsReport. */
+        void onMetric(int reportIndex, StatsLogReport metric) throws IOException;
+
+        /**
+         * Called once the current ConfigMetricsReport has been fully read, with all of its fields
+         * except for the metrics, which have already been passed to {@link #onMetric}.
+         */
+        default void onReportEnd(int reportIndex, ConfigMetricsReport reportWithoutMetrics) {}
+    }
+
+    private final ExtensionRegistryLite mRegistry = ExtensionRegistryLite.getEmptyRegistry();
+
+    /**
+     * Reads a ConfigMetricsReportList from {@code in} until the end of the stream.
+     *
+     * @return The number of ConfigMetricsReports read.
+     * @throws com.google.protobuf.InvalidProtocolBufferException if the stream is not a valid
+     *         ConfigMetricsReportList.
+     */
+    public int read(InputStream in, Visitor visitor) throws IOException {
+        return read(in, new RawVisitor() {
+            @Override
+            public void onConfigKey(ConfigMetricsReportList.ConfigKey configKey) {
+                visitor.onConfigKey(configKey);
+            }
+
+            @Override
+            public void onReportStart(int reportIndex) {
+                visitor.onReportStart(reportIndex);
+            }
+
+            @Override
+            public void onMetricBytes(int reportIndex, ByteString metric) {
+                throw new IllegalStateException("Metrics are parsed by the reader");
+            }
+
+            @Override
+            public void onReportEnd(int reportIndex, ConfigMetricsReport reportWithoutMetrics) {
+                visitor.onReportEnd(reportIndex, reportWithoutMetrics);
+            }
+        }, visitor);
+    }
+
+    /**
+     * Like {@link #read(InputStream, Visitor)}, but leaves the StatsLogReports serialized. This
+     * lets callers parse metrics on other threads.
+     */
+    public int readRaw(InputStream in, RawVisitor visitor) throws IOException {
+        return read(in, visitor, null);
+    }
+
+    /**
+     * @param metricVisitor if not null, metrics are parsed and passed to it instead of being
+     *        passed serialized to {@code visitor}.
+     */
+    private int read(InputStream in, RawVisitor visitor, Visitor metricVisitor)
+            throws IOException {
+        final CodedInputStream input = CodedInputStream.newInstance(in);
+        input.setSizeLimit(Integer.MAX_VALUE);
+        int reportCount = 0;
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                return reportCount;
+            }
+            switch (tag) {
+                case REPORT_LIST_CONFIG_KEY_TAG:
+                    final ConfigMetricsReportList.ConfigKey.Builder configKey =
+                            ConfigMetricsReportList.ConfigKey.newBuilder();
+                    input.readMessage(configKey, mRegistry);
+                    visitor.onConfigKey(configKey.build());
+                    break;
+                case REPORT_LIST_REPORTS_TAG:
+                    readReport(input, reportCount++, visitor, metricVisitor);
+                    break;
+                default:
+                    input.skipField(tag);
+                    break;
+            }
+            // Byte counts are only used to enforce the size limit; keep them from overflowing on
+            // dumps larger than 2GB.
+            input.resetSizeCounter();
+        }
+    }
+
+    private void readReport(CodedInputStream input, int reportIndex, RawVisitor visitor,
+            Visitor metricVisitor) throws IOException {
+        final int length = input.readRawVarint32();
+        final int oldLimit = input.pushLimit(length);
+        visitor.onReportStart(reportIndex);
+
+        // Re-encode everything but the metrics so the rest of the report can be parsed normally.
+        final ByteString.Output otherFields = ByteString.newOutput();
+        final CodedOutputStream otherFieldsOutput = CodedOutputStream.newInstance(otherFields);
+        while (true) {
+            final int tag = input.readTag();
+            if (tag == 0) {
+                break;
+            }
+            if (tag == REPORT_METRICS_TAG) {
+                if (metricVisitor != null) {
+                    final StatsLogReport.Builder metric = StatsLogReport.newBuilder();
+                    input.readMessage(metric, mRegistry);
+                    metricVisitor.onMetric(reportIndex, metric.build());
+                } else {
+                    visitor.onMetricBytes(reportIndex, input.readBytes());
+                }
+            } else {
+                input.skipField(tag, otherFieldsOutput);
+            }
+        }
+        input.popLimit(oldLimit);
+
+        otherFieldsOutput.flush();
+        visitor.onReportEnd(reportIndex,
+                ConfigMetricsReport.parseFrom(otherFields.toByteString()));
+    }
+
+    /**
+     * Reads a whole ConfigMetricsReportList from {@code in}, for callers that need the complete
+     * report list in memory.
+     */
+    public static ConfigMetricsReportList readAll(InputStream in) throws IOException {
+        final ConfigMetricsReportList.Builder reportList = ConfigMetricsReportList.newBuilder();
+        final ConfigMetricsReport.Builder[] currentReport = new ConfigMetricsReport.Builder[1];
+        new ReportStreamReader().read(in, new Visitor() {
+            @Override
+            public void onConfigKey(ConfigMetricsReportList.ConfigKey configKey) {
+                reportList.setConfigKey(configKey);
+            }
+
+            @Override
+            public void onReportStart(int reportIndex) {
+                currentReport[0] = ConfigMetricsReport.newBuilder();
+            }
+
+            @Override
+            public void onMetric(int reportIndex, StatsLogReport metric) {
+                currentReport[0].addMetrics(metric);
+            }
+
+            @Override
+            public void onReportEnd(int reportIndex, ConfigMetricsReport reportWithoutMetrics) {
+                reportList.addReports(currentReport[0].mergeFrom(reportWithoutMetrics));
+            }
+        });
+        return reportList.build();
+    }
+}
@@ -19,17 +19,24 @@ import com.android.os.StatsLog;
 import com.android.os.StatsLog.ConfigMetricsReportList;
 import com.android.os.StatsLog.EventMetricData;
 import com.android.os.StatsLog.StatsLogReport;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.Semaphore;
 import java.util.logging.ConsoleHandler;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
@@ -50,11 +57,48 @@ public class Utils {
 
     public static final String SHELL_UID = "2000"; // Use shell, even if rooted.
 
+    public static final int DEFAULT_MAX_CONCURRENT_COMMANDS = 4;
+
+    // Bounds the number of commands run at the same time when working on several devices.
+    private static volatile Semaphore sCommandPermits = null;
+
+    /**
+     * Limits the number of commands that may run at the same time, across all threads.
+     * Commands are not limited until this is called.
+     */
+    public static void setMaxConcurrentCommands(int maxConcurrentCommands) {
+        sCommandPermits = new Semaphore(Math.max(1, maxConcurrentCommands), true /* fair */);
+    }
+
+    private static Semaphore acquireCommandPermit() throws InterruptedException {
+        Semaphore permits = sCommandPermits;
+        if (permits != null) {
+            permits.acquire();
+        }
+        return permits;
+    }
+
+    private static void releaseCommandPermit(Semaphore permits) {
+        if (permits != null) {
+            permits.release();
+        }
+    }
+
     /**
      * Runs adb shell command with output directed to outputFile if non-null.
      */
     public static void runCommand(File outputFile, Logger logger, String... commands)
             throws IOException, InterruptedException {
+        Semaphore permits = acquireCommandPermit();
+        try {
+            runCommandLocked(outputFile, logger, commands);
+        } finally {
+            releaseCommandPermit(permits);
+        }
+    }
+
+    private static void runCommandLocked(File outputFile, Logger logger, String... commands)
+            throws IOException, InterruptedException {
         ProcessBuilder pb = new ProcessBuilder(commands);
         if (outputFile != null && outputFile.exists() && outputFile.canWrite()) {
             pb.redirectOutput(outputFile);
@@ -78,6 +122,121 @@ public class Utils {
         }
     }
 
+    /**
+     * Consumes the standard output of a command while the command is running.
+     */
+    public interface OutputConsumer {
+        void accept(InputStream output) throws IOException;
+    }
+
+    /**
+     * Runs a command and hands its standard output to {@code consumer} as it is produced, without
+     * buffering it in a file. Any output the consumer leaves unread is discarded.
+     */
+    public static void runCommandStreaming(OutputConsumer consumer, Logger logger,
+            String... commands) throws IOException, InterruptedException {
+        Semaphore permits = acquireCommandPermit();
+        try {
+            runCommandStreamingLocked(consumer, logger, commands);
+        } finally {
+            releaseCommandPermit(permits);
+        }
+    }
+
+    private static void runCommandStreamingLocked(OutputConsumer consumer, Logger logger,
+            String... commands) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder(commands);
+        Process process = pb.start();
+
+        // Capture any errors on a separate thread so that a full stderr pipe cannot block the
+        // command while stdout is being consumed.
+        StringBuilder err = new StringBuilder();
+        Thread errReader = new Thread(() -> {
+            try (BufferedReader br =
+                    new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                for (String line = br.readLine(); line != null; line = br.readLine()) {
+                    err.append(line).append('\n');
+                }
+            } catch (IOException e) {
+                logger.fine("Failed to read command error output: " + e.toString());
+            }
+        });
+        errReader.start();
+
+        try (InputStream output = process.getInputStream()) {
+            consumer.accept(output);
+            // Drain the rest so the command can exit.
+            ByteStreams.exhaust(output);
+        } catch (IOException | RuntimeException e) {
+            process.destroy();
+            throw e;
+        } finally {
+            errReader.join();
+        }
+        if (err.length() > 0) {
+            logger.severe(err.toString());
+        }
+
+        // Check result
+        if (process.waitFor() == 0) {
+            logger.fine("Adb command successful.");
+        } else {
+            logger.severe("Abnormal adb shell termination for: " + String.join(",", commands));
+            throw new RuntimeException("Error running adb command: " + err.toString());
+        }
+    }
+
+    /**
+     * Dumps the report from the device and hands each StatsLogReport to {@code visitor} as soon
+     * as it has been received, so that reports of any size can be processed in bounded memory.
+     * Erases the data if clearData is true.
+     * @param configId id of the config
+     * @param clearData whether to erase the report data from statsd after getting the report.
+     * @param useShellUid Pulls data for the {@link SHELL_UID} instead of the caller's uid.
+     * @param logger Logger to log error messages
+     * @param deviceSerial device to dump the report from
+     * @param visitor receives the parts of the report as they are parsed
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static void streamReport(long configId, boolean clearData, boolean useShellUid,
+            Logger logger, String deviceSerial, ReportStreamReader.Visitor visitor)
+            throws IOException, InterruptedException {
+        try {
+            runCommandStreaming(
+                    output -> new ReportStreamReader().read(output, visitor),
+                    logger,
+                    dumpReportCommand(configId, clearData, useShellUid, deviceSerial));
+        } catch (com.google.protobuf.InvalidProtocolBufferException e) {
+            logReportParseFailure(configId, useShellUid, logger);
+            throw (e);
+        }
+    }
+
+    private static String[] dumpReportCommand(long configId, boolean clearData,
+            boolean useShellUid, String deviceSerial) {
+        return new String[] {
+                "adb",
+                "-s",
+                deviceSerial,
+                "shell",
+                CMD_DUMP_REPORT,
+                useShellUid ? SHELL_UID : "",
+                String.valueOf(configId),
+                clearData ? "" : "--keep_data",
+                "--include_current_bucket",
+                "--proto"};
+    }
+
+    private static void logReportParseFailure(long configId, boolean useShellUid,
+            Logger logger) {
+        logger.severe("Failed to fetch and parse the statsd output report. "
+                        + "Perhaps there is not a valid statsd config for the requested "
+                        + (useShellUid ? ("uid=" + SHELL_UID + ", ") : "")
+                        + "configId=" + configId
+                        + ".");
+    }
+
     /**
      * Dumps the report from the device and converts it to a ConfigMetricsReportList.
      * Erases the data if clearData is true.
@@ -93,30 +252,14 @@ public class Utils {
             boolean useShellUid, Logger logger, String deviceSerial)
             throws IOException, InterruptedException {
         try {
-            File outputFile = File.createTempFile("statsdret", ".bin");
-            outputFile.deleteOnExit();
-            runCommand(
-                    outputFile,
+            ConfigMetricsReportList[] reportList = new ConfigMetricsReportList[1];
+            runCommandStreaming(
+                    output -> reportList[0] = ReportStreamReader.readAll(output),
                     logger,
-                    "adb",
-                    "-s",
-                    deviceSerial,
-                    "shell",
-                    CMD_DUMP_REPORT,
-                    useShellUid ? SHELL_UID : "",
-                    String.valueOf(configId),
-                    clearData ? "" : "--keep_data",
-                    "--include_current_bucket",
-                    "--proto");
-            ConfigMetricsReportList reportList =
-                    ConfigMetricsReportList.parseFrom(new FileInputStream(outputFile));
-            return reportList;
+                    dumpReportCommand(configId, clearData, useShellUid, deviceSerial));
+            return reportList[0];
         } catch (com.google.protobuf.InvalidProtocolBufferException e) {
-            logger.severe("Failed to fetch and parse the statsd output report. "
-                            + "Perhaps there is not a valid statsd config for the requested "
-                            + (useShellUid ? ("uid=" + SHELL_UID + ", ") : "")
-                            + "configId=" + configId
-                            + ".");
+            logReportParseFailure(configId, useShellUid, logger);
             throw (e);
         }
     }
@@ -285,32 +428,174 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Returns the devices to use, or null if they cannot be deduced.
+     * With a single device or none requested, this is the same as
+     * {@link #chooseDevice(String, List, String, Logger)}.
+     * @param devices Command-line specified devices, possibly empty.
+     * @param allDevices Whether all connected devices should be used.
+     * @param connectedDevices List of all connected devices.
+     * @param defaultDevice Environment-variable specified device, or null.
+     * @param logger Destination of error messages.
+     * @return Devices to use, or null.
+     */
+    public static List<String> chooseDevices(List<String> devices, boolean allDevices,
+            List<String> connectedDevices, String defaultDevice, Logger logger) {
+        if (allDevices) {
+            if (connectedDevices == null || connectedDevices.isEmpty()) {
+                logger.severe("No connected device.");
+                return null;
+            }
+            return new ArrayList<>(connectedDevices);
+        }
+        if (devices.size() <= 1) {
+            String device = chooseDevice(devices.isEmpty() ? null : devices.get(0),
+                    connectedDevices, defaultDevice, logger);
+            return device == null ? null : Collections.singletonList(device);
+        }
+        for (String device : devices) {
+            if (chooseDevice(device, connectedDevices, defaultDevice, logger) == null) {
+                return null;
+            }
+        }
+        return new ArrayList<>(new LinkedHashSet<>(devices));
+    }
+
+    /**
+     * Returns the events of an event metric sorted by timestamp, with aggregated atoms back-filled
+     * into one event per timestamp. Prefer {@link #iterateEventMetricData} for large metrics.
+     */
     public static List<EventMetricData> getEventMetricData(StatsLogReport metric) {
-        List<EventMetricData> data = new ArrayList<>();
+        List<EventMetricData> data = new ArrayList<>(countEventMetricData(metric));
+        iterateEventMetricData(metric).forEachRemaining(data::add);
+        return data;
+    }
+
+    /**
+     * Returns the number of events {@link #getEventMetricData} would return, without building
+     * them.
+     */
+    public static int countEventMetricData(StatsLogReport metric) {
+        int count = 0;
         for (EventMetricData metricData : metric.getEventMetrics().getDataList()) {
             if (metricData.hasAtom()) {
-                data.add(metricData);
-            } else {
-                data.addAll(backfillAggregatedAtomsInEventMetric(metricData));
+                count++;
+            } else if (metricData.hasAggregatedAtomInfo()) {
+                count += metricData.getAggregatedAtomInfo().getElapsedTimestampNanosCount();
             }
         }
-        data.sort(Comparator.comparing(EventMetricData::getElapsedTimestampNanos));
-        return data;
+        return count;
+    }
+
+    /**
+     * Returns the same events in the same order as {@link #getEventMetricData}, but builds each
+     * back-filled event only when it is reached.
+     *
+     * The timestamps of each aggregated atom are already in order, and so are runs of
+     * consecutive non-aggregated events, so the events are produced by merging these runs with a
+     * heap. This takes O(n log k) time for k runs instead of sorting all n events.
+     */
+    public static Iterator<EventMetricData> iterateEventMetricData(StatsLogReport metric) {
+        return new EventMetricDataIterator(metric.getEventMetrics().getDataList());
     }
 
-    private static List<EventMetricData> backfillAggregatedAtomsInEventMetric(
-            EventMetricData metricData) {
-        if (!metricData.hasAggregatedAtomInfo()) {
-            return Collections.emptyList();
+    /**
+     * Merges ascending runs of events. Runs are numbered in report order and ties are broken by
+     * run number, which matches a stable sort of the back-filled list.
+     */
+    private static final class EventMetricDataIterator implements Iterator<EventMetricData> {
+        private final PriorityQueue<Run> mHeap = new PriorityQueue<>(
+                Comparator.comparingLong(Run::timestamp).thenComparingInt(run -> run.mNumber));
+
+        EventMetricDataIterator(List<EventMetricData> data) {
+            int number = 0;
+            int i = 0;
+            while (i < data.size()) {
+                final EventMetricData metricData = data.get(i);
+                if (metricData.hasAtom()) {
+                    // Consecutive events, up to the first aggregated atom or out-of-order event.
+                    int end = i + 1;
+                    while (end < data.size() && data.get(end).hasAtom()
+                            && data.get(end).getElapsedTimestampNanos()
+                                    >= data.get(end - 1).getElapsedTimestampNanos()) {
+                        end++;
+                    }
+                    mHeap.add(new Run(number++, data, null, i, end));
+                    i = end;
+                    continue;
+                }
+                if (metricData.hasAggregatedAtomInfo()) {
+                    final StatsLog.AggregatedAtomInfo atomInfo =
+                            metricData.getAggregatedAtomInfo();
+                    final List<Long> timestamps = atomInfo.getElapsedTimestampNanosList();
+                    // Split defensively in case the timestamps are not in order after all.
+                    int start = 0;
+                    while (start < timestamps.size()) {
+                        int end = start + 1;
+                        while (end < timestamps.size()
+                                && timestamps.get(end) >= timestamps.get(end - 1)) {
+                            end++;
+                        }
+                        mHeap.add(new Run(number++, null, atomInfo, start, end));
+                        start = end;
+                    }
+                }
+                i++;
+            }
         }
-        List<EventMetricData> data = new ArrayList<>();
-        StatsLog.AggregatedAtomInfo atomInfo = metricData.getAggregatedAtomInfo();
-        for (long timestamp : atomInfo.getElapsedTimestampNanosList()) {
-            data.add(EventMetricData.newBuilder()
-                             .setAtom(atomInfo.getAtom())
-                             .setElapsedTimestampNanos(timestamp)
-                             .build());
+
+        @Override
+        public boolean hasNext() {
+            return !mHeap.isEmpty();
+        }
+
+        @Override
+        public EventMetricData next() {
+            final Run run = mHeap.poll();
+            if (run == null) {
+                throw new NoSuchElementException();
+            }
+            final EventMetricData event = run.current();
+            if (++run.mPosition < run.mEnd) {
+                mHeap.add(run);
+            }
+            return event;
+        }
+    }
+
+    /**
+     * An ascending run of either non-aggregated events or timestamps of one aggregated atom.
+     */
+    private static final class Run {
+        final int mNumber;
+        final List<EventMetricData> mEvents;
+        final StatsLog.AggregatedAtomInfo mAtomInfo;
+        final int mEnd;
+        int mPosition;
+
+        Run(int number, List<EventMetricData> events, StatsLog.AggregatedAtomInfo atomInfo,
+                int start, int end) {
+            mNumber = number;
+            mEvents = events;
+            mAtomInfo = atomInfo;
+            mPosition = start;
+            mEnd = end;
+        }
+
+        long timestamp() {
+            return mEvents != null
+                    ? mEvents.get(mPosition).getElapsedTimestampNanos()
+                    : mAtomInfo.getElapsedTimestampNanos(mPosition);
+        }
+
+        EventMetricData current() {
+            if (mEvents != null) {
+                return mEvents.get(mPosition);
+            }
+            return EventMetricData.newBuilder()
+                    .setAtom(mAtomInfo.getAtom())
+                    .setElapsedTimestampNanos(mAtomInfo.getElapsedTimestampNanos(mPosition))
+                    .build();
         }
-        return data;
     }
 }
@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.configcost;
+
+import com.android.internal.os.StatsdConfigProto.FieldMatcher;
+import com.android.internal.os.StatsdConfigProto.FieldValueMatcher;
+import com.android.internal.os.StatsdConfigProto.Position;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.DimensionsValue;
+import com.android.os.StatsLog.DimensionsValueTuple;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.Descriptors.EnumValueDescriptor;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads atom fields the way statsd's matchers and dimension extraction do, using the proto
+ * descriptors of the host-side atoms.proto.
+ *
+ * Unset fields read as their default value, since statsd always sees every field of an atom.
+ */
+final class AtomFields {
+    private AtomFields() {}
+
+    /**
+     * Returns the atom id, i.e. the number of the field that is set in the Atom message, or 0.
+     */
+    static int getAtomId(Atom atom) {
+        for (FieldDescriptor field : atom.getAllFields().keySet()) {
+            return field.getNumber();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the message of the atom that is set, e.g. the AppBreadcrumbReported message.
+     */
+    static Message getAtomMessage(Atom atom) {
+        for (Map.Entry<FieldDescriptor, Object> field : atom.getAllFields().entrySet()) {
+            if (field.getValue() instanceof Message) {
+                return (Message) field.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether all matchers match fields of {@code message}.
+     */
+    static boolean matchesAll(Message message, List<FieldValueMatcher> matchers) {
+        for (FieldValueMatcher matcher : matchers) {
+            if (!matches(message, matcher)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matches(Message message, FieldValueMatcher matcher) {
+        final FieldDescriptor field =
+                message.getDescriptorForType().findFieldByNumber(matcher.getField());
+        if (field == null) {
+            return false;
+        }
+        if (!field.isRepeated()) {
+            return matchesValue(message.getField(field), matcher);
+        }
+        final int count = message.getRepeatedFieldCount(field);
+        if (count == 0) {
+            return false;
+        }
+        switch (matcher.getPosition()) {
+            case FIRST:
+                return matchesValue(message.getRepeatedField(field, 0), matcher);
+            case LAST:
+                return matchesValue(message.getRepeatedField(field, count - 1), matcher);
+            case ALL:
+                for (int i = 0; i < count; i++) {
+                    if (!matchesValue(message.getRepeatedField(field, i), matcher)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                for (int i = 0; i < count; i++) {
+                    if (matchesValue(message.getRepeatedField(field, i), matcher)) {
+                        return true;
+                    }
+                }
+                return false;
+        }
+    }
+
+    private static boolean matchesValue(Object value, FieldValueMatcher matcher) {
+        switch (matcher.getValueMatcherCase()) {
+            case EQ_BOOL:
+                return value instanceof Boolean && (Boolean) value == matcher.getEqBool();
+            case EQ_STRING:
+                return matcher.getEqString().equals(value);
+            case EQ_ANY_STRING:
+                return value instanceof String
+                        && matcher.getEqAnyString().getStrValueList().contains(value);
+            case NEQ_ANY_STRING:
+                return value instanceof String
+                        && !matcher.getNeqAnyString().getStrValueList().contains(value);
+            case EQ_INT:
+                return isInteger(value) && toLong(value) == matcher.getEqInt();
+            case LT_INT:
+                return isInteger(value) && toLong(value) < matcher.getLtInt();
+            case GT_INT:
+                return isInteger(value) && toLong(value) > matcher.getGtInt();
+            case LTE_INT:
+                return isInteger(value) && toLong(value) <= matcher.getLteInt();
+            case GTE_INT:
+                return isInteger(value) && toLong(value) >= matcher.getGteInt();
+            case LT_FLOAT:
+                return value instanceof Number && ((Number) value).floatValue()
+                        < matcher.getLtFloat();
+            case GT_FLOAT:
+                return value instanceof Number && ((Number) value).floatValue()
+                        > matcher.getGtFloat();
+            case MATCHES_TUPLE:
+                return value instanceof Message && matchesAll((Message) value,
+                        matcher.getMatchesTuple().getFieldValueMatcherList());
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isInteger(Object value) {
+        return value instanceof Integer || value instanceof Long
+                || value instanceof EnumValueDescriptor;
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof EnumValueDescriptor) {
+            return ((EnumValueDescriptor) value).getNumber();
+        }
+        return ((Number) value).longValue();
+    }
+
+    /**
+     * Extracts the dimension key of {@code atom}, in the form statsd reports it.
+     *
+     * @param hashStrings whether string values are replaced by their hash, as with
+     *        hash_strings_in_metric_report
+     * @return the key, or null if {@code dimensions} selects no fields
+     */
+    static DimensionsValue getDimensions(Atom atom, FieldMatcher dimensions,
+            boolean hashStrings) {
+        if (dimensions.getChildCount() == 0) {
+            return null;
+        }
+        final Message message = getAtomMessage(atom);
+        if (message == null) {
+            return null;
+        }
+        return DimensionsValue.newBuilder()
+                .setField(dimensions.getField())
+                .setValueTuple(getTuple(message, dimensions.getChildList(), hashStrings))
+                .build();
+    }
+
+    private static DimensionsValueTuple getTuple(Message message, List<FieldMatcher> children,
+            boolean hashStrings) {
+        final DimensionsValueTuple.Builder tuple = DimensionsValueTuple.newBuilder();
+        for (FieldMatcher child : children) {
+            final FieldDescriptor field =
+                    message.getDescriptorForType().findFieldByNumber(child.getField());
+            if (field == null) {
+                continue;
+            }
+            for (Object value : selectValues(message, field, child.getPosition())) {
+                final DimensionsValue.Builder dimension =
+                        DimensionsValue.newBuilder().setField(child.getField());
+                if (value instanceof Message) {
+                    dimension.setValueTuple(
+                            getTuple((Message) value, child.getChildList(), hashStrings));
+                } else if (!setLeafValue(dimension, value, hashStrings)) {
+                    continue;
+                }
+                tuple.addDimensionsValue(dimension);
+            }
+        }
+        return tuple.build();
+    }
+
+    private static List<Object> selectValues(Message message, FieldDescriptor field,
+            Position position) {
+        if (!field.isRepeated()) {
+            return Collections.singletonList(message.getField(field));
+        }
+        final int count = message.getRepeatedFieldCount(field);
+        if (count == 0) {
+            return Collections.emptyList();
+        }
+        switch (position) {
+            case FIRST:
+                return Collections.singletonList(message.getRepeatedField(field, 0));
+            case LAST:
+                return Collections.singletonList(message.getRepeatedField(field, count - 1));
+            default:
+                final List<Object> values = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    values.add(message.getRepeatedField(field, i));
+                }
+                return values;
+        }
+    }
+
+    private static boolean setLeafValue(DimensionsValue.Builder dimension, Object value,
+            boolean hashStrings) {
+        if (value instanceof Integer) {
+            dimension.setValueInt((Integer) value);
+        } else if (value instanceof Long) {
+            dimension.setValueLong((Long) value);
+        } else if (value instanceof Boolean) {
+            dimension.setValueBool((Boolean) value);
+        } else if (value instanceof Float) {
+            dimension.setValueFloat((Float) value);
+        } else if (value instanceof EnumValueDescriptor) {
+            dimension.setValueInt(((EnumValueDescriptor) value).getNumber());
+        } else if (value instanceof String) {
+            if (hashStrings) {
+                dimension.setValueStrHash(Hashing.farmHashFingerprint64()
+                        .hashString((String) value, StandardCharsets.UTF_8).asLong());
+            } else {
+                dimension.setValueStr((String) value);
+            }
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of leaf values of an atom, which is the number of FieldValues statsd
+     * stores for it.
+     */
+    static int countLeafValues(Message message) {
+        int count = 0;
+        for (FieldDescriptor field : message.getDescriptorForType().getFields()) {
+            if (field.getJavaType() == FieldDescriptor.JavaType.MESSAGE && !field.isRepeated()
+                    && !message.hasField(field)) {
+                continue;
+            }
+            final int repeat = field.isRepeated() ? message.getRepeatedFieldCount(field) : 1;
+            for (int i = 0; i < repeat; i++) {
+                final Object value = field.isRepeated()
+                        ? message.getRepeatedField(field, i) : message.getField(field);
+                count += value instanceof Message ? countLeafValues((Message) value) : 1;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.configcost;
+
+import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StatsLogReport;
+import com.android.statsd.shelltools.ReportStreamReader;
+import com.android.statsd.shelltools.Utils;
+import com.google.common.collect.Iterators;
+import com.google.protobuf.TextFormat;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Estimates how much memory and report space a StatsdConfig would use, without a device, by
+ * replaying a recorded trace of atoms through a model of statsd's matchers, conditions and
+ * metric producers.
+ *
+ * The trace is a binary ConfigMetricsReportList whose event metrics hold the recorded atoms,
+ * e.g. the output of 'adb shell cmd stats dump-report CONFIG_ID --proto' for a config with
+ * event metrics on the atoms of interest, such as the one statsd_testdrive uploads. Within a
+ * report, the atoms of all event metrics are replayed in timestamp order.
+ * To make: make statsd_config_cost_estimator
+ * To run: statsd_config_cost_estimator     (i.e.  ./out/host/linux-x86/bin/statsd_config_cost_estimator)
+ */
+public class ConfigCostEstimator {
+    private static final Logger LOGGER = Logger.getLogger(ConfigCostEstimator.class.getName());
+
+    private static final long NS_PER_SEC = 1_000_000_000L;
+    private static final long NS_PER_DAY = 24 * 60 * 60 * NS_PER_SEC;
+
+    public static final String BINARY_FLAG = "--binary";
+    public static final String SHELL_FLAG = "--shell";
+
+    public static final String HELP_STRING =
+        "Usage: statsd_config_cost_estimator CONFIG_FILE [--binary] [--shell] TRACE_FILE...\n" +
+        "  Replays the atoms of TRACE_FILE through CONFIG_FILE and prints, for each metric,\n" +
+        "  the dimension keys, buckets and bytes statsd would use, and for the config, the\n" +
+        "  memory guardrails it would hit.\n" +
+        "    CONFIG_FILE    StatsdConfig, in human-readable text format unless --binary.\n" +
+        "    --binary       Config is in binary format.\n" +
+        "    --shell        Config is added by shell, which allows one-minute buckets.\n" +
+        "    TRACE_FILE     Binary ConfigMetricsReportList with event metrics holding the\n" +
+        "                   recorded atoms. Files ending with .gz are decompressed. Files\n" +
+        "                   are replayed in the given order.\n";
+
+    private final ConfigSimulator mSimulator;
+    private long mReplayedAtoms;
+    // Atoms whose timestamp is before the previous atom's, e.g. after a reboot.
+    private long mReorderedAtoms;
+    private long mLastNs = -1;
+
+    ConfigCostEstimator(StatsdConfig config, boolean shellUid) {
+        mSimulator = new ConfigSimulator(config, shellUid);
+    }
+
+    public static void main(String[] args) {
+        Utils.setUpLogger(LOGGER, false);
+
+        final List<File> traces = new ArrayList<>();
+        File configFile = null;
+        boolean binary = false;
+        boolean shellUid = false;
+        for (String arg : args) {
+            if (arg.equals(BINARY_FLAG)) {
+                binary = true;
+            } else if (arg.equals(SHELL_FLAG)) {
+                shellUid = true;
+            } else if (configFile == null) {
+                configFile = new File(arg);
+            } else {
+                traces.add(new File(arg));
+            }
+        }
+        if (configFile == null || traces.isEmpty()) {
+            LOGGER.severe(HELP_STRING);
+            return;
+        }
+
+        final StatsdConfig config;
+        try {
+            config = readConfig(configFile, binary);
+        } catch (IOException e) {
+            LOGGER.severe("Failed to read config file " + configFile + ": " + e.getMessage());
+            return;
+        }
+        try {
+            final ConfigCostEstimator estimator = new ConfigCostEstimator(config, shellUid);
+            for (File trace : traces) {
+                LOGGER.fine("Replaying " + trace);
+                try (InputStream in = open(trace)) {
+                    estimator.replay(in);
+                }
+            }
+            estimator.finish();
+            System.out.print(estimator.formatReport());
+        } catch (IllegalArgumentException e) {
+            LOGGER.severe("Invalid config: " + e.getMessage());
+        } catch (IOException e) {
+            LOGGER.severe("Failed to read trace: " + e.getMessage());
+        }
+    }
+
+    private static StatsdConfig readConfig(File configFile, boolean binary) throws IOException {
+        if (binary) {
+            try (InputStream in = new FileInputStream(configFile)) {
+                return StatsdConfig.parseFrom(in);
+            }
+        }
+        final StatsdConfig.Builder builder = StatsdConfig.newBuilder();
+        try (FileReader reader = new FileReader(configFile)) {
+            TextFormat.merge(reader, builder);
+        }
+        return builder.build();
+    }
+
+    private static InputStream open(File input) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(input), 1 << 16);
+        if (input.getName().endsWith(".gz")) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    /**
+     * Replays the atoms of a ConfigMetricsReportList trace. The event metrics of one report are
+     * merged by timestamp; reports are replayed in the order they appear.
+     */
+    void replay(InputStream in) throws IOException {
+        final List<StatsLogReport> eventMetrics = new ArrayList<>();
+        new ReportStreamReader().read(in, new ReportStreamReader.Visitor() {
+            @Override
+            public void onMetric(int reportIndex, StatsLogReport metric) {
+                if (metric.hasEventMetrics()) {
+                    eventMetrics.add(metric);
+                }
+            }
+
+            @Override
+            public void onReportEnd(int reportIndex, ConfigMetricsReport reportWithoutMetrics) {
+                replayEvents(eventMetrics);
+                eventMetrics.clear();
+            }
+        });
+    }
+
+    private void replayEvents(List<StatsLogReport> eventMetrics) {
+        final List<Iterator<EventMetricData>> iterators = new ArrayList<>();
+        for (StatsLogReport metric : eventMetrics) {
+            iterators.add(Utils.iterateEventMetricData(metric));
+        }
+        final Iterator<EventMetricData> events = Iterators.mergeSorted(iterators,
+                Comparator.comparingLong(EventMetricData::getElapsedTimestampNanos));
+        while (events.hasNext()) {
+            final EventMetricData event = events.next();
+            long timestampNs = event.getElapsedTimestampNanos();
+            if (timestampNs < mLastNs) {
+                // Keep the simulated clock monotonic; the atom counts as happening right after
+                // the previous one.
+                mReorderedAtoms++;
+                timestampNs = mLastNs;
+            }
+            mLastNs = timestampNs;
+            mReplayedAtoms++;
+            mSimulator.onEvent(timestampNs, event.getAtom());
+        }
+    }
+
+    /**
+     * Ends the replay. Must be called once, before {@link #formatReport}.
+     */
+    void finish() {
+        mSimulator.finish();
+    }
+
+    ConfigSimulator getSimulator() {
+        return mSimulator;
+    }
+
+    /**
+     * Returns a table of the cost of each metric, followed by a summary of the config.
+     */
+    String formatReport() {
+        final StringBuilder out = new StringBuilder();
+        out.append(String.format("%-20s %-8s %10s %10s %10s %8s %8s %8s %10s %12s %12s\n",
+                "metric_id", "type", "matched", "kept", "dropped", "keys", "max_keys",
+                "buckets", "entries", "memory_B", "report_B"));
+        long totalReportBytes = 0;
+        for (MetricSimulator metric : mSimulator.getMetrics()) {
+            totalReportBytes += metric.mReportBytes;
+            out.append(String.format("%-20d %-8s %10d %10d %10d %8d %8d %8d %10d %12d %12d\n",
+                    metric.mMetricId, metric.mType, metric.mMatchedEvents, metric.mKeptEvents,
+                    metric.mDroppedEvents, metric.getDistinctKeys(), metric.getMaxKeysPerBucket(),
+                    metric.getBuckets(), metric.getEntries(), metric.mMemoryBytes,
+                    metric.mReportBytes));
+            if (metric.getSoftLimitBuckets() > 0) {
+                out.append(String.format("    WARNING: over %d dimension keys in %d buckets\n",
+                        MetricSimulator.DIMENSION_KEY_SOFT_LIMIT,
+                        metric.getSoftLimitBuckets()));
+            }
+            if (metric.mDroppedEvents > 0) {
+                out.append(String.format("    WARNING: %d events dropped at the hard limit of %d"
+                        + " dimension keys\n", metric.mDroppedEvents,
+                        MetricSimulator.DIMENSION_KEY_HARD_LIMIT));
+            }
+            for (String note : metric.mNotes) {
+                out.append("    Note: ").append(note).append('\n');
+            }
+        }
+
+        final ConfigSimulator simulator = mSimulator;
+        final long traceNs = simulator.mFirstNs < 0 ? 0 : simulator.mLastNs - simulator.mFirstNs;
+        out.append('\n');
+        out.append(String.format("Trace: %d atoms over %d s", mReplayedAtoms,
+                traceNs / NS_PER_SEC));
+        if (mReorderedAtoms > 0) {
+            out.append(String.format(", %d out of order", mReorderedAtoms));
+        }
+        out.append('\n');
+        out.append(String.format("Processing: %d atoms used by the config, %d matcher"
+                + " evaluations, %d condition updates\n", simulator.mInterestingEvents,
+                simulator.mMatcherEvaluations, simulator.mConditionUpdates));
+        out.append(String.format("Memory: peak %d bytes\n", simulator.mPeakMemoryBytes));
+        out.append(String.format("Report: %d bytes", totalReportBytes));
+        if (traceNs > 0) {
+            out.append(String.format(", about %d bytes per day",
+                    (long) ((double) totalReportBytes * NS_PER_DAY / traceNs)));
+        }
+        out.append('\n');
+        if (simulator.mFirstGetDataNs >= 0) {
+            out.append(String.format("WARNING: over %d bytes after %d s, statsd would ask for"
+                    + " the data to be pulled\n", ConfigSimulator.BYTES_PER_CONFIG_TRIGGER_GET_DATA,
+                    (simulator.mFirstGetDataNs - simulator.mFirstNs) / NS_PER_SEC));
+        }
+        if (simulator.mDataDrops > 0) {
+            out.append(String.format("WARNING: over %d bytes after %d s, statsd would drop all"
+                    + " data of the config (%d times)\n",
+                    ConfigSimulator.MAX_METRICS_BYTES_PER_CONFIG,
+                    (simulator.mFirstDropNs - simulator.mFirstNs) / NS_PER_SEC,
+                    simulator.mDataDrops));
+        }
+        return out.toString();
+    }
+}
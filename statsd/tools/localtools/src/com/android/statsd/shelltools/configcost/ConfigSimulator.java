@@ -0,0 +1,543 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.configcost;
+
+import com.android.internal.os.StatsdConfigProto.AtomMatcher;
+import com.android.internal.os.StatsdConfigProto.CountMetric;
+import com.android.internal.os.StatsdConfigProto.DurationMetric;
+import com.android.internal.os.StatsdConfigProto.EventMetric;
+import com.android.internal.os.StatsdConfigProto.FieldMatcher;
+import com.android.internal.os.StatsdConfigProto.GaugeMetric;
+import com.android.internal.os.StatsdConfigProto.KllMetric;
+import com.android.internal.os.StatsdConfigProto.LogicalOperation;
+import com.android.internal.os.StatsdConfigProto.MetricActivation;
+import com.android.internal.os.StatsdConfigProto.Predicate;
+import com.android.internal.os.StatsdConfigProto.SimplePredicate;
+import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.internal.os.StatsdConfigProto.TimeUnit;
+import com.android.internal.os.StatsdConfigProto.ValueMetric;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.DimensionsValue;
+import com.android.statsd.shelltools.configcost.MetricSimulator.CountSimulator;
+import com.android.statsd.shelltools.configcost.MetricSimulator.DurationSimulator;
+import com.android.statsd.shelltools.configcost.MetricSimulator.EventSimulator;
+import com.android.statsd.shelltools.configcost.MetricSimulator.GaugeSimulator;
+import com.android.statsd.shelltools.configcost.MetricSimulator.ValueSimulator;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays a trace of atoms through the matchers, conditions and metrics of a StatsdConfig, the
+ * way statsd's MetricsManager would, and tracks the config-wide memory guardrails.
+ *
+ * The model is deliberately simpler than statsd in a few places, which are listed in the notes
+ * of each metric: sliced conditions are treated as unsliced, state slicing, activations and
+ * upload thresholds are ignored, and gauge and value metrics treat every matched atom as a
+ * sample, whether it was pushed or pulled.
+ */
+class ConfigSimulator {
+    // StatsdStats::kBytesPerConfigTriggerGetData and kMaxMetricsBytesPerConfig.
+    static final long BYTES_PER_CONFIG_TRIGGER_GET_DATA = 192 * 1024;
+    static final long MAX_METRICS_BYTES_PER_CONFIG = 2 * 1024 * 1024;
+    // StatsdStats::kMinByteSizeCheckPeriodNs.
+    private static final long MIN_BYTE_SIZE_CHECK_PERIOD_NS = 60_000_000_000L;
+    private static final long NS_PER_MS = 1_000_000L;
+
+    private final StatsdConfig mConfig;
+    private final boolean mShellUid;
+    private final Map<Long, Integer> mMatcherIndex = new HashMap<>();
+    private final Map<Long, Integer> mPredicateIndex = new HashMap<>();
+    // Atom ids each matcher can match, to only evaluate matchers that can match an atom.
+    private final List<Set<Integer>> mMatcherAtomIds = new ArrayList<>();
+    private final List<PredicateState> mPredicateStates = new ArrayList<>();
+    private final List<MetricSimulator> mMetrics = new ArrayList<>();
+
+    private final boolean[] mMatched;
+    private final boolean[] mEvaluated;
+    private final boolean[] mConditions;
+
+    long mEvents;
+    // Events with an atom that at least one matcher uses, i.e. that statsd processes further.
+    long mInterestingEvents;
+    long mMatcherEvaluations;
+    long mConditionUpdates;
+    long mFirstNs = -1;
+    long mLastNs;
+    long mLastByteSizeCheckNs = -1;
+    long mPeakMemoryBytes;
+    long mFirstGetDataNs = -1;
+    long mFirstDropNs = -1;
+    int mDataDrops;
+
+    /**
+     * @param shellUid whether the config is added by shell or root, which allows one-minute
+     *        buckets
+     * @throws IllegalArgumentException if the config references unknown or circular ids
+     */
+    ConfigSimulator(StatsdConfig config, boolean shellUid) {
+        mConfig = config;
+        mShellUid = shellUid;
+        for (AtomMatcher matcher : config.getAtomMatcherList()) {
+            mMatcherIndex.put(matcher.getId(), mMatcherIndex.size());
+        }
+        for (Predicate predicate : config.getPredicateList()) {
+            mPredicateIndex.put(predicate.getId(), mPredicateIndex.size());
+        }
+        for (int i = 0; i < config.getAtomMatcherCount(); i++) {
+            mMatcherAtomIds.add(getAtomIds(i, new HashSet<>()));
+        }
+        for (Predicate predicate : config.getPredicateList()) {
+            mPredicateStates.add(new PredicateState(predicate));
+        }
+        for (int i = 0; i < config.getPredicateCount(); i++) {
+            checkPredicateCycles(i, new HashSet<>());
+        }
+        mMatched = new boolean[config.getAtomMatcherCount()];
+        mEvaluated = new boolean[config.getAtomMatcherCount()];
+        mConditions = new boolean[config.getPredicateCount()];
+        createMetrics();
+    }
+
+    List<MetricSimulator> getMetrics() {
+        return mMetrics;
+    }
+
+    private int matcherIndex(long id) {
+        final Integer index = mMatcherIndex.get(id);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown atom matcher " + id);
+        }
+        return index;
+    }
+
+    private int optionalMatcherIndex(boolean has, long id) {
+        return has ? matcherIndex(id) : -1;
+    }
+
+    private int predicateIndex(boolean has, long id) {
+        if (!has) {
+            return -1;
+        }
+        final Integer index = mPredicateIndex.get(id);
+        if (index == null) {
+            throw new IllegalArgumentException("Unknown predicate " + id);
+        }
+        return index;
+    }
+
+    private Set<Integer> getAtomIds(int matcherIndex, Set<Integer> visiting) {
+        if (!visiting.add(matcherIndex)) {
+            throw new IllegalArgumentException("Circular atom matcher "
+                    + mConfig.getAtomMatcher(matcherIndex).getId());
+        }
+        final AtomMatcher matcher = mConfig.getAtomMatcher(matcherIndex);
+        final Set<Integer> atomIds = new HashSet<>();
+        if (matcher.hasSimpleAtomMatcher()) {
+            atomIds.add(matcher.getSimpleAtomMatcher().getAtomId());
+        } else {
+            for (long child : matcher.getCombination().getMatcherList()) {
+                atomIds.addAll(getAtomIds(matcherIndex(child), visiting));
+            }
+        }
+        visiting.remove(matcherIndex);
+        return atomIds;
+    }
+
+    private void checkPredicateCycles(int predicateIndex, Set<Integer> visiting) {
+        if (!visiting.add(predicateIndex)) {
+            throw new IllegalArgumentException("Circular predicate "
+                    + mConfig.getPredicate(predicateIndex).getId());
+        }
+        for (int child : mPredicateStates.get(predicateIndex).mChildren) {
+            checkPredicateCycles(child, visiting);
+        }
+        visiting.remove(predicateIndex);
+    }
+
+    private long bucketSizeNs(boolean hasBucket, TimeUnit bucket) {
+        final long millis;
+        switch (hasBucket ? bucket : TimeUnit.TIME_UNIT_UNSPECIFIED) {
+            case ONE_MINUTE:
+                // Guardrailed to five minutes unless the config comes from shell or root.
+                millis = mShellUid ? 60_000L : 5 * 60_000L;
+                break;
+            case FIVE_MINUTES:
+                millis = 5 * 60_000L;
+                break;
+            case TEN_MINUTES:
+                millis = 10 * 60_000L;
+                break;
+            case THIRTY_MINUTES:
+                millis = 30 * 60_000L;
+                break;
+            case ONE_HOUR:
+                millis = 60 * 60_000L;
+                break;
+            case THREE_HOURS:
+                millis = 3 * 60 * 60_000L;
+                break;
+            case SIX_HOURS:
+                millis = 6 * 60 * 60_000L;
+                break;
+            case TWELVE_HOURS:
+                millis = 12 * 60 * 60_000L;
+                break;
+            case ONE_DAY:
+                millis = 24 * 60 * 60_000L;
+                break;
+            case ONE_WEEK:
+                millis = 7 * 24 * 60 * 60_000L;
+                break;
+            case CTS:
+                millis = 1000L;
+                break;
+            default:
+                return Long.MAX_VALUE;
+        }
+        return millis * NS_PER_MS;
+    }
+
+    private void createMetrics() {
+        final boolean hashStrings = mConfig.getHashStringsInMetricReport();
+        final Set<Long> activatedMetrics = new HashSet<>();
+        for (MetricActivation activation : mConfig.getMetricActivationList()) {
+            activatedMetrics.add(activation.getMetricId());
+        }
+
+        for (EventMetric metric : mConfig.getEventMetricList()) {
+            final MetricSimulator simulator = new EventSimulator(metric.getId(),
+                    matcherIndex(metric.getWhat()),
+                    predicateIndex(metric.hasCondition(), metric.getCondition()));
+            addMetric(simulator, metric.getLinksCount() > 0, 0, activatedMetrics);
+        }
+        for (CountMetric metric : mConfig.getCountMetricList()) {
+            final MetricSimulator simulator = new CountSimulator(metric.getId(),
+                    matcherIndex(metric.getWhat()),
+                    predicateIndex(metric.hasCondition(), metric.getCondition()),
+                    metric.getDimensionsInWhat(),
+                    bucketSizeNs(metric.hasBucket(), metric.getBucket()), hashStrings);
+            if (metric.hasThreshold()) {
+                simulator.mNotes.add("upload threshold ignored");
+            }
+            addMetric(simulator, metric.getLinksCount() > 0, metric.getSliceByStateCount(),
+                    activatedMetrics);
+        }
+        for (DurationMetric metric : mConfig.getDurationMetricList()) {
+            final int what = predicateIndex(true, metric.getWhat());
+            final Predicate predicate = mConfig.getPredicate(what);
+            if (!predicate.hasSimplePredicate()) {
+                throw new IllegalArgumentException("Duration metric " + metric.getId()
+                        + " needs a simple predicate as what");
+            }
+            final SimplePredicate simple = predicate.getSimplePredicate();
+            final MetricSimulator simulator = new DurationSimulator(metric.getId(),
+                    matcherIndex(simple.getStart()),
+                    optionalMatcherIndex(simple.hasStop(), simple.getStop()),
+                    optionalMatcherIndex(simple.hasStopAll(), simple.getStopAll()),
+                    simple.getCountNesting(),
+                    predicateIndex(metric.hasCondition(), metric.getCondition()),
+                    metric.getDimensionsInWhat(),
+                    bucketSizeNs(metric.hasBucket(), metric.getBucket()), hashStrings);
+            if (metric.getAggregationType() == DurationMetric.AggregationType.MAX_SPARSE) {
+                simulator.mNotes.add("MAX_SPARSE modeled as SUM");
+            }
+            if (metric.hasThreshold()) {
+                simulator.mNotes.add("upload threshold ignored");
+            }
+            addMetric(simulator, metric.getLinksCount() > 0, metric.getSliceByStateCount(),
+                    activatedMetrics);
+        }
+        for (ValueMetric metric : mConfig.getValueMetricList()) {
+            final MetricSimulator simulator = new ValueSimulator(metric.getId(), "value",
+                    matcherIndex(metric.getWhat()),
+                    predicateIndex(metric.hasCondition(), metric.getCondition()),
+                    metric.getDimensionsInWhat(), metric.getValueField(),
+                    bucketSizeNs(metric.hasBucket(), metric.getBucket()), hashStrings);
+            if (metric.hasThreshold()) {
+                simulator.mNotes.add("upload threshold ignored");
+            }
+            addMetric(simulator, metric.getLinksCount() > 0, metric.getSliceByStateCount(),
+                    activatedMetrics);
+        }
+        for (KllMetric metric : mConfig.getKllMetricList()) {
+            final MetricSimulator simulator = new ValueSimulator(metric.getId(), "kll",
+                    matcherIndex(metric.getWhat()),
+                    predicateIndex(metric.hasCondition(), metric.getCondition()),
+                    metric.getDimensionsInWhat(), metric.getKllField(),
+                    bucketSizeNs(metric.hasBucket(), metric.getBucket()), hashStrings);
+            simulator.mNotes.add("KLL sketches modeled as single values");
+            addMetric(simulator, metric.getLinksCount() > 0, metric.getSliceByStateCount(),
+                    activatedMetrics);
+        }
+        for (GaugeMetric metric : mConfig.getGaugeMetricList()) {
+            final MetricSimulator simulator = new GaugeSimulator(metric.getId(),
+                    matcherIndex(metric.getWhat()),
+                    predicateIndex(metric.hasCondition(), metric.getCondition()),
+                    metric.getDimensionsInWhat(), metric.getSamplingType(),
+                    metric.getMaxNumGaugeAtomsPerBucket(),
+                    bucketSizeNs(metric.hasBucket(), metric.getBucket()), hashStrings);
+            if (metric.hasTriggerEvent()) {
+                simulator.mNotes.add("trigger_event ignored, every matched atom is a sample");
+            }
+            addMetric(simulator, metric.getLinksCount() > 0, 0, activatedMetrics);
+        }
+    }
+
+    private void addMetric(MetricSimulator simulator, boolean hasLinks, int slicedStates,
+            Set<Long> activatedMetrics) {
+        if (hasLinks) {
+            simulator.mNotes.add("condition links ignored, condition treated as unsliced");
+        }
+        if (slicedStates > 0) {
+            simulator.mNotes.add("slice_by_state ignored, keys may be undercounted");
+        }
+        if (activatedMetrics.contains(simulator.mMetricId)) {
+            simulator.mNotes.add("activation ignored, metric treated as always active");
+        }
+        mMetrics.add(simulator);
+    }
+
+    /**
+     * Processes one atom of the trace. Atoms must be passed in timestamp order.
+     */
+    void onEvent(long timestampNs, Atom atom) {
+        if (mFirstNs < 0) {
+            mFirstNs = timestampNs;
+        }
+        mLastNs = timestampNs;
+        mEvents++;
+
+        final int atomId = AtomFields.getAtomId(atom);
+        final Message atomMessage = AtomFields.getAtomMessage(atom);
+        Arrays.fill(mEvaluated, false);
+        boolean interesting = false;
+        for (int i = 0; i < mMatched.length; i++) {
+            if (mMatcherAtomIds.get(i).contains(atomId)) {
+                interesting = true;
+                evaluateMatcher(i, atomId, atomMessage);
+            } else {
+                mMatched[i] = false;
+            }
+        }
+        if (interesting) {
+            mInterestingEvents++;
+            updateConditions(atom);
+        }
+
+        for (MetricSimulator metric : mMetrics) {
+            metric.onEvent(timestampNs, atom, mMatched, mConditions);
+        }
+        checkMemory(timestampNs);
+    }
+
+    private boolean evaluateMatcher(int index, int atomId, Message atomMessage) {
+        if (mEvaluated[index]) {
+            return mMatched[index];
+        }
+        mMatcherEvaluations++;
+        final AtomMatcher matcher = mConfig.getAtomMatcher(index);
+        boolean matched;
+        if (matcher.hasSimpleAtomMatcher()) {
+            matched = matcher.getSimpleAtomMatcher().getAtomId() == atomId
+                    && atomMessage != null
+                    && AtomFields.matchesAll(atomMessage,
+                            matcher.getSimpleAtomMatcher().getFieldValueMatcherList());
+        } else {
+            final List<Long> children = matcher.getCombination().getMatcherList();
+            final boolean[] childResults = new boolean[children.size()];
+            for (int i = 0; i < children.size(); i++) {
+                childResults[i] = evaluateMatcher(matcherIndex(children.get(i)), atomId,
+                        atomMessage);
+            }
+            matched = combine(matcher.getCombination().getOperation(), childResults);
+        }
+        mEvaluated[index] = true;
+        mMatched[index] = matched;
+        return matched;
+    }
+
+    private static boolean combine(LogicalOperation operation, boolean[] values) {
+        boolean all = values.length > 0;
+        boolean any = false;
+        for (boolean value : values) {
+            all &= value;
+            any |= value;
+        }
+        switch (operation) {
+            case AND:
+                return all;
+            case OR:
+                return any;
+            case NOT:
+                return values.length == 1 && !values[0];
+            case NAND:
+                return !all;
+            case NOR:
+                return !any;
+            default:
+                return false;
+        }
+    }
+
+    private void updateConditions(Atom atom) {
+        for (PredicateState state : mPredicateStates) {
+            if (state.update(atom)) {
+                mConditionUpdates++;
+            }
+        }
+        final boolean[] evaluated = new boolean[mConditions.length];
+        for (int i = 0; i < mConditions.length; i++) {
+            evaluateCondition(i, evaluated);
+        }
+    }
+
+    private boolean evaluateCondition(int index, boolean[] evaluated) {
+        if (evaluated[index]) {
+            return mConditions[index];
+        }
+        final PredicateState state = mPredicateStates.get(index);
+        boolean value;
+        if (state.mChildren.length == 0) {
+            value = state.isTrue();
+        } else {
+            final boolean[] childValues = new boolean[state.mChildren.length];
+            for (int i = 0; i < childValues.length; i++) {
+                childValues[i] = evaluateCondition(state.mChildren[i], evaluated);
+            }
+            value = combine(state.mOperation, childValues);
+        }
+        evaluated[index] = true;
+        mConditions[index] = value;
+        return value;
+    }
+
+    private void checkMemory(long timestampNs) {
+        long totalBytes = 0;
+        for (MetricSimulator metric : mMetrics) {
+            totalBytes += metric.mMemoryBytes;
+        }
+        mPeakMemoryBytes = Math.max(mPeakMemoryBytes, totalBytes);
+
+        // Statsd only computes the byte size once in a while.
+        if (mLastByteSizeCheckNs >= 0
+                && timestampNs - mLastByteSizeCheckNs < MIN_BYTE_SIZE_CHECK_PERIOD_NS) {
+            return;
+        }
+        mLastByteSizeCheckNs = timestampNs;
+        if (totalBytes > MAX_METRICS_BYTES_PER_CONFIG) {
+            if (mFirstDropNs < 0) {
+                mFirstDropNs = timestampNs;
+            }
+            mDataDrops++;
+            for (MetricSimulator metric : mMetrics) {
+                metric.dropData();
+            }
+        } else if (totalBytes > BYTES_PER_CONFIG_TRIGGER_GET_DATA && mFirstGetDataNs < 0) {
+            mFirstGetDataNs = timestampNs;
+        }
+    }
+
+    /**
+     * Ends the trace, reporting the current buckets as partial buckets.
+     */
+    void finish() {
+        for (MetricSimulator metric : mMetrics) {
+            metric.finish(mLastNs);
+        }
+    }
+
+    /**
+     * The state of one predicate. Simple predicates keep a nesting count per dimension key and
+     * are true while any key is started; combination predicates are computed from their
+     * children.
+     */
+    private class PredicateState {
+        final int[] mChildren;
+        final LogicalOperation mOperation;
+        private final int mStart;
+        private final int mStop;
+        private final int mStopAll;
+        private final boolean mCountNesting;
+        private final FieldMatcher mDimensions;
+        private final Map<DimensionsValue, Integer> mStarted = new HashMap<>();
+
+        PredicateState(Predicate predicate) {
+            if (predicate.hasCombination()) {
+                final List<Long> children = predicate.getCombination().getPredicateList();
+                mChildren = new int[children.size()];
+                for (int i = 0; i < mChildren.length; i++) {
+                    mChildren[i] = predicateIndex(true, children.get(i));
+                }
+                mOperation = predicate.getCombination().getOperation();
+                mStart = mStop = mStopAll = -1;
+                mCountNesting = false;
+                mDimensions = FieldMatcher.getDefaultInstance();
+            } else {
+                final SimplePredicate simple = predicate.getSimplePredicate();
+                mChildren = new int[0];
+                mOperation = LogicalOperation.LOGICAL_OPERATION_UNSPECIFIED;
+                mStart = optionalMatcherIndex(simple.hasStart(), simple.getStart());
+                mStop = optionalMatcherIndex(simple.hasStop(), simple.getStop());
+                mStopAll = optionalMatcherIndex(simple.hasStopAll(), simple.getStopAll());
+                mCountNesting = simple.getCountNesting();
+                mDimensions = simple.getDimensions();
+            }
+        }
+
+        /**
+         * Applies the start, stop and stop-all events of this atom.
+         * @return whether the atom matched any of them
+         */
+        boolean update(Atom atom) {
+            if (mStopAll >= 0 && mMatched[mStopAll]) {
+                mStarted.clear();
+                return true;
+            }
+            final boolean start = mStart >= 0 && mMatched[mStart];
+            final boolean stop = mStop >= 0 && mMatched[mStop];
+            if (!start && !stop) {
+                return false;
+            }
+            DimensionsValue key = AtomFields.getDimensions(atom, mDimensions, false);
+            if (key == null) {
+                key = DimensionsValue.getDefaultInstance();
+            }
+            if (start) {
+                mStarted.merge(key, 1, (count, one) -> mCountNesting ? count + 1 : 1);
+            } else {
+                final Integer count = mStarted.get(key);
+                if (count != null) {
+                    if (mCountNesting && count > 1) {
+                        mStarted.put(key, count - 1);
+                    } else {
+                        mStarted.remove(key);
+                    }
+                }
+            }
+            return true;
+        }
+
+        boolean isTrue() {
+            return !mStarted.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,630 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.configcost;
+
+import com.android.internal.os.StatsdConfigProto.FieldMatcher;
+import com.android.internal.os.StatsdConfigProto.GaugeMetric;
+import com.android.internal.os.StatsdConfigProto.Position;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.CountBucketInfo;
+import com.android.os.StatsLog.DimensionsValue;
+import com.android.os.StatsLog.DurationBucketInfo;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.ValueBucketInfo;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.Message;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Replays matched events into a model of one metric producer, and tracks the dimension keys,
+ * buckets and bytes the producer would hold and report.
+ *
+ * Byte counts follow the producers' byteSizeLocked(), which is what statsd compares to its
+ * per-config memory guardrails: only completed buckets count, using the size of the bucket
+ * structs of a 64-bit build. Report bytes are the serialized size of the metric's data as it
+ * would appear in a report dumped at the end of the trace.
+ */
+abstract class MetricSimulator {
+    // Approximate sizes of statsd's in-memory structs on a 64-bit build.
+    static final int COUNT_BUCKET_BYTES = 24;  // CountBucket and DurationBucket.
+    static final int VALUE_BUCKET_BYTES = 80;  // PastBucket<AggregatedValue>.
+    static final int FIELD_VALUE_BYTES = 64;   // FieldValue, per field of a gauge atom.
+    static final int TIMESTAMP_BYTES = 8;
+
+    // StatsdStats::kDimensionKeySizeSoftLimit and kDimensionKeySizeHardLimit.
+    static final int DIMENSION_KEY_SOFT_LIMIT = 500;
+    static final int DIMENSION_KEY_HARD_LIMIT = 800;
+
+    // Stands for the key of metrics without dimensions.
+    private static final DimensionsValue NO_DIMENSIONS = DimensionsValue.getDefaultInstance();
+
+    final long mMetricId;
+    final String mType;
+    final int mCondition;
+    final List<String> mNotes = new ArrayList<>();
+
+    long mMatchedEvents;
+    long mKeptEvents;
+    // Events dropped because the bucket already had DIMENSION_KEY_HARD_LIMIT keys.
+    long mDroppedEvents;
+    long mMemoryBytes;
+    long mReportBytes;
+
+    /**
+     * @param condition index of the condition predicate, or -1
+     */
+    MetricSimulator(long metricId, String type, int condition) {
+        mMetricId = metricId;
+        mType = type;
+        mCondition = condition;
+    }
+
+    /**
+     * Processes one event, after matchers and conditions have been evaluated for it.
+     */
+    abstract void onEvent(long timestampNs, Atom atom, boolean[] matched, boolean[] conditions);
+
+    /**
+     * Ends the trace at {@code timestampNs}. The current bucket is reported as a partial bucket.
+     */
+    abstract void finish(long timestampNs);
+
+    /**
+     * Clears the data held in memory, as statsd does when a config uses too much memory.
+     */
+    abstract void dropData();
+
+    /** Returns the number of distinct dimension keys seen over the whole trace. */
+    int getDistinctKeys() {
+        return 0;
+    }
+
+    /** Returns the largest number of dimension keys in a single bucket. */
+    int getMaxKeysPerBucket() {
+        return 0;
+    }
+
+    /** Returns the number of buckets with data, including the last partial one. */
+    long getBuckets() {
+        return 0;
+    }
+
+    /** Returns the number of (dimension key, bucket) pairs, i.e. bucket infos in the report. */
+    long getEntries() {
+        return mKeptEvents;
+    }
+
+    /** Returns the number of buckets that went over the soft dimension limit. */
+    int getSoftLimitBuckets() {
+        return 0;
+    }
+
+    boolean isConditionTrue(boolean[] conditions) {
+        return mCondition < 0 || conditions[mCondition];
+    }
+
+    static int lengthDelimitedSize(int fieldNumber, int size) {
+        return CodedOutputStream.computeTagSize(fieldNumber)
+                + CodedOutputStream.computeUInt32SizeNoTag(size) + size;
+    }
+
+    /**
+     * An event metric: every kept event is stored and reported as is.
+     */
+    static class EventSimulator extends MetricSimulator {
+        private final int mWhat;
+
+        EventSimulator(long metricId, int what, int condition) {
+            super(metricId, "event", condition);
+            mWhat = what;
+        }
+
+        @Override
+        void onEvent(long timestampNs, Atom atom, boolean[] matched, boolean[] conditions) {
+            if (!matched[mWhat]) {
+                return;
+            }
+            mMatchedEvents++;
+            if (!isConditionTrue(conditions)) {
+                return;
+            }
+            mKeptEvents++;
+            final int size = lengthDelimitedSize(1, EventMetricData.newBuilder()
+                    .setElapsedTimestampNanos(timestampNs)
+                    .setAtom(atom)
+                    .build()
+                    .getSerializedSize());
+            mMemoryBytes += size;
+            mReportBytes += size;
+        }
+
+        @Override
+        void finish(long timestampNs) {}
+
+        @Override
+        void dropData() {
+            mMemoryBytes = 0;
+            mReportBytes = 0;
+        }
+    }
+
+    /**
+     * Common bucketing and dimension key handling of count, duration, value, KLL and gauge
+     * metrics.
+     */
+    abstract static class BucketedSimulator extends MetricSimulator {
+        final FieldMatcher mDimensions;
+        final boolean mHashStrings;
+        private final long mBucketSizeNs;
+        // Nested dimensions are reported in full, others as leaf values only.
+        private final boolean mNestedDimensions;
+
+        private long mTimeBaseNs = -1;
+        private long mCurrentBucketNum;
+        private long mBuckets;
+        private long mEntries;
+        private int mMaxKeysPerBucket;
+        private int mSoftLimitBuckets;
+        private boolean mSoftLimitHit;
+        private final Set<DimensionsValue> mDistinctKeys = new HashSet<>();
+
+        // Data of the current bucket, per dimension key.
+        final Map<DimensionsValue, long[]> mCurrentBucket = new HashMap<>();
+        // Serialized size of the reported bucket infos, per dimension key.
+        private final Map<DimensionsValue, Long> mReportedBucketBytes = new HashMap<>();
+
+        /**
+         * @param bucketSizeNs bucket size, or Long.MAX_VALUE for a single bucket
+         */
+        BucketedSimulator(long metricId, String type, int condition, FieldMatcher dimensions,
+                long bucketSizeNs, boolean hashStrings) {
+            super(metricId, type, condition);
+            mDimensions = dimensions;
+            mBucketSizeNs = bucketSizeNs;
+            mHashStrings = hashStrings;
+            mNestedDimensions = usesPositionAll(dimensions);
+        }
+
+        private static boolean usesPositionAll(FieldMatcher matcher) {
+            if (matcher.getPosition() == Position.ALL) {
+                return true;
+            }
+            for (FieldMatcher child : matcher.getChildList()) {
+                if (usesPositionAll(child)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /** Serialized size of the bucket info of one (key, bucket) pair, with its tag. */
+        abstract int getBucketInfoBytes(long bucketNum, long[] data);
+
+        /** Memory held by one completed (key, bucket) pair. */
+        abstract long getBucketMemoryBytes(long[] data);
+
+        /** Called before the current bucket is closed, e.g. to account for running durations. */
+        void onBucketClosing(long bucketEndNs) {}
+
+        DimensionsValue getKey(Atom atom) {
+            final DimensionsValue key = AtomFields.getDimensions(atom, mDimensions, mHashStrings);
+            return key != null ? key : NO_DIMENSIONS;
+        }
+
+        long getBucketStartNs() {
+            return mTimeBaseNs + mCurrentBucketNum * mBucketSizeNs;
+        }
+
+        /**
+         * Moves to the bucket of {@code timestampNs}, closing the buckets in between.
+         */
+        void advanceTo(long timestampNs) {
+            if (mTimeBaseNs < 0) {
+                // The config is assumed to have been added at the start of the trace.
+                mTimeBaseNs = timestampNs;
+            }
+            final long bucketNum = (timestampNs - mTimeBaseNs) / mBucketSizeNs;
+            while (mCurrentBucketNum < bucketNum) {
+                closeBucket(getBucketStartNs() + mBucketSizeNs);
+            }
+        }
+
+        /**
+         * Returns the data of {@code key} in the current bucket, adding the key if needed, or
+         * null if the key would go over the hard dimension limit.
+         */
+        long[] getOrAddKey(DimensionsValue key, int dataSize) {
+            long[] data = mCurrentBucket.get(key);
+            if (data != null) {
+                return data;
+            }
+            if (mCurrentBucket.size() >= DIMENSION_KEY_SOFT_LIMIT) {
+                mSoftLimitHit = true;
+            }
+            if (mCurrentBucket.size() >= DIMENSION_KEY_HARD_LIMIT) {
+                mDroppedEvents++;
+                return null;
+            }
+            data = new long[dataSize];
+            mCurrentBucket.put(key, data);
+            mDistinctKeys.add(key);
+            return data;
+        }
+
+        private void closeBucket(long bucketEndNs) {
+            onBucketClosing(bucketEndNs);
+            if (!mCurrentBucket.isEmpty()) {
+                mBuckets++;
+            }
+            addBucketToReport(true);
+            mCurrentBucket.clear();
+            mCurrentBucketNum++;
+        }
+
+        private void addBucketToReport(boolean complete) {
+            mEntries += mCurrentBucket.size();
+            mMaxKeysPerBucket = Math.max(mMaxKeysPerBucket, mCurrentBucket.size());
+            if (mSoftLimitHit) {
+                mSoftLimitBuckets++;
+                mSoftLimitHit = false;
+            }
+            for (Map.Entry<DimensionsValue, long[]> entry : mCurrentBucket.entrySet()) {
+                mReportedBucketBytes.merge(entry.getKey(),
+                        (long) getBucketInfoBytes(mCurrentBucketNum, entry.getValue()),
+                        Long::sum);
+                if (complete) {
+                    mMemoryBytes += getBucketMemoryBytes(entry.getValue());
+                }
+            }
+        }
+
+        @Override
+        void finish(long timestampNs) {
+            if (mTimeBaseNs < 0) {
+                return;
+            }
+            advanceTo(timestampNs);
+            onBucketClosing(timestampNs);
+            if (!mCurrentBucket.isEmpty()) {
+                mBuckets++;
+            }
+            // Reported with include_current_bucket, but not part of the memory statsd counts.
+            addBucketToReport(false);
+            mCurrentBucket.clear();
+
+            mReportBytes = 0;
+            for (Map.Entry<DimensionsValue, Long> entry : mReportedBucketBytes.entrySet()) {
+                int size = entry.getValue().intValue() + getDimensionBytes(entry.getKey());
+                mReportBytes += lengthDelimitedSize(1, size);
+            }
+        }
+
+        private int getDimensionBytes(DimensionsValue key) {
+            if (key == NO_DIMENSIONS) {
+                return 0;
+            }
+            if (mNestedDimensions) {
+                return lengthDelimitedSize(1, key.getSerializedSize());
+            }
+            // dimension_leaf_values_in_what, without field numbers.
+            int size = 0;
+            for (DimensionsValue leaf : getLeaves(key, new ArrayList<>())) {
+                size += lengthDelimitedSize(4, leaf.toBuilder().clearField().build()
+                        .getSerializedSize());
+            }
+            return size;
+        }
+
+        private static List<DimensionsValue> getLeaves(DimensionsValue value,
+                List<DimensionsValue> leaves) {
+            if (value.hasValueTuple()) {
+                for (DimensionsValue child : value.getValueTuple().getDimensionsValueList()) {
+                    getLeaves(child, leaves);
+                }
+            } else {
+                leaves.add(value);
+            }
+            return leaves;
+        }
+
+        @Override
+        void dropData() {
+            mMemoryBytes = 0;
+            mReportedBucketBytes.clear();
+        }
+
+        @Override
+        int getDistinctKeys() {
+            return mDistinctKeys.size();
+        }
+
+        @Override
+        int getMaxKeysPerBucket() {
+            return mMaxKeysPerBucket;
+        }
+
+        @Override
+        long getBuckets() {
+            return mBuckets;
+        }
+
+        @Override
+        long getEntries() {
+            return mEntries;
+        }
+
+        @Override
+        int getSoftLimitBuckets() {
+            return mSoftLimitBuckets;
+        }
+    }
+
+    /**
+     * A count metric: one counter per dimension key and bucket.
+     */
+    static class CountSimulator extends BucketedSimulator {
+        private final int mWhat;
+
+        CountSimulator(long metricId, int what, int condition, FieldMatcher dimensions,
+                long bucketSizeNs, boolean hashStrings) {
+            super(metricId, "count", condition, dimensions, bucketSizeNs, hashStrings);
+            mWhat = what;
+        }
+
+        @Override
+        void onEvent(long timestampNs, Atom atom, boolean[] matched, boolean[] conditions) {
+            advanceTo(timestampNs);
+            if (!matched[mWhat]) {
+                return;
+            }
+            mMatchedEvents++;
+            if (!isConditionTrue(conditions)) {
+                return;
+            }
+            final long[] data = getOrAddKey(getKey(atom), 1);
+            if (data != null) {
+                data[0]++;
+                mKeptEvents++;
+            }
+        }
+
+        @Override
+        int getBucketInfoBytes(long bucketNum, long[] data) {
+            return lengthDelimitedSize(3, CountBucketInfo.newBuilder()
+                    .setBucketNum(bucketNum)
+                    .setCount(data[0])
+                    .build()
+                    .getSerializedSize());
+        }
+
+        @Override
+        long getBucketMemoryBytes(long[] data) {
+            return COUNT_BUCKET_BYTES;
+        }
+    }
+
+    /**
+     * A value or KLL metric: one aggregate per value field, dimension key and bucket. The
+     * aggregate is modeled as one int64 per field; KLL sketches are larger.
+     */
+    static class ValueSimulator extends BucketedSimulator {
+        private final int mWhat;
+        private final int mValueFields;
+
+        ValueSimulator(long metricId, String type, int what, int condition,
+                FieldMatcher dimensions, FieldMatcher valueFields, long bucketSizeNs,
+                boolean hashStrings) {
+            super(metricId, type, condition, dimensions, bucketSizeNs, hashStrings);
+            mWhat = what;
+            mValueFields = Math.max(1, valueFields.getChildCount());
+        }
+
+        @Override
+        void onEvent(long timestampNs, Atom atom, boolean[] matched, boolean[] conditions) {
+            advanceTo(timestampNs);
+            if (!matched[mWhat]) {
+                return;
+            }
+            mMatchedEvents++;
+            if (!isConditionTrue(conditions)) {
+                return;
+            }
+            final long[] data = getOrAddKey(getKey(atom), 1);
+            if (data != null) {
+                data[0]++;
+                mKeptEvents++;
+            }
+        }
+
+        @Override
+        int getBucketInfoBytes(long bucketNum, long[] data) {
+            final ValueBucketInfo.Builder bucket =
+                    ValueBucketInfo.newBuilder().setBucketNum(bucketNum);
+            for (int i = 0; i < mValueFields; i++) {
+                // The number of samples stands in for the aggregated value.
+                bucket.addValues(ValueBucketInfo.Value.newBuilder()
+                        .setIndex(i)
+                        .setValueLong(data[0]));
+            }
+            return lengthDelimitedSize(3, bucket.build().getSerializedSize());
+        }
+
+        @Override
+        long getBucketMemoryBytes(long[] data) {
+            return VALUE_BUCKET_BYTES;
+        }
+    }
+
+    /**
+     * A duration metric: the time each dimension key spends between its start and stop events
+     * of the {@code what} predicate, per bucket.
+     */
+    static class DurationSimulator extends BucketedSimulator {
+        private final int mStart;
+        private final int mStop;
+        private final int mStopAll;
+        private final boolean mCountNesting;
+        // Start time (or start of the current bucket) and nesting count of each running key.
+        private final Map<DimensionsValue, long[]> mRunning = new HashMap<>();
+
+        /**
+         * @param stop index of the stop matcher, or -1
+         * @param stopAll index of the stop-all matcher, or -1
+         */
+        DurationSimulator(long metricId, int start, int stop, int stopAll, boolean countNesting,
+                int condition, FieldMatcher dimensions, long bucketSizeNs, boolean hashStrings) {
+            super(metricId, "duration", condition, dimensions, bucketSizeNs, hashStrings);
+            mStart = start;
+            mStop = stop;
+            mStopAll = stopAll;
+            mCountNesting = countNesting;
+        }
+
+        @Override
+        void onEvent(long timestampNs, Atom atom, boolean[] matched, boolean[] conditions) {
+            advanceTo(timestampNs);
+            if (mStopAll >= 0 && matched[mStopAll]) {
+                mMatchedEvents++;
+                for (Map.Entry<DimensionsValue, long[]> entry : mRunning.entrySet()) {
+                    addDuration(entry.getKey(), timestampNs - entry.getValue()[0]);
+                }
+                mRunning.clear();
+                return;
+            }
+            if (mStop >= 0 && matched[mStop]) {
+                mMatchedEvents++;
+                final DimensionsValue key = getKey(atom);
+                final long[] running = mRunning.get(key);
+                if (running != null && --running[1] <= 0) {
+                    addDuration(key, timestampNs - running[0]);
+                    mRunning.remove(key);
+                }
+                return;
+            }
+            if (matched[mStart]) {
+                mMatchedEvents++;
+                if (!isConditionTrue(conditions)) {
+                    return;
+                }
+                final DimensionsValue key = getKey(atom);
+                final long[] running = mRunning.get(key);
+                if (running != null) {
+                    if (mCountNesting) {
+                        running[1]++;
+                    }
+                } else if (getOrAddKey(key, 1) != null) {
+                    mRunning.put(key, new long[] {timestampNs, 1});
+                    mKeptEvents++;
+                }
+            }
+        }
+
+        private void addDuration(DimensionsValue key, long durationNs) {
+            final long[] data = getOrAddKey(key, 1);
+            if (data != null) {
+                data[0] += durationNs;
+            }
+        }
+
+        @Override
+        void onBucketClosing(long bucketEndNs) {
+            final Iterator<Map.Entry<DimensionsValue, long[]>> it =
+                    mRunning.entrySet().iterator();
+            while (it.hasNext()) {
+                final Map.Entry<DimensionsValue, long[]> entry = it.next();
+                final long[] data = getOrAddKey(entry.getKey(), 1);
+                if (data == null) {
+                    it.remove();
+                    continue;
+                }
+                data[0] += bucketEndNs - entry.getValue()[0];
+                // The rest of the duration counts towards the next bucket.
+                entry.getValue()[0] = bucketEndNs;
+            }
+        }
+
+        @Override
+        int getBucketInfoBytes(long bucketNum, long[] data) {
+            return lengthDelimitedSize(3, DurationBucketInfo.newBuilder()
+                    .setBucketNum(bucketNum)
+                    .setDurationNanos(data[0])
+                    .build()
+                    .getSerializedSize());
+        }
+
+        @Override
+        long getBucketMemoryBytes(long[] data) {
+            return COUNT_BUCKET_BYTES;
+        }
+    }
+
+    /**
+     * A gauge metric: up to a number of atoms per dimension key and bucket.
+     */
+    static class GaugeSimulator extends BucketedSimulator {
+        private final int mWhat;
+        private final int mMaxAtomsPerBucket;
+
+        GaugeSimulator(long metricId, int what, int condition, FieldMatcher dimensions,
+                GaugeMetric.SamplingType samplingType, long maxAtomsPerBucket,
+                long bucketSizeNs, boolean hashStrings) {
+            super(metricId, "gauge", condition, dimensions, bucketSizeNs, hashStrings);
+            mWhat = what;
+            mMaxAtomsPerBucket = samplingType == GaugeMetric.SamplingType.FIRST_N_SAMPLES
+                    ? (int) Math.min(Integer.MAX_VALUE, maxAtomsPerBucket) : 1;
+        }
+
+        @Override
+        void onEvent(long timestampNs, Atom atom, boolean[] matched, boolean[] conditions) {
+            advanceTo(timestampNs);
+            if (!matched[mWhat]) {
+                return;
+            }
+            mMatchedEvents++;
+            if (!isConditionTrue(conditions)) {
+                return;
+            }
+            // data: number of atoms, their serialized bytes and their number of fields.
+            final long[] data = getOrAddKey(getKey(atom), 3);
+            if (data == null || data[0] >= mMaxAtomsPerBucket) {
+                return;
+            }
+            final Message atomMessage = AtomFields.getAtomMessage(atom);
+            data[0]++;
+            data[1] += lengthDelimitedSize(3, atom.getSerializedSize())
+                    + CodedOutputStream.computeInt64Size(4, timestampNs);
+            data[2] += atomMessage != null ? AtomFields.countLeafValues(atomMessage) : 0;
+            mKeptEvents++;
+        }
+
+        @Override
+        int getBucketInfoBytes(long bucketNum, long[] data) {
+            return lengthDelimitedSize(3,
+                    (int) (CodedOutputStream.computeInt64Size(6, bucketNum) + data[1]));
+        }
+
+        @Override
+        long getBucketMemoryBytes(long[] data) {
+            return data[2] * FIELD_VALUE_BYTES + data[0] * TIMESTAMP_BYTES;
+        }
+    }
+}
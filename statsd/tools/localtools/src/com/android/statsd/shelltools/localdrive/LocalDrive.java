@@ -18,6 +18,7 @@ package com.android.statsd.shelltools.localdrive;
 import com.android.internal.os.StatsdConfigProto.StatsdConfig;
 import com.android.os.StatsLog.ConfigMetricsReport;
 import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.statsd.shelltools.MultiDeviceRunner;
 import com.android.statsd.shelltools.Utils;
 
 import com.google.common.io.Files;
@@ -26,7 +27,9 @@ import com.google.protobuf.TextFormat;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -50,6 +53,16 @@ public class LocalDrive {
     public static final String HELP_STRING =
         "Usage:\n\n" +
 
+        "Device selection, before the command:\n" +
+        "    -s DEVICE_SERIAL   Device to use. Repeat to run the command on several devices at\n" +
+        "                       once.\n" +
+        "    -all               Run the command on all connected devices at once.\n" +
+        "    -j N               Run at most N adb commands at the same time. Defaults to "
+                                        + Utils.DEFAULT_MAX_CONCURRENT_COMMANDS + ".\n" +
+        "  With several devices, get-data prints each device's data followed by the number of\n" +
+        "  data entries of each metric on each device and in total. --binary needs one device.\n" +
+        "\n" +
+
         "statsd_localdrive [-s DEVICE_SERIAL] upload CONFIG_FILE [CONFIG_ID] [--binary]\n" +
         "  Uploads the given statsd config file (in binary or human-readable-text format).\n" +
         "  If a config with this id already exists, removes it first.\n" +
@@ -100,50 +113,127 @@ public class LocalDrive {
             return;
         }
 
-        int remainingArgsLength = args.length;
-        String deviceSerial = null;
-        if (args[0].equals("-s")) {
-            if (args.length == 1) {
-                printHelp();
+        List<String> requestedDevices = new ArrayList<>();
+        boolean allDevices = false;
+        int maxConcurrentCommands = Utils.DEFAULT_MAX_CONCURRENT_COMMANDS;
+        int idx = 0;
+        for (; idx < args.length; idx++) {
+            if (args[idx].equals("-s") && idx + 1 < args.length) {
+                requestedDevices.add(args[++idx]);
+            } else if (args[idx].equals("-all")) {
+                allDevices = true;
+            } else if (args[idx].equals("-j") && idx + 1 < args.length) {
+                try {
+                    maxConcurrentCommands = Integer.parseInt(args[++idx]);
+                } catch (NumberFormatException e) {
+                    sLogger.severe("Bad number of concurrent adb commands: " + args[idx]);
+                    printHelp();
+                    return;
+                }
+            } else {
+                break;
             }
-            deviceSerial = args[1];
-            remainingArgsLength -= 2;
         }
+        Utils.setMaxConcurrentCommands(maxConcurrentCommands);
 
         List<String> connectedDevices = Utils.getDeviceSerials(sLogger);
-        deviceSerial = Utils.chooseDevice(deviceSerial, connectedDevices,
-                Utils.getDefaultDevice(sLogger), sLogger);
-        if (deviceSerial == null) {
+        List<String> chosenDevices = Utils.chooseDevices(requestedDevices, allDevices,
+                connectedDevices, Utils.getDefaultDevice(sLogger), sLogger);
+        if (chosenDevices == null) {
             return;
         }
 
-        if (!Utils.isAcceptableStatsd(sLogger, MIN_SDK, MIN_CODENAME, deviceSerial)) {
-            sLogger.severe("LocalDrive only works with statsd versions for Android "
-                    + MIN_CODENAME + " or higher.");
+        List<String> deviceSerials = new ArrayList<>();
+        for (String deviceSerial : chosenDevices) {
+            if (!Utils.isAcceptableStatsd(sLogger, MIN_SDK, MIN_CODENAME, deviceSerial)) {
+                sLogger.severe("LocalDrive only works with statsd versions for Android "
+                        + MIN_CODENAME + " or higher. Skipping device '" + deviceSerial + "'.");
+            } else {
+                deviceSerials.add(deviceSerial);
+            }
+        }
+        if (deviceSerials.isEmpty()) {
             return;
         }
 
-        int idx = args.length - remainingArgsLength;
-        if (remainingArgsLength > 0) {
-            switch (args[idx]) {
-                case "clear":
-                    cmdClear(args, idx, deviceSerial);
-                    return;
-                case "get-data":
-                    cmdGetData(args, idx, deviceSerial);
-                    return;
-                case "remove":
-                    cmdRemove(args, idx);
-                    return;
-                case "update":
-                    cmdUpdate(args, idx, deviceSerial);
-                    return;
-                case "upload":
-                    cmdUpload(args, idx, deviceSerial);
-                    return;
+        if (idx >= args.length || !isCommand(args[idx])) {
+            printHelp();
+            return;
+        }
+        if (deviceSerials.size() == 1) {
+            runCommand(args, idx, deviceSerials.get(0));
+        } else {
+            runCommandOnDevices(args, idx, deviceSerials);
+        }
+    }
+
+    private static boolean isCommand(String arg) {
+        switch (arg) {
+            case "clear":
+            case "get-data":
+            case "remove":
+            case "update":
+            case "upload":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean runCommand(String[] args, int idx, String deviceSerial) {
+        switch (args[idx]) {
+            case "clear":
+                return cmdClear(args, idx, deviceSerial);
+            case "get-data":
+                return cmdGetData(args, idx, deviceSerial);
+            case "remove":
+                return cmdRemove(args, idx, deviceSerial);
+            case "update":
+                return cmdUpdate(args, idx, deviceSerial);
+            case "upload":
+                return cmdUpload(args, idx, deviceSerial);
+            default:
+                printHelp();
+                return false;
+        }
+    }
+
+    /**
+     * Runs the command on every device at once. get-data output is printed per device once
+     * every device has returned its data, followed by a summary across devices.
+     */
+    private static void runCommandOnDevices(String[] args, int idx, List<String> deviceSerials) {
+        try (MultiDeviceRunner runner = new MultiDeviceRunner(deviceSerials, sLogger)) {
+            if (!args[idx].equals("get-data")) {
+                runner.runOnAll(args[idx], deviceSerial -> {
+                    if (!runCommand(args, idx, deviceSerial)) {
+                        throw new IllegalStateException(args[idx] + " failed");
+                    }
+                    return null;
+                });
+                return;
+            }
+
+            GetDataOptions options = GetDataOptions.parse(args, idx);
+            if (options == null) {
+                return;
             }
+            if (options.mBinary) {
+                sLogger.severe(BINARY_FLAG + " output is only supported for a single device.");
+                return;
+            }
+            Map<String, ConfigMetricsReportList> reports = runner.runOnAll("get data",
+                    deviceSerial -> getData(options, deviceSerial));
+            for (Map.Entry<String, ConfigMetricsReportList> entry : reports.entrySet()) {
+                sLogger.info("=== Device " + entry.getKey() + " ===");
+                sLogger.info(entry.getValue().toString());
+            }
+            sLogger.info("=== Data entries per metric (" + reports.size() + " of "
+                    + deviceSerials.size() + " devices) ===");
+            sLogger.info(MultiDeviceRunner.summarizeReports(reports));
+        } catch (InterruptedException e) {
+            sLogger.severe("Interrupted while running " + args[idx] + ": " + e.getMessage());
         }
-        printHelp();
     }
 
     private static void printHelp() {
@@ -196,8 +286,8 @@ public class LocalDrive {
         // Remove the old config.
         if (removeOldConfig) {
             try {
-                Utils.runCommand(null, sLogger, "adb", "shell", Utils.CMD_REMOVE_CONFIG,
-                        Utils.SHELL_UID, String.valueOf(configId));
+                Utils.runCommand(null, sLogger, "adb", "-s", deviceSerial, "shell",
+                        Utils.CMD_REMOVE_CONFIG, Utils.SHELL_UID, String.valueOf(configId));
                 Utils.getReportList(configId, true /* clearData */, true /* SHELL_UID */, sLogger,
                         deviceSerial);
             } catch (InterruptedException | IOException e) {
@@ -232,9 +322,10 @@ public class LocalDrive {
         }
         String remotePath = "/data/local/tmp/statsdconfig.config";
         try {
-            Utils.runCommand(null, sLogger, "adb", "push", configLocation, remotePath);
-            Utils.runCommand(null, sLogger, "adb", "shell", "cat", remotePath, "|",
-                    Utils.CMD_UPDATE_CONFIG, Utils.SHELL_UID, String.valueOf(configId));
+            Utils.runCommand(null, sLogger, "adb", "-s", deviceSerial, "push", configLocation,
+                    remotePath);
+            Utils.runCommand(null, sLogger, "adb", "-s", deviceSerial, "shell", "cat", remotePath,
+                    "|", Utils.CMD_UPDATE_CONFIG, Utils.SHELL_UID, String.valueOf(configId));
         } catch (InterruptedException | IOException e) {
             sLogger.severe("Failed to update config: " + e.getMessage());
             return false;
@@ -242,50 +333,53 @@ public class LocalDrive {
         return true;
     }
 
+    /** Options of the get-data command. */
+    private static class GetDataOptions {
+        long mConfigId;
+        boolean mBinary;
+        boolean mNoUidMap;
+        boolean mClearData;
+
+        static GetDataOptions parse(String[] args, int idx) {
+            GetDataOptions options = new GetDataOptions();
+            options.mBinary = contains(args, idx + 1, BINARY_FLAG);
+            options.mNoUidMap = contains(args, idx + 1, NO_UID_MAP_FLAG);
+            options.mClearData = contains(args, idx + 1, CLEAR_DATA);
+
+            // Get CONFIG_ID
+            int argCount = args.length - 1 - idx; // Used up one for get-data.
+            if (options.mBinary) argCount--;
+            if (options.mNoUidMap) argCount--;
+            if (options.mClearData) argCount--;
+            try {
+                options.mConfigId = getConfigId(argCount < 1, args, idx + 1);
+            } catch (NumberFormatException e) {
+                sLogger.severe("Invalid config id provided.");
+                printHelp();
+                return null;
+            }
+            sLogger.fine(String.format("cmdGetData with %d %b %b %b",
+                    options.mConfigId, options.mClearData, options.mBinary, options.mNoUidMap));
+            return options;
+        }
+    }
+
     // get-data [CONFIG_ID] [--clear] [--binary] [--no-uid-map]
     private static boolean cmdGetData(String[] args, int idx, String deviceSerial) {
-        boolean binary = contains(args, idx + 1, BINARY_FLAG);
-        boolean noUidMap = contains(args, idx + 1, NO_UID_MAP_FLAG);
-        boolean clearData = contains(args, idx + 1, CLEAR_DATA);
-
-        // Get CONFIG_ID
-        int argCount = args.length - 1 - idx; // Used up one for get-data.
-        if (binary) argCount--;
-        if (noUidMap) argCount--;
-        if (clearData) argCount--;
-        long configId;
-        try {
-            configId = getConfigId(argCount < 1, args, idx + 1);
-        } catch (NumberFormatException e) {
-            sLogger.severe("Invalid config id provided.");
-            printHelp();
+        GetDataOptions options = GetDataOptions.parse(args, idx);
+        if (options == null) {
             return false;
         }
-        sLogger.fine(String.format("cmdGetData with %d %b %b %b",
-                configId, clearData, binary, noUidMap));
 
-        // Get the StatsLog
-        // Even if the args request no modifications, we still parse it to make sure it's valid.
         ConfigMetricsReportList reportList;
         try {
-            reportList = Utils.getReportList(configId, clearData, true /* SHELL_UID */, sLogger,
-                    deviceSerial);
+            reportList = getData(options, deviceSerial);
         } catch (IOException | InterruptedException e) {
             sLogger.severe("Failed to get report list: " + e.getMessage());
             return false;
         }
-        if (noUidMap) {
-            ConfigMetricsReportList.Builder builder
-                    = ConfigMetricsReportList.newBuilder(reportList);
-            // Clear the reports, then add them back without their UidMap.
-            builder.clearReports();
-            for (ConfigMetricsReport report : reportList.getReportsList()) {
-                builder.addReports(ConfigMetricsReport.newBuilder(report).clearUidMap());
-            }
-            reportList = builder.build();
-        }
 
-        if (!binary) {
+        if (!options.mBinary) {
             sLogger.info(reportList.toString());
         } else {
             try {
@@ -299,6 +393,25 @@ public class LocalDrive {
         return true;
     }
 
+    private static ConfigMetricsReportList getData(GetDataOptions options, String deviceSerial)
+            throws IOException, InterruptedException {
+        // Get the StatsLog
+        // Even if the args request no modifications, we still parse it to make sure it's valid.
+        ConfigMetricsReportList reportList = Utils.getReportList(options.mConfigId,
+                options.mClearData, true /* SHELL_UID */, sLogger, deviceSerial);
+        if (options.mNoUidMap) {
+            ConfigMetricsReportList.Builder builder
+                    = ConfigMetricsReportList.newBuilder(reportList);
+            // Clear the reports, then add them back without their UidMap.
+            builder.clearReports();
+            for (ConfigMetricsReport report : reportList.getReportsList()) {
+                builder.addReports(ConfigMetricsReport.newBuilder(report).clearUidMap());
+            }
+            reportList = builder.build();
+        }
+        return reportList;
+    }
+
     // clear [CONFIG_ID]
     private static boolean cmdClear(String[] args, int idx, String deviceSerial) {
         // Get CONFIG_ID
@@ -323,7 +436,7 @@ public class LocalDrive {
     }
 
     // remove [CONFIG_ID]
-    private static boolean cmdRemove(String[] args, int idx) {
+    private static boolean cmdRemove(String[] args, int idx, String deviceSerial) {
         // Get CONFIG_ID
         long configId;
         try {
@@ -336,8 +449,8 @@ public class LocalDrive {
         sLogger.fine(String.format("cmdRemove with %d", configId));
 
         try {
-            Utils.runCommand(null, sLogger, "adb", "shell", Utils.CMD_REMOVE_CONFIG,
-                    Utils.SHELL_UID, String.valueOf(configId));
+            Utils.runCommand(null, sLogger, "adb", "-s", deviceSerial, "shell",
+                    Utils.CMD_REMOVE_CONFIG, Utils.SHELL_UID, String.valueOf(configId));
         } catch (InterruptedException | IOException e) {
             sLogger.severe("Failed to remove config: " + e.getMessage());
             return false;
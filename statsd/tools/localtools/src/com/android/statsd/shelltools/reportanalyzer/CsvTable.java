@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.reportanalyzer;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A CSV file shared by several threads. Each thread formats whole blocks of rows and appends them
+ * at once, so rows from different threads never interleave.
+ */
+class CsvTable implements Closeable {
+    private final Writer mWriter;
+
+    CsvTable(File file, String... columns) throws IOException {
+        mWriter = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16);
+        StringBuilder header = new StringBuilder();
+        appendRow(header, (Object[]) columns);
+        mWriter.write(header.toString());
+    }
+
+    /**
+     * Appends rows formatted with {@link #appendRow}.
+     */
+    synchronized void append(CharSequence rows) throws IOException {
+        mWriter.append(rows);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        mWriter.close();
+    }
+
+    /**
+     * Formats one row. Null values are written as empty cells.
+     */
+    static void appendRow(StringBuilder sb, Object... values) {
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            if (values[i] != null) {
+                appendCell(sb, values[i].toString());
+            }
+        }
+        sb.append('\n');
+    }
+
+    private static void appendCell(StringBuilder sb, String value) {
+        boolean needsQuotes = false;
+        for (int i = 0; i < value.length() && !needsQuotes; i++) {
+            final char c = value.charAt(i);
+            needsQuotes = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!needsQuotes) {
+            sb.append(value);
+            return;
+        }
+        sb.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if (c == '"') {
+                sb.append('"');
+            }
+            sb.append(c);
+        }
+        sb.append('"');
+    }
+}
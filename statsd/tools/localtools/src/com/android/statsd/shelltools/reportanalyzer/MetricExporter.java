@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.reportanalyzer;
+
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.AggregatedAtomInfo;
+import com.android.os.StatsLog.CountBucketInfo;
+import com.android.os.StatsLog.CountMetricData;
+import com.android.os.StatsLog.DimensionsValue;
+import com.android.os.StatsLog.DurationBucketInfo;
+import com.android.os.StatsLog.DurationMetricData;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.GaugeBucketInfo;
+import com.android.os.StatsLog.GaugeMetricData;
+import com.android.os.StatsLog.StateValue;
+import com.android.os.StatsLog.StatsLogReport;
+import com.android.os.StatsLog.ValueBucketInfo;
+import com.android.os.StatsLog.ValueMetricData;
+import com.android.statsd.shelltools.Utils;
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.Message;
+import com.google.protobuf.TextFormat;
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Flattens one StatsLogReport into rows of the {@link Table}s.
+ *
+ * Rows are buffered per table and handed to the {@link Sink} in blocks, so that a very large
+ * metric does not have to be formatted in memory all at once.
+ */
+class MetricExporter {
+    private static final long NS_PER_MS = 1_000_000L;
+    private static final int FLUSH_THRESHOLD_CHARS = 1 << 20;
+
+    /**
+     * The output tables, one per metric type. Every table starts with the source file, the index
+     * of the ConfigMetricsReport in it and the metric id.
+     */
+    enum Table {
+        COUNT("count", "dimensions", "state", "bucket_start_nanos", "bucket_end_nanos",
+                "count"),
+        DURATION("duration", "dimensions", "state", "bucket_start_nanos", "bucket_end_nanos",
+                "duration_nanos"),
+        VALUE("value", "dimensions", "state", "bucket_start_nanos", "bucket_end_nanos",
+                "value_index", "value"),
+        GAUGE("gauge", "dimensions", "bucket_start_nanos", "bucket_end_nanos",
+                "elapsed_timestamp_nanos", "atom_id", "atom"),
+        EVENT("event", "elapsed_timestamp_nanos", "atom_id", "atom");
+
+        final String mName;
+        final String[] mColumns;
+
+        Table(String name, String... columns) {
+            mName = name;
+            mColumns = new String[columns.length + 3];
+            mColumns[0] = "source";
+            mColumns[1] = "report_index";
+            mColumns[2] = "metric_id";
+            System.arraycopy(columns, 0, mColumns, 3, columns.length);
+        }
+    }
+
+    /**
+     * Receives blocks of formatted rows. May be called from several threads at once.
+     */
+    interface Sink {
+        void append(Table table, CharSequence rows) throws IOException;
+    }
+
+    private final String mSource;
+    private final int mReportIndex;
+    private final StatsLogReport mMetric;
+    private final Sink mSink;
+    private final Map<Table, StringBuilder> mBuffers = new EnumMap<>(Table.class);
+
+    MetricExporter(String source, int reportIndex, StatsLogReport metric, Sink sink) {
+        mSource = source;
+        mReportIndex = reportIndex;
+        mMetric = metric;
+        mSink = sink;
+    }
+
+    /**
+     * Writes all rows of the metric.
+     * @return the number of rows written
+     */
+    int export() throws IOException {
+        int rows = 0;
+        if (mMetric.hasCountMetrics()) {
+            rows = exportCountMetrics();
+        } else if (mMetric.hasDurationMetrics()) {
+            rows = exportDurationMetrics();
+        } else if (mMetric.hasValueMetrics()) {
+            rows = exportValueMetrics();
+        } else if (mMetric.hasGaugeMetrics()) {
+            rows = exportGaugeMetrics();
+        } else if (mMetric.hasEventMetrics()) {
+            rows = exportEventMetrics();
+        }
+        for (Map.Entry<Table, StringBuilder> entry : mBuffers.entrySet()) {
+            flush(entry.getKey(), entry.getValue());
+        }
+        return rows;
+    }
+
+    private int exportCountMetrics() throws IOException {
+        int rows = 0;
+        for (CountMetricData data : mMetric.getCountMetrics().getDataList()) {
+            final String dimensions = formatDimensions(data.getDimensionsInWhat(),
+                    data.getDimensionLeafValuesInWhatList());
+            final String state = formatState(data.getSliceByStateList());
+            for (CountBucketInfo bucket : data.getBucketInfoList()) {
+                final long[] bounds = bucketBounds(bucket.hasStartBucketElapsedNanos(),
+                        bucket.getStartBucketElapsedNanos(), bucket.getEndBucketElapsedNanos(),
+                        bucket.hasStartBucketElapsedMillis(),
+                        bucket.getStartBucketElapsedMillis(), bucket.getEndBucketElapsedMillis(),
+                        bucket.getBucketNum());
+                addRow(Table.COUNT, dimensions, state, bounds[0], bounds[1], bucket.getCount());
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private int exportDurationMetrics() throws IOException {
+        int rows = 0;
+        for (DurationMetricData data : mMetric.getDurationMetrics().getDataList()) {
+            final String dimensions = formatDimensions(data.getDimensionsInWhat(),
+                    data.getDimensionLeafValuesInWhatList());
+            final String state = formatState(data.getSliceByStateList());
+            for (DurationBucketInfo bucket : data.getBucketInfoList()) {
+                final long[] bounds = bucketBounds(bucket.hasStartBucketElapsedNanos(),
+                        bucket.getStartBucketElapsedNanos(), bucket.getEndBucketElapsedNanos(),
+                        bucket.hasStartBucketElapsedMillis(),
+                        bucket.getStartBucketElapsedMillis(), bucket.getEndBucketElapsedMillis(),
+                        bucket.getBucketNum());
+                addRow(Table.DURATION, dimensions, state, bounds[0], bounds[1],
+                        bucket.getDurationNanos());
+                rows++;
+            }
+        }
+        return rows;
+    }
+
+    private int exportValueMetrics() throws IOException {
+        int rows = 0;
+        for (ValueMetricData data : mMetric.getValueMetrics().getDataList()) {
+            final String dimensions = formatDimensions(data.getDimensionsInWhat(),
+                    data.getDimensionLeafValuesInWhatList());
+            final String state = formatState(data.getSliceByStateList());
+            for (ValueBucketInfo bucket : data.getBucketInfoList()) {
+                final long[] bounds = bucketBounds(bucket.hasStartBucketElapsedNanos(),
+                        bucket.getStartBucketElapsedNanos(), bucket.getEndBucketElapsedNanos(),
+                        bucket.hasStartBucketElapsedMillis(),
+                        bucket.getStartBucketElapsedMillis(), bucket.getEndBucketElapsedMillis(),
+                        bucket.getBucketNum());
+                if (bucket.getValuesCount() > 0) {
+                    for (ValueBucketInfo.Value value : bucket.getValuesList()) {
+                        addRow(Table.VALUE, dimensions, state, bounds[0], bounds[1],
+                                value.getIndex(), value.hasValueDouble()
+                                        ? (Object) value.getValueDouble()
+                                        : (Object) value.getValueLong());
+                        rows++;
+                    }
+                } else {
+                    // Reports from older statsd versions carry a single value per bucket.
+                    addRow(Table.VALUE, dimensions, state, bounds[0], bounds[1], 0,
+                            bucket.hasValueDouble() ? (Object) bucket.getValueDouble()
+                                    : bucket.hasValueLong() ? (Object) bucket.getValueLong()
+                                    : (Object) bucket.getValue());
+                    rows++;
+                }
+            }
+        }
+        return rows;
+    }
+
+    private int exportGaugeMetrics() throws IOException {
+        int rows = 0;
+        for (GaugeMetricData data : mMetric.getGaugeMetrics().getDataList()) {
+            final String dimensions = formatDimensions(data.getDimensionsInWhat(),
+                    data.getDimensionLeafValuesInWhatList());
+            for (GaugeBucketInfo bucket : data.getBucketInfoList()) {
+                final long[] bounds = bucketBounds(bucket.hasStartBucketElapsedNanos(),
+                        bucket.getStartBucketElapsedNanos(), bucket.getEndBucketElapsedNanos(),
+                        bucket.hasStartBucketElapsedMillis(),
+                        bucket.getStartBucketElapsedMillis(), bucket.getEndBucketElapsedMillis(),
+                        bucket.getBucketNum());
+                for (int i = 0; i < bucket.getAtomCount(); i++) {
+                    final Long timestamp = i < bucket.getElapsedTimestampNanosCount()
+                            ? bucket.getElapsedTimestampNanos(i) : null;
+                    addAtomRow(Table.GAUGE, bucket.getAtom(i), dimensions, bounds[0], bounds[1],
+                            timestamp);
+                    rows++;
+                }
+                // Back-fill aggregated atoms, the same way as for event metrics.
+                for (AggregatedAtomInfo atomInfo : bucket.getAggregatedAtomInfoList()) {
+                    for (long timestamp : atomInfo.getElapsedTimestampNanosList()) {
+                        addAtomRow(Table.GAUGE, atomInfo.getAtom(), dimensions, bounds[0],
+                                bounds[1], timestamp);
+                        rows++;
+                    }
+                }
+            }
+        }
+        return rows;
+    }
+
+    private int exportEventMetrics() throws IOException {
+        int rows = 0;
+        final Iterator<EventMetricData> events = Utils.iterateEventMetricData(mMetric);
+        while (events.hasNext()) {
+            final EventMetricData event = events.next();
+            addAtomRow(Table.EVENT, event.getAtom(), event.getElapsedTimestampNanos());
+            rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * Adds a row whose last two cells are the atom id and the atom's fields.
+     */
+    private void addAtomRow(Table table, Atom atom, Object... values) throws IOException {
+        Object[] row = new Object[values.length + 2];
+        System.arraycopy(values, 0, row, 0, values.length);
+        // An atom has exactly one field set: the pushed or pulled atom, or a vendor extension.
+        for (Map.Entry<FieldDescriptor, Object> field : atom.getAllFields().entrySet()) {
+            row[values.length] = field.getKey().getNumber();
+            row[values.length + 1] = field.getValue() instanceof Message
+                    ? TextFormat.shortDebugString((Message) field.getValue())
+                    : field.getValue();
+            break;
+        }
+        addRow(table, row);
+    }
+
+    private void addRow(Table table, Object... values) throws IOException {
+        Object[] row = new Object[values.length + 3];
+        row[0] = mSource;
+        row[1] = mReportIndex;
+        row[2] = mMetric.getMetricId();
+        System.arraycopy(values, 0, row, 3, values.length);
+
+        final StringBuilder buffer = mBuffers.computeIfAbsent(table, t -> new StringBuilder());
+        CsvTable.appendRow(buffer, row);
+        if (buffer.length() >= FLUSH_THRESHOLD_CHARS) {
+            flush(table, buffer);
+        }
+    }
+
+    private void flush(Table table, StringBuilder buffer) throws IOException {
+        if (buffer.length() > 0) {
+            mSink.append(table, buffer);
+            buffer.setLength(0);
+        }
+    }
+
+    /**
+     * Returns the start and end of a bucket. Statsd writes the bucket number instead of the bucket
+     * bounds for full buckets, and millis instead of nanos for partial ones.
+     */
+    private long[] bucketBounds(boolean hasNanos, long startNanos, long endNanos,
+            boolean hasMillis, long startMillis, long endMillis, long bucketNum) {
+        if (hasNanos) {
+            return new long[] {startNanos, endNanos};
+        }
+        if (hasMillis) {
+            return new long[] {startMillis * NS_PER_MS, endMillis * NS_PER_MS};
+        }
+        final long bucketSizeNanos = mMetric.getBucketSizeNanoSeconds();
+        final long start = mMetric.getTimeBaseElapsedNanoSeconds() + bucketNum * bucketSizeNanos;
+        return new long[] {start, start + bucketSizeNanos};
+    }
+
+    /**
+     * Formats dimensions as {@code field=value} pairs, with tuples as
+     * {@code field(field=value;...)}. Reports that only carry the leaf values, because the
+     * dimension path is written once per metric, are formatted as {@code value;...}.
+     */
+    static String formatDimensions(DimensionsValue dimensions, List<DimensionsValue> leafValues) {
+        StringBuilder sb = new StringBuilder();
+        if (dimensions.hasField()) {
+            appendDimension(sb, dimensions);
+        } else {
+            for (DimensionsValue leaf : leafValues) {
+                if (sb.length() > 0) {
+                    sb.append(';');
+                }
+                appendDimensionValue(sb, leaf);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendDimension(StringBuilder sb, DimensionsValue dimension) {
+        sb.append(dimension.getField());
+        if (dimension.hasValueTuple()) {
+            sb.append('(');
+            boolean first = true;
+            for (DimensionsValue child : dimension.getValueTuple().getDimensionsValueList()) {
+                if (!first) {
+                    sb.append(';');
+                }
+                first = false;
+                appendDimension(sb, child);
+            }
+            sb.append(')');
+        } else {
+            sb.append('=');
+            appendDimensionValue(sb, dimension);
+        }
+    }
+
+    private static void appendDimensionValue(StringBuilder sb, DimensionsValue value) {
+        switch (value.getValueCase()) {
+            case VALUE_STR:
+                sb.append(value.getValueStr());
+                break;
+            case VALUE_INT:
+                sb.append(value.getValueInt());
+                break;
+            case VALUE_LONG:
+                sb.append(value.getValueLong());
+                break;
+            case VALUE_BOOL:
+                sb.append(value.getValueBool());
+                break;
+            case VALUE_FLOAT:
+                sb.append(value.getValueFloat());
+                break;
+            case VALUE_STR_HASH:
+                sb.append("hash:").append(Long.toUnsignedString(value.getValueStrHash()));
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Formats state slices as {@code atomId=value}, or {@code atomId=group:id} for state groups.
+     */
+    static String formatState(List<StateValue> states) {
+        StringBuilder sb = new StringBuilder();
+        for (StateValue state : states) {
+            if (sb.length() > 0) {
+                sb.append(';');
+            }
+            sb.append(state.getAtomId()).append('=');
+            if (state.hasGroupId()) {
+                sb.append("group:").append(state.getGroupId());
+            } else {
+                sb.append(state.getValue());
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.reportanalyzer;
+
+import com.android.os.StatsLog.StatsLogReport;
+import com.android.statsd.shelltools.ReportStreamReader;
+import com.android.statsd.shelltools.Utils;
+import com.android.statsd.shelltools.reportanalyzer.MetricExporter.Table;
+import com.google.protobuf.ByteString;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decodes ConfigMetricsReportList dumps offline and exports their data to CSV tables, one per
+ * metric type.
+ *
+ * Input files are streamed by one thread, which hands each serialized StatsLogReport to a pool
+ * of worker threads that parse and flatten it. The queue between them is bounded, so memory
+ * use depends on the number of threads and the size of the largest metric, not on the size of
+ * the input.
+ * To make: make statsd_report_analyzer
+ * To run: statsd_report_analyzer     (i.e.  ./out/host/linux-x86/bin/statsd_report_analyzer)
+ */
+public class ReportAnalyzer {
+    private static final Logger LOGGER = Logger.getLogger(ReportAnalyzer.class.getName());
+
+    // Metrics waiting to be parsed, per worker thread.
+    private static final int QUEUED_METRICS_PER_THREAD = 2;
+
+    public static final String HELP_STRING =
+        "Usage: statsd_report_analyzer [-j THREADS] [-o OUTPUT_DIR] REPORT_FILE...\n" +
+        "  Exports the data of binary ConfigMetricsReportList files, e.g. the output of\n" +
+        "  'adb shell cmd stats dump-report CONFIG_ID --proto', to CSV files.\n" +
+        "    -j THREADS       Number of decoding threads. Defaults to the number of cores.\n" +
+        "    -o OUTPUT_DIR    Where to write count.csv, duration.csv, value.csv, gauge.csv\n" +
+        "                     and event.csv. Defaults to the current directory.\n" +
+        "    REPORT_FILE      Report file. Files ending with .gz are decompressed.\n" +
+        "  Aggregated atoms of event and gauge metrics are back-filled into one row per\n" +
+        "  timestamp. Rows of different metrics may be written in any order.\n";
+
+    private final int mThreads;
+    private final Map<Table, CsvTable> mTables = new EnumMap<>(Table.class);
+    private final AtomicLong mMetricCount = new AtomicLong();
+    private final AtomicLong mRowCount = new AtomicLong();
+    private final AtomicReference<Exception> mFailure = new AtomicReference<>();
+
+    ReportAnalyzer(File outputDir, int threads) throws IOException {
+        mThreads = threads;
+        try {
+            for (Table table : Table.values()) {
+                mTables.put(table,
+                        new CsvTable(new File(outputDir, table.mName + ".csv"), table.mColumns));
+            }
+        } catch (IOException e) {
+            closeTables();
+            throw e;
+        }
+    }
+
+    public static void main(String[] args) {
+        Utils.setUpLogger(LOGGER, false);
+
+        int threads = Runtime.getRuntime().availableProcessors();
+        File outputDir = new File(".");
+        int argIndex = 0;
+        try {
+            for (; argIndex < args.length; argIndex++) {
+                if (args[argIndex].equals("-j") && argIndex + 1 < args.length) {
+                    threads = Integer.parseInt(args[++argIndex]);
+                } else if (args[argIndex].equals("-o") && argIndex + 1 < args.length) {
+                    outputDir = new File(args[++argIndex]);
+                } else {
+                    break;
+                }
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.severe("Bad number of threads: " + args[argIndex]);
+            return;
+        }
+        if (argIndex >= args.length || threads < 1) {
+            LOGGER.severe(HELP_STRING);
+            return;
+        }
+        if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+            LOGGER.severe("Cannot create output directory " + outputDir);
+            return;
+        }
+
+        final List<File> inputs = new ArrayList<>();
+        for (; argIndex < args.length; argIndex++) {
+            inputs.add(new File(args[argIndex]));
+        }
+        try {
+            final ReportAnalyzer analyzer = new ReportAnalyzer(outputDir, threads);
+            analyzer.analyze(inputs);
+            LOGGER.info("Exported " + analyzer.getRowCount() + " rows of "
+                    + analyzer.getMetricCount() + " metrics to " + outputDir);
+        } catch (Exception e) {
+            LOGGER.severe("Failed to analyze reports: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Exports all metrics of the given files and closes the output tables.
+     */
+    void analyze(List<File> inputs) throws Exception {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(mThreads, mThreads, 0,
+                TimeUnit.SECONDS, new ArrayBlockingQueue<>(mThreads * QUEUED_METRICS_PER_THREAD),
+                // When all workers are busy, the reader parses the next metric itself instead of
+                // reading further ahead.
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            for (File input : inputs) {
+                if (mFailure.get() != null) {
+                    break;
+                }
+                LOGGER.fine("Reading " + input);
+                try (InputStream in = open(input)) {
+                    new ReportStreamReader().readRaw(in, (reportIndex, metric) ->
+                            executor.execute(() -> exportMetric(input.getName(), reportIndex,
+                                    metric)));
+                }
+            }
+        } finally {
+            executor.shutdown();
+            while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                LOGGER.fine("Waiting for " + executor.getActiveCount() + " metrics");
+            }
+            closeTables();
+        }
+        if (mFailure.get() != null) {
+            throw mFailure.get();
+        }
+    }
+
+    private void exportMetric(String source, int reportIndex, ByteString metricBytes) {
+        if (mFailure.get() != null) {
+            return;
+        }
+        try {
+            final StatsLogReport metric = StatsLogReport.parseFrom(metricBytes);
+            final int rows = new MetricExporter(source, reportIndex, metric,
+                    (table, block) -> mTables.get(table).append(block)).export();
+            mMetricCount.incrementAndGet();
+            mRowCount.addAndGet(rows);
+        } catch (Exception e) {
+            mFailure.compareAndSet(null, e);
+        }
+    }
+
+    private static InputStream open(File input) throws IOException {
+        final InputStream in = new BufferedInputStream(new FileInputStream(input), 1 << 16);
+        if (input.getName().endsWith(".gz")) {
+            return new GZIPInputStream(in, 1 << 16);
+        }
+        return in;
+    }
+
+    private void closeTables() throws IOException {
+        IOException failure = null;
+        for (CsvTable table : mTables.values()) {
+            try {
+                table.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        mTables.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    long getMetricCount() {
+        return mMetricCount.get();
+    }
+
+    long getRowCount() {
+        return mRowCount.get();
+    }
+}
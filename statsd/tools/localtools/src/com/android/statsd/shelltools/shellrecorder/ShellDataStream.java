@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.shellrecorder;
+
+import com.google.common.io.ByteStreams;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads and writes streams of length-prefixed ShellData protos.
+ *
+ * 'cmd stats data-subscribe' writes |size_t|ShellData|size_t|ShellData|..., where size_t is
+ * little-endian and as wide as on the device, and a size of 0 is a heartbeat without data.
+ * Recordings use the same format with 8-byte sizes and no heartbeats, which is what a 64-bit
+ * device writes, so statsd_replay can read them on any device.
+ */
+final class ShellDataStream {
+    static final int RECORDING_SIZE_BYTES = 8;
+
+    // Larger frames are assumed to be a corrupt stream, e.g. one with the wrong size_t width.
+    private static final long MAX_FRAME_BYTES = 64 * 1024 * 1024;
+
+    private ShellDataStream() {}
+
+    /**
+     * Receives the serialized ShellData of each frame.
+     */
+    interface FrameVisitor {
+        void onFrame(byte[] shellData) throws IOException;
+    }
+
+    /**
+     * Reads frames until the end of {@code in}, skipping heartbeats. A frame cut short by the end
+     * of the stream, e.g. because the subscription was interrupted, is ignored.
+     *
+     * @param sizeBytes width of the size prefixes, 4 or 8
+     * @return the number of frames passed to {@code visitor}
+     * @throws IOException if a frame is larger than any statsd would write
+     */
+    static int readFrames(InputStream in, int sizeBytes, FrameVisitor visitor)
+            throws IOException {
+        final byte[] sizeBuffer = new byte[sizeBytes];
+        int frames = 0;
+        while (true) {
+            try {
+                ByteStreams.readFully(in, sizeBuffer);
+            } catch (EOFException e) {
+                return frames;
+            }
+            final long size = readSize(sizeBuffer);
+            if (size == 0) {
+                continue;
+            }
+            if (size < 0 || size > MAX_FRAME_BYTES) {
+                throw new IOException("Bad ShellData size " + size + " after " + frames
+                        + " frames");
+            }
+            final byte[] shellData = new byte[(int) size];
+            try {
+                ByteStreams.readFully(in, shellData);
+            } catch (EOFException e) {
+                return frames;
+            }
+            visitor.onFrame(shellData);
+            frames++;
+        }
+    }
+
+    private static long readSize(byte[] sizeBuffer) {
+        final ByteBuffer buffer = ByteBuffer.wrap(sizeBuffer).order(ByteOrder.LITTLE_ENDIAN);
+        return sizeBuffer.length == Long.BYTES ? buffer.getLong() : buffer.getInt() & 0xFFFFFFFFL;
+    }
+
+    /**
+     * Writes a size prefix of {@code sizeBytes} bytes followed by {@code payload}.
+     */
+    static void writeFrame(OutputStream out, int sizeBytes, byte[] payload) throws IOException {
+        final ByteBuffer size = ByteBuffer.allocate(sizeBytes).order(ByteOrder.LITTLE_ENDIAN);
+        if (sizeBytes == Long.BYTES) {
+            size.putLong(payload.length);
+        } else {
+            size.putInt(payload.length);
+        }
+        out.write(size.array());
+        out.write(payload);
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.shellrecorder;
+
+import com.android.internal.os.StatsdConfigProto.SimpleAtomMatcher;
+import com.android.os.ShellConfig.PulledAtomSubscription;
+import com.android.os.ShellConfig.ShellSubscription;
+import com.android.os.statsd.ShellDataProto.ShellData;
+import com.android.statsd.shelltools.Utils;
+import com.google.common.io.Files;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.logging.Logger;
+
+/**
+ * Records the atoms streamed by 'adb shell cmd stats data-subscribe' to a file, which
+ * statsd_replay can play back into statsd.
+ *
+ * Frames are written as they arrive, so a recording stopped with Ctrl-C is still valid.
+ * To make: make statsd_shell_recorder
+ * To run: statsd_shell_recorder     (i.e.  ./out/host/linux-x86/bin/statsd_shell_recorder)
+ */
+public class ShellRecorder {
+    private static final Logger LOGGER = Logger.getLogger(ShellRecorder.class.getName());
+
+    private static final String CMD_DATA_SUBSCRIBE = "cmd stats data-subscribe";
+    private static final String REMOTE_SUBSCRIPTION_PATH =
+            "/data/local/tmp/statsd_shell_recorder_subscription";
+
+    public static final String HELP_STRING =
+        "Usage: statsd_shell_recorder [-s DEVICE_SERIAL] [-d SECONDS]\n" +
+        "           [-p ATOM_ID:FREQ_MILLIS]... OUTPUT_FILE [ATOM_ID]...\n" +
+        "  Subscribes to the given pushed atoms, and to the pulled atoms given with -p, and\n" +
+        "  records the atoms statsd sends back to OUTPUT_FILE.\n" +
+        "    -s DEVICE_SERIAL          Device to record from.\n" +
+        "    -d SECONDS                Stop after SECONDS. Defaults to recording until\n" +
+        "                              interrupted.\n" +
+        "    -p ATOM_ID:FREQ_MILLIS    Pulled atom to record, pulled every FREQ_MILLIS.\n" +
+        "  Replay the recording on a device with:\n" +
+        "    adb push OUTPUT_FILE /data/local/tmp/ && adb shell statsd_replay ...\n";
+
+    private final String mDeviceSerial;
+    private final ShellSubscription mSubscription;
+    private int mFrames;
+    private int mAtoms;
+
+    ShellRecorder(String deviceSerial, ShellSubscription subscription) {
+        mDeviceSerial = deviceSerial;
+        mSubscription = subscription;
+    }
+
+    public static void main(String[] args) {
+        Utils.setUpLogger(LOGGER, false);
+
+        String deviceSerial = null;
+        int durationSec = -1;
+        final ShellSubscription.Builder subscription = ShellSubscription.newBuilder();
+        int argIndex = 0;
+        try {
+            for (; argIndex + 1 < args.length; argIndex++) {
+                if (args[argIndex].equals("-s")) {
+                    deviceSerial = args[++argIndex];
+                } else if (args[argIndex].equals("-d")) {
+                    durationSec = Integer.parseInt(args[++argIndex]);
+                } else if (args[argIndex].equals("-p")) {
+                    subscription.addPulled(parsePulledAtom(args[++argIndex]));
+                } else {
+                    break;
+                }
+            }
+            if (argIndex >= args.length) {
+                LOGGER.severe(HELP_STRING);
+                return;
+            }
+            for (int i = argIndex + 1; i < args.length; i++) {
+                subscription.addPushed(SimpleAtomMatcher.newBuilder()
+                        .setAtomId(Integer.parseInt(args[i])));
+            }
+        } catch (NumberFormatException e) {
+            LOGGER.severe("Bad number: " + e.getMessage());
+            return;
+        }
+        if (subscription.getPushedCount() == 0 && subscription.getPulledCount() == 0) {
+            LOGGER.severe("No atom to record.\n" + HELP_STRING);
+            return;
+        }
+        final File outputFile = new File(args[argIndex]);
+
+        deviceSerial = Utils.chooseDevice(deviceSerial, Utils.getDeviceSerials(LOGGER),
+                Utils.getDefaultDevice(LOGGER), LOGGER);
+        if (deviceSerial == null) {
+            return;
+        }
+
+        final ShellRecorder recorder = new ShellRecorder(deviceSerial, subscription.build());
+        try {
+            recorder.record(outputFile, durationSec);
+        } catch (Exception e) {
+            LOGGER.severe("Failed to record: " + e.getMessage());
+        }
+        LOGGER.info("Recorded " + recorder.mAtoms + " atoms in " + recorder.mFrames
+                + " frames to " + outputFile);
+    }
+
+    /**
+     * Parses an ATOM_ID:FREQ_MILLIS argument.
+     */
+    static PulledAtomSubscription parsePulledAtom(String arg) {
+        final String[] parts = arg.split(":", 2);
+        if (parts.length != 2) {
+            throw new NumberFormatException("expected ATOM_ID:FREQ_MILLIS, got " + arg);
+        }
+        return PulledAtomSubscription.newBuilder()
+                .setMatcher(SimpleAtomMatcher.newBuilder().setAtomId(Integer.parseInt(parts[0])))
+                .setFreqMillis(Integer.parseInt(parts[1]))
+                .build();
+    }
+
+    /**
+     * Records until the subscription ends, i.e. after {@code durationSec} or when adb exits.
+     */
+    void record(File outputFile, int durationSec) throws IOException, InterruptedException {
+        final int sizeBytes = getDeviceSizeBytes();
+        pushSubscription(sizeBytes);
+        LOGGER.info("Recording from " + mDeviceSerial + ", press Ctrl-C to stop.");
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outputFile))) {
+            Utils.runCommandStreaming(
+                    output -> ShellDataStream.readFrames(output, sizeBytes, shellData -> {
+                        ShellDataStream.writeFrame(out, ShellDataStream.RECORDING_SIZE_BYTES,
+                                shellData);
+                        // Keep the file valid if the recording is interrupted.
+                        out.flush();
+                        mFrames++;
+                        mAtoms += ShellData.parseFrom(shellData).getAtomCount();
+                    }),
+                    LOGGER,
+                    "adb", "-s", mDeviceSerial, "shell",
+                    "cat " + REMOTE_SUBSCRIPTION_PATH + " | " + CMD_DATA_SUBSCRIBE + " "
+                            + durationSec);
+        } finally {
+            Utils.runCommand(null, LOGGER, "adb", "-s", mDeviceSerial, "shell", "rm", "-f",
+                    REMOTE_SUBSCRIPTION_PATH);
+        }
+    }
+
+    /**
+     * Returns the width of size_t in statsd, which prefixes the subscription and the frames.
+     */
+    private int getDeviceSizeBytes() throws IOException, InterruptedException {
+        final File abiFile = File.createTempFile("cpu_abi", ".txt");
+        abiFile.deleteOnExit();
+        Utils.runCommand(abiFile, LOGGER, "adb", "-s", mDeviceSerial, "shell", "getprop",
+                "ro.product.cpu.abi");
+        final String abi = Files.asCharSource(abiFile, StandardCharsets.UTF_8).read().trim();
+        return abi.contains("64") ? 8 : 4;
+    }
+
+    private void pushSubscription(int sizeBytes) throws IOException, InterruptedException {
+        final File subscriptionFile = File.createTempFile("shell_subscription", ".bin");
+        subscriptionFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(subscriptionFile)) {
+            ShellDataStream.writeFrame(out, sizeBytes, mSubscription.toByteArray());
+        }
+        Utils.runCommand(null, LOGGER, "adb", "-s", mDeviceSerial, "push",
+                subscriptionFile.getAbsolutePath(), REMOTE_SUBSCRIPTION_PATH);
+    }
+}
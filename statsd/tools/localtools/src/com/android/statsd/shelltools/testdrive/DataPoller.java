@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.statsd.shelltools.testdrive;
+
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.StatsLogReport;
+import com.android.statsd.shelltools.MultiDeviceRunner;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.LongSupplier;
+import java.util.logging.Logger;
+
+/**
+ * Waits until a test drive config has produced data, by periodically dumping its report without
+ * erasing the data.
+ *
+ * Polling stops as soon as every tracked metric has data, or once a bucket of a tracked metric
+ * has closed, since further waiting cannot add data to it. The timeout is an upper bound in case
+ * neither happens.
+ */
+class DataPoller {
+    private static final Logger LOGGER = Logger.getLogger(DataPoller.class.getName());
+
+    enum Result {
+        DATA_READY,
+        BUCKET_CLOSED,
+        TIMED_OUT,
+    }
+
+    /** Dumps the current report, keeping the data in statsd. */
+    interface ReportSource {
+        ConfigMetricsReportList fetch() throws IOException, InterruptedException;
+    }
+
+    /** Makes statsd pull the pulled atoms, e.g. by logging the trigger event. */
+    interface PullTrigger {
+        void trigger() throws IOException, InterruptedException;
+    }
+
+    interface Sleeper {
+        void sleep(long millis) throws InterruptedException;
+    }
+
+    private final Set<Long> mTrackedMetrics;
+    private final ReportSource mReportSource;
+    private final PullTrigger mPullTrigger;
+    private final LongSupplier mClockMillis;
+    private final Sleeper mSleeper;
+
+    /**
+     * @param pullTrigger null if the config has no pulled atoms
+     */
+    DataPoller(Set<Long> trackedMetrics, ReportSource reportSource, PullTrigger pullTrigger,
+            LongSupplier clockMillis, Sleeper sleeper) {
+        mTrackedMetrics = trackedMetrics;
+        mReportSource = reportSource;
+        mPullTrigger = pullTrigger;
+        mClockMillis = clockMillis;
+        mSleeper = sleeper;
+    }
+
+    /**
+     * Polls every {@code intervalMillis} for at most {@code timeoutMillis}. The pull trigger is
+     * fired before the first poll and then every {@code triggerIntervalMillis} while data is
+     * missing, in case an early pull happened before the puller was ready.
+     */
+    Result poll(long timeoutMillis, long intervalMillis, long triggerIntervalMillis)
+            throws IOException, InterruptedException {
+        final long startMillis = mClockMillis.getAsLong();
+        final long deadlineMillis = startMillis + timeoutMillis;
+        long nextTriggerMillis = startMillis;
+        while (true) {
+            long nowMillis = mClockMillis.getAsLong();
+            if (mPullTrigger != null && nowMillis >= nextTriggerMillis) {
+                mPullTrigger.trigger();
+                nextTriggerMillis = nowMillis + triggerIntervalMillis;
+            }
+
+            mSleeper.sleep(Math.max(0, Math.min(intervalMillis,
+                    deadlineMillis - mClockMillis.getAsLong())));
+
+            final ConfigMetricsReportList reports = mReportSource.fetch();
+            nowMillis = mClockMillis.getAsLong();
+            if (hasDataForAll(reports, mTrackedMetrics)) {
+                LOGGER.fine("All metrics have data after " + (nowMillis - startMillis) + " ms");
+                return Result.DATA_READY;
+            }
+            if (isBucketClosed(reports, mTrackedMetrics)) {
+                LOGGER.fine("Bucket closed after " + (nowMillis - startMillis) + " ms");
+                return Result.BUCKET_CLOSED;
+            }
+            if (nowMillis >= deadlineMillis) {
+                return Result.TIMED_OUT;
+            }
+        }
+    }
+
+    /**
+     * Returns whether every tracked metric has at least one data entry in the reports.
+     */
+    static boolean hasDataForAll(ConfigMetricsReportList reports, Set<Long> trackedMetrics) {
+        Set<Long> metricsWithData = new HashSet<>();
+        for (ConfigMetricsReport report : reports.getReportsList()) {
+            for (StatsLogReport metric : report.getMetricsList()) {
+                if (MultiDeviceRunner.countData(metric) > 0) {
+                    metricsWithData.add(metric.getMetricId());
+                }
+            }
+        }
+        return metricsWithData.containsAll(trackedMetrics);
+    }
+
+    /**
+     * Returns whether the first bucket of a tracked bucketed metric ended before the report was
+     * taken.
+     */
+    static boolean isBucketClosed(ConfigMetricsReportList reports, Set<Long> trackedMetrics) {
+        for (ConfigMetricsReport report : reports.getReportsList()) {
+            for (StatsLogReport metric : report.getMetricsList()) {
+                if (!trackedMetrics.contains(metric.getMetricId())
+                        || metric.getBucketSizeNanoSeconds() <= 0) {
+                    continue;
+                }
+                if (report.getCurrentReportElapsedNanos()
+                        >= metric.getTimeBaseElapsedNanoSeconds()
+                        + metric.getBucketSizeNanoSeconds()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -29,6 +29,7 @@ import com.android.os.StatsLog;
 import com.android.os.StatsLog.ConfigMetricsReport;
 import com.android.os.StatsLog.ConfigMetricsReportList;
 import com.android.os.StatsLog.StatsLogReport;
+import com.android.statsd.shelltools.MultiDeviceRunner;
 import com.android.statsd.shelltools.Utils;
 
 import com.google.common.annotations.VisibleForTesting;
@@ -40,7 +41,9 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 import java.util.Set;
 import java.util.TreeSet;
@@ -83,12 +86,23 @@ public class TestDrive {
             "AID_SYSTEM",
     };
     private static final Logger LOGGER = Logger.getLogger(TestDrive.class.getName());
-
+    // Upper bounds on the wait for data. Waiting stops earlier once every metric has data.
+    private static final long PUSHED_ATOMS_TIMEOUT_MILLIS = 60_000;
+    private static final long PULLED_ATOMS_TIMEOUT_MILLIS = 90_000;
+    private static final long POLL_INTERVAL_MILLIS = 3_000;
+    // How often to log the app breadcrumb again while pulled atoms have no data yet.
+    private static final long PULL_TRIGGER_INTERVAL_MILLIS = 15_000;
+
+    // Device to use when running on a single device, null when running on several.
     @VisibleForTesting
     String mDeviceSerial = null;
     @VisibleForTesting
+    List<String> mDeviceSerials = Collections.emptyList();
+    @VisibleForTesting
     Dumper mDumper = new BasicDumper();
     boolean mPressToContinue = false;
+    @VisibleForTesting
+    int mMaxConcurrentCommands = Utils.DEFAULT_MAX_CONCURRENT_COMMANDS;
 
     public static void main(String[] args) {
         final Configuration configuration = new Configuration();
@@ -99,13 +113,29 @@ public class TestDrive {
                 Utils.getDeviceSerials(LOGGER), Utils.getDefaultDevice(LOGGER))) {
             return;
         }
+        Utils.setMaxConcurrentCommands(testDrive.mMaxConcurrentCommands);
 
-        final ConfigMetricsReportList reports = testDrive.testDriveAndGetReports(
-                configuration.createConfig(), configuration.hasPulledAtoms(),
+        final Map<String, ConfigMetricsReportList> reports = testDrive.testDriveAndGetReports(
+                configuration.createConfig(), configuration.getTrackedMetrics(),
+                configuration.hasPulledAtoms(),
                 configuration.hasPushedAtoms());
-        if (reports != null) {
-            configuration.dumpMetrics(reports, testDrive.mDumper);
+        if (reports == null) {
+            return;
         }
+        if (testDrive.mDeviceSerial != null) {
+            final ConfigMetricsReportList reportList = reports.get(testDrive.mDeviceSerial);
+            if (reportList != null) {
+                configuration.dumpMetrics(reportList, testDrive.mDumper);
+            }
+            return;
+        }
+        for (Map.Entry<String, ConfigMetricsReportList> entry : reports.entrySet()) {
+            System.out.println("=== Device " + entry.getKey() + " ===");
+            configuration.dumpMetrics(entry.getValue(), testDrive.mDumper);
+        }
+        System.out.println("=== Data entries per metric (" + reports.size() + " of "
+                + testDrive.mDeviceSerials.size() + " devices) ===");
+        System.out.print(MultiDeviceRunner.summarizeReports(reports));
     }
 
     boolean processArgs(Configuration configuration, String[] args, List<String> connectedDevices,
@@ -113,11 +143,16 @@ public class TestDrive {
         if (args.length < 1) {
             LOGGER.severe("Usage: ./test_drive [-one] "
                     + "[-p additional_allowed_package] "
-                    + "[-s DEVICE_SERIAL_NUMBER] "
-                    + "<atomId1> <atomId2> ... <atomIdN>");
+                    + "[-s DEVICE_SERIAL_NUMBER]... [-all] [-j MAX_CONCURRENT_ADB_COMMANDS] "
+                    + "<atomId1> <atomId2> ... <atomIdN>\n"
+                    + "  Repeat -s, or use -all for all connected devices, to run on several "
+                    + "devices at once.");
             return false;
         }
 
+        final List<String> requestedDevices = new ArrayList<>();
+        boolean allDevices = false;
+
         int first_arg = 0;
         // Consume all flags, which must precede all atoms
         for (; first_arg < args.length; ++first_arg) {
@@ -132,7 +167,16 @@ public class TestDrive {
             } else if (remaining_args >= 3 && arg.equals("-p")) {
                 configuration.mAdditionalAllowedPackage = args[++first_arg];
             } else if (remaining_args >= 3 && arg.equals("-s")) {
-                mDeviceSerial = args[++first_arg];
+                requestedDevices.add(args[++first_arg]);
+            } else if (remaining_args >= 2 && arg.equals("-all")) {
+                allDevices = true;
+            } else if (remaining_args >= 3 && arg.equals("-j")) {
+                try {
+                    mMaxConcurrentCommands = Integer.parseInt(args[++first_arg]);
+                } catch (NumberFormatException e) {
+                    LOGGER.severe("Bad number of concurrent adb commands: " + args[first_arg]);
+                    return false;
+                }
             } else if (remaining_args >= 2 && arg.equals("-e")) {
                 mPressToContinue = true;
             } else {
@@ -140,10 +184,13 @@ public class TestDrive {
             }
         }
 
-        mDeviceSerial = Utils.chooseDevice(mDeviceSerial, connectedDevices, defaultDevice, LOGGER);
-        if (mDeviceSerial == null) {
+        final List<String> devices = Utils.chooseDevices(requestedDevices, allDevices,
+                connectedDevices, defaultDevice, LOGGER);
+        if (devices == null) {
             return false;
         }
+        mDeviceSerials = devices;
+        mDeviceSerial = devices.size() == 1 ? devices.get(0) : null;
 
         for ( ; first_arg < args.length; ++first_arg) {
             String atom = args[first_arg];
@@ -157,58 +204,94 @@ public class TestDrive {
         return configuration.hasPulledAtoms() || configuration.hasPushedAtoms();
     }
 
-    private ConfigMetricsReportList testDriveAndGetReports(StatsdConfig config,
-            boolean hasPulledAtoms, boolean hasPushedAtoms) {
+    /**
+     * Pushes the config to every device at once, waits for data and collects the reports.
+     * @return the reports of each device on which every step succeeded, or null on failure
+     */
+    private Map<String, ConfigMetricsReportList> testDriveAndGetReports(StatsdConfig config,
+            Set<Long> trackedMetrics, boolean hasPulledAtoms, boolean hasPushedAtoms) {
         if (config == null) {
             LOGGER.severe("Failed to create valid config.");
             return null;
         }
 
-        String remoteConfigPath = null;
-        try {
-            remoteConfigPath = pushConfig(config, mDeviceSerial);
-            LOGGER.info("Pushed the following config to statsd on device '" + mDeviceSerial
-                    + "':");
-            LOGGER.info(config.toString());
-            if (hasPushedAtoms) {
-                LOGGER.info("Now please play with the device to trigger the event.");
-            }
-            if (!hasPulledAtoms) {
-                if (mPressToContinue) {
+        Map<String, String> remoteConfigPaths = Collections.emptyMap();
+        try (MultiDeviceRunner runner = new MultiDeviceRunner(mDeviceSerials, LOGGER)) {
+            try {
+                remoteConfigPaths = runner.runOnAll("push config",
+                        deviceSerial -> pushConfig(config, deviceSerial));
+                if (remoteConfigPaths.isEmpty()) {
+                    return null;
+                }
+                LOGGER.info("Pushed the following config to statsd on device(s) '"
+                        + String.join("', '", remoteConfigPaths.keySet()) + "':");
+                LOGGER.info(config.toString());
+                if (hasPushedAtoms) {
+                    LOGGER.info("Now please play with the device to trigger the event.");
+                }
+                if (!hasPulledAtoms && mPressToContinue) {
                     LOGGER.info("Press enter after you finish playing with the device...");
                     Scanner scanner = new Scanner(System.in);
                     scanner.nextLine();
                 } else {
-                    LOGGER.info(
-                            "All events should be dumped after 1 min ...");
-                    Thread.sleep(60_000);
-                }
-            } else {
-                LOGGER.info("All events should be dumped after 1.5 minutes ...");
-                Thread.sleep(15_000);
-                Utils.logAppBreadcrumb(0, 0, LOGGER, mDeviceSerial);
-                Thread.sleep(75_000);
-            }
-            return Utils.getReportList(CONFIG_ID, true, false, LOGGER,
-                    mDeviceSerial);
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Failed to test drive: " + e.getMessage(), e);
-        } finally {
-            removeConfig(mDeviceSerial);
-            if (remoteConfigPath != null) {
-                try {
-                    Utils.runCommand(null, LOGGER,
-                            "adb", "-s", mDeviceSerial, "shell", "rm",
-                            remoteConfigPath);
-                } catch (Exception e) {
-                    LOGGER.log(Level.WARNING,
-                            "Unable to remove remote config file: " + remoteConfigPath, e);
+                    final long timeoutMillis = hasPulledAtoms
+                            ? PULLED_ATOMS_TIMEOUT_MILLIS : PUSHED_ATOMS_TIMEOUT_MILLIS;
+                    LOGGER.info("All events should be dumped within "
+                            + timeoutMillis / 1000 + " seconds ...");
+                    runner.runOnAll("wait for data", deviceSerial -> {
+                        final DataPoller.Result result = new DataPoller(trackedMetrics,
+                                () -> Utils.getReportList(
+                                        CONFIG_ID, false, false, LOGGER, deviceSerial),
+                                hasPulledAtoms
+                                        ? () -> Utils.logAppBreadcrumb(
+                                                0, 0, LOGGER, deviceSerial)
+                                        : null,
+                                () -> System.nanoTime() / 1_000_000, Thread::sleep)
+                                .poll(timeoutMillis, POLL_INTERVAL_MILLIS,
+                                        PULL_TRIGGER_INTERVAL_MILLIS);
+                        LOGGER.fine("Stopped waiting on device '" + deviceSerial + "': "
+                                + result);
+                        return result;
+                    });
                 }
+                return runner.runOnAll("get report", deviceSerial ->
+                        Utils.getReportList(CONFIG_ID, true, false, LOGGER, deviceSerial));
+            } catch (Exception e) {
+                LOGGER.log(Level.SEVERE, "Failed to test drive: " + e.getMessage(), e);
+            } finally {
+                // Also clean up devices that failed a later step.
+                cleanUp(remoteConfigPaths);
             }
         }
         return null;
     }
 
+    private static void cleanUp(Map<String, String> remoteConfigPaths) {
+        try (MultiDeviceRunner runner = new MultiDeviceRunner(
+                new ArrayList<>(remoteConfigPaths.keySet()), LOGGER)) {
+            runner.runOnAll("clean up", deviceSerial -> {
+                cleanUp(deviceSerial, remoteConfigPaths.get(deviceSerial));
+                return null;
+            });
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.WARNING, "Interrupted while removing configs", e);
+        }
+    }
+
+    private static void cleanUp(String deviceSerial, String remoteConfigPath) {
+        removeConfig(deviceSerial);
+        if (remoteConfigPath != null) {
+            try {
+                Utils.runCommand(null, LOGGER,
+                        "adb", "-s", deviceSerial, "shell", "rm",
+                        remoteConfigPath);
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING,
+                        "Unable to remove remote config file: " + remoteConfigPath, e);
+            }
+        }
+    }
+
     static class Configuration {
         boolean mOnePushedAtomEvent = false;
         @VisibleForTesting
@@ -233,6 +316,10 @@ public class TestDrive {
             return mTrackedMetrics.contains(metricId);
         }
 
+        Set<Long> getTrackedMetrics() {
+            return Collections.unmodifiableSet(mTrackedMetrics);
+        }
+
         static boolean isPulledAtom(int atomId) {
             return atomId >= PULL_ATOM_START && atomId <= MAX_PLATFORM_ATOM_TAG
                     || atomId >= VENDOR_PULLED_ATOM_START_TAG;
@@ -393,12 +480,15 @@ public class TestDrive {
             }
         }
         void dumpEventMetrics(StatsLogReport report) {
-            final List<StatsLog.EventMetricData> data = Utils.getEventMetricData(report);
-            if (data.isEmpty()) {
-                return;
-            }
-            long firstTimestampNanos = data.get(0).getElapsedTimestampNanos();
-            for (StatsLog.EventMetricData event : data) {
+            final Iterator<StatsLog.EventMetricData> events = Utils.iterateEventMetricData(report);
+            long firstTimestampNanos = 0;
+            boolean first = true;
+            while (events.hasNext()) {
+                final StatsLog.EventMetricData event = events.next();
+                if (first) {
+                    firstTimestampNanos = event.getElapsedTimestampNanos();
+                    first = false;
+                }
                 final double deltaSec = (event.getElapsedTimestampNanos() - firstTimestampNanos)
                         / 1e9;
                 System.out.println(
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.statsd.shelltools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.StatsLogReport;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Tests for {@link ReportStreamReader}, fed through a local fake command.
+ */
+public class ReportStreamReaderTest {
+    private static final Logger LOGGER = Logger.getLogger(ReportStreamReaderTest.class.getName());
+
+    private static ConfigMetricsReportList buildReportList() {
+        ConfigMetricsReportList.Builder reportList = ConfigMetricsReportList.newBuilder()
+                .setConfigKey(ConfigMetricsReportList.ConfigKey.newBuilder()
+                        .setUid(2000)
+                        .setId(12345));
+        for (int i = 0; i < 2; i++) {
+            reportList.addReports(ConfigMetricsReport.newBuilder()
+                    .addMetrics(StatsLogReport.newBuilder().setMetricId(10 * i + 1))
+                    .setLastReportElapsedNanos(100 * i)
+                    .addMetrics(StatsLogReport.newBuilder().setMetricId(10 * i + 2))
+                    .setCurrentReportElapsedNanos(100 * i + 50)
+                    .addStrings("string" + i));
+        }
+        return reportList.build();
+    }
+
+    private static File writeToTempFile(byte[] bytes) throws IOException {
+        File file = File.createTempFile("report_stream_reader_test", ".bin");
+        file.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+        }
+        return file;
+    }
+
+    @Test
+    public void testVisitorOrder() throws Exception {
+        File file = writeToTempFile(buildReportList().toByteArray());
+        List<String> events = new ArrayList<>();
+
+        Utils.runCommandStreaming(output -> new ReportStreamReader().read(output,
+                new ReportStreamReader.Visitor() {
+                    @Override
+                    public void onConfigKey(ConfigMetricsReportList.ConfigKey configKey) {
+                        events.add("key " + configKey.getId());
+                    }
+
+                    @Override
+                    public void onReportStart(int reportIndex) {
+                        events.add("start " + reportIndex);
+                    }
+
+                    @Override
+                    public void onMetric(int reportIndex, StatsLogReport metric) {
+                        events.add("metric " + reportIndex + " " + metric.getMetricId());
+                    }
+
+                    @Override
+                    public void onReportEnd(int reportIndex, ConfigMetricsReport report) {
+                        assertEquals(0, report.getMetricsCount());
+                        events.add("end " + reportIndex + " " + report.getStrings(0));
+                    }
+                }), LOGGER, "cat", file.getAbsolutePath());
+
+        assertEquals(Arrays.asList(
+                "key 12345",
+                "start 0", "metric 0 1", "metric 0 2", "end 0 string0",
+                "start 1", "metric 1 11", "metric 1 12", "end 1 string1"), events);
+    }
+
+    @Test
+    public void testReadAll() throws Exception {
+        ConfigMetricsReportList expected = buildReportList();
+        File file = writeToTempFile(expected.toByteArray());
+        ConfigMetricsReportList[] actual = new ConfigMetricsReportList[1];
+
+        Utils.runCommandStreaming(output -> actual[0] = ReportStreamReader.readAll(output),
+                LOGGER, "cat", file.getAbsolutePath());
+
+        assertEquals(expected, actual[0]);
+    }
+
+    @Test
+    public void testEmptyOutput() throws Exception {
+        int[] reportCount = {-1};
+        Utils.runCommandStreaming(output -> reportCount[0] = new ReportStreamReader().read(output,
+                (reportIndex, metric) -> { }), LOGGER, "true");
+        assertEquals(0, reportCount[0]);
+    }
+
+    @Test
+    public void testInvalidOutput() throws Exception {
+        File file = writeToTempFile(new byte[] {(byte) 0x12, (byte) 0x7f, 0x01});
+        assertThrows(InvalidProtocolBufferException.class, () -> Utils.runCommandStreaming(
+                output -> ReportStreamReader.readAll(output), LOGGER, "cat",
+                file.getAbsolutePath()));
+    }
+
+    @Test
+    public void testCommandFailure() {
+        assertThrows(RuntimeException.class, () -> Utils.runCommandStreaming(
+                output -> ReportStreamReader.readAll(output), LOGGER, "false"));
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.statsd.shelltools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+
+import com.android.os.AtomsProto.AppBreadcrumbReported;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.AggregatedAtomInfo;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StatsLogReport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Tests for the event metric helpers of {@link Utils}.
+ */
+public class UtilsTest {
+
+    private static Atom breadcrumb(int label) {
+        return Atom.newBuilder()
+                .setAppBreadcrumbReported(AppBreadcrumbReported.newBuilder().setLabel(label))
+                .build();
+    }
+
+    private static EventMetricData event(int label, long timestampNanos) {
+        return EventMetricData.newBuilder()
+                .setAtom(breadcrumb(label))
+                .setElapsedTimestampNanos(timestampNanos)
+                .build();
+    }
+
+    private static EventMetricData aggregated(int label, long... timestampsNanos) {
+        AggregatedAtomInfo.Builder atomInfo = AggregatedAtomInfo.newBuilder()
+                .setAtom(breadcrumb(label));
+        for (long timestamp : timestampsNanos) {
+            atomInfo.addElapsedTimestampNanos(timestamp);
+        }
+        return EventMetricData.newBuilder().setAggregatedAtomInfo(atomInfo).build();
+    }
+
+    private static StatsLogReport eventMetric(List<EventMetricData> data) {
+        return StatsLogReport.newBuilder()
+                .setEventMetrics(StatsLogReport.EventMetricDataWrapper.newBuilder()
+                        .addAllData(data))
+                .build();
+    }
+
+    /** Back-fills and stable-sorts the whole list, as getEventMetricData used to. */
+    private static List<EventMetricData> backfillAndSort(List<EventMetricData> data) {
+        List<EventMetricData> expected = new ArrayList<>();
+        for (EventMetricData metricData : data) {
+            if (metricData.hasAtom()) {
+                expected.add(metricData);
+            } else if (metricData.hasAggregatedAtomInfo()) {
+                for (long timestamp : metricData.getAggregatedAtomInfo()
+                        .getElapsedTimestampNanosList()) {
+                    expected.add(EventMetricData.newBuilder()
+                            .setAtom(metricData.getAggregatedAtomInfo().getAtom())
+                            .setElapsedTimestampNanos(timestamp)
+                            .build());
+                }
+            }
+        }
+        expected.sort(Comparator.comparing(EventMetricData::getElapsedTimestampNanos));
+        return expected;
+    }
+
+    private static List<EventMetricData> collect(Iterator<EventMetricData> events) {
+        List<EventMetricData> data = new ArrayList<>();
+        events.forEachRemaining(data::add);
+        return data;
+    }
+
+    @Test
+    public void testIterateEventMetricData_mergesRuns() {
+        List<EventMetricData> data = new ArrayList<>();
+        data.add(event(1, 10));
+        data.add(event(2, 40));
+        data.add(aggregated(3, 5, 20, 40, 60));
+        data.add(event(4, 40));
+        // Out of order, so it starts a new run.
+        data.add(event(5, 30));
+        data.add(EventMetricData.getDefaultInstance());
+        data.add(aggregated(6, 40, 50));
+        StatsLogReport metric = eventMetric(data);
+
+        List<EventMetricData> actual = collect(Utils.iterateEventMetricData(metric));
+
+        assertEquals(backfillAndSort(data), actual);
+        assertEquals(actual, Utils.getEventMetricData(metric));
+        assertEquals(actual.size(), Utils.countEventMetricData(metric));
+    }
+
+    @Test
+    public void testIterateEventMetricData_randomInput() {
+        Random random = new Random(1234);
+        for (int iteration = 0; iteration < 20; iteration++) {
+            List<EventMetricData> data = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                if (random.nextBoolean()) {
+                    data.add(event(i, random.nextInt(100)));
+                } else {
+                    long[] timestamps = new long[random.nextInt(10)];
+                    long timestamp = random.nextInt(50);
+                    for (int j = 0; j < timestamps.length; j++) {
+                        timestamp += random.nextInt(10);
+                        timestamps[j] = timestamp;
+                    }
+                    data.add(aggregated(i, timestamps));
+                }
+            }
+            StatsLogReport metric = eventMetric(data);
+
+            assertEquals(backfillAndSort(data), collect(Utils.iterateEventMetricData(metric)));
+            assertEquals(backfillAndSort(data).size(), Utils.countEventMetricData(metric));
+        }
+    }
+
+    @Test
+    public void testIterateEventMetricData_empty() {
+        Iterator<EventMetricData> events =
+                Utils.iterateEventMetricData(StatsLogReport.getDefaultInstance());
+        assertFalse(events.hasNext());
+        assertThrows(NoSuchElementException.class, events::next);
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.statsd.shelltools.configcost;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import com.android.internal.os.StatsdConfigProto.AtomMatcher;
+import com.android.internal.os.StatsdConfigProto.CountMetric;
+import com.android.internal.os.StatsdConfigProto.EventMetric;
+import com.android.internal.os.StatsdConfigProto.FieldMatcher;
+import com.android.internal.os.StatsdConfigProto.FieldValueMatcher;
+import com.android.internal.os.StatsdConfigProto.Predicate;
+import com.android.internal.os.StatsdConfigProto.SimpleAtomMatcher;
+import com.android.internal.os.StatsdConfigProto.SimplePredicate;
+import com.android.internal.os.StatsdConfigProto.StatsdConfig;
+import com.android.internal.os.StatsdConfigProto.TimeUnit;
+import com.android.os.AtomsProto.AppBreadcrumbReported;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StatsLogReport;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.util.List;
+
+/**
+ * Tests for {@link ConfigSimulator} and {@link ConfigCostEstimator}, on breadcrumb atoms.
+ */
+public class ConfigSimulatorTest {
+    private static final int BREADCRUMB_ATOM_ID = Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER;
+    private static final int LABEL_FIELD = 2;
+    private static final int STATE_FIELD = 3;
+    private static final long NS_PER_SEC = 1_000_000_000L;
+
+    private static final long ALL_MATCHER = 1;
+    private static final long LABEL_1_MATCHER = 2;
+    private static final long START_MATCHER = 3;
+    private static final long STOP_MATCHER = 4;
+    private static final long STARTED_PREDICATE = 5;
+
+    private static Atom breadcrumb(int label, AppBreadcrumbReported.State state) {
+        return Atom.newBuilder()
+                .setAppBreadcrumbReported(AppBreadcrumbReported.newBuilder()
+                        .setLabel(label)
+                        .setState(state))
+                .build();
+    }
+
+    private static Atom breadcrumb(int label) {
+        return breadcrumb(label, AppBreadcrumbReported.State.UNKNOWN);
+    }
+
+    private static AtomMatcher matcher(long id, FieldValueMatcher.Builder... fields) {
+        SimpleAtomMatcher.Builder simple =
+                SimpleAtomMatcher.newBuilder().setAtomId(BREADCRUMB_ATOM_ID);
+        for (FieldValueMatcher.Builder field : fields) {
+            simple.addFieldValueMatcher(field);
+        }
+        return AtomMatcher.newBuilder().setId(id).setSimpleAtomMatcher(simple).build();
+    }
+
+    private static FieldMatcher byLabel() {
+        return FieldMatcher.newBuilder()
+                .setField(BREADCRUMB_ATOM_ID)
+                .addChild(FieldMatcher.newBuilder().setField(LABEL_FIELD))
+                .build();
+    }
+
+    private static StatsdConfig.Builder baseConfig() {
+        return StatsdConfig.newBuilder()
+                .setId(12345)
+                .addAtomMatcher(matcher(ALL_MATCHER))
+                .addAtomMatcher(matcher(LABEL_1_MATCHER,
+                        FieldValueMatcher.newBuilder().setField(LABEL_FIELD).setEqInt(1)))
+                .addAtomMatcher(matcher(START_MATCHER,
+                        FieldValueMatcher.newBuilder().setField(STATE_FIELD)
+                                .setEqInt(AppBreadcrumbReported.State.START.getNumber())))
+                .addAtomMatcher(matcher(STOP_MATCHER,
+                        FieldValueMatcher.newBuilder().setField(STATE_FIELD)
+                                .setEqInt(AppBreadcrumbReported.State.STOP.getNumber())))
+                .addPredicate(Predicate.newBuilder()
+                        .setId(STARTED_PREDICATE)
+                        .setSimplePredicate(SimplePredicate.newBuilder()
+                                .setStart(START_MATCHER)
+                                .setStop(STOP_MATCHER)));
+    }
+
+    private static StatsdConfig countByLabelConfig() {
+        return baseConfig()
+                .addCountMetric(CountMetric.newBuilder()
+                        .setId(100)
+                        .setWhat(ALL_MATCHER)
+                        .setDimensionsInWhat(byLabel())
+                        .setBucket(TimeUnit.ONE_MINUTE))
+                .build();
+    }
+
+    private static MetricSimulator run(ConfigSimulator simulator, long[] timestampsNs,
+            Atom[] atoms) {
+        for (int i = 0; i < atoms.length; i++) {
+            simulator.onEvent(timestampsNs[i], atoms[i]);
+        }
+        simulator.finish();
+        return simulator.getMetrics().get(0);
+    }
+
+    private static MetricSimulator runCountByLabel(boolean shellUid) {
+        // Ten labels, one atom per second for ten minutes.
+        long[] timestamps = new long[600];
+        Atom[] atoms = new Atom[600];
+        for (int i = 0; i < atoms.length; i++) {
+            timestamps[i] = i * NS_PER_SEC;
+            atoms[i] = breadcrumb(i % 10);
+        }
+        return run(new ConfigSimulator(countByLabelConfig(), shellUid), timestamps, atoms);
+    }
+
+    @Test
+    public void testCountMetric_guardrailedBuckets() {
+        MetricSimulator metric = runCountByLabel(false);
+
+        assertEquals(600, metric.mMatchedEvents);
+        assertEquals(600, metric.mKeptEvents);
+        assertEquals(10, metric.getDistinctKeys());
+        assertEquals(10, metric.getMaxKeysPerBucket());
+        // One-minute buckets are five minutes long for configs not added by shell.
+        assertEquals(2, metric.getBuckets());
+        assertEquals(20, metric.getEntries());
+        // Only the completed bucket counts towards memory.
+        assertEquals(10 * MetricSimulator.COUNT_BUCKET_BYTES, metric.mMemoryBytes);
+        assertTrue(metric.mReportBytes > 0);
+    }
+
+    @Test
+    public void testCountMetric_shellBuckets() {
+        MetricSimulator metric = runCountByLabel(true);
+
+        assertEquals(10, metric.getBuckets());
+        assertEquals(100, metric.getEntries());
+        assertEquals(9 * 10 * MetricSimulator.COUNT_BUCKET_BYTES, metric.mMemoryBytes);
+    }
+
+    @Test
+    public void testCountMetric_dimensionHardLimit() {
+        int atomCount = MetricSimulator.DIMENSION_KEY_HARD_LIMIT + 200;
+        long[] timestamps = new long[atomCount];
+        Atom[] atoms = new Atom[atomCount];
+        for (int i = 0; i < atomCount; i++) {
+            timestamps[i] = i;
+            atoms[i] = breadcrumb(i);
+        }
+
+        MetricSimulator metric = run(new ConfigSimulator(countByLabelConfig(), false),
+                timestamps, atoms);
+
+        assertEquals(MetricSimulator.DIMENSION_KEY_HARD_LIMIT, metric.getDistinctKeys());
+        assertEquals(200, metric.mDroppedEvents);
+        assertEquals(1, metric.getSoftLimitBuckets());
+    }
+
+    @Test
+    public void testCountMetric_condition() {
+        StatsdConfig config = baseConfig()
+                .addCountMetric(CountMetric.newBuilder()
+                        .setId(100)
+                        .setWhat(LABEL_1_MATCHER)
+                        .setCondition(STARTED_PREDICATE)
+                        .setBucket(TimeUnit.FIVE_MINUTES))
+                .build();
+        Atom[] atoms = {
+                breadcrumb(1),
+                breadcrumb(5, AppBreadcrumbReported.State.START),
+                breadcrumb(1),
+                breadcrumb(1),
+                breadcrumb(1, AppBreadcrumbReported.State.STOP),
+                breadcrumb(1),
+        };
+        long[] timestamps = {1, 2, 3, 4, 5, 6};
+        ConfigSimulator simulator = new ConfigSimulator(config, false);
+
+        MetricSimulator metric = run(simulator, timestamps, atoms);
+
+        assertEquals(5, metric.mMatchedEvents);
+        // The stop atom is processed after the condition changes, so it does not count.
+        assertEquals(2, metric.mKeptEvents);
+        assertEquals(2, simulator.mConditionUpdates);
+        assertEquals(6, simulator.mInterestingEvents);
+    }
+
+    @Test
+    public void testEventMetric_memoryGuardrails() {
+        StatsdConfig config = baseConfig()
+                .addEventMetric(EventMetric.newBuilder().setId(100).setWhat(ALL_MATCHER))
+                .build();
+        ConfigSimulator simulator = new ConfigSimulator(config, false);
+
+        // About 20 bytes per atom, 1000 atoms per second for five minutes.
+        for (int i = 0; i < 300_000; i++) {
+            simulator.onEvent(i * NS_PER_SEC / 1000, breadcrumb(i));
+        }
+        simulator.finish();
+
+        assertTrue(simulator.mFirstGetDataNs > 0);
+        assertTrue(simulator.mDataDrops > 0);
+        assertTrue(simulator.mFirstDropNs > simulator.mFirstGetDataNs);
+        assertTrue(simulator.mPeakMemoryBytes > ConfigSimulator.MAX_METRICS_BYTES_PER_CONFIG);
+        assertTrue(simulator.getMetrics().get(0).mMemoryBytes
+                < ConfigSimulator.MAX_METRICS_BYTES_PER_CONFIG);
+    }
+
+    @Test
+    public void testUnknownMatcher() {
+        StatsdConfig config = baseConfig()
+                .addCountMetric(CountMetric.newBuilder().setId(100).setWhat(999))
+                .build();
+        assertThrows(IllegalArgumentException.class, () -> new ConfigSimulator(config, false));
+    }
+
+    @Test
+    public void testReplay_mergesEventMetrics() throws Exception {
+        StatsLogReport.EventMetricDataWrapper.Builder even =
+                StatsLogReport.EventMetricDataWrapper.newBuilder();
+        StatsLogReport.EventMetricDataWrapper.Builder odd =
+                StatsLogReport.EventMetricDataWrapper.newBuilder();
+        for (int i = 0; i < 20; i++) {
+            (i % 2 == 0 ? even : odd).addData(EventMetricData.newBuilder()
+                    .setElapsedTimestampNanos(i * NS_PER_SEC)
+                    .setAtom(breadcrumb(i % 4)));
+        }
+        ConfigMetricsReportList trace = ConfigMetricsReportList.newBuilder()
+                .addReports(ConfigMetricsReport.newBuilder()
+                        .addMetrics(StatsLogReport.newBuilder().setMetricId(1)
+                                .setEventMetrics(even))
+                        .addMetrics(StatsLogReport.newBuilder().setMetricId(2)
+                                .setEventMetrics(odd)))
+                .build();
+        ConfigCostEstimator estimator = new ConfigCostEstimator(countByLabelConfig(), false);
+
+        estimator.replay(new ByteArrayInputStream(trace.toByteArray()));
+        estimator.finish();
+
+        List<MetricSimulator> metrics = estimator.getSimulator().getMetrics();
+        assertEquals(20, metrics.get(0).mKeptEvents);
+        assertEquals(4, metrics.get(0).getDistinctKeys());
+        assertEquals(19 * NS_PER_SEC, estimator.getSimulator().mLastNs);
+        assertTrue(estimator.formatReport().contains("Trace: 20 atoms over 19 s\n"));
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.statsd.shelltools.reportanalyzer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.android.os.AtomsProto.AppBreadcrumbReported;
+import com.android.os.AtomsProto.Atom;
+import com.android.os.StatsLog.AggregatedAtomInfo;
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.CountBucketInfo;
+import com.android.os.StatsLog.CountMetricData;
+import com.android.os.StatsLog.DimensionsValue;
+import com.android.os.StatsLog.DimensionsValueTuple;
+import com.android.os.StatsLog.EventMetricData;
+import com.android.os.StatsLog.StateValue;
+import com.android.os.StatsLog.StatsLogReport;
+import com.android.os.StatsLog.ValueBucketInfo;
+import com.android.os.StatsLog.ValueMetricData;
+
+import com.google.common.io.Files;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Tests for {@link ReportAnalyzer}, run on report files written by the test.
+ */
+public class ReportAnalyzerTest {
+    private static final int BREADCRUMB_ATOM_ID = Atom.APP_BREADCRUMB_REPORTED_FIELD_NUMBER;
+
+    private static Atom breadcrumb(int label) {
+        return Atom.newBuilder()
+                .setAppBreadcrumbReported(AppBreadcrumbReported.newBuilder().setLabel(label))
+                .build();
+    }
+
+    private static StatsLogReport countMetric(long metricId, int dimensionCount) {
+        StatsLogReport.CountMetricDataWrapper.Builder data =
+                StatsLogReport.CountMetricDataWrapper.newBuilder();
+        for (int i = 0; i < dimensionCount; i++) {
+            data.addData(CountMetricData.newBuilder()
+                    .setDimensionsInWhat(DimensionsValue.newBuilder()
+                            .setField(BREADCRUMB_ATOM_ID)
+                            .setValueTuple(DimensionsValueTuple.newBuilder()
+                                    .addDimensionsValue(DimensionsValue.newBuilder()
+                                            .setField(2)
+                                            .setValueInt(i))))
+                    .addSliceByState(StateValue.newBuilder().setAtomId(29).setValue(2))
+                    // A full bucket, identified by its number.
+                    .addBucketInfo(CountBucketInfo.newBuilder().setBucketNum(1).setCount(i + 1))
+                    // A partial bucket, identified by its bounds in millis.
+                    .addBucketInfo(CountBucketInfo.newBuilder()
+                            .setStartBucketElapsedMillis(20)
+                            .setEndBucketElapsedMillis(25)
+                            .setCount(1)));
+        }
+        return StatsLogReport.newBuilder()
+                .setMetricId(metricId)
+                .setTimeBaseElapsedNanoSeconds(0)
+                .setBucketSizeNanoSeconds(10_000_000)
+                .setCountMetrics(data)
+                .build();
+    }
+
+    private static StatsLogReport eventMetric(long metricId) {
+        return StatsLogReport.newBuilder()
+                .setMetricId(metricId)
+                .setEventMetrics(StatsLogReport.EventMetricDataWrapper.newBuilder()
+                        .addData(EventMetricData.newBuilder()
+                                .setElapsedTimestampNanos(300)
+                                .setAtom(breadcrumb(1)))
+                        .addData(EventMetricData.newBuilder()
+                                .setAggregatedAtomInfo(AggregatedAtomInfo.newBuilder()
+                                        .setAtom(breadcrumb(2))
+                                        .addElapsedTimestampNanos(100)
+                                        .addElapsedTimestampNanos(200))))
+                .build();
+    }
+
+    private static StatsLogReport valueMetric(long metricId) {
+        return StatsLogReport.newBuilder()
+                .setMetricId(metricId)
+                .setValueMetrics(StatsLogReport.ValueMetricDataWrapper.newBuilder()
+                        .addData(ValueMetricData.newBuilder()
+                                .addDimensionLeafValuesInWhat(
+                                        DimensionsValue.newBuilder().setValueStr("a,b"))
+                                .addBucketInfo(ValueBucketInfo.newBuilder()
+                                        .setStartBucketElapsedNanos(5)
+                                        .setEndBucketElapsedNanos(6)
+                                        .addValues(ValueBucketInfo.Value.newBuilder()
+                                                .setIndex(0).setValueLong(42))
+                                        .addValues(ValueBucketInfo.Value.newBuilder()
+                                                .setIndex(1).setValueDouble(0.5)))))
+                .build();
+    }
+
+    private static File writeReports(ConfigMetricsReportList reports, boolean gzip)
+            throws IOException {
+        File file = File.createTempFile("report_analyzer_test", gzip ? ".bin.gz" : ".bin");
+        file.deleteOnExit();
+        try (OutputStream out = gzip
+                ? new GZIPOutputStream(new FileOutputStream(file))
+                : new FileOutputStream(file)) {
+            reports.writeTo(out);
+        }
+        return file;
+    }
+
+    private static File createOutputDir() {
+        File dir = Files.createTempDir();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    /** Returns the data lines of a table, sorted, since metrics are exported in any order. */
+    private static List<String> readRows(File dir, String table) throws IOException {
+        File file = new File(dir, table + ".csv");
+        file.deleteOnExit();
+        List<String> lines = new ArrayList<>(Files.readLines(file, StandardCharsets.UTF_8));
+        lines.remove(0);
+        Collections.sort(lines);
+        return lines;
+    }
+
+    @Test
+    public void testAnalyze() throws Exception {
+        ConfigMetricsReportList reports = ConfigMetricsReportList.newBuilder()
+                .addReports(ConfigMetricsReport.newBuilder()
+                        .addMetrics(countMetric(1, 2))
+                        .addMetrics(eventMetric(2)))
+                .addReports(ConfigMetricsReport.newBuilder()
+                        .addMetrics(valueMetric(3)))
+                .build();
+        File input = writeReports(reports, true);
+        String source = input.getName();
+        File outputDir = createOutputDir();
+
+        ReportAnalyzer analyzer = new ReportAnalyzer(outputDir, 2);
+        analyzer.analyze(Arrays.asList(input));
+
+        assertEquals(3, analyzer.getMetricCount());
+        assertEquals(4 + 3 + 2, analyzer.getRowCount());
+        assertEquals(Arrays.asList(
+                source + ",0,1," + BREADCRUMB_ATOM_ID + "(2=0),29=2,10000000,20000000,1",
+                source + ",0,1," + BREADCRUMB_ATOM_ID + "(2=0),29=2,20000000,25000000,1",
+                source + ",0,1," + BREADCRUMB_ATOM_ID + "(2=1),29=2,10000000,20000000,2",
+                source + ",0,1," + BREADCRUMB_ATOM_ID + "(2=1),29=2,20000000,25000000,1"),
+                readRows(outputDir, "count"));
+        // Aggregated atoms are back-filled, one row per timestamp.
+        assertEquals(Arrays.asList(
+                source + ",0,2,100," + BREADCRUMB_ATOM_ID + ",label: 2",
+                source + ",0,2,200," + BREADCRUMB_ATOM_ID + ",label: 2",
+                source + ",0,2,300," + BREADCRUMB_ATOM_ID + ",label: 1"),
+                readRows(outputDir, "event"));
+        assertEquals(Arrays.asList(
+                source + ",1,3,\"a,b\",,5,6,0,42",
+                source + ",1,3,\"a,b\",,5,6,1,0.5"),
+                readRows(outputDir, "value"));
+        assertEquals(Collections.emptyList(), readRows(outputDir, "duration"));
+        assertEquals(Collections.emptyList(), readRows(outputDir, "gauge"));
+    }
+
+    @Test
+    public void testAnalyze_manyMetrics() throws Exception {
+        ConfigMetricsReport.Builder report = ConfigMetricsReport.newBuilder();
+        for (int i = 0; i < 100; i++) {
+            report.addMetrics(countMetric(i, 10));
+        }
+        File input = writeReports(
+                ConfigMetricsReportList.newBuilder().addReports(report).build(), false);
+        File outputDir = createOutputDir();
+
+        ReportAnalyzer analyzer = new ReportAnalyzer(outputDir, 4);
+        analyzer.analyze(Arrays.asList(input, input));
+
+        assertEquals(200, analyzer.getMetricCount());
+        assertEquals(4000, analyzer.getRowCount());
+        assertEquals(4000, readRows(outputDir, "count").size());
+    }
+
+    @Test
+    public void testAnalyze_invalidInput() throws Exception {
+        File input = File.createTempFile("report_analyzer_test", ".bin");
+        input.deleteOnExit();
+        Files.write(new byte[] {(byte) 0x12, (byte) 0x7f, 0x01}, input);
+
+        ReportAnalyzer analyzer = new ReportAnalyzer(createOutputDir(), 2);
+        assertThrows(IOException.class, () -> analyzer.analyze(Arrays.asList(input)));
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.statsd.shelltools.shellrecorder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import com.android.os.ShellConfig.PulledAtomSubscription;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ShellDataStream} and the argument parsing of {@link ShellRecorder}.
+ */
+public class ShellDataStreamTest {
+    private static final byte[] FRAME_1 = {1, 2, 3};
+    private static final byte[] FRAME_2 = {4, 5, 6, 7, 8};
+
+    private static List<byte[]> readAll(byte[] stream, int sizeBytes) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        int count = ShellDataStream.readFrames(new ByteArrayInputStream(stream), sizeBytes,
+                frames::add);
+        assertEquals(frames.size(), count);
+        return frames;
+    }
+
+    private static void assertFrames(List<byte[]> frames, byte[]... expected) {
+        assertEquals(expected.length, frames.size());
+        for (int i = 0; i < expected.length; i++) {
+            assertArrayEquals(expected[i], frames.get(i));
+        }
+    }
+
+    @Test
+    public void testReadFrames_skipsHeartbeats() throws IOException {
+        for (int sizeBytes : Arrays.asList(4, 8)) {
+            ByteArrayOutputStream stream = new ByteArrayOutputStream();
+            ShellDataStream.writeFrame(stream, sizeBytes, new byte[0]);
+            ShellDataStream.writeFrame(stream, sizeBytes, FRAME_1);
+            ShellDataStream.writeFrame(stream, sizeBytes, new byte[0]);
+            ShellDataStream.writeFrame(stream, sizeBytes, FRAME_2);
+
+            assertFrames(readAll(stream.toByteArray(), sizeBytes), FRAME_1, FRAME_2);
+        }
+    }
+
+    @Test
+    public void testReadFrames_ignoresTruncatedFrame() throws IOException {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        ShellDataStream.writeFrame(stream, 8, FRAME_1);
+        ShellDataStream.writeFrame(stream, 8, FRAME_2);
+        byte[] bytes = stream.toByteArray();
+
+        // Cut in the payload of the second frame, then in its size.
+        assertFrames(readAll(Arrays.copyOf(bytes, bytes.length - 2), 8), FRAME_1);
+        assertFrames(readAll(Arrays.copyOf(bytes, 8 + FRAME_1.length + 3), 8), FRAME_1);
+    }
+
+    @Test
+    public void testReadFrames_badSize() {
+        // A 4-byte stream read as an 8-byte one sees a huge size.
+        byte[] stream = {3, 0, 0, 0, 1, 2, 3, 0, 0, 0, 0, 0};
+        assertThrows(IOException.class, () -> readAll(stream, 8));
+    }
+
+    @Test
+    public void testParsePulledAtom() {
+        PulledAtomSubscription pulled = ShellRecorder.parsePulledAtom("10016:2000");
+        assertEquals(10016, pulled.getMatcher().getAtomId());
+        assertEquals(2000, pulled.getFreqMillis());
+
+        assertThrows(NumberFormatException.class, () -> ShellRecorder.parsePulledAtom("10016"));
+        assertThrows(NumberFormatException.class,
+                () -> ShellRecorder.parsePulledAtom("10016:often"));
+    }
+}
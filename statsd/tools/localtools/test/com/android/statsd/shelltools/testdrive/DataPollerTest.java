@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.statsd.shelltools.testdrive;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.android.os.StatsLog.ConfigMetricsReport;
+import com.android.os.StatsLog.ConfigMetricsReportList;
+import com.android.os.StatsLog.CountBucketInfo;
+import com.android.os.StatsLog.CountMetricData;
+import com.android.os.StatsLog.StatsLogReport;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Tests for {@link DataPoller}, with a fake clock.
+ */
+public class DataPollerTest {
+    private static final Set<Long> TRACKED_METRICS = new HashSet<>(Arrays.asList(1L, 2L));
+    private static final long BUCKET_SIZE_NANOS = 60_000_000_000L;
+
+    private long mNowMillis = 0;
+    private final List<Long> mTriggerTimes = new ArrayList<>();
+
+    private static StatsLogReport metric(long metricId, int dataCount) {
+        StatsLogReport.CountMetricDataWrapper.Builder data =
+                StatsLogReport.CountMetricDataWrapper.newBuilder();
+        for (int i = 0; i < dataCount; i++) {
+            data.addData(CountMetricData.newBuilder()
+                    .addBucketInfo(CountBucketInfo.newBuilder().setCount(1)));
+        }
+        return StatsLogReport.newBuilder()
+                .setMetricId(metricId)
+                .setTimeBaseElapsedNanoSeconds(0)
+                .setBucketSizeNanoSeconds(BUCKET_SIZE_NANOS)
+                .setCountMetrics(data)
+                .build();
+    }
+
+    private static ConfigMetricsReportList reportList(long reportElapsedNanos,
+            StatsLogReport... metrics) {
+        return ConfigMetricsReportList.newBuilder()
+                .addReports(ConfigMetricsReport.newBuilder()
+                        .setCurrentReportElapsedNanos(reportElapsedNanos)
+                        .addAllMetrics(Arrays.asList(metrics)))
+                .build();
+    }
+
+    private DataPoller newPoller(DataPoller.ReportSource source, boolean pulled) {
+        return new DataPoller(TRACKED_METRICS, source,
+                pulled ? () -> mTriggerTimes.add(mNowMillis) : null,
+                () -> mNowMillis, millis -> mNowMillis += millis);
+    }
+
+    @Test
+    public void testPoll_stopsOnceAllMetricsHaveData() throws Exception {
+        DataPoller poller = newPoller(() -> mNowMillis < 9_000
+                ? reportList(0, metric(1, 1), metric(2, 0))
+                : reportList(0, metric(1, 1), metric(2, 3)), false);
+
+        assertEquals(DataPoller.Result.DATA_READY, poller.poll(60_000, 3_000, 15_000));
+        assertEquals(9_000, mNowMillis);
+        assertTrue(mTriggerTimes.isEmpty());
+    }
+
+    @Test
+    public void testPoll_timesOut() throws Exception {
+        DataPoller poller = newPoller(() -> reportList(0, metric(1, 1)), false);
+
+        assertEquals(DataPoller.Result.TIMED_OUT, poller.poll(10_000, 3_000, 15_000));
+        // The last sleep is shortened to end at the deadline.
+        assertEquals(10_000, mNowMillis);
+    }
+
+    @Test
+    public void testPoll_stopsWhenBucketCloses() throws Exception {
+        DataPoller poller = newPoller(
+                () -> reportList(mNowMillis * 1_000_000L, metric(1, 0), metric(2, 0)), true);
+
+        assertEquals(DataPoller.Result.BUCKET_CLOSED, poller.poll(90_000, 5_000, 20_000));
+        assertEquals(60_000, mNowMillis);
+        assertEquals(Arrays.asList(0L, 20_000L, 40_000L), mTriggerTimes);
+    }
+
+    @Test
+    public void testHasDataForAll_acrossReports() {
+        ConfigMetricsReportList reports = reportList(0, metric(1, 1)).toBuilder()
+                .addReports(ConfigMetricsReport.newBuilder().addMetrics(metric(2, 1)))
+                .build();
+        assertTrue(DataPoller.hasDataForAll(reports, TRACKED_METRICS));
+        assertFalse(DataPoller.hasDataForAll(reportList(0, metric(1, 1)), TRACKED_METRICS));
+    }
+
+    @Test
+    public void testIsBucketClosed_ignoresUntrackedAndUnbucketedMetrics() {
+        StatsLogReport eventMetric = StatsLogReport.newBuilder().setMetricId(1).build();
+        assertFalse(DataPoller.isBucketClosed(
+                reportList(BUCKET_SIZE_NANOS, eventMetric, metric(3, 0)), TRACKED_METRICS));
+        assertFalse(DataPoller.isBucketClosed(
+                reportList(BUCKET_SIZE_NANOS - 1, metric(2, 0)), TRACKED_METRICS));
+        assertTrue(DataPoller.isBucketClosed(
+                reportList(BUCKET_SIZE_NANOS, metric(2, 0)), TRACKED_METRICS));
+    }
+}
@@ -44,7 +44,9 @@ public class TestDriveTest {
         public boolean onePushedAtomEvent = false;
         public String extraPackage = null;
         public String target;
+        public List<String> targets;
         public boolean terse = false;
+        public int maxConcurrentCommands = 4;
 
         static Expect success(Integer... atoms) {
             return new Expect(true, atoms,
@@ -54,6 +56,7 @@ public class TestDriveTest {
             this.success = success;
             this.atoms = atoms;
             this.target = target;
+            this.targets = target == null ? null : Collections.singletonList(target);
         }
         static final Expect FAILURE = new Expect(false, null, null);
         Expect onePushedAtomEvent() {
@@ -68,6 +71,15 @@ public class TestDriveTest {
             this.terse = true;
             return this;
         }
+        Expect multiDevice(List<String> targets) {
+            this.target = null;
+            this.targets = targets;
+            return this;
+        }
+        Expect maxConcurrentCommands(int maxConcurrentCommands) {
+            this.maxConcurrentCommands = maxConcurrentCommands;
+            return this;
+        }
     }
 
     @Parameterized.Parameter(0)
@@ -153,7 +165,22 @@ public class TestDriveTest {
                 new Object[]{new String[]{"-one", "-p", PACKAGE, "-s", TARGET, "-terse",
                         "244", "245"},
                         TARGET_AND_OTHER, null,
-                        Expect.success(244, 245).extraPackage().onePushedAtomEvent().terse()}
+                        Expect.success(244, 245).extraPackage().onePushedAtomEvent().terse()},
+                new Object[]{new String[]{"-all", "244", "245"}, TWO_OTHER_DEVICES, null,
+                        Expect.success(244, 245).multiDevice(TWO_OTHER_DEVICES)},
+                new Object[]{new String[]{"-all", "244", "245"}, NO_DEVICES, null,
+                        Expect.FAILURE},  // No connected devices
+                new Object[]{new String[]{"-all", "244"}, TARGET_ONLY, null,
+                        Expect.success(244)},  // -all with a single device
+                new Object[]{new String[]{"-s", "other2", "-s", "other1", "-j", "2", "244"},
+                        TWO_OTHER_DEVICES, null,
+                        Expect.success(244).multiDevice(Arrays.asList("other2", "other1"))
+                                .maxConcurrentCommands(2)},
+                new Object[]{new String[]{"-s", TARGET, "-s", "other1", "244"},
+                        TWO_OTHER_DEVICES, null,
+                        Expect.FAILURE},  // One of the devices is not connected
+                new Object[]{new String[]{"-j", "many", "244"}, TARGET_ONLY, null,
+                        Expect.FAILURE}  // Bad concurrency limit
         );
     }
 
@@ -183,6 +210,8 @@ public class TestDriveTest {
             assertArrayEquals(mExpect.atoms, collectAtoms(mConfiguration));
             assertEquals(mExpect.onePushedAtomEvent, mConfiguration.mOnePushedAtomEvent);
             assertEquals(mExpect.target, mTestDrive.mDeviceSerial);
+            assertEquals(mExpect.targets, mTestDrive.mDeviceSerials);
+            assertEquals(mExpect.maxConcurrentCommands, mTestDrive.mMaxConcurrentCommands);
             if (mExpect.terse) {
                 assertEquals(TestDrive.TerseDumper.class, mTestDrive.mDumper.getClass());
             } else {
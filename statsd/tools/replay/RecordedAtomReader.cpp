@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#include "RecordedAtomReader.h"
+
+#include <android-base/file.h>
+#include <google/protobuf/io/coded_stream.h>
+#include <google/protobuf/wire_format_lite.h>
+
+#include <cstring>
+#include <limits>
+#include <map>
+
+namespace android {
+namespace os {
+namespace statsd {
+
+using google::protobuf::internal::WireFormatLite;
+using google::protobuf::io::CodedInputStream;
+using std::string;
+using std::vector;
+
+namespace {
+
+const int FIELD_ID_ATOM = 1;
+const int FIELD_ID_ELAPSED_TIMESTAMP_NANOS = 2;
+
+const int FIELD_ID_ATTRIBUTION_UID = 1;
+const int FIELD_ID_ATTRIBUTION_TAG = 2;
+const int FIELD_ID_ATTRIBUTION_CHAIN = 1;
+
+// Larger frames are taken as a sign of a corrupt recording.
+const uint64_t kMaxFrameBytes = 64 * 1024 * 1024;
+
+// One occurrence of a field in the wire format.
+struct WireValue {
+    WireFormatLite::WireType wireType;
+    uint64_t number;  // Value of varint, fixed32 and fixed64 fields.
+    string bytes;     // Value of length-delimited fields.
+};
+
+const uint8_t* dataOf(const string& bytes) {
+    return reinterpret_cast<const uint8_t*>(bytes.data());
+}
+
+bool readLengthDelimited(CodedInputStream* in, string* value) {
+    uint32_t length;
+    return in->ReadVarint32(&length) && in->ReadString(value, length);
+}
+
+bool parseAttributionNode(const string& bytes, uint32_t* uid, string* tag) {
+    CodedInputStream in(dataOf(bytes), bytes.size());
+    *uid = 0;
+    tag->clear();
+    while (uint32_t wireTag = in.ReadTag()) {
+        const int field = WireFormatLite::GetTagFieldNumber(wireTag);
+        const WireFormatLite::WireType wireType = WireFormatLite::GetTagWireType(wireTag);
+        if (field == FIELD_ID_ATTRIBUTION_UID && wireType == WireFormatLite::WIRETYPE_VARINT) {
+            if (!in.ReadVarint32(uid)) return false;
+        } else if (field == FIELD_ID_ATTRIBUTION_TAG &&
+                   wireType == WireFormatLite::WIRETYPE_LENGTH_DELIMITED) {
+            if (!readLengthDelimited(&in, tag)) return false;
+        } else {
+            return false;
+        }
+    }
+    return in.ConsumedEntireMessage();
+}
+
+// Whether value can be written as a null-terminated UTF-8 string.
+bool isUtf8String(const string& value) {
+    size_t i = 0;
+    while (i < value.size()) {
+        const uint8_t c = value[i];
+        size_t continuationBytes;
+        if (c == 0) {
+            return false;
+        } else if (c < 0x80) {
+            continuationBytes = 0;
+        } else if ((c & 0xE0) == 0xC0) {
+            continuationBytes = 1;
+        } else if ((c & 0xF0) == 0xE0) {
+            continuationBytes = 2;
+        } else if ((c & 0xF8) == 0xF0) {
+            continuationBytes = 3;
+        } else {
+            return false;
+        }
+        if (value.size() - i - 1 < continuationBytes) {
+            return false;
+        }
+        for (size_t j = 1; j <= continuationBytes; j++) {
+            if ((static_cast<uint8_t>(value[i + j]) & 0xC0) != 0x80) {
+                return false;
+            }
+        }
+        i += continuationBytes + 1;
+    }
+    return true;
+}
+
+bool fitsInInt32(uint64_t number) {
+    const int64_t value = static_cast<int64_t>(number);
+    return value >= std::numeric_limits<int32_t>::min() &&
+           value <= std::numeric_limits<int32_t>::max();
+}
+
+float toFloat(uint64_t number) {
+    const uint32_t bits = static_cast<uint32_t>(number);
+    float value;
+    memcpy(&value, &bits, sizeof(value));
+    return value;
+}
+
+bool writeAttributionChain(const vector<WireValue>& values, AStatsEvent* event) {
+    if (values.size() > std::numeric_limits<uint8_t>::max()) {
+        return false;
+    }
+    vector<uint32_t> uids(values.size());
+    vector<string> tags(values.size());
+    for (size_t i = 0; i < values.size(); i++) {
+        if (!parseAttributionNode(values[i].bytes, &uids[i], &tags[i])) {
+            return false;
+        }
+    }
+    vector<const char*> tagPointers;
+    for (const string& tag : tags) {
+        tagPointers.push_back(tag.c_str());
+    }
+    AStatsEvent_writeAttributionChain(event, uids.data(), tagPointers.data(), values.size());
+    return true;
+}
+
+bool writeField(int field, const vector<WireValue>& values, AStatsEvent* event) {
+    const WireFormatLite::WireType wireType = values[0].wireType;
+    for (const WireValue& value : values) {
+        if (value.wireType != wireType) {
+            return false;
+        }
+    }
+
+    switch (wireType) {
+        case WireFormatLite::WIRETYPE_VARINT: {
+            bool int32Values = true;
+            for (const WireValue& value : values) {
+                int32Values &= fitsInInt32(value.number);
+            }
+            if (values.size() == 1) {
+                if (int32Values) {
+                    AStatsEvent_writeInt32(event, static_cast<int32_t>(values[0].number));
+                } else {
+                    AStatsEvent_writeInt64(event, static_cast<int64_t>(values[0].number));
+                }
+            } else if (int32Values) {
+                vector<int32_t> elements;
+                for (const WireValue& value : values) {
+                    elements.push_back(static_cast<int32_t>(value.number));
+                }
+                AStatsEvent_writeInt32Array(event, elements.data(), elements.size());
+            } else {
+                vector<int64_t> elements;
+                for (const WireValue& value : values) {
+                    elements.push_back(static_cast<int64_t>(value.number));
+                }
+                AStatsEvent_writeInt64Array(event, elements.data(), elements.size());
+            }
+            return true;
+        }
+        case WireFormatLite::WIRETYPE_FIXED32: {
+            if (values.size() == 1) {
+                AStatsEvent_writeFloat(event, toFloat(values[0].number));
+            } else {
+                vector<float> elements;
+                for (const WireValue& value : values) {
+                    elements.push_back(toFloat(value.number));
+                }
+                AStatsEvent_writeFloatArray(event, elements.data(), elements.size());
+            }
+            return true;
+        }
+        case WireFormatLite::WIRETYPE_FIXED64: {
+            if (values.size() == 1) {
+                AStatsEvent_writeInt64(event, static_cast<int64_t>(values[0].number));
+            } else {
+                vector<int64_t> elements;
+                for (const WireValue& value : values) {
+                    elements.push_back(static_cast<int64_t>(value.number));
+                }
+                AStatsEvent_writeInt64Array(event, elements.data(), elements.size());
+            }
+            return true;
+        }
+        case WireFormatLite::WIRETYPE_LENGTH_DELIMITED: {
+            if (field == FIELD_ID_ATTRIBUTION_CHAIN && writeAttributionChain(values, event)) {
+                return true;
+            }
+            if (values.size() == 1) {
+                const string& value = values[0].bytes;
+                if (isUtf8String(value)) {
+                    AStatsEvent_writeString(event, value.c_str());
+                } else {
+                    AStatsEvent_writeByteArray(event, dataOf(value), value.size());
+                }
+                return true;
+            }
+            vector<const char*> elements;
+            for (const WireValue& value : values) {
+                if (!isUtf8String(value.bytes)) {
+                    return false;
+                }
+                elements.push_back(value.bytes.c_str());
+            }
+            AStatsEvent_writeStringArray(event, elements.data(), elements.size());
+            return true;
+        }
+        default:
+            return false;
+    }
+}
+
+}  // namespace
+
+bool RecordedAtomReader::next(RecordedAtom* atom) {
+    while (mNextAtom >= mFrameAtoms.size()) {
+        if (!readFrame()) {
+            return false;
+        }
+    }
+    *atom = std::move(mFrameAtoms[mNextAtom++]);
+    return true;
+}
+
+bool RecordedAtomReader::readFrame() {
+    mFrameAtoms.clear();
+    mNextAtom = 0;
+
+    uint64_t size;
+    if (!android::base::ReadFully(mFd, &size, sizeof(size))) {
+        return false;
+    }
+    if (size > kMaxFrameBytes) {
+        mError = true;
+        return false;
+    }
+    vector<uint8_t> buffer(size);
+    // A frame cut short by the end of the file, e.g. because the recording was interrupted, is
+    // the end of the recording.
+    if (!android::base::ReadFully(mFd, buffer.data(), size)) {
+        return false;
+    }
+    if (!parseShellData(buffer.data(), size, &mFrameAtoms)) {
+        mError = true;
+        return false;
+    }
+    return true;
+}
+
+bool parseShellData(const uint8_t* data, size_t size, vector<RecordedAtom>* atoms) {
+    CodedInputStream in(data, size);
+    const size_t firstAtom = atoms->size();
+    vector<int64_t> timestamps;
+    while (uint32_t wireTag = in.ReadTag()) {
+        const int field = WireFormatLite::GetTagFieldNumber(wireTag);
+        const WireFormatLite::WireType wireType = WireFormatLite::GetTagWireType(wireTag);
+        if (field == FIELD_ID_ATOM && wireType == WireFormatLite::WIRETYPE_LENGTH_DELIMITED) {
+            string atomBytes;
+            if (!readLengthDelimited(&in, &atomBytes)) return false;
+            // The Atom message has a single field, numbered after the atom id.
+            CodedInputStream atomIn(dataOf(atomBytes), atomBytes.size());
+            const uint32_t atomTag = atomIn.ReadTag();
+            if (WireFormatLite::GetTagWireType(atomTag) !=
+                WireFormatLite::WIRETYPE_LENGTH_DELIMITED) {
+                return false;
+            }
+            RecordedAtom atom;
+            atom.atomId = WireFormatLite::GetTagFieldNumber(atomTag);
+            if (!readLengthDelimited(&atomIn, &atom.fields)) return false;
+            atoms->push_back(std::move(atom));
+        } else if (field == FIELD_ID_ELAPSED_TIMESTAMP_NANOS &&
+                   wireType == WireFormatLite::WIRETYPE_VARINT) {
+            uint64_t timestampNs;
+            if (!in.ReadVarint64(&timestampNs)) return false;
+            timestamps.push_back(static_cast<int64_t>(timestampNs));
+        } else if (!WireFormatLite::SkipField(&in, wireTag)) {
+            return false;
+        }
+    }
+    if (!in.ConsumedEntireMessage()) {
+        return false;
+    }
+
+    int64_t timestampNs = firstAtom > 0 ? (*atoms)[firstAtom - 1].elapsedTimestampNs : 0;
+    for (size_t i = firstAtom; i < atoms->size(); i++) {
+        if (i - firstAtom < timestamps.size()) {
+            timestampNs = timestamps[i - firstAtom];
+        }
+        (*atoms)[i].elapsedTimestampNs = timestampNs;
+    }
+    return true;
+}
+
+bool writeRecordedFields(const string& fields, AStatsEvent* event) {
+    // Fields by number. LogEvent::ToProto writes them in order, but may skip some.
+    std::map<int, vector<WireValue>> values;
+    CodedInputStream in(dataOf(fields), fields.size());
+    while (uint32_t wireTag = in.ReadTag()) {
+        WireValue value;
+        value.wireType = WireFormatLite::GetTagWireType(wireTag);
+        value.number = 0;
+        bool ok;
+        switch (value.wireType) {
+            case WireFormatLite::WIRETYPE_VARINT:
+                ok = in.ReadVarint64(&value.number);
+                break;
+            case WireFormatLite::WIRETYPE_FIXED32: {
+                uint32_t number;
+                ok = in.ReadLittleEndian32(&number);
+                value.number = number;
+                break;
+            }
+            case WireFormatLite::WIRETYPE_FIXED64:
+                ok = in.ReadLittleEndian64(&value.number);
+                break;
+            case WireFormatLite::WIRETYPE_LENGTH_DELIMITED:
+                ok = readLengthDelimited(&in, &value.bytes);
+                break;
+            default:
+                ok = false;
+                break;
+        }
+        if (!ok) {
+            return false;
+        }
+        values[WireFormatLite::GetTagFieldNumber(wireTag)].push_back(std::move(value));
+    }
+    if (!in.ConsumedEntireMessage()) {
+        return false;
+    }
+
+    int nextField = 1;
+    for (const auto& [field, fieldValues] : values) {
+        // Stats event fields are positional, so stand in for the skipped ones.
+        for (; nextField < field; nextField++) {
+            AStatsEvent_writeInt32(event, 0);
+        }
+        if (!writeField(field, fieldValues, event)) {
+            return false;
+        }
+        nextField = field + 1;
+    }
+    return true;
+}
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+#pragma once
+
+#include <stats_event.h>
+
+#include <string>
+#include <vector>
+
+namespace android {
+namespace os {
+namespace statsd {
+
+// An atom of a recording, with its fields still in proto wire format.
+struct RecordedAtom {
+    int32_t atomId = 0;
+    int64_t elapsedTimestampNs = 0;
+    std::string fields;
+};
+
+/**
+ * Reads the atoms of a recording made by statsd_shell_recorder.
+ *
+ * A recording is the output of 'cmd stats data-subscribe' on a 64-bit device, without the
+ * heartbeats: |uint64_t size|ShellData proto|uint64_t size|ShellData proto|...
+ */
+class RecordedAtomReader {
+public:
+    explicit RecordedAtomReader(int fd) : mFd(fd) {
+    }
+
+    // Reads the next atom. Returns false at the end of the recording or if it is corrupt.
+    bool next(RecordedAtom* atom);
+
+    // Whether reading stopped because the recording is corrupt.
+    bool hasError() const {
+        return mError;
+    }
+
+private:
+    bool readFrame();
+
+    const int mFd;
+    std::vector<RecordedAtom> mFrameAtoms;
+    size_t mNextAtom = 0;
+    bool mError = false;
+};
+
+// Appends the atoms of a serialized ShellData to atoms. Atoms without a timestamp, as sent by
+// older statsd versions, get the timestamp of the atom before them. Returns false if the data
+// is not a valid ShellData.
+bool parseShellData(const uint8_t* data, size_t size, std::vector<RecordedAtom>* atoms);
+
+/**
+ * Writes the fields of a recorded atom to event, which must already have its atom id.
+ *
+ * The wire format has less type information than a stats event, so the fields are guessed:
+ *  - varints are int32 if they fit in one, int64 otherwise,
+ *  - length-delimited field 1 is an attribution chain if it parses as one,
+ *  - other length-delimited fields are strings if they are valid UTF-8, byte arrays otherwise,
+ *  - fields that appear more than once are arrays,
+ *  - fields missing from the proto, which had their default value, are int32 zeros.
+ * Annotations are not recorded, so none are written.
+ * Returns false if fields is not valid wire format.
+ */
+bool writeRecordedFields(const std::string& fields, AStatsEvent* event);
+
+}  // namespace statsd
+}  // namespace os
+}  // namespace android
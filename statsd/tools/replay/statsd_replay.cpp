@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// Replays a recording made by statsd_shell_recorder, to benchmark statsd on real traffic.
+//
+// By default the atoms are written to the statsd socket through libstatssocket, like any
+// other client would. With --local, they go through the same libstatssocket encoding but are
+// then parsed and processed by a StatsLogProcessor in this process, with the given config, so
+// that the processing pipeline can be measured without the device's other load.
+
+#include <android-base/file.h>
+#include <android-base/parsedouble.h>
+#include <android-base/unique_fd.h>
+#include <fcntl.h>
+#include <private/android_filesystem_config.h>
+#include <stdio.h>
+
+#include <algorithm>
+#include <chrono>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "RecordedAtomReader.h"
+#include "StatsLogProcessor.h"
+#include "logd/LogEvent.h"
+#include "stats_event.h"
+#include "stats_log_util.h"
+
+using namespace android::os::statsd;
+using android::sp;
+using std::string;
+using std::vector;
+
+namespace {
+
+const int64_t kNsPerSec = 1000000000LL;
+const int64_t kLocalConfigId = 12345;
+
+void printUsage() {
+    fprintf(stderr,
+            "Usage: statsd_replay [--speed N|max] [--local CONFIG_FILE] RECORDING_FILE\n"
+            "  Replays the atoms recorded by statsd_shell_recorder and prints the throughput\n"
+            "  and the latency of each write.\n"
+            "    --speed N|max         Replay N times faster than recorded, or as fast as\n"
+            "                          possible. Defaults to 1.\n"
+            "    --local CONFIG_FILE   Process the atoms in this process, with the binary\n"
+            "                          StatsdConfig in CONFIG_FILE, instead of sending them\n"
+            "                          to statsd.\n");
+}
+
+int64_t nowNs() {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(
+                   std::chrono::steady_clock::now().time_since_epoch())
+            .count();
+}
+
+int64_t percentile(const vector<int64_t>& sorted, int percent) {
+    if (sorted.empty()) {
+        return 0;
+    }
+    return sorted[std::min(sorted.size() - 1, sorted.size() * percent / 100)];
+}
+
+// Processes the atoms with an in-process StatsLogProcessor, as statsd would.
+class LocalTarget {
+public:
+    LocalTarget(const StatsdConfig& config, int64_t timeBaseNs)
+        : mKey(AID_SHELL, kLocalConfigId) {
+        sp<UidMap> uidMap = new UidMap();
+        sp<StatsPullerManager> pullerManager = new StatsPullerManager();
+        sp<AlarmMonitor> anomalyAlarmMonitor;
+        sp<AlarmMonitor> periodicAlarmMonitor;
+        mProcessor = new StatsLogProcessor(
+                uidMap, pullerManager, anomalyAlarmMonitor, periodicAlarmMonitor, timeBaseNs,
+                [](const ConfigKey&) { return true; },
+                [](const int&, const vector<int64_t>&) { return true; });
+        mProcessor->OnConfigUpdated(timeBaseNs, mKey, config);
+    }
+
+    bool write(AStatsEvent* event, int64_t elapsedTimestampNs) {
+        AStatsEvent_overwriteTimestamp(event, elapsedTimestampNs);
+        AStatsEvent_build(event);
+        size_t size;
+        uint8_t* buffer = AStatsEvent_getBuffer(event, &size);
+        LogEvent logEvent(/*uid=*/AID_SHELL, /*pid=*/0);
+        if (!logEvent.parseBuffer(buffer, size)) {
+            return false;
+        }
+        mProcessor->OnLogEvent(&logEvent);
+        return true;
+    }
+
+    size_t getMetricsSize() const {
+        return mProcessor->GetMetricsSize(mKey);
+    }
+
+private:
+    const ConfigKey mKey;
+    sp<StatsLogProcessor> mProcessor;
+};
+
+}  // namespace
+
+int main(int argc, char** argv) {
+    double speed = 1;
+    string configFile;
+    int argIndex = 1;
+    for (; argIndex + 1 < argc; argIndex++) {
+        const string arg = argv[argIndex];
+        if (arg == "--speed") {
+            const string value = argv[++argIndex];
+            if (value == "max") {
+                speed = 0;
+            } else if (!android::base::ParseDouble(value, &speed, 0.001)) {
+                fprintf(stderr, "Bad speed: %s\n", value.c_str());
+                return 1;
+            }
+        } else if (arg == "--local") {
+            configFile = argv[++argIndex];
+        } else {
+            break;
+        }
+    }
+    if (argIndex != argc - 1) {
+        printUsage();
+        return 1;
+    }
+
+    android::base::unique_fd fd(open(argv[argIndex], O_RDONLY | O_CLOEXEC));
+    if (fd == -1) {
+        fprintf(stderr, "Cannot open %s\n", argv[argIndex]);
+        return 1;
+    }
+
+    std::unique_ptr<LocalTarget> localTarget;
+    if (!configFile.empty()) {
+        string configBytes;
+        StatsdConfig config;
+        if (!android::base::ReadFileToString(configFile, &configBytes) ||
+            !config.ParseFromString(configBytes)) {
+            fprintf(stderr, "Cannot read config %s\n", configFile.c_str());
+            return 1;
+        }
+        localTarget = std::make_unique<LocalTarget>(config, getElapsedRealtimeNs());
+    }
+
+    RecordedAtomReader reader(fd.get());
+    RecordedAtom atom;
+    vector<int64_t> latenciesNs;
+    int64_t firstRecordedNs = -1;
+    int64_t maxLagNs = 0;
+    int failures = 0;
+    const int64_t startNs = nowNs();
+    const int64_t startElapsedNs = getElapsedRealtimeNs();
+    while (reader.next(&atom)) {
+        if (firstRecordedNs < 0) {
+            firstRecordedNs = atom.elapsedTimestampNs;
+        }
+        const int64_t recordedOffsetNs =
+                std::max<int64_t>(0, atom.elapsedTimestampNs - firstRecordedNs);
+        if (speed > 0) {
+            const int64_t dueNs = startNs + (int64_t)(recordedOffsetNs / speed);
+            const int64_t now = nowNs();
+            if (now < dueNs) {
+                std::this_thread::sleep_for(std::chrono::nanoseconds(dueNs - now));
+            } else {
+                maxLagNs = std::max(maxLagNs, now - dueNs);
+            }
+        }
+
+        const int64_t writeStartNs = nowNs();
+        AStatsEvent* event = AStatsEvent_obtain();
+        AStatsEvent_setAtomId(event, atom.atomId);
+        bool written = writeRecordedFields(atom.fields, event);
+        if (written) {
+            if (localTarget) {
+                // Event times follow the recording, at the replay speed, so that buckets and
+                // conditions see the same timeline as on the recorded device.
+                const int64_t offsetNs =
+                        speed > 0 ? (int64_t)(recordedOffsetNs / speed) : recordedOffsetNs;
+                written = localTarget->write(event, startElapsedNs + offsetNs);
+            } else {
+                written = AStatsEvent_write(event) > 0;
+            }
+        }
+        AStatsEvent_release(event);
+        latenciesNs.push_back(nowNs() - writeStartNs);
+        if (!written) {
+            failures++;
+        }
+    }
+    const int64_t elapsedNs = nowNs() - startNs;
+
+    if (reader.hasError()) {
+        fprintf(stderr, "Recording is corrupt after %zu atoms\n", latenciesNs.size());
+    }
+    std::sort(latenciesNs.begin(), latenciesNs.end());
+    printf("Replayed %zu atoms in %.3f s (%.0f atoms/s), %d failed\n", latenciesNs.size(),
+           (double)elapsedNs / kNsPerSec,
+           elapsedNs > 0 ? (double)latenciesNs.size() * kNsPerSec / elapsedNs : 0.0, failures);
+    printf("Latency per atom (us): p50 %.1f, p90 %.1f, p99 %.1f, max %.1f\n",
+           percentile(latenciesNs, 50) / 1000.0, percentile(latenciesNs, 90) / 1000.0,
+           percentile(latenciesNs, 99) / 1000.0, percentile(latenciesNs, 100) / 1000.0);
+    if (speed > 0) {
+        printf("Largest lag behind the recorded timeline: %.1f ms\n", maxLagNs / 1000000.0);
+    }
+    if (localTarget) {
+        printf("Metrics size: %zu bytes\n", localTarget->getMetricsSize());
+    }
+    return reader.hasError() ? 1 : 0;
+}